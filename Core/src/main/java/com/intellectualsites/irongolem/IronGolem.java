@@ -17,27 +17,63 @@
 
 package com.intellectualsites.irongolem;
 
+import com.google.common.cache.CacheStats;
+import com.intellectualsites.irongolem.changes.ChangeReason;
 import com.intellectualsites.irongolem.commands.CommandManager;
 import com.intellectualsites.irongolem.configuration.MessageHandler;
 import com.intellectualsites.irongolem.listeners.BlockListener;
 import com.intellectualsites.irongolem.listeners.InspectorListener;
 import com.intellectualsites.irongolem.listeners.PlayerListener;
+import com.intellectualsites.irongolem.logging.ChangeIntake;
 import com.intellectualsites.irongolem.logging.ChangeLogger;
+import com.intellectualsites.irongolem.logging.FlushPolicy;
+import com.intellectualsites.irongolem.logging.JournaledChangeIntake;
+import com.intellectualsites.irongolem.logging.OverflowPolicy;
+import com.intellectualsites.irongolem.logging.QueueChangeIntake;
+import com.intellectualsites.irongolem.logging.QueuingChangeLogger;
+import com.intellectualsites.irongolem.logging.RingChangeIntake;
+import com.intellectualsites.irongolem.logging.ScheduledQueuingChangeLogger;
 import com.intellectualsites.irongolem.players.PlayerManager;
 import com.intellectualsites.irongolem.queue.BukkitLocalQueue;
 import com.intellectualsites.irongolem.restoration.FAWERestorationHandler;
 import com.intellectualsites.irongolem.restoration.QueueRestorationHandler;
 import com.intellectualsites.irongolem.restoration.RestorationHandler;
+import com.intellectualsites.irongolem.storage.PartitionPeriod;
+import com.intellectualsites.irongolem.storage.PartitionedSQLiteLogger;
+import com.intellectualsites.irongolem.storage.PooledJdbcLogger;
+import com.intellectualsites.irongolem.storage.PurgeableLogger;
+import com.intellectualsites.irongolem.storage.RetentionManager;
+import com.intellectualsites.irongolem.storage.RetentionRule;
+import com.intellectualsites.irongolem.storage.SQLDialect;
 import com.intellectualsites.irongolem.storage.SQLiteLogger;
+import com.intellectualsites.irongolem.storage.SegmentChangeLogger;
+import com.intellectualsites.irongolem.storage.ShardedChangeLogger;
+import com.intellectualsites.irongolem.util.BlockStateCache;
+import com.intellectualsites.irongolem.util.TimeUtils;
 import com.intellectualsites.irongolem.util.UsernameMapper;
+import com.zaxxer.hikari.HikariConfig;
 import org.bukkit.Bukkit;
+import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.plugin.ServicePriority;
 import org.bukkit.plugin.java.JavaPlugin;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Objects;
+import java.util.concurrent.TimeUnit;
 
 public final class IronGolem extends JavaPlugin implements IronGolemAPI {
 
@@ -48,14 +84,61 @@ public final class IronGolem extends JavaPlugin implements IronGolemAPI {
     private RestorationHandler restorationHandler;
     private UsernameMapper usernameMapper;
     private MessageHandler messageHandler;
+    private RetentionManager retentionManager;
 
     @Override public void onEnable() {
         this.messageHandler = new MessageHandler(this);
         if (!this.getDataFolder().exists() && !this.getDataFolder().mkdir()) {
             LOGGER.error("Failed to create data folder");
         }
+        this.saveDefaultConfig();
         try {
-            this.changeLogger = new SQLiteLogger(this, 20);
+            final String type = this.getConfig().getString("storage.type", "sqlite");
+            final String partitioning = this.getConfig().getString("storage.partitioning", "none");
+            final int shards = this.getConfig().getInt("storage.shards", 1);
+            final SQLDialect dialect = Arrays.stream(SQLDialect.values())
+                .filter(candidate -> candidate.name().equalsIgnoreCase(type)).findFirst().orElse(SQLDialect.SQLITE);
+            if ("segments".equalsIgnoreCase(type)) {
+                LOGGER.info("Using the segment storage backend");
+                this.changeLogger = new SegmentChangeLogger(this, this.createFlushPolicy(),
+                    this.createChangeIntake(this.getDataFolder()),
+                    this.getConfig().getInt("storage.segments.records-per-segment", 1048576));
+            } else if (dialect != SQLDialect.SQLITE) {
+                LOGGER.info("Using the {} storage backend", dialect.name().toLowerCase(Locale.ENGLISH));
+                this.changeLogger = new PooledJdbcLogger(this, this.createFlushPolicy(),
+                    this.createChangeIntake(this.getDataFolder()), dialect, this.createPoolConfig(dialect));
+            } else if ((partitioning == null || partitioning.equalsIgnoreCase("none")) && shards > 1) {
+                LOGGER.info("Spreading changes over {} shards", shards);
+                final File shardDirectory = new File(this.getDataFolder(), "shards");
+                this.checkShardCount(shardDirectory, shards);
+                final List<SQLiteLogger> loggers = new ArrayList<>(shards);
+                for (int shard = 0; shard < shards; shard++) {
+                    final File directory = new File(shardDirectory, Integer.toString(shard));
+                    if (!directory.exists() && !directory.mkdirs()) {
+                        throw new IOException(String.format("Failed to create shard directory %d", shard));
+                    }
+                    loggers.add(new SQLiteLogger(this, this.createFlushPolicy(), this.createChangeIntake(directory), directory));
+                }
+                SQLiteLogger legacyLogger = null;
+                if (new File(this.getDataFolder(), "database.db").exists()) {
+                    // History from before the changes were spread over shards is still
+                    // queried, but nothing new is written to it
+                    LOGGER.info("Keeping the history in database.db");
+                    legacyLogger = new SQLiteLogger(this, this.createFlushPolicy(), new QueueChangeIntake());
+                }
+                this.changeLogger = new ShardedChangeLogger(loggers, legacyLogger);
+            } else if (partitioning == null || partitioning.equalsIgnoreCase("none")) {
+                this.changeLogger = new SQLiteLogger(this, this.createFlushPolicy(), this.createChangeIntake(this.getDataFolder()));
+            } else {
+                final PartitionPeriod period = PartitionPeriod.valueOf(partitioning.toUpperCase(Locale.ENGLISH));
+                LOGGER.info("Partitioning the database by {} periods", period.name().toLowerCase(Locale.ENGLISH));
+                this.changeLogger = new PartitionedSQLiteLogger(this, this.createFlushPolicy(),
+                    this.createChangeIntake(this.getDataFolder()), period);
+            }
+            if (shards > 1 && !(this.changeLogger instanceof ShardedChangeLogger)) {
+                LOGGER.warn("Changes can only be spread over shards by the sqlite backend without partitioning."
+                    + " The shards setting is ignored");
+            }
         } catch (final Exception e) {
             e.printStackTrace();
         }
@@ -93,6 +176,32 @@ public final class IronGolem extends JavaPlugin implements IronGolemAPI {
             Bukkit.getPluginManager().disablePlugin(this);
             return;
         } else {
+            for (final ChangeLogger logger : this.getLoggers()) {
+                if (logger instanceof QueuingChangeLogger
+                    && ((QueuingChangeLogger) logger).getChangeIntake() instanceof JournaledChangeIntake) {
+                    final int replayed = ((JournaledChangeIntake) ((QueuingChangeLogger) logger).getChangeIntake()).replay();
+                    if (replayed > 0) {
+                        LOGGER.info("Replaying {} changes from the journal", replayed);
+                    }
+                }
+            }
+            final List<PurgeableLogger> purgeableLoggers = new ArrayList<>();
+            for (final ChangeLogger logger : this.getLoggers()) {
+                if (logger instanceof PurgeableLogger) {
+                    purgeableLoggers.add((PurgeableLogger) logger);
+                }
+            }
+            if (!purgeableLoggers.isEmpty()) {
+                try {
+                    this.retentionManager = this.createRetentionManager(purgeableLoggers);
+                    final long interval = this.getConfig().getLong("retention.interval", 60L);
+                    if (interval > 0) {
+                        this.retentionManager.start(TimeUnit.MINUTES.toSeconds(interval) * 20L);
+                    }
+                } catch (final Exception e) {
+                    LOGGER.error("Failed to load the retention rules", e);
+                }
+            }
             Bukkit.getPluginManager().registerEvents(new BlockListener(this.changeLogger), this);
             Bukkit.getPluginManager().registerEvents(new InspectorListener(), this);
             Bukkit.getPluginManager().registerEvents(new PlayerListener(this), this);
@@ -106,12 +215,215 @@ public final class IronGolem extends JavaPlugin implements IronGolemAPI {
         return this.changeLogger;
     }
 
+    /**
+     * Get the retention manager
+     *
+     * @return Retention manager, or null if the change logger does not support purging
+     */
+    @Nullable public RetentionManager getRetentionManager() {
+        return this.retentionManager;
+    }
+
+    /**
+     * Get the loggers that changes are written to. This is the change
+     * logger itself, unless the changes are spread over shards
+     *
+     * @return Loggers
+     */
+    @NotNull private List<ChangeLogger> getLoggers() {
+        if (this.changeLogger instanceof ShardedChangeLogger) {
+            return ((ShardedChangeLogger) this.changeLogger).getLoggers();
+        }
+        return Collections.singletonList(this.changeLogger);
+    }
+
+    /**
+     * Make sure that the history is spread over the configured number of shards. The
+     * number of shards is recorded when they are first created, as changes would
+     * end up in the wrong shard if it changed
+     *
+     * @param directory Directory that holds the shards
+     * @param shards    Configured number of shards
+     * @throws IOException If the number of shards cannot be read or recorded, or does not match
+     */
+    private void checkShardCount(@NotNull final File directory, final int shards) throws IOException {
+        final File file = new File(directory, "shards.txt");
+        final int recorded;
+        if (file.exists()) {
+            try {
+                recorded = Integer.parseInt(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim());
+            } catch (final NumberFormatException e) {
+                throw new IOException(String.format("Failed to read the number of shards from %s", file.getName()), e);
+            }
+        } else {
+            // Shards may have been created before the number was recorded
+            final File[] existing = directory.listFiles((parent, name) -> name.matches("\\d+")
+                && new File(new File(parent, name), "database.db").exists());
+            recorded = existing == null || existing.length == 0 ? shards : existing.length;
+        }
+        if (recorded != shards) {
+            throw new IOException(String.format("The history is spread over %d shards, but storage.shards is set to %d."
+                + " The number of shards cannot be changed once history has been recorded", recorded, shards));
+        }
+        if (!file.exists()) {
+            if (!directory.exists() && !directory.mkdirs()) {
+                throw new IOException("Failed to create the shard directory");
+            }
+            Files.write(file.toPath(), Collections.singletonList(Integer.toString(shards)), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Create the flush policy of a logger from the configured settings
+     *
+     * @return Flush policy
+     */
+    @NotNull private FlushPolicy createFlushPolicy() {
+        return FlushPolicy.newBuilder()
+            .withInterval(this.getConfig().getLong("storage.flush.min-interval", 1L),
+                this.getConfig().getLong("storage.flush.max-interval", 20L))
+            .withBatchSize(this.getConfig().getInt("storage.flush.min-batch-size", 64),
+                this.getConfig().getInt("storage.flush.max-batch-size", 8192))
+            .withTargetLatency(this.getConfig().getLong("storage.flush.target-latency", 1000L))
+            .withDurabilityWindow(this.getConfig().getLong("storage.flush.durability-window", 1000L))
+            .withCoalescingWindow(this.getConfig().getLong("storage.flush.coalescing-window", 0L))
+            .build();
+    }
+
+    /**
+     * Create the intake that changes are queued in until they are persisted
+     *
+     * @param directory Directory that holds the spill file and journal of the intake
+     * @return Change intake
+     * @throws IOException If the spill file or journal cannot be opened
+     */
+    @NotNull private ChangeIntake createChangeIntake(@NotNull final File directory) throws IOException {
+        final ChangeIntake changeIntake;
+        if (!"ring".equalsIgnoreCase(this.getConfig().getString("storage.intake.type", "queue"))) {
+            changeIntake = new QueueChangeIntake();
+        } else {
+            changeIntake = this.createRingIntake(directory);
+        }
+        if (this.getConfig().getBoolean("storage.intake.journal", false)) {
+            LOGGER.info("Journaling queued changes");
+            return new JournaledChangeIntake(changeIntake, new File(directory, "journal"));
+        }
+        return changeIntake;
+    }
+
+    /**
+     * Create a ring intake from the configured capacity and overflow policy
+     *
+     * @param directory Directory that holds the spill file
+     * @return Ring intake
+     * @throws IOException If the spill file cannot be opened
+     */
+    @NotNull private RingChangeIntake createRingIntake(@NotNull final File directory) throws IOException {
+        final OverflowPolicy overflowPolicy = OverflowPolicy.valueOf(Objects.requireNonNull(
+            this.getConfig().getString("storage.intake.overflow", "spill")).toUpperCase(Locale.ENGLISH));
+        final RingChangeIntake changeIntake = RingChangeIntake.newBuilder()
+            .withCapacity(this.getConfig().getInt("storage.intake.capacity", 64) * 1024 * 1024)
+            .withOverflowPolicy(overflowPolicy)
+            .withMaxWait(this.getConfig().getLong("storage.intake.max-wait", 50L))
+            .spillingTo(new File(directory, "intake-spill.bin"))
+            .build();
+        LOGGER.info("Queuing changes in a {} MB ring ({} on overflow)", changeIntake.getCapacity() / (1024 * 1024),
+            overflowPolicy.name().toLowerCase(Locale.ENGLISH));
+        return changeIntake;
+    }
+
+    /**
+     * Create the connection pool configuration of a database backend
+     *
+     * @param dialect Database dialect
+     * @return Pool configuration
+     */
+    @NotNull private HikariConfig createPoolConfig(@NotNull final SQLDialect dialect) {
+        final HikariConfig config = new HikariConfig();
+        config.setPoolName("IronGolem");
+        if (dialect.isEmbedded()) {
+            config.setJdbcUrl(dialect.getUrl("", 0, new File(this.getDataFolder(), "h2/irongolem").getAbsolutePath()));
+        } else {
+            final int port = this.getConfig().getInt("storage.jdbc.port", 0);
+            config.setJdbcUrl(dialect.getUrl(this.getConfig().getString("storage.jdbc.host", "localhost"),
+                port > 0 ? port : dialect.getDefaultPort(), this.getConfig().getString("storage.jdbc.database", "irongolem")));
+            config.setUsername(this.getConfig().getString("storage.jdbc.username", "irongolem"));
+            config.setPassword(this.getConfig().getString("storage.jdbc.password", ""));
+        }
+        config.setMaximumPoolSize(Math.max(2, this.getConfig().getInt("storage.jdbc.pool-size", 6)));
+        return config;
+    }
+
+    /**
+     * Create the retention manager from the configured retention rules
+     *
+     * @param loggers Loggers to purge changes from
+     * @return Retention manager
+     */
+    @NotNull private RetentionManager createRetentionManager(@NotNull final Collection<PurgeableLogger> loggers) {
+        final RetentionManager.RetentionManagerBuilder builder = RetentionManager.newBuilder();
+        for (final PurgeableLogger logger : loggers) {
+            builder.forLogger(this, logger);
+        }
+        builder.withBatchSize(this.getConfig().getInt("retention.batch-size", 500))
+            .withRateLimit(this.getConfig().getInt("retention.rate-limit", 5000))
+            .withVacuumThreshold(this.getConfig().getLong("retention.vacuum-threshold", 100000L));
+        final ConfigurationSection rules = this.getConfig().getConfigurationSection("retention.rules");
+        if (rules != null) {
+            for (final String key : rules.getKeys(false)) {
+                final ConfigurationSection section = Objects.requireNonNull(rules.getConfigurationSection(key));
+                final RetentionRule.RetentionRuleBuilder rule = RetentionRule.newBuilder()
+                    .inWorld(section.getString("world", null))
+                    .withMaxAge(TimeUtils.parseDuration(Objects.requireNonNull(section.getString("max-age", null),
+                        String.format("Retention rule %s has no max-age", key))));
+                if (section.contains("reasons")) {
+                    final Collection<ChangeReason> reasons = EnumSet.noneOf(ChangeReason.class);
+                    for (final String reason : section.getStringList("reasons")) {
+                        reasons.add(ChangeReason.valueOf(reason.toUpperCase(Locale.ENGLISH)));
+                    }
+                    rule.withReasons(reasons);
+                }
+                builder.withRule(rule.build());
+            }
+        }
+        final RetentionManager retentionManager = builder.build();
+        LOGGER.info("Loaded {} retention rule(s)", retentionManager.getRules().size());
+        return retentionManager;
+    }
+
     @NotNull @Override public RestorationHandler getRestorationHandler() {
         return this.restorationHandler;
     }
 
     @Override public void onDisable() {
+        if (this.retentionManager != null) {
+            this.retentionManager.stop();
+        }
         this.changeLogger.stopLogger();
+        for (final ChangeLogger logger : this.getLoggers()) {
+            if (logger instanceof ScheduledQueuingChangeLogger) {
+                final long coalesced = ((ScheduledQueuingChangeLogger) logger).getCoalescedChanges();
+                if (coalesced > 0) {
+                    LOGGER.info("Merged {} changes into earlier changes to the same block", coalesced);
+                }
+            }
+            if (logger instanceof QueuingChangeLogger) {
+                final ChangeIntake changeIntake = ((QueuingChangeLogger) logger).getChangeIntake();
+                changeIntake.close();
+                final ChangeIntake queue = changeIntake instanceof JournaledChangeIntake
+                    ? ((JournaledChangeIntake) changeIntake).getChangeIntake() : changeIntake;
+                if (queue instanceof RingChangeIntake) {
+                    final RingChangeIntake ring = (RingChangeIntake) queue;
+                    LOGGER.info("Change intake: {} KB high water mark, {} spilled, {} dropped",
+                        ring.getHighWaterMark() / 1024, ring.getSpilledChanges(), ring.getDroppedChanges());
+                }
+            }
+        }
+        final CacheStats blockStates = BlockStateCache.getStats();
+        if (blockStates.requestCount() > 0) {
+            LOGGER.info("Block state cache: {} lookups, {}% hit rate", blockStates.requestCount(),
+                Math.round(blockStates.hitRate() * 100));
+        }
     }
 
     @NotNull @Override public UsernameMapper getUsernameMapper() {
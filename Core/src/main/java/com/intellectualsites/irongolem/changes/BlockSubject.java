@@ -18,39 +18,57 @@
 package com.intellectualsites.irongolem.changes;
 
 import com.google.common.base.Preconditions;
+import com.intellectualsites.irongolem.util.BlockStateCache;
 import com.intellectualsites.irongolem.util.BlockWrapper;
 import com.intellectualsites.irongolem.util.NBTUtils;
 import com.sk89q.jnbt.CompoundTag;
 import com.sk89q.worldedit.bukkit.BukkitAdapter;
 import com.sk89q.worldedit.world.block.BaseBlock;
 import com.sk89q.worldedit.world.block.BlockState;
-import org.bukkit.Material;
-import org.bukkit.inventory.ItemStack;
+import org.bukkit.block.data.BlockData;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 /**
- * A {@link ChangeSubject} involving block data
+ * A {@link ChangeSubject} involving block data.
+ * <p>
+ * Subjects that are read from storage keep their serialized form, and only
+ * decode the block data and block states once they are accessed. Printing
+ * the {@link #serializeFrom() serialized} states never decodes anything.
+ * Subjects that are {@link #capture(BlockData, CompoundTag, BlockData, CompoundTag) captured}
+ * from the world keep the Bukkit block data, which is only adapted to
+ * WorldEdit and serialized by the thread that persists the change
  */
 public class BlockSubject implements ChangeSubject<BlockState, CompoundTag> {
 
-    private final BlockState from;
-    private final BlockState to;
-    private final CompoundTag oldState;
-    private final CompoundTag newState;
-
-    private final boolean oldFull;
-    private final boolean newFull;
-
-    private BlockSubject(@NotNull final BlockWrapper from, @NotNull final BlockWrapper to) {
-        this.from = Preconditions.checkNotNull(from, "From may not be null").getBlockData();
-        this.to = Preconditions.checkNotNull(to, "To may not be null").getBlockData();
-        this.oldState = from.getBlockState();
-        this.newState = to.getBlockState();
-
-        this.oldFull = !this.oldState.getValue().isEmpty();
-        this.newFull = !this.newState.getValue().isEmpty();
-
-        BukkitAdapter.adapt(new ItemStack(Material.COAL)).getNbtData();
+    private final String serializedFrom;
+    private final String serializedTo;
+    private final byte[] serializedOldState;
+    private final byte[] serializedNewState;
+    private final BlockData fromData;
+    private final BlockData toData;
+
+    // Decoding is idempotent, so racing threads at worst decode a value twice
+    private BlockState from;
+    private BlockState to;
+    private CompoundTag oldState;
+    private CompoundTag newState;
+
+    private BlockSubject(@Nullable final BlockState from, @Nullable final BlockState to,
+        @Nullable final CompoundTag oldState, @Nullable final CompoundTag newState,
+        @Nullable final BlockData fromData, @Nullable final BlockData toData,
+        @Nullable final String serializedFrom, @Nullable final String serializedTo,
+        @Nullable final byte[] serializedOldState, @Nullable final byte[] serializedNewState) {
+        this.from = from;
+        this.to = to;
+        this.oldState = oldState;
+        this.newState = newState;
+        this.fromData = fromData;
+        this.toData = toData;
+        this.serializedFrom = serializedFrom;
+        this.serializedTo = serializedTo;
+        this.serializedOldState = serializedOldState;
+        this.serializedNewState = serializedNewState;
     }
 
     /**
@@ -62,14 +80,66 @@ public class BlockSubject implements ChangeSubject<BlockState, CompoundTag> {
      */
     @NotNull public static BlockSubject of(@NotNull final BlockWrapper from,
         @NotNull final BlockWrapper to) {
-        return new BlockSubject(from, to);
+        Preconditions.checkNotNull(from, "From may not be null");
+        Preconditions.checkNotNull(to, "To may not be null");
+        return new BlockSubject(from.getBlockData(), to.getBlockData(), from.getBlockState(), to.getBlockState(),
+            null, null, null, null, null, null);
+    }
+
+    /**
+     * Create a block subject from a snapshot of Bukkit block data. This is meant
+     * to be called on the main thread, and does no more than storing the snapshot
+     *
+     * @param from     The original block data
+     * @param oldState The original tile entity, or null if the block is not a tile entity
+     * @param to       New block data
+     * @param newState The new tile entity, or null if the block is not a tile entity
+     * @return Created subject
+     */
+    @NotNull public static BlockSubject capture(@NotNull final BlockData from, @Nullable final CompoundTag oldState,
+        @NotNull final BlockData to, @Nullable final CompoundTag newState) {
+        Preconditions.checkNotNull(from, "From may not be null");
+        Preconditions.checkNotNull(to, "To may not be null");
+        return new BlockSubject(null, null, oldState == null ? BlockWrapper.EMPTY : oldState,
+            newState == null ? BlockWrapper.EMPTY : newState, from, to, null, null, null, null);
+    }
+
+    /**
+     * Create a block subject from its serialized form. Nothing
+     * is decoded until the decoded values are accessed
+     *
+     * @param from     Serialized original block data
+     * @param to       Serialized new block data
+     * @param oldState Serialized original block state
+     * @param newState Serialized new block state
+     * @return Created subject
+     */
+    @NotNull public static BlockSubject deserialize(@NotNull final String from, @NotNull final String to,
+        @NotNull final byte[] oldState, @NotNull final byte[] newState) {
+        Preconditions.checkNotNull(from, "From may not be null");
+        Preconditions.checkNotNull(to, "To may not be null");
+        Preconditions.checkNotNull(oldState, "Old state may not be null");
+        Preconditions.checkNotNull(newState, "New state may not be null");
+        return new BlockSubject(null, null, null, null, null, null, from, to, oldState, newState);
     }
 
     @Override public String serializeFrom() {
+        if (this.serializedFrom != null) {
+            return this.serializedFrom;
+        }
+        if (this.fromData != null) {
+            return this.fromData.getAsString();
+        }
         return this.from.getAsString();
     }
 
     @Override public String serializeTo() {
+        if (this.serializedTo != null) {
+            return this.serializedTo;
+        }
+        if (this.toData != null) {
+            return this.toData.getAsString();
+        }
         return this.to.getAsString();
     }
 
@@ -78,38 +148,79 @@ public class BlockSubject implements ChangeSubject<BlockState, CompoundTag> {
     }
 
     @Override public BlockState getFrom() {
+        if (this.from == null) {
+            this.from = this.fromData != null ? BukkitAdapter.adapt(this.fromData) :
+                BlockStateCache.parse(this.serializedFrom);
+        }
         return this.from;
     }
 
     @Override public BlockState getTo() {
+        if (this.to == null) {
+            this.to = this.toData != null ? BukkitAdapter.adapt(this.toData) :
+                BlockStateCache.parse(this.serializedTo);
+        }
         return this.to;
     }
 
     @Override public CompoundTag getOldState() {
+        if (this.oldState == null) {
+            this.oldState = NBTUtils.bytesToCompound(this.serializedOldState);
+        }
         return this.oldState;
     }
 
     @Override public CompoundTag getNewState() {
+        if (this.newState == null) {
+            this.newState = NBTUtils.bytesToCompound(this.serializedNewState);
+        }
         return this.newState;
     }
 
     @Override public byte[] serializeNewState() {
-        if (this.newState == null || !this.oldFull) {
-            return new byte[0];
+        if (this.serializedNewState != null) {
+            return this.serializedNewState;
         }
+        // Empty compounds are stored as empty arrays
         return NBTUtils.compoundToBytes(this.newState);
     }
 
     @Override public byte[] serializeOldState() {
-        if (this.newState == null || !this.oldFull) {
-            return new byte[0];
+        if (this.serializedOldState != null) {
+            return this.serializedOldState;
         }
         return NBTUtils.compoundToBytes(this.oldState);
     }
 
+    /**
+     * Serialize the old subject state without compressing it, which is much cheaper
+     * than {@link #serializeOldState()}. States that were read in compressed form
+     * are returned as they are, see {@link NBTUtils#compress(byte[])}
+     *
+     * @return Serialized state
+     */
+    @NotNull public byte[] serializeRawOldState() {
+        if (this.serializedOldState != null) {
+            return this.serializedOldState;
+        }
+        return NBTUtils.compoundToRawBytes(this.oldState);
+    }
+
+    /**
+     * Serialize the new subject state without compressing it, see {@link #serializeRawOldState()}
+     *
+     * @return Serialized state
+     */
+    @NotNull public byte[] serializeRawNewState() {
+        if (this.serializedNewState != null) {
+            return this.serializedNewState;
+        }
+        return NBTUtils.compoundToRawBytes(this.newState);
+    }
+
     @NotNull public BaseBlock getFromFull() {
-        if (this.oldFull) {
-            return Preconditions.checkNotNull(this.getFrom().toBaseBlock(this.oldState),
+        if (!isEmpty(this.getOldState())) {
+            return Preconditions.checkNotNull(this.getFrom().toBaseBlock(this.getOldState()),
                 "Failed to create base block");
         } else {
             return this.getFrom().toBaseBlock();
@@ -117,12 +228,16 @@ public class BlockSubject implements ChangeSubject<BlockState, CompoundTag> {
     }
 
     @NotNull public BaseBlock getToFull() {
-        if (this.newFull) {
-            return Preconditions.checkNotNull(this.getTo().toBaseBlock(this.newState),
+        if (!isEmpty(this.getNewState())) {
+            return Preconditions.checkNotNull(this.getTo().toBaseBlock(this.getNewState()),
                 "Failed to create base block");
         } else {
             return this.getTo().toBaseBlock();
         }
     }
 
+    private static boolean isEmpty(@NotNull final CompoundTag tag) {
+        return tag.getValue().isEmpty();
+    }
+
 }
@@ -31,11 +31,11 @@ public class Change {
     private final ChangeSubject<?, ?> subject;
     private final ChangeReason reason;
     private final long timestamp;
-    private final int id;
+    private final long id;
 
     private Change(@NotNull final ChangeSource source, @NotNull final Location location,
         @NotNull final ChangeSubject<?, ?> subject, @NotNull final ChangeReason reason,
-        final long timestamp, final int id) {
+        final long timestamp, final long id) {
         this.source = source;
         this.location = location;
         this.subject = subject;
@@ -100,7 +100,7 @@ public class Change {
      *
      * @return Chage ID
      */
-    public int getId() {
+    public long getId() {
         return this.id;
     }
 
@@ -111,9 +111,9 @@ public class Change {
         private ChangeSubject<?, ?> subject;
         private ChangeReason reason;
         private long time = System.currentTimeMillis();
-        private int id = -1;
+        private long id = -1;
 
-        @NotNull public ChangeBuilder withId(@NotNull final int id) {
+        @NotNull public ChangeBuilder withId(final long id) {
             this.id = id;
             return this;
         }
@@ -0,0 +1,41 @@
+//
+// IronGolem - A Minecraft block logging plugin
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.intellectualsites.irongolem.changes;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+
+/**
+ * Consumer of {@link ChangeQuery#streamChanges(int, ChangeConsumer) streamed} changes.
+ * Changes are delivered in chunks, from the thread that runs the query. The next
+ * chunk is only read once the consumer has returned, so a slow consumer slows the
+ * query down rather than letting the changes pile up in memory
+ */
+@FunctionalInterface public interface ChangeConsumer {
+
+    /**
+     * Consume a chunk of changes. The list is only valid
+     * for the duration of the call, and must not be kept
+     *
+     * @param changes Changes, in the order of the query
+     * @return True to keep receiving changes, false to cancel the query
+     */
+    boolean accept(@NotNull List<Change> changes);
+
+}
@@ -26,6 +26,7 @@ import org.bukkit.World;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.EnumSet;
@@ -43,6 +44,9 @@ public class ChangeQuery {
     private boolean distinct = false;
     private EnumSet<ChangeReason> reasons = EnumSet.allOf(ChangeReason.class);
     private ChangeSource changeSource;
+    private long since = 0L;
+    private long before = Long.MAX_VALUE;
+    private PageToken pageToken;
 
     private ChangeQuery() {
     }
@@ -56,6 +60,25 @@ public class ChangeQuery {
         return new ChangeQuery();
     }
 
+    /**
+     * Create a copy of the query
+     *
+     * @return Copied query
+     */
+    @NotNull public ChangeQuery copy() {
+        final ChangeQuery query = new ChangeQuery();
+        query.region = this.region;
+        query.world = this.world;
+        query.limit = this.limit;
+        query.distinct = this.distinct;
+        query.reasons = EnumSet.copyOf(this.reasons);
+        query.changeSource = this.changeSource;
+        query.since = this.since;
+        query.before = this.before;
+        query.pageToken = this.pageToken;
+        return query;
+    }
+
     /**
      * Query for changes in a specific {@link World}
      *
@@ -182,6 +205,42 @@ public class ChangeQuery {
         return this;
     }
 
+    /**
+     * Only query for changes that were made at, or after, a given time
+     *
+     * @param timestamp Unix timestamp (in milliseconds)
+     * @return The query instance
+     */
+    @NotNull public ChangeQuery since(final long timestamp) {
+        Preconditions.checkState(timestamp >= 0, "Timestamp may not be negative");
+        this.since = timestamp;
+        return this;
+    }
+
+    /**
+     * Only query for changes that were made before a given time
+     *
+     * @param timestamp Unix timestamp (in milliseconds)
+     * @return The query instance
+     */
+    @NotNull public ChangeQuery before(final long timestamp) {
+        Preconditions.checkState(timestamp > 0, "Timestamp has to be positive");
+        this.before = timestamp;
+        return this;
+    }
+
+    /**
+     * Only query for the changes that come after the last change of
+     * a previous page. Distinct queries cannot be paged
+     *
+     * @param pageToken Token of the previous page, see {@link PageToken#after(Change)}
+     * @return The query instance
+     */
+    @NotNull public ChangeQuery after(@NotNull final PageToken pageToken) {
+        this.pageToken = Preconditions.checkNotNull(pageToken, "Page token may not be null");
+        return this;
+    }
+
     /**
      * Get the region that is queried in
      *
@@ -238,17 +297,100 @@ public class ChangeQuery {
         return this.changeSource;
     }
 
+    /**
+     * Get the (inclusive) lower bound of the queried time range
+     *
+     * @return Unix timestamp (in milliseconds)
+     */
+    public long getSince() {
+        return this.since;
+    }
+
+    /**
+     * Get the (exclusive) upper bound of the queried time range
+     *
+     * @return Unix timestamp (in milliseconds)
+     */
+    public long getBefore() {
+        return this.before;
+    }
+
+    /**
+     * Get the token of the previous page
+     *
+     * @return Page token, or null if the first page is queried
+     */
+    @Nullable public PageToken getPageToken() {
+        return this.pageToken;
+    }
+
+    /**
+     * Whether or not the query is limited to a time range
+     *
+     * @return Whether or not either time bound has been set
+     */
+    public boolean hasTimeRange() {
+        return this.since > 0L || this.before < Long.MAX_VALUE;
+    }
+
     /**
      * Query for the results
      *
      * @return Future that completes with the results in reverse chronological order
      */
     public CompletableFuture<Changes> queryChanges() {
+        this.validate();
+        return IronGolem.getPlugin(IronGolem.class).getChangeLogger().queryChanges(this)
+            .thenApply(changeList -> new Changes(this.region, this.world, changeList));
+    }
+
+    /**
+     * Query for the results, and deliver them in chunks as they are read. This
+     * should be preferred over {@link #queryChanges()} for queries that may
+     * return a large number of changes
+     *
+     * @param chunkSize Number of changes per chunk
+     * @param consumer  Consumer that receives the chunks, in reverse chronological order
+     * @return Future that completes with the number of delivered changes
+     */
+    public CompletableFuture<Integer> streamChanges(final int chunkSize, @NotNull final ChangeConsumer consumer) {
+        this.validate();
+        Preconditions.checkState(chunkSize > 0, "Chunk size has to be positive");
+        Preconditions.checkNotNull(consumer, "Consumer may not be null");
+        return IronGolem.getPlugin(IronGolem.class).getChangeLogger().streamChanges(this, chunkSize, consumer);
+    }
+
+    /**
+     * Count the matching changes. This is done by the database, without reading
+     * the changes themselves. The limit of the query is ignored
+     *
+     * @return Future that completes with the number of changes
+     */
+    public CompletableFuture<Long> count() {
+        return this.summarize().thenApply(ChangeSummary::getTotal);
+    }
+
+    /**
+     * Count the matching changes, grouped by a set of fields. This is done by
+     * the database, without reading the changes themselves. The limit of the
+     * query is ignored
+     *
+     * @param groupBy Fields to group the changes by
+     * @return Future that completes with the summary
+     */
+    public CompletableFuture<ChangeSummary> summarize(@NotNull final SummaryField ... groupBy) {
+        this.validate();
+        Preconditions.checkState(!this.distinct, "Distinct queries cannot be summarized");
+        Preconditions.checkState(this.pageToken == null, "Paged queries cannot be summarized");
+        return IronGolem.getPlugin(IronGolem.class).getChangeLogger().summarizeChanges(this, Arrays.asList(groupBy));
+    }
+
+    private void validate() {
         Preconditions.checkNotNull(this.world, "World may not be null");
         Preconditions.checkNotNull(this.region, "Region may not be null");
         Preconditions.checkState(this.limit > 0, "Limit has to be positive");
-        return IronGolem.getPlugin(IronGolem.class).getChangeLogger().queryChanges(this)
-            .thenApply(changeList -> new Changes(this.region, this.world, changeList));
+        Preconditions.checkState(this.since < this.before, "The time range may not be empty");
+        Preconditions.checkState(!this.distinct || this.pageToken == null, "Distinct queries cannot be paged");
     }
 
 }
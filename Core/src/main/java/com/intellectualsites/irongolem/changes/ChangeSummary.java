@@ -0,0 +1,189 @@
+//
+// IronGolem - A Minecraft block logging plugin
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.intellectualsites.irongolem.changes;
+
+import com.google.common.base.Preconditions;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Number of changes that matched a {@link ChangeQuery}, grouped by
+ * a set of {@link SummaryField fields}. Summaries never hold the
+ * changes themselves, only a count for every combination of keys
+ */
+public final class ChangeSummary {
+
+    private final List<SummaryField> fields;
+    private final List<Entry> entries;
+    private final long total;
+
+    private ChangeSummary(@NotNull final List<SummaryField> fields, @NotNull final List<Entry> entries) {
+        this.fields = fields;
+        this.entries = entries;
+        long total = 0L;
+        for (final Entry entry : entries) {
+            total += entry.count;
+        }
+        this.total = total;
+    }
+
+    /**
+     * Create a new summary builder
+     *
+     * @param fields Fields that the changes are grouped by
+     * @return Builder instance
+     */
+    @NotNull public static Builder newBuilder(@NotNull final Collection<SummaryField> fields) {
+        return new Builder(fields);
+    }
+
+    /**
+     * Get the fields that the changes are grouped by
+     *
+     * @return Unmodifiable list of fields
+     */
+    @NotNull public List<SummaryField> getFields() {
+        return this.fields;
+    }
+
+    /**
+     * Get the groups of changes, with the largest group first
+     *
+     * @return Unmodifiable list of entries
+     */
+    @NotNull public List<Entry> getEntries() {
+        return this.entries;
+    }
+
+    /**
+     * Get the total number of changes
+     *
+     * @return Number of changes
+     */
+    public long getTotal() {
+        return this.total;
+    }
+
+
+    /**
+     * A group of changes that share the same keys
+     */
+    public static final class Entry {
+
+        private final List<SummaryField> fields;
+        private final String[] keys;
+        private final long count;
+
+        private Entry(@NotNull final List<SummaryField> fields, @NotNull final String[] keys, final long count) {
+            this.fields = fields;
+            this.keys = keys;
+            this.count = count;
+        }
+
+        /**
+         * Get the key of a field
+         *
+         * @param field Field that the changes are grouped by
+         * @return Key, or null if the changes have no value for the field
+         */
+        @Nullable public String getKey(@NotNull final SummaryField field) {
+            final int index = this.fields.indexOf(field);
+            Preconditions.checkArgument(index != -1, "The summary is not grouped by %s", field);
+            return this.keys[index];
+        }
+
+        /**
+         * Get the number of changes in the group
+         *
+         * @return Number of changes
+         */
+        public long getCount() {
+            return this.count;
+        }
+
+    }
+
+
+    /**
+     * Builder that adds up the counts of {@link ChangeSummary summaries}
+     */
+    public static final class Builder {
+
+        private final List<SummaryField> fields;
+        private final Map<List<String>, long[]> counts = new HashMap<>();
+
+        private Builder(@NotNull final Collection<SummaryField> fields) {
+            Preconditions.checkNotNull(fields, "Fields may not be null");
+            this.fields = Collections.unmodifiableList(new ArrayList<>(fields));
+            Preconditions.checkArgument(this.fields.size() == this.fields.stream().distinct().count(),
+                "Fields may only be grouped by once");
+        }
+
+        /**
+         * Add a number of changes to a group. Counts of groups
+         * with the same keys are added together
+         *
+         * @param count Number of changes
+         * @param keys  Keys, in the order of the fields
+         * @return Builder instance
+         */
+        @NotNull public Builder addCount(final long count, @NotNull final String ... keys) {
+            Preconditions.checkArgument(keys.length == this.fields.size(), "Expected %s keys", this.fields.size());
+            this.counts.computeIfAbsent(Arrays.asList(keys.clone()), key -> new long[1])[0] += count;
+            return this;
+        }
+
+        /**
+         * Add a change to its group
+         *
+         * @param change Change
+         * @return Builder instance
+         */
+        @NotNull public Builder addChange(@NotNull final Change change) {
+            final String[] keys = new String[this.fields.size()];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = this.fields.get(i).getKey(change);
+            }
+            return this.addCount(1L, keys);
+        }
+
+        /**
+         * Create a summary from the builder
+         *
+         * @return Created summary
+         */
+        @NotNull public ChangeSummary build() {
+            final List<Entry> entries = new ArrayList<>(this.counts.size());
+            for (final Map.Entry<List<String>, long[]> count : this.counts.entrySet()) {
+                entries.add(new Entry(this.fields, count.getKey().toArray(new String[0]), count.getValue()[0]));
+            }
+            entries.sort((first, second) -> Long.compare(second.count, first.count));
+            return new ChangeSummary(this.fields, Collections.unmodifiableList(entries));
+        }
+
+    }
+
+}
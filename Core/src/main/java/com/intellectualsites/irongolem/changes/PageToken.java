@@ -0,0 +1,123 @@
+//
+// IronGolem - A Minecraft block logging plugin
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.intellectualsites.irongolem.changes;
+
+import com.google.common.base.Preconditions;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Objects;
+
+/**
+ * Position in the results of a paged {@link ChangeQuery}. A token refers to
+ * the last change of a page, and the next page starts right after it. Pages
+ * are ordered by timestamp and event ID, newest first, so that the next page
+ * can be found with an index seek rather than by skipping the previous pages
+ */
+public final class PageToken {
+
+    private static final int RADIX = 36;
+
+    private final long timestamp;
+    private final long eventId;
+
+    private PageToken(final long timestamp, final long eventId) {
+        this.timestamp = timestamp;
+        this.eventId = eventId;
+    }
+
+    /**
+     * Create a token that continues after a given change
+     *
+     * @param change Last change of the previous page
+     * @return Page token
+     */
+    @NotNull public static PageToken after(@NotNull final Change change) {
+        Preconditions.checkNotNull(change, "Change may not be null");
+        return new PageToken(change.getTimestamp(), change.getId());
+    }
+
+    /**
+     * Create a token that continues after a given position
+     *
+     * @param timestamp Timestamp of the last change of the previous page
+     * @param eventId   Event ID of the last change of the previous page
+     * @return Page token
+     */
+    @NotNull public static PageToken of(final long timestamp, final long eventId) {
+        return new PageToken(timestamp, eventId);
+    }
+
+    /**
+     * Parse a token that was created using {@link #toString()}
+     *
+     * @param token Token string
+     * @return Page token
+     * @throws IllegalArgumentException If the token is invalid
+     */
+    @NotNull public static PageToken parse(@NotNull final String token) throws IllegalArgumentException {
+        Preconditions.checkNotNull(token, "Token may not be null");
+        final int separator = token.indexOf('.');
+        if (separator == -1) {
+            throw new IllegalArgumentException(String.format("Invalid page token: %s", token));
+        }
+        try {
+            return new PageToken(Long.parseLong(token.substring(0, separator), RADIX),
+                Long.parseLong(token.substring(separator + 1), RADIX));
+        } catch (final NumberFormatException e) {
+            throw new IllegalArgumentException(String.format("Invalid page token: %s", token), e);
+        }
+    }
+
+    /**
+     * Get the timestamp of the last change of the previous page
+     *
+     * @return Unix timestamp (in milliseconds)
+     */
+    public long getTimestamp() {
+        return this.timestamp;
+    }
+
+    /**
+     * Get the event ID of the last change of the previous page
+     *
+     * @return Event ID
+     */
+    public long getEventId() {
+        return this.eventId;
+    }
+
+    @Override public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        final PageToken pageToken = (PageToken) o;
+        return this.timestamp == pageToken.timestamp && this.eventId == pageToken.eventId;
+    }
+
+    @Override public int hashCode() {
+        return Objects.hash(this.timestamp, this.eventId);
+    }
+
+    @Override public String toString() {
+        return Long.toString(this.timestamp, RADIX) + '.' + Long.toString(this.eventId, RADIX);
+    }
+
+}
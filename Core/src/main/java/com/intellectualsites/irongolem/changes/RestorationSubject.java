@@ -20,25 +20,25 @@ package com.intellectualsites.irongolem.changes;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-public class RestorationSubject implements ChangeSubject<Integer, Void> {
+public class RestorationSubject implements ChangeSubject<Long, Void> {
 
     private final ChangeType type;
-    private final int id;
+    private final long id;
 
-    private RestorationSubject(@NotNull final ChangeType type, final int id) {
+    private RestorationSubject(@NotNull final ChangeType type, final long id) {
         this.type = type;
         this.id = id;
     }
 
-    public static RestorationSubject of(@NotNull final ChangeType type, final int id) {
+    public static RestorationSubject of(@NotNull final ChangeType type, final long id) {
         return new RestorationSubject(type, id);
     }
 
-    @Override public Integer getFrom() {
-        return -1;
+    @Override public Long getFrom() {
+        return -1L;
     }
 
-    @Override public Integer getTo() {
+    @Override public Long getTo() {
         return this.id;
     }
 
@@ -55,7 +55,7 @@ public class RestorationSubject implements ChangeSubject<Integer, Void> {
     }
 
     @Override public String serializeTo() {
-        return Integer.toString(this.id);
+        return Long.toString(this.id);
     }
 
     @Override public byte[] serializeOldState() {
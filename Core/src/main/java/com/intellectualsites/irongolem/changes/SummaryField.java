@@ -0,0 +1,77 @@
+//
+// IronGolem - A Minecraft block logging plugin
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.intellectualsites.irongolem.changes;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Properties that {@link ChangeSummary summaries} can group changes by
+ */
+public enum SummaryField {
+    /**
+     * Name of the {@link ChangeSource source} that made the change
+     */
+    SOURCE,
+    /**
+     * Name of the {@link ChangeReason reason} of the change
+     */
+    REASON,
+    /**
+     * Block type that the change affected, such as {@code minecraft:stone}. This is the
+     * broken block of {@link ChangeReason#BLOCK_BREAK breaks}, and the placed block of
+     * any other change. Block properties are ignored, and changes that did not change
+     * a block state, such as restorations, have no block type
+     */
+    BLOCK;
+
+    /**
+     * Get the key of a change
+     *
+     * @param change Change
+     * @return Key, or null if the change has no value for this field
+     */
+    @Nullable public String getKey(@NotNull final Change change) {
+        switch (this) {
+            case SOURCE:
+                return change.getSource().getName();
+            case REASON:
+                return change.getReason().name();
+            default:
+                if (change.getSubject() instanceof RestorationSubject) {
+                    return null;
+                }
+                if (change.getReason() == ChangeReason.BLOCK_BREAK) {
+                    return getBlockType(change.getSubject().serializeFrom());
+                }
+                return getBlockType(change.getSubject().serializeTo());
+        }
+    }
+
+    /**
+     * Get the block type of a serialized block state
+     *
+     * @param state Block state, such as {@code minecraft:oak_stairs[facing=east]}
+     * @return Block type, such as {@code minecraft:oak_stairs}
+     */
+    @NotNull public static String getBlockType(@NotNull final String state) {
+        final int properties = state.indexOf('[');
+        return properties == -1 ? state : state.substring(0, properties);
+    }
+
+}
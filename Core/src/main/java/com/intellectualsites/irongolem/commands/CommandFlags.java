@@ -20,6 +20,7 @@ package com.intellectualsites.irongolem.commands;
 import com.google.common.base.Enums;
 import com.google.common.collect.Collections2;
 import com.google.common.collect.Sets;
+import com.intellectualsites.irongolem.util.TimeUtils;
 import org.bukkit.command.CommandSender;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -231,6 +232,44 @@ public class CommandFlags {
 
     }
 
+    public static class DurationFlag extends Flag<Long> {
+
+        private static final List<String> SUGGESTIONS = Arrays.asList("1h", "12h", "1d", "7d", "30d", "90d");
+
+        protected DurationFlag(@NotNull final String[] flagAliases) {
+            super(flagAliases);
+        }
+
+        @Override public Long parse(@NotNull final String value) throws IllegalArgumentException {
+            return TimeUtils.parseDuration(value);
+        }
+
+        public static DurationFlag of(@NotNull final String ... aliases) {
+            return new DurationFlag(aliases);
+        }
+
+        @Override public List<String> getSuggestions() {
+            return SUGGESTIONS;
+        }
+
+    }
+
+    public static class StringFlag extends Flag<String> {
+
+        protected StringFlag(@NotNull final String[] flagAliases) {
+            super(flagAliases);
+        }
+
+        @Override public String parse(@NotNull final String value) throws IllegalArgumentException {
+            return value;
+        }
+
+        public static StringFlag of(@NotNull final String ... aliases) {
+            return new StringFlag(aliases);
+        }
+
+    }
+
     public static class BooleanFlag extends Flag<Boolean> {
 
         protected BooleanFlag(@NotNull final String[] flagAliases) {
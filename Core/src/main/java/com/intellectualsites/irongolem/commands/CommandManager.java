@@ -50,6 +50,7 @@ public class CommandManager implements CommandExecutor, TabCompleter {
         this.registerSubCommand(new InspectorCommand(ironGolem));
         this.registerSubCommand(new LookupCommand(ironGolem));
         this.registerSubCommand(new RestoreCommand(ironGolem));
+        this.registerSubCommand(new PurgeCommand(ironGolem));
     }
 
     public void registerSubCommand(@NotNull final SubCommand subCommand) {
@@ -73,7 +74,7 @@ public class CommandManager implements CommandExecutor, TabCompleter {
 
         for (final SubCommand subCommand : this.subCommands) {
             if (subCommand.accepts(args[0])) {
-                if (!player.hasPermission(subCommand.getMainAlias())) {
+                if (!player.hasPermission(subCommand.getPermission())) {
                     player.sendMessage(TranslatableMessage.of("command.not-permitted"));
                     return true;
                 }
@@ -22,6 +22,7 @@ import com.intellectualsites.irongolem.changes.Change;
 import com.intellectualsites.irongolem.changes.ChangeQuery;
 import com.intellectualsites.irongolem.changes.ChangeReason;
 import com.intellectualsites.irongolem.changes.ChangeSubject;
+import com.intellectualsites.irongolem.changes.PageToken;
 import com.intellectualsites.irongolem.configuration.TranslatableMessage;
 import com.intellectualsites.irongolem.events.PlayerLookupChangesEvent;
 import com.intellectualsites.irongolem.players.IGPlayer;
@@ -30,14 +31,19 @@ import org.bukkit.Bukkit;
 import org.bukkit.command.CommandSender;
 import org.jetbrains.annotations.NotNull;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class LookupCommand extends SubCommand {
 
     private static final String[] ALIASES = new String[] { "lookup", "l" };
+    private static final int CHUNK_SIZE = 64;
+    private static final int PAGE_SIZE = 50;
 
     private final CommandFlags commandFlags = new CommandFlags();
 
@@ -46,6 +52,8 @@ public class LookupCommand extends SubCommand {
         commandFlags.registerFlag(CommandFlags.IntegerFlag.of("range"));
         commandFlags.registerFlag(CommandFlags.EnumFlag.of(ChangeReason.class, "reasons"));
         commandFlags.registerFlag(CommandFlags.BooleanFlag.of("distinct"));
+        commandFlags.registerFlag(CommandFlags.StringFlag.of("after"));
+        commandFlags.registerFlag(CommandFlags.DurationFlag.of("since"));
     }
 
     @Override public void handleCommand(@NotNull final IGPlayer player, @NotNull final String[] args) {
@@ -63,8 +71,21 @@ public class LookupCommand extends SubCommand {
             .inWorld(player.getWorld())
             .inRegion(CuboidRegion.surrounding(player.getLocation(), range))
             .withReasons(reasons);
+        if (flags.containsKey("since")) {
+            query.since(Math.max(0L, System.currentTimeMillis() - (long) flags.get("since")));
+        }
         if (distinct) {
             query.distinctValues();
+        } else {
+            query.withLimit(PAGE_SIZE);
+            if (flags.containsKey("after")) {
+                try {
+                    query.after(PageToken.parse((String) flags.get("after")));
+                } catch (final IllegalArgumentException e) {
+                    player.sendMessage(TranslatableMessage.of("lookup.invalid-page"));
+                    return;
+                }
+            }
         }
         final PlayerLookupChangesEvent
             playerLookupChangesEvent = new PlayerLookupChangesEvent(query, player.getPlayer());
@@ -72,21 +93,47 @@ public class LookupCommand extends SubCommand {
         if (playerLookupChangesEvent.isCancelled()) {
             return;
         }
-        query.queryChanges()
-            .whenComplete(((changes, throwable) -> {
+        // Chunks are streamed from an asynchronous thread, so the player is only
+        // messaged from the main thread. Tasks run in the order they are scheduled
+        final AtomicReference<Change> last = new AtomicReference<>();
+        final AtomicBoolean online = new AtomicBoolean(true);
+        final AtomicBoolean started = new AtomicBoolean(false);
+        query.streamChanges(CHUNK_SIZE, changes -> {
+            final List<String> lines = new ArrayList<>(changes.size());
+            for (final Change change : changes) {
+                final ChangeSubject<?, ?> subject = change.getSubject();
+                lines.add(String.format("- %s -> %s at %d", subject.serializeFrom(), subject.serializeTo(),
+                    change.getTimestamp()));
+                last.set(change);
+            }
+            Bukkit.getScheduler().runTask(this.getIronGolem(), () -> {
+                if (!player.getPlayer().isOnline()) {
+                    online.set(false);
+                    return;
+                }
+                if (!started.getAndSet(true)) {
+                    player.getPlayer().sendMessage("changes at that loc");
+                }
+                for (final String line : lines) {
+                    player.getPlayer().sendMessage(line);
+                }
+            });
+            return online.get();
+        }).whenComplete(((count, throwable) -> Bukkit.getScheduler().runTask(this.getIronGolem(), () -> {
+            if (!player.getPlayer().isOnline()) {
+                return;
+            }
             if (throwable != null) {
                 // TODO FIX
                 throwable.printStackTrace();
                 player.sendMessage(TranslatableMessage.of("query.failure"), "message", throwable.getMessage());
-            } else {
+            } else if (!started.getAndSet(true)) {
                 player.getPlayer().sendMessage("changes at that loc");
-                for (final Change change : changes.getChanges()) {
-                    final ChangeSubject<?, ?> subject = change.getSubject();
-                    player.getPlayer().sendMessage(String
-                        .format("- %s -> %s at %d", subject.serializeFrom(), subject.serializeTo(), change.getTimestamp()));
-                }
+            } else if (!distinct && count >= PAGE_SIZE) {
+                player.sendMessage(TranslatableMessage.of("lookup.next-page"), "token",
+                    PageToken.after(last.get()).toString());
             }
-        }));
+        })));
     }
 
     @Override public List<String> getSuggestions(@NotNull final CommandSender sender,
@@ -0,0 +1,91 @@
+//
+// IronGolem - A Minecraft block logging plugin
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.intellectualsites.irongolem.commands;
+
+import com.intellectualsites.irongolem.IronGolem;
+import com.intellectualsites.irongolem.changes.ChangeReason;
+import com.intellectualsites.irongolem.configuration.TranslatableMessage;
+import com.intellectualsites.irongolem.players.IGPlayer;
+import com.intellectualsites.irongolem.storage.RetentionManager;
+import com.intellectualsites.irongolem.storage.RetentionRule;
+import org.bukkit.Bukkit;
+import org.bukkit.command.CommandSender;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+
+public class PurgeCommand extends SubCommand {
+
+    private static final String[] ALIASES = new String[] { "purge" };
+    private static final String PERMISSION = "irongolem.purge";
+
+    private final CommandFlags commandFlags = new CommandFlags();
+
+    public PurgeCommand(@NotNull final IronGolem ironGolem) {
+        super(ironGolem, ALIASES);
+        commandFlags.registerFlag(CommandFlags.DurationFlag.of("age"));
+        commandFlags.registerFlag(CommandFlags.StringFlag.of("world"));
+        commandFlags.registerFlag(CommandFlags.EnumFlag.of(ChangeReason.class, "reasons"));
+    }
+
+    @Override public void handleCommand(@NotNull final IGPlayer player, @NotNull final String[] args) {
+        final Map<String, Object> flags = this.commandFlags.parseFlags(player.getPlayer(), args);
+        final Collection<ChangeReason> reasons =
+            (Collection<ChangeReason>) flags.getOrDefault("reasons", EnumSet.allOf(ChangeReason.class));
+        if (!flags.containsKey("age")) {
+            player.sendMessage(TranslatableMessage.of("command.missing.age"));
+            return;
+        }
+        final RetentionManager retentionManager = this.getIronGolem().getRetentionManager();
+        if (retentionManager == null) {
+            player.sendMessage(TranslatableMessage.of("purge.unsupported"));
+            return;
+        }
+        final RetentionRule rule = RetentionRule.newBuilder()
+            .inWorld((String) flags.get("world"))
+            .withReasons(reasons)
+            .withMaxAge((long) flags.get("age"))
+            .build();
+        player.sendMessage(TranslatableMessage.of("purge.started"));
+        retentionManager.purge(Collections.singletonList(rule)).whenComplete(((purged, throwable) ->
+            Bukkit.getScheduler().runTask(this.getIronGolem(), () -> {
+                if (!player.getPlayer().isOnline()) {
+                    return;
+                }
+                if (throwable != null) {
+                    player.sendMessage(TranslatableMessage.of("purge.failure"), "message", throwable.getMessage());
+                } else {
+                    player.sendMessage(TranslatableMessage.of("purge.done"), "changes", Long.toString(purged));
+                }
+            })));
+    }
+
+    @Override @NotNull public String getPermission() {
+        return PERMISSION;
+    }
+
+    @Override public List<String> getSuggestions(@NotNull final CommandSender sender,
+        @NotNull final String[] args) {
+        return this.commandFlags.completeFlags(sender, args);
+    }
+
+}
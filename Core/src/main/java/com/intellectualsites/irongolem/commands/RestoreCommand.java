@@ -43,6 +43,7 @@ public class RestoreCommand extends SubCommand {
         super(ironGolem, ALIASES);
         commandFlags.registerFlag(CommandFlags.IntegerFlag.of("range"));
         commandFlags.registerFlag(CommandFlags.EnumFlag.of(ChangeReason.class, "reasons"));
+        commandFlags.registerFlag(CommandFlags.DurationFlag.of("since"));
     }
 
     @Override public void handleCommand(@NotNull final IGPlayer player, @NotNull final String[] args) {
@@ -55,12 +56,16 @@ public class RestoreCommand extends SubCommand {
         }
         final int range = (int) flags.get("range");
 
-        ChangeQuery.newQuery()
+        final ChangeQuery query = ChangeQuery.newQuery()
             .inWorld(player.getWorld())
             .inRegion(CuboidRegion.surrounding(player.getLocation(), range))
             .withReasons(reasons)
-            .distinctValues()
-            .queryChanges()
+            .distinctValues();
+        if (flags.containsKey("since")) {
+            // Only the changes made since then are undone
+            query.since(Math.max(0L, System.currentTimeMillis() - (long) flags.get("since")));
+        }
+        query.queryChanges()
             .whenComplete(((changes, throwable) -> {
                 changes = changes.optimize();
 
@@ -48,6 +48,15 @@ public abstract class SubCommand {
         return this.aliases[0];
     }
 
+    /**
+     * Get the permission that is required to run the command
+     *
+     * @return Permission node
+     */
+    @NotNull public String getPermission() {
+        return this.getMainAlias();
+    }
+
     public List<String> getSuggestions(@NotNull final CommandSender sender, @NotNull final String[] args) {
         return Collections.emptyList();
     }
@@ -23,6 +23,10 @@ import com.intellectualsites.irongolem.changes.ChangeReason;
 import com.intellectualsites.irongolem.changes.PlayerSource;
 import com.intellectualsites.irongolem.logging.ChangeLogger;
 import com.intellectualsites.irongolem.util.BlockWrapper;
+import org.bukkit.Bukkit;
+import org.bukkit.Material;
+import org.bukkit.block.Block;
+import org.bukkit.block.data.BlockData;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
@@ -36,6 +40,8 @@ import org.jetbrains.annotations.NotNull;
 
 public class BlockListener implements Listener {
 
+    private static final BlockData AIR = Bukkit.createBlockData(Material.AIR);
+
     private final ChangeLogger logger;
 
     public BlockListener(@NotNull final ChangeLogger logger) {
@@ -44,10 +50,12 @@ public class BlockListener implements Listener {
 
     @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
     public void onBlockBreak(final BlockBreakEvent event) {
+        // Only a snapshot is taken here, everything else happens when the change is persisted
+        final Block block = event.getBlock();
         final Change change = Change.newBuilder()
-            .atLocation(event.getBlock().getLocation())
+            .atLocation(block.getLocation())
             .withSource(PlayerSource.of(event.getPlayer()))
-            .withSubject(BlockSubject.of(BlockWrapper.of(event.getBlock()), BlockWrapper.AIR))
+            .withSubject(BlockSubject.capture(block.getBlockData(), BlockWrapper.getTileEntity(block), AIR, null))
             .withReason(ChangeReason.BLOCK_BREAK).build();
         logger.logChange(change);
     }
@@ -56,7 +64,8 @@ public class BlockListener implements Listener {
     public void onBlockPlace(final BlockPlaceEvent event) {
         final Change change = Change.newBuilder().atLocation(event.getBlock().getLocation())
             .withSource(PlayerSource.of(event.getPlayer()))
-            .withSubject(BlockSubject.of(BlockWrapper.of(event.getBlockReplacedState().getBlockData()), BlockWrapper.of(event.getBlockPlaced())))
+            .withSubject(BlockSubject.capture(event.getBlockReplacedState().getBlockData(), null,
+                event.getBlockPlaced().getBlockData(), BlockWrapper.getTileEntity(event.getBlockPlaced())))
             .withReason(ChangeReason.BLOCK_PLACE).build();
         logger.logChange(change);
     }
@@ -0,0 +1,122 @@
+//
+// IronGolem - A Minecraft block logging plugin
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.intellectualsites.irongolem.logging;
+
+import com.google.common.base.Preconditions;
+import com.intellectualsites.irongolem.changes.Change;
+import com.intellectualsites.irongolem.changes.ChangeConsumer;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects the changes of a streamed query and hands them to a {@link ChangeConsumer}
+ * in chunks. The buffer is done once the query limit has been reached, or once the
+ * consumer has cancelled the query
+ */
+public final class ChangeBuffer {
+
+    private final List<Change> chunk;
+    private final int limit;
+    private final int chunkSize;
+    private final ChangeConsumer consumer;
+
+    private int count;
+    private boolean cancelled;
+
+    /**
+     * Create a new buffer
+     *
+     * @param limit     Maximum number of changes
+     * @param chunkSize Number of changes per chunk
+     * @param consumer  Consumer that receives the chunks
+     */
+    public ChangeBuffer(final int limit, final int chunkSize, @NotNull final ChangeConsumer consumer) {
+        Preconditions.checkState(limit > 0, "Limit has to be positive");
+        Preconditions.checkState(chunkSize > 0, "Chunk size has to be positive");
+        this.limit = limit;
+        this.chunkSize = chunkSize;
+        this.consumer = Preconditions.checkNotNull(consumer, "Consumer may not be null");
+        this.chunk = new ArrayList<>(Math.min(limit, chunkSize));
+    }
+
+    /**
+     * Add a change. The buffered chunk is handed to
+     * the consumer once it is full
+     *
+     * @param change Change
+     * @return True if more changes are wanted
+     */
+    public boolean add(@NotNull final Change change) {
+        if (this.isDone()) {
+            return false;
+        }
+        this.chunk.add(change);
+        this.count++;
+        if (this.chunk.size() >= this.chunkSize) {
+            this.flush();
+        }
+        return !this.isDone();
+    }
+
+    /**
+     * Hand the buffered changes to the consumer. This has
+     * to be called once the query has finished
+     */
+    public void flush() {
+        if (this.chunk.isEmpty()) {
+            return;
+        }
+        try {
+            if (!this.cancelled && !this.consumer.accept(this.chunk)) {
+                this.cancelled = true;
+            }
+        } finally {
+            this.chunk.clear();
+        }
+    }
+
+    /**
+     * Whether or not the query should stop
+     *
+     * @return True if the limit has been reached, or the query was cancelled
+     */
+    public boolean isDone() {
+        return this.cancelled || this.count >= this.limit;
+    }
+
+    /**
+     * Get the number of changes that may still be added
+     *
+     * @return Remaining changes
+     */
+    public int getRemaining() {
+        return this.cancelled ? 0 : this.limit - this.count;
+    }
+
+    /**
+     * Get the number of changes that have been added
+     *
+     * @return Number of changes
+     */
+    public int getCount() {
+        return this.count;
+    }
+
+}
@@ -0,0 +1,298 @@
+//
+// IronGolem - A Minecraft block logging plugin
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.intellectualsites.irongolem.logging;
+
+import com.intellectualsites.irongolem.changes.BlockSubject;
+import com.intellectualsites.irongolem.changes.Change;
+import com.intellectualsites.irongolem.changes.ChangeReason;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * Merges consecutive changes to the same block, by the same source, that
+ * happen within a window of time. Placements and breaks are merged with each
+ * other, other reasons only with themselves. The merged change goes from the
+ * state before the first change to the state after the last change, and takes
+ * the time of the last change. Placing and breaking a block several times
+ * is logged as a placement, a break, or not at all if the block ends up as it was.
+ * <p>
+ * Changes are held until their window has passed, or until the same
+ * block is changed by another source or for another reason. Every polled change is numbered, so
+ * that the logger knows which changes are still being held. This
+ * is only used by the logger, and is not thread safe
+ */
+final class ChangeCoalescer {
+
+    private static final int MAX_HELD_BLOCKS = 65536;
+    private static final Set<String> AIR = new HashSet<>(Arrays.asList("minecraft:air", "minecraft:cave_air",
+        "minecraft:void_air"));
+
+    private final Supplier<Change> source;
+    private final long window;
+    private final Map<BlockKey, HeldChange> held = new LinkedHashMap<>();
+    private final Queue<HeldChange> released = new ArrayDeque<>();
+
+    private long polled;
+    private long returned;
+    private boolean releasing;
+    private volatile long coalesced;
+
+    /**
+     * Create a new coalescer
+     *
+     * @param source Source of the changes to merge
+     * @param window Window (in milliseconds) during which changes are merged
+     */
+    ChangeCoalescer(@NotNull final Supplier<Change> source, final long window) {
+        this.source = source;
+        this.window = window;
+    }
+
+    /**
+     * Get the next change that should be persisted
+     *
+     * @return Change, or null if every remaining change is held
+     */
+    @Nullable Change next() {
+        while (true) {
+            while (this.released.isEmpty()) {
+                final Change change = this.source.get();
+                if (change == null) {
+                    // Caught up, so the windows are measured against the clock
+                    this.releaseExpired(this.releasing ? Long.MAX_VALUE : System.currentTimeMillis() - this.window);
+                    if (this.released.isEmpty()) {
+                        return null;
+                    }
+                    break;
+                }
+                this.offer(change, ++this.polled);
+                // Windows are measured against the polled changes, so that
+                // changes in a backlog are merged as if they were live
+                this.releaseExpired(change.getTimestamp() - this.window);
+            }
+            final HeldChange heldChange = this.released.poll();
+            final Change change = heldChange.getChange();
+            if (change == null) {
+                // The block ended up as it was, so none of the merged changes are logged
+                this.coalesced++;
+                continue;
+            }
+            this.returned = heldChange.sequence;
+            return change;
+        }
+    }
+
+    /**
+     * Stop holding changes once the source has run dry, so that every
+     * change is returned. This is done when the logger stops
+     */
+    void release() {
+        this.releasing = true;
+    }
+
+    /**
+     * Get the number of changes that have been polled from the source
+     *
+     * @return Polled changes
+     */
+    long getPolled() {
+        return this.polled;
+    }
+
+    /**
+     * Get the number of the change that was returned last. Merged
+     * changes are numbered after the first change that they contain
+     *
+     * @return Change number
+     */
+    long getReturned() {
+        return this.returned;
+    }
+
+    /**
+     * Get the number of the oldest change that has been
+     * polled from the source, but not yet returned
+     *
+     * @return Change number, or -1 if no changes are held
+     */
+    long getOldestHeld() {
+        // Held changes are in the order in which they were polled
+        final Iterator<HeldChange> iterator = this.held.values().iterator();
+        long oldest = iterator.hasNext() ? iterator.next().sequence : -1L;
+        for (final HeldChange change : this.released) {
+            if (oldest == -1L || change.sequence < oldest) {
+                oldest = change.sequence;
+            }
+        }
+        return oldest;
+    }
+
+    /**
+     * Get the number of changes that have been merged into another change
+     *
+     * @return Merged changes
+     */
+    long getCoalesced() {
+        return this.coalesced;
+    }
+
+    private void offer(@NotNull final Change change, final long sequence) {
+        final BlockKey key = new BlockKey(change.getLocation());
+        final HeldChange previous = this.held.get(key);
+        if (previous != null) {
+            if (previous.canMerge(change, this.window)) {
+                previous.last = change;
+                previous.merged++;
+                this.coalesced++;
+                return;
+            }
+            // The block was changed by someone else, or for another reason, so the
+            // held change may not be merged with later changes
+            this.released.add(this.held.remove(key));
+        }
+        final HeldChange heldChange = new HeldChange(change, sequence);
+        if (change.getSubject() instanceof BlockSubject) {
+            this.held.put(key, heldChange);
+            if (this.held.size() > MAX_HELD_BLOCKS) {
+                this.releaseOldest();
+            }
+        } else {
+            this.released.add(heldChange);
+        }
+    }
+
+    private void releaseExpired(final long expiry) {
+        final Iterator<HeldChange> iterator = this.held.values().iterator();
+        while (iterator.hasNext()) {
+            final HeldChange change = iterator.next();
+            if (change.first.getTimestamp() > expiry) {
+                break;
+            }
+            iterator.remove();
+            this.released.add(change);
+        }
+    }
+
+    private void releaseOldest() {
+        final Iterator<HeldChange> iterator = this.held.values().iterator();
+        this.released.add(iterator.next());
+        iterator.remove();
+    }
+
+    private static final class HeldChange {
+
+        private final Change first;
+        private final long sequence;
+        private Change last;
+        private int merged;
+
+        private HeldChange(@NotNull final Change first, final long sequence) {
+            this.first = first;
+            this.last = first;
+            this.sequence = sequence;
+        }
+
+        private boolean canMerge(@NotNull final Change change, final long window) {
+            return change.getSubject() instanceof BlockSubject
+                && change.getTimestamp() - this.first.getTimestamp() <= window
+                && (change.getReason() == this.first.getReason()
+                    || isPlaceOrBreak(change.getReason()) && isPlaceOrBreak(this.first.getReason()))
+                && change.getSource().getName().equals(this.first.getSource().getName());
+        }
+
+        /**
+         * Get the change from the state before the first change to the state after the last change
+         *
+         * @return Merged change, or null if the block ended up as it was
+         */
+        @Nullable private Change getChange() {
+            if (this.merged == 0) {
+                return this.first;
+            }
+            final BlockSubject fromSubject = (BlockSubject) this.first.getSubject();
+            final BlockSubject toSubject = (BlockSubject) this.last.getSubject();
+            final String from = fromSubject.serializeFrom();
+            final String to = toSubject.serializeTo();
+            final byte[] oldState = fromSubject.serializeOldState();
+            final byte[] newState = toSubject.serializeNewState();
+            if (from.equals(to) && Arrays.equals(oldState, newState)) {
+                return null;
+            }
+            final ChangeReason reason;
+            if (!isPlaceOrBreak(this.first.getReason())) {
+                reason = this.first.getReason();
+            } else {
+                reason = AIR.contains(to) ? ChangeReason.BLOCK_BREAK : ChangeReason.BLOCK_PLACE;
+            }
+            return Change.newBuilder().withSource(this.last.getSource()).atLocation(this.last.getLocation())
+                .withSubject(BlockSubject.deserialize(from, to, oldState, newState))
+                .withReason(reason).atTime(this.last.getTimestamp()).build();
+        }
+
+        private static boolean isPlaceOrBreak(@NotNull final ChangeReason reason) {
+            return reason == ChangeReason.BLOCK_PLACE || reason == ChangeReason.BLOCK_BREAK;
+        }
+
+    }
+
+    private static final class BlockKey {
+
+        private final World world;
+        private final int x;
+        private final int y;
+        private final int z;
+
+        private BlockKey(@NotNull final Location location) {
+            this.world = location.getWorld();
+            this.x = location.getBlockX();
+            this.y = location.getBlockY();
+            this.z = location.getBlockZ();
+        }
+
+        @Override public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            final BlockKey blockKey = (BlockKey) o;
+            return this.x == blockKey.x && this.y == blockKey.y && this.z == blockKey.z
+                && Objects.equals(this.world, blockKey.world);
+        }
+
+        @Override public int hashCode() {
+            return Objects.hash(this.world, this.x, this.y, this.z);
+        }
+
+    }
+
+}
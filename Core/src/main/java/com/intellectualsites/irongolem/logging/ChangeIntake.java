@@ -0,0 +1,70 @@
+//
+// IronGolem - A Minecraft block logging plugin
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.intellectualsites.irongolem.logging;
+
+import com.intellectualsites.irongolem.changes.Change;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Holds the changes that a {@link QueuingChangeLogger} has accepted,
+ * but not yet persisted. Changes may be added by any thread, and are
+ * only ever polled by the logger
+ */
+public interface ChangeIntake {
+
+    /**
+     * Add a change to the intake
+     *
+     * @param change Change to add
+     * @return True if the change was added, false if it was dropped
+     */
+    boolean add(@NotNull Change change);
+
+    /**
+     * Remove the oldest change from the intake
+     *
+     * @return Removed change, or null if the intake is empty
+     */
+    @Nullable Change poll();
+
+    /**
+     * Get the number of changes that are waiting to be persisted
+     *
+     * @return Number of changes
+     */
+    int size();
+
+    /**
+     * Mark the oldest polled changes that have not been committed yet as
+     * persisted. This is called by the logger once the changes have been
+     * committed
+     *
+     * @param changes Number of changes
+     */
+    default void commit(final int changes) {
+    }
+
+    /**
+     * Release the resources held by the intake. Changes that
+     * are still in the intake may be lost
+     */
+    default void close() {
+    }
+
+}
@@ -18,7 +18,10 @@
 package com.intellectualsites.irongolem.logging;
 
 import com.intellectualsites.irongolem.changes.Change;
+import com.intellectualsites.irongolem.changes.ChangeConsumer;
 import com.intellectualsites.irongolem.changes.ChangeQuery;
+import com.intellectualsites.irongolem.changes.ChangeSummary;
+import com.intellectualsites.irongolem.changes.SummaryField;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.Collection;
@@ -62,8 +65,55 @@ public interface ChangeLogger {
      *
      * @param query Query
      * @return Future that completes with the changes. The change list will
-     *         be ordered in reverse chronological order.
+     *         be ordered in reverse chronological order, unless the query
+     *         is for distinct values, which are not ordered.
      */
     CompletableFuture<List<Change>> queryChanges(@NotNull final ChangeQuery query);
 
+    /**
+     * Query for changes, and deliver them in chunks as they are read. Unlike
+     * {@link #queryChanges(ChangeQuery)}, this never holds more than a single
+     * chunk of changes in memory. Loggers that cannot stream their results
+     * deliver the results of {@link #queryChanges(ChangeQuery)} in chunks
+     *
+     * @param query     Query
+     * @param chunkSize Number of changes per chunk
+     * @param consumer  Consumer that receives the chunks, in the order of {@link #queryChanges(ChangeQuery)}
+     * @return Future that completes with the number of delivered changes, once
+     *         the last chunk has been consumed
+     */
+    default CompletableFuture<Integer> streamChanges(@NotNull final ChangeQuery query, final int chunkSize,
+        @NotNull final ChangeConsumer consumer) {
+        return this.queryChanges(query).thenApply(changes -> {
+            final ChangeBuffer buffer = new ChangeBuffer(query.getLimit(), chunkSize, consumer);
+            for (final Change change : changes) {
+                if (!buffer.add(change)) {
+                    break;
+                }
+            }
+            buffer.flush();
+            return buffer.getCount();
+        });
+    }
+
+    /**
+     * Count the changes that match a query, grouped by a set of fields. The
+     * limit and page token of the query are ignored. Loggers that cannot
+     * aggregate their changes summarize the results of
+     * {@link #streamChanges(ChangeQuery, int, ChangeConsumer)}, without
+     * the limit of the query
+     *
+     * @param query  Query
+     * @param fields Fields to group by, or none to only count the changes
+     * @return Future that completes with the summary
+     */
+    default CompletableFuture<ChangeSummary> summarizeChanges(@NotNull final ChangeQuery query,
+        @NotNull final Collection<SummaryField> fields) {
+        final ChangeSummary.Builder builder = ChangeSummary.newBuilder(fields);
+        return this.streamChanges(query.copy().withoutLimit(), 1024, changes -> {
+            changes.forEach(builder::addChange);
+            return true;
+        }).thenApply(count -> builder.build());
+    }
+
 }
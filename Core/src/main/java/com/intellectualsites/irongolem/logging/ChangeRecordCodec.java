@@ -0,0 +1,156 @@
+//
+// IronGolem - A Minecraft block logging plugin
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.intellectualsites.irongolem.logging;
+
+import com.intellectualsites.irongolem.changes.BlockSubject;
+import com.intellectualsites.irongolem.changes.Change;
+import com.intellectualsites.irongolem.changes.ChangeReason;
+import com.intellectualsites.irongolem.changes.ChangeSource;
+import com.intellectualsites.irongolem.changes.ChangeSubject;
+import com.intellectualsites.irongolem.changes.ChangeType;
+import com.intellectualsites.irongolem.changes.RestorationSubject;
+import com.intellectualsites.irongolem.util.NBTUtils;
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * Encodes {@link Change changes} as compact binary records. A record
+ * holds everything that the loggers persist, so that the change can
+ * be restored without touching the world. Tile entities are recorded
+ * uncompressed, and compressed by the thread that decodes the record,
+ * so that the thread that logged the change does not have to
+ */
+final class ChangeRecordCodec {
+
+    private static final ChangeReason[] REASONS = ChangeReason.values();
+    private static final ChangeType[] TYPES = ChangeType.values();
+
+    private static final byte BLOCK_SUBJECT = 0;
+    private static final byte RESTORATION_SUBJECT = 1;
+
+    private ChangeRecordCodec() {
+    }
+
+    /**
+     * Encode a change
+     *
+     * @param change Change to encode
+     * @param output Output that the record is written to
+     * @throws IOException If the record cannot be written
+     */
+    static void encode(@NotNull final Change change, @NotNull final DataOutput output) throws IOException {
+        final Location location = change.getLocation();
+        final UUID world = Objects.requireNonNull(location.getWorld(), "Change has no world").getUID();
+        output.writeLong(world.getMostSignificantBits());
+        output.writeLong(world.getLeastSignificantBits());
+        output.writeInt(location.getBlockX());
+        output.writeInt(location.getBlockY());
+        output.writeInt(location.getBlockZ());
+        output.writeLong(change.getTimestamp());
+        output.writeLong(change.getId());
+        output.writeByte(change.getReason().ordinal());
+        output.writeUTF(change.getSource().getName());
+        final ChangeSubject<?, ?> subject = change.getSubject();
+        if (subject instanceof RestorationSubject) {
+            output.writeByte(RESTORATION_SUBJECT);
+            output.writeByte(subject.getType().ordinal());
+            output.writeLong((Long) subject.getTo());
+        } else {
+            output.writeByte(BLOCK_SUBJECT);
+            output.writeUTF(subject.serializeFrom());
+            output.writeUTF(subject.serializeTo());
+            if (subject instanceof BlockSubject) {
+                writeBytes(output, ((BlockSubject) subject).serializeRawOldState());
+                writeBytes(output, ((BlockSubject) subject).serializeRawNewState());
+            } else {
+                writeBytes(output, subject.serializeOldState());
+                writeBytes(output, subject.serializeNewState());
+            }
+        }
+    }
+
+    /**
+     * Decode a change
+     *
+     * @param input Input that the record is read from
+     * @return Decoded change, or null if its world is no longer loaded
+     * @throws IOException If the record cannot be read
+     */
+    @Nullable static Change decode(@NotNull final DataInput input) throws IOException {
+        final World world = Bukkit.getWorld(new UUID(input.readLong(), input.readLong()));
+        final int x = input.readInt();
+        final int y = input.readInt();
+        final int z = input.readInt();
+        final long timestamp = input.readLong();
+        final long id = input.readLong();
+        final ChangeReason reason = REASONS[input.readUnsignedByte()];
+        final String source = input.readUTF();
+        final ChangeSubject<?, ?> subject;
+        if (input.readByte() == RESTORATION_SUBJECT) {
+            subject = RestorationSubject.of(TYPES[input.readUnsignedByte()], input.readLong());
+        } else {
+            subject = BlockSubject.deserialize(input.readUTF(), input.readUTF(), NBTUtils.compress(readBytes(input)),
+                NBTUtils.compress(readBytes(input)));
+        }
+        if (world == null) {
+            return null;
+        }
+        return Change.newBuilder().withId(id).withSource(new RecordedSource(source))
+            .atLocation(new Location(world, x, y, z)).withSubject(subject).withReason(reason)
+            .atTime(timestamp).build();
+    }
+
+    private static void writeBytes(@NotNull final DataOutput output, @NotNull final byte[] bytes) throws IOException {
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    @NotNull private static byte[] readBytes(@NotNull final DataInput input) throws IOException {
+        final byte[] bytes = new byte[input.readInt()];
+        input.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * The source of a decoded change. Only the name of the
+     * source is recorded, as that is all that is persisted
+     */
+    private static final class RecordedSource extends ChangeSource {
+
+        private final String name;
+
+        private RecordedSource(@NotNull final String name) {
+            this.name = name;
+        }
+
+        @Override public String getName() {
+            return this.name;
+        }
+
+    }
+
+}
@@ -0,0 +1,207 @@
+//
+// IronGolem - A Minecraft block logging plugin
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.intellectualsites.irongolem.logging;
+
+import com.google.common.base.Preconditions;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Decides how often a {@link ScheduledQueuingChangeLogger} flushes, and how
+ * large its batches are, based on the observed queue depth and flush latency.
+ * <p>
+ * When the backlog grows, batches grow and the logger flushes again as soon
+ * as possible. When the logger is keeping up, batches shrink back and the
+ * flush interval is stretched for as long as the change-to-disk latency
+ * stays below the target
+ */
+public class FlushPolicy {
+
+    private static final long MILLISECONDS_PER_TICK = 50L;
+
+    private final long minInterval;
+    private final long maxInterval;
+    private final int minBatchSize;
+    private final int maxBatchSize;
+    private final long targetLatency;
+    private final long durabilityWindow;
+    private final long coalescingWindow;
+
+    private volatile int batchSize;
+    private volatile long interval;
+    private volatile long latency;
+
+    private FlushPolicy(final long minInterval, final long maxInterval, final int minBatchSize,
+        final int maxBatchSize, final long targetLatency, final long durabilityWindow, final long coalescingWindow) {
+        this.minInterval = minInterval;
+        this.maxInterval = maxInterval;
+        this.minBatchSize = minBatchSize;
+        this.maxBatchSize = maxBatchSize;
+        this.targetLatency = targetLatency;
+        this.durabilityWindow = durabilityWindow;
+        this.coalescingWindow = coalescingWindow;
+        this.batchSize = minBatchSize;
+        this.interval = maxInterval;
+    }
+
+    public static FlushPolicyBuilder newBuilder() {
+        return new FlushPolicyBuilder();
+    }
+
+    /**
+     * Get the current batch size
+     *
+     * @return Maximum number of changes per batch
+     */
+    public int getBatchSize() {
+        return this.batchSize;
+    }
+
+    /**
+     * Get the current flush interval
+     *
+     * @return Interval (in ticks) until the next flush
+     */
+    public long getInterval() {
+        return this.interval;
+    }
+
+    /**
+     * Get the maximum amount of time (in milliseconds) that
+     * persisted changes may remain uncommitted
+     *
+     * @return Durability window
+     */
+    public long getDurabilityWindow() {
+        return this.durabilityWindow;
+    }
+
+    /**
+     * Get the amount of time (in milliseconds) during which consecutive
+     * changes to the same block, by the same source, are merged into one
+     *
+     * @return Coalescing window, or 0 if changes are never merged
+     */
+    public long getCoalescingWindow() {
+        return this.coalescingWindow;
+    }
+
+    /**
+     * Get the change-to-disk latency of the oldest change
+     * that was committed during the latest flush
+     *
+     * @return Latency (in milliseconds)
+     */
+    public long getLatency() {
+        return this.latency;
+    }
+
+    /**
+     * Get the change-to-disk latency that the policy aims for
+     *
+     * @return Target latency (in milliseconds)
+     */
+    public long getTargetLatency() {
+        return this.targetLatency;
+    }
+
+    /**
+     * Update the policy after a flush
+     *
+     * @param backlog  Number of queued changes when the flush started
+     * @param flushed  Number of changes that were persisted
+     * @param duration Duration of the flush (in milliseconds)
+     * @param latency  Change-to-disk latency of the oldest committed change (in milliseconds)
+     * @return Interval (in ticks) until the next flush
+     */
+    public synchronized long update(final int backlog, final int flushed, final long duration,
+        final long latency) {
+        this.latency = latency;
+        if (flushed == 0) {
+            // Nothing to do, so there's nothing to commit either
+            this.batchSize = Math.max(this.minBatchSize, this.batchSize / 2);
+            this.interval = this.maxInterval;
+            return this.interval;
+        }
+        if (backlog > this.batchSize * 2) {
+            this.batchSize = Math.min(this.maxBatchSize, this.batchSize * 2);
+        } else if (backlog < this.batchSize / 4) {
+            this.batchSize = Math.max(this.minBatchSize, this.batchSize / 2);
+        }
+        if (latency >= this.targetLatency || duration >= this.targetLatency) {
+            // Falling behind, drain as fast as possible
+            this.interval = this.minInterval;
+        } else {
+            // Leave enough room for the next flush to finish within the target
+            final long slack = (this.targetLatency - duration) / MILLISECONDS_PER_TICK;
+            this.interval = Math.max(this.minInterval, Math.min(this.maxInterval, slack));
+        }
+        return this.interval;
+    }
+
+    public static final class FlushPolicyBuilder {
+
+        private long minInterval = 1L;
+        private long maxInterval = 20L;
+        private int minBatchSize = 64;
+        private int maxBatchSize = 8192;
+        private long targetLatency = 1000L;
+        private long durabilityWindow = 1000L;
+        private long coalescingWindow = 0L;
+
+        @NotNull public FlushPolicyBuilder withInterval(final long minInterval, final long maxInterval) {
+            Preconditions.checkState(minInterval > 0, "Minimum interval has to be positive");
+            Preconditions.checkState(maxInterval >= minInterval, "Maximum interval may not be less than minimum interval");
+            this.minInterval = minInterval;
+            this.maxInterval = maxInterval;
+            return this;
+        }
+
+        @NotNull public FlushPolicyBuilder withBatchSize(final int minBatchSize, final int maxBatchSize) {
+            Preconditions.checkState(minBatchSize > 0, "Minimum batch size has to be positive");
+            Preconditions.checkState(maxBatchSize >= minBatchSize, "Maximum batch size may not be less than minimum batch size");
+            this.minBatchSize = minBatchSize;
+            this.maxBatchSize = maxBatchSize;
+            return this;
+        }
+
+        @NotNull public FlushPolicyBuilder withTargetLatency(final long targetLatency) {
+            Preconditions.checkState(targetLatency > 0, "Target latency has to be positive");
+            this.targetLatency = targetLatency;
+            return this;
+        }
+
+        @NotNull public FlushPolicyBuilder withDurabilityWindow(final long durabilityWindow) {
+            Preconditions.checkState(durabilityWindow >= 0, "Durability window may not be negative");
+            this.durabilityWindow = durabilityWindow;
+            return this;
+        }
+
+        @NotNull public FlushPolicyBuilder withCoalescingWindow(final long coalescingWindow) {
+            Preconditions.checkState(coalescingWindow >= 0, "Coalescing window may not be negative");
+            this.coalescingWindow = coalescingWindow;
+            return this;
+        }
+
+        public FlushPolicy build() {
+            return new FlushPolicy(this.minInterval, this.maxInterval, this.minBatchSize,
+                this.maxBatchSize, this.targetLatency, this.durabilityWindow, this.coalescingWindow);
+        }
+
+    }
+
+}
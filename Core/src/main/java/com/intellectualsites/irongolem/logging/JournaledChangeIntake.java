@@ -0,0 +1,480 @@
+//
+// IronGolem - A Minecraft block logging plugin
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.intellectualsites.irongolem.logging;
+
+import com.intellectualsites.irongolem.changes.Change;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NavigableMap;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.zip.CRC32;
+
+/**
+ * A {@link ChangeIntake} that writes every change to an append-only journal
+ * before handing it to another intake. The journal is made up of memory
+ * mapped segment files, so appending a change does not wait for the disk.
+ * <p>
+ * Once the logger has committed the changes that it polled, the journal
+ * checkpoint is moved past them, and segments that only hold committed
+ * changes are deleted. Changes after the checkpoint are {@link #replay()
+ * replayed} when the logger starts, which recovers the changes that were
+ * still queued when the server stopped or crashed. Replayed changes are
+ * read straight from the journal by the logger, ahead of the queued changes,
+ * so they never have to fit in the other intake. Changes that were persisted
+ * right before a crash may be replayed twice.
+ * <p>
+ * A change that cannot be journaled is dropped, rather than queued without
+ * being journaled. Changes that are dropped by the other intake when they are
+ * polled count as committed along with the change before them
+ */
+public class JournaledChangeIntake implements ChangeIntake {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(JournaledChangeIntake.class);
+    private static final String FILE_PREFIX = "journal-";
+    private static final String FILE_SUFFIX = ".log";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+    // Record length, followed by the CRC32 of the record. The length is
+    // written last, and is negated when the record has been dropped
+    private static final int HEADER_SIZE = 8;
+
+    private final ChangeIntake changeIntake;
+    private final File directory;
+    private final NavigableMap<Long, JournalSegment> segments = new ConcurrentSkipListMap<>();
+    private final FileChannel checkpointChannel;
+    private final MappedByteBuffer checkpoint;
+    private final Object appendLock = new Object();
+    private final CRC32 checksum = new CRC32();
+    private final CRC32 replayChecksum = new CRC32();
+    // Number of changes that had been polled when each record that the other
+    // intake dropped was polled. Only accessed by the logger
+    private final Queue<Long> polledDrops = new ArrayDeque<>();
+
+    // Segments before this one were recovered when the journal was opened
+    private final long firstSegment;
+
+    // Guarded by the append lock
+    private JournalSegment active;
+    // Only accessed by the logger
+    private long readSegment;
+    private int readPosition;
+    private long replaySegment;
+    private int replayPosition;
+    private long polledChanges;
+    private long committedChanges;
+
+    private volatile int replayRecords;
+    private volatile boolean replayed;
+
+    /**
+     * Open the journal in a directory. Changes that were not
+     * committed are kept until they are {@link #replay() replayed}
+     *
+     * @param changeIntake Intake that journaled changes are queued in
+     * @param directory    Directory that holds the journal
+     * @throws IOException If the journal cannot be opened
+     */
+    public JournaledChangeIntake(@NotNull final ChangeIntake changeIntake, @NotNull final File directory)
+        throws IOException {
+        this.changeIntake = changeIntake;
+        this.directory = directory;
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException(String.format("Failed to create %s", directory.getName()));
+        }
+        this.checkpointChannel = new RandomAccessFile(new File(directory, CHECKPOINT_FILE), "rw").getChannel();
+        this.checkpoint = this.checkpointChannel.map(FileChannel.MapMode.READ_WRITE, 0, Long.BYTES + Integer.BYTES);
+        this.readSegment = this.checkpoint.getLong(0);
+        this.readPosition = this.checkpoint.getInt(Long.BYTES);
+        final File[] files = directory.listFiles((parent, name) -> name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX));
+        if (files != null) {
+            for (final File file : files) {
+                final long id = Long.parseLong(file.getName().substring(FILE_PREFIX.length(),
+                    file.getName().length() - FILE_SUFFIX.length()));
+                if (id < this.readSegment) {
+                    if (!file.delete()) {
+                        LOGGER.warn("Failed to delete committed journal segment {}", file.getName());
+                    }
+                } else {
+                    this.segments.put(id, JournalSegment.open(file, id));
+                }
+            }
+        }
+        if (!this.segments.containsKey(this.readSegment)) {
+            this.readPosition = 0;
+        }
+        // Recovered segments are never appended to, as
+        // their last record may have been torn by a crash
+        this.active = this.createSegment(this.segments.isEmpty() ? this.readSegment + 1 : this.segments.lastKey() + 1, 0);
+        this.firstSegment = this.active.id;
+        if (!this.segments.containsKey(this.readSegment)) {
+            this.readSegment = this.segments.firstKey();
+        }
+        if (changeIntake instanceof RingChangeIntake) {
+            // The ring decodes the records, and drops those that cannot be decoded
+            ((RingChangeIntake) changeIntake).setDecodeFailureHandler(() -> this.polledDrops.add(this.polledChanges));
+        }
+    }
+
+    @Override public boolean add(@NotNull final Change change) {
+        final RecordBuffer record;
+        try {
+            record = RecordBuffer.encode(change);
+        } catch (final Exception e) {
+            LOGGER.error("Failed to encode change {}. Dropping it.", change, e);
+            return false;
+        }
+        // Changes have to enter the journal in the same order as they
+        // enter the intake, so that committing a number of polled changes
+        // moves the checkpoint past exactly those changes
+        synchronized (this.appendLock) {
+            final JournalSegment segment;
+            final int position;
+            try {
+                segment = this.getSegment(record.size());
+                position = segment.append(record.getBuffer(), record.size(), this.checksum);
+            } catch (final IOException e) {
+                LOGGER.error("Failed to journal change {}. Dropping it.", change, e);
+                return false;
+            }
+            // The ring takes the record as it is, so the change is only encoded once
+            final boolean queued = this.changeIntake instanceof RingChangeIntake
+                ? ((RingChangeIntake) this.changeIntake).addRecord(record.getBuffer(), record.size())
+                : this.changeIntake.add(change);
+            if (queued) {
+                return true;
+            }
+            segment.drop(position);
+            return false;
+        }
+    }
+
+    @Nullable @Override public Change poll() {
+        // Replayed changes are older than anything in the intake, and
+        // have to be polled first to keep the commits in journal order
+        if (!this.replayed) {
+            return null;
+        }
+        Change change = null;
+        if (this.replayRecords > 0) {
+            change = this.pollReplay();
+        }
+        if (change == null) {
+            change = this.changeIntake.poll();
+        }
+        if (change != null) {
+            this.polledChanges++;
+        }
+        return change;
+    }
+
+    @Override public int size() {
+        return this.replayRecords + this.changeIntake.size();
+    }
+
+    @Override public void commit(final int changes) {
+        this.committedChanges += changes;
+        int records = changes;
+        // Dropped records come before the change that was polled after them, so
+        // they are consumed once every change that was polled before them is
+        while (!this.polledDrops.isEmpty() && this.polledDrops.peek() <= this.committedChanges) {
+            this.polledDrops.poll();
+            records++;
+        }
+        this.skip(records);
+        // Queued changes become durable along with the checkpoint
+        for (final JournalSegment segment : this.segments.tailMap(this.readSegment, true).values()) {
+            segment.force();
+        }
+        this.checkpoint.putLong(0, this.readSegment);
+        this.checkpoint.putInt(Long.BYTES, this.readPosition);
+        this.checkpoint.force();
+        final Iterator<JournalSegment> committed = this.segments.headMap(this.readSegment, false).values().iterator();
+        while (committed.hasNext()) {
+            final JournalSegment segment = committed.next();
+            committed.remove();
+            try {
+                if (!segment.delete()) {
+                    LOGGER.warn("Failed to delete committed journal segment {}", segment.file.getName());
+                }
+            } catch (final IOException e) {
+                LOGGER.error("Failed to delete committed journal segment {}", segment.file.getName(), e);
+            }
+        }
+    }
+
+    @Override public void close() {
+        this.changeIntake.close();
+        synchronized (this.appendLock) {
+            for (final JournalSegment segment : this.segments.values()) {
+                segment.force();
+                try {
+                    segment.close();
+                } catch (final IOException e) {
+                    LOGGER.error("Failed to close journal segment {}", segment.file.getName(), e);
+                }
+            }
+            try {
+                this.checkpointChannel.close();
+            } catch (final IOException e) {
+                LOGGER.error("Failed to close the journal checkpoint", e);
+            }
+        }
+    }
+
+    /**
+     * Get the intake that journaled changes are queued in
+     *
+     * @return Change intake
+     */
+    @NotNull public ChangeIntake getChangeIntake() {
+        return this.changeIntake;
+    }
+
+    /**
+     * Start replaying the changes that were journaled, but not committed, before
+     * the journal was opened. Torn records at the end of the recovered segments
+     * are discarded. The changes are decoded as the logger polls them, and
+     * nothing is polled until this has been called, so this has to be done
+     * once the logger has started
+     *
+     * @return Number of changes that will be replayed
+     */
+    public int replay() {
+        final CRC32 checksum = new CRC32();
+        int records = 0;
+        int position = this.readPosition;
+        for (final JournalSegment segment : this.segments.subMap(this.readSegment, true, this.firstSegment, false).values()) {
+            if (segment.id != this.readSegment) {
+                position = 0;
+            }
+            while (position + HEADER_SIZE <= segment.size) {
+                final int length = segment.reader.getInt(position);
+                if (length == 0) {
+                    break;
+                } else if (length < 0) {
+                    position += HEADER_SIZE - length;
+                    continue;
+                }
+                if (segment.read(position, length, checksum) == null) {
+                    LOGGER.warn("Discarding a torn record at the end of journal segment {}", segment.file.getName());
+                    segment.writer.putInt(position, 0);
+                    break;
+                }
+                records++;
+                position += HEADER_SIZE + length;
+            }
+        }
+        this.replaySegment = this.readSegment;
+        this.replayPosition = this.readPosition;
+        this.replayRecords = records;
+        this.replayed = true;
+        return records;
+    }
+
+    /**
+     * Read the next replayed change from the journal. Records that
+     * cannot be decoded are dropped, as they will never be committed
+     *
+     * @return Change, or null if every change has been replayed
+     */
+    @Nullable private Change pollReplay() {
+        while (this.replayRecords > 0) {
+            final JournalSegment segment = this.segments.get(this.replaySegment);
+            final int length;
+            if (segment == null || this.replayPosition + HEADER_SIZE > segment.size
+                || (length = segment.reader.getInt(this.replayPosition)) == 0) {
+                final Long next = this.segments.higherKey(this.replaySegment);
+                if (next == null || next >= this.firstSegment) {
+                    this.replayRecords = 0;
+                    break;
+                }
+                this.replaySegment = next;
+                this.replayPosition = 0;
+                continue;
+            }
+            final int position = this.replayPosition;
+            this.replayPosition += HEADER_SIZE + Math.abs(length);
+            if (length < 0) {
+                continue;
+            }
+            this.replayRecords--;
+            final byte[] record = segment.read(position, length, this.replayChecksum);
+            Change change = null;
+            try {
+                if (record != null) {
+                    change = ChangeRecordCodec.decode(new DataInputStream(new ByteArrayInputStream(record)));
+                }
+            } catch (final Exception e) {
+                LOGGER.error("Failed to decode a journaled change. Dropping it.", e);
+            }
+            if (change != null) {
+                return change;
+            }
+            segment.drop(position);
+        }
+        return null;
+    }
+
+    /**
+     * Move the read position past a number of records. Dropped records are
+     * skipped, as they were never queued
+     *
+     * @param records Number of records
+     */
+    private void skip(final int records) {
+        int remaining = records;
+        while (remaining > 0) {
+            final JournalSegment segment = this.segments.get(this.readSegment);
+            final int length;
+            if (this.readPosition + HEADER_SIZE > segment.size || (length = segment.reader.getInt(this.readPosition)) == 0) {
+                final Long next = this.segments.higherKey(this.readSegment);
+                if (next == null) {
+                    LOGGER.warn("The journal holds fewer changes than were polled");
+                    return;
+                }
+                this.readSegment = next;
+                this.readPosition = 0;
+                continue;
+            }
+            this.readPosition += HEADER_SIZE + Math.abs(length);
+            if (length > 0) {
+                remaining--;
+            }
+        }
+    }
+
+    /**
+     * Get the segment that a record is appended to,
+     * and start a new segment if the record does not fit
+     *
+     * @param length Record length
+     * @return Segment
+     * @throws IOException If a new segment cannot be created
+     */
+    @NotNull private JournalSegment getSegment(final int length) throws IOException {
+        if (this.active.writePosition + HEADER_SIZE + length > this.active.size) {
+            this.active.force();
+            this.active = this.createSegment(this.active.id + 1, length);
+        }
+        return this.active;
+    }
+
+    @NotNull private JournalSegment createSegment(final long id, final int length) throws IOException {
+        final File file = new File(this.directory, String.format("%s%019d%s", FILE_PREFIX, id, FILE_SUFFIX));
+        if (file.exists() && !file.delete()) {
+            throw new IOException(String.format("Failed to replace %s", file.getName()));
+        }
+        final JournalSegment segment = JournalSegment.create(file, id, Math.max(SEGMENT_SIZE, HEADER_SIZE + length));
+        this.segments.put(id, segment);
+        return segment;
+    }
+
+    private static final class JournalSegment {
+
+        private final File file;
+        private final long id;
+        private final int size;
+        private final FileChannel channel;
+        private final MappedByteBuffer writer;
+        private final ByteBuffer reader;
+
+        // Guarded by the append lock
+        private int writePosition;
+
+        private JournalSegment(@NotNull final File file, final long id, @NotNull final FileChannel channel,
+            @NotNull final MappedByteBuffer buffer) {
+            this.file = file;
+            this.id = id;
+            this.size = buffer.capacity();
+            this.channel = channel;
+            this.writer = buffer;
+            this.reader = buffer.duplicate();
+        }
+
+        @NotNull private static JournalSegment create(@NotNull final File file, final long id, final int size)
+            throws IOException {
+            final FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+            return new JournalSegment(file, id, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        }
+
+        @NotNull private static JournalSegment open(@NotNull final File file, final long id) throws IOException {
+            final FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+            return new JournalSegment(file, id, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size()));
+        }
+
+        private int append(@NotNull final byte[] record, final int length, @NotNull final CRC32 checksum) {
+            final int position = this.writePosition;
+            this.writer.position(position + HEADER_SIZE);
+            this.writer.put(record, 0, length);
+            checksum.reset();
+            checksum.update(record, 0, length);
+            this.writer.putInt(position + Integer.BYTES, (int) checksum.getValue());
+            this.writer.putInt(position, length);
+            this.writePosition += HEADER_SIZE + length;
+            return position;
+        }
+
+        @Nullable private byte[] read(final int position, final int length, @NotNull final CRC32 checksum) {
+            if (position + HEADER_SIZE + length > this.size) {
+                return null;
+            }
+            final byte[] record = new byte[length];
+            this.reader.position(position + HEADER_SIZE);
+            this.reader.get(record);
+            checksum.reset();
+            checksum.update(record, 0, length);
+            if ((int) checksum.getValue() != this.reader.getInt(position + Integer.BYTES)) {
+                return null;
+            }
+            return record;
+        }
+
+        private void drop(final int position) {
+            this.writer.putInt(position, -this.writer.getInt(position));
+        }
+
+        private void force() {
+            this.writer.force();
+        }
+
+        private boolean delete() throws IOException {
+            this.close();
+            return this.file.delete();
+        }
+
+        private void close() throws IOException {
+            this.channel.close();
+        }
+
+    }
+
+}
@@ -0,0 +1,41 @@
+//
+// IronGolem - A Minecraft block logging plugin
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.intellectualsites.irongolem.logging;
+
+/**
+ * Decides what a {@link RingChangeIntake} does with
+ * changes that do not fit in the ring
+ */
+public enum OverflowPolicy {
+    /**
+     * Wait until the logger has made room for the change. This
+     * stalls the thread that logged the change, which is usually
+     * the main server thread, so the wait is limited. Changes that
+     * are still waiting afterwards are spilled, if possible, or dropped
+     */
+    BLOCK,
+    /**
+     * Append the change to a file on disk. The file is read once
+     * the ring has been drained, and emptied once it has been read
+     */
+    SPILL,
+    /**
+     * Drop the change, and count it
+     */
+    DROP
+}
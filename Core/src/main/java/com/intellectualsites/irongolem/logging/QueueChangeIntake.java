@@ -0,0 +1,46 @@
+//
+// IronGolem - A Minecraft block logging plugin
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.intellectualsites.irongolem.logging;
+
+import com.intellectualsites.irongolem.changes.Change;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Queue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * An unbounded {@link ChangeIntake} that keeps changes on the heap
+ */
+public class QueueChangeIntake implements ChangeIntake {
+
+    private final Queue<Change> changeQueue = new LinkedBlockingQueue<>();
+
+    @Override public boolean add(@NotNull final Change change) {
+        return this.changeQueue.add(change);
+    }
+
+    @Nullable @Override public Change poll() {
+        return this.changeQueue.poll();
+    }
+
+    @Override public int size() {
+        return this.changeQueue.size();
+    }
+
+}
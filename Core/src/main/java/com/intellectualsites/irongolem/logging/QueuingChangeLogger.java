@@ -21,30 +21,52 @@ import com.intellectualsites.irongolem.changes.Change;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.Collection;
-import java.util.Queue;
-import java.util.concurrent.LinkedBlockingQueue;
 
 /**
- * A {@link java.util.Queue} backed {@link ChangeLogger}
+ * A {@link ChangeLogger} that queues changes in a {@link ChangeIntake}
  */
 public abstract class QueuingChangeLogger implements ChangeLogger {
 
-    private final Queue<Change> changeQueue;
+    private final ChangeIntake changeIntake;
 
     public QueuingChangeLogger() {
-        this.changeQueue = new LinkedBlockingQueue<>();
+        this(new QueueChangeIntake());
+    }
+
+    public QueuingChangeLogger(@NotNull final ChangeIntake changeIntake) {
+        this.changeIntake = changeIntake;
     }
 
     @Override public void logChange(@NotNull final Change change) {
-        this.changeQueue.add(change);
+        this.changeIntake.add(change);
     }
 
     @Override public void logChanges(@NotNull final Collection<Change> changes) {
-        this.changeQueue.addAll(changes);
+        for (final Change change : changes) {
+            this.changeIntake.add(change);
+        }
+    }
+
+    /**
+     * Get the intake that changes are queued in
+     *
+     * @return Change intake
+     */
+    @NotNull public ChangeIntake getChangeIntake() {
+        return this.changeIntake;
+    }
+
+    /**
+     * Get the number of changes that are waiting to be persisted
+     *
+     * @return Queue size
+     */
+    public int getQueueSize() {
+        return this.changeIntake.size();
     }
 
     protected Change pollChange() {
-        return this.changeQueue.poll();
+        return this.changeIntake.poll();
     }
 
 }
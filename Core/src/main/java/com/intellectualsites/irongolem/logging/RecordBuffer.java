@@ -0,0 +1,65 @@
+//
+// IronGolem - A Minecraft block logging plugin
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.intellectualsites.irongolem.logging;
+
+import com.intellectualsites.irongolem.changes.Change;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Per-thread buffer that changes are encoded into. The
+ * buffer is reused by the next change that the thread encodes
+ */
+final class RecordBuffer extends ByteArrayOutputStream {
+
+    private static final ThreadLocal<RecordBuffer> RECORD_BUFFER = ThreadLocal.withInitial(RecordBuffer::new);
+
+    private final DataOutputStream output = new DataOutputStream(this);
+
+    private RecordBuffer() {
+        super(256);
+    }
+
+    /**
+     * Encode a change into the buffer of the current thread
+     *
+     * @param change Change to encode
+     * @return Buffer holding the encoded change
+     * @throws IOException If the change cannot be encoded
+     */
+    @NotNull static RecordBuffer encode(@NotNull final Change change) throws IOException {
+        final RecordBuffer buffer = RECORD_BUFFER.get();
+        buffer.reset();
+        ChangeRecordCodec.encode(change, buffer.output);
+        return buffer;
+    }
+
+    /**
+     * Get the array that backs the buffer. Only the
+     * first {@link #size()} bytes belong to the record
+     *
+     * @return Backing array
+     */
+    @NotNull byte[] getBuffer() {
+        return this.buf;
+    }
+
+}
@@ -0,0 +1,519 @@
+//
+// IronGolem - A Minecraft block logging plugin
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.intellectualsites.irongolem.logging;
+
+import com.google.common.base.Preconditions;
+import com.intellectualsites.irongolem.changes.Change;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded {@link ChangeIntake} that stores changes as compact binary
+ * records in a ring buffer outside of the heap. Any number of threads
+ * may add changes, and the logger is the only consumer.
+ * <p>
+ * Changes are encoded by the thread that logs them, and decoded again
+ * when they are polled. Changes that do not fit in the ring are handled
+ * according to the {@link OverflowPolicy}. Spilled changes are buffered,
+ * and written to the spill file before they are read back
+ */
+public class RingChangeIntake implements ChangeIntake {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RingChangeIntake.class);
+    private static final int HEADER_SIZE = Integer.BYTES;
+    private static final long WARNING_INTERVAL = TimeUnit.MINUTES.toMillis(1L);
+    private static final int SPILL_BUFFER_SIZE = 64 * 1024;
+
+    private final ByteBuffer ring;
+    private final byte[] header = new byte[HEADER_SIZE];
+    private final OverflowPolicy overflowPolicy;
+    private final long maxWait;
+    private final File spillFile;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = this.lock.newCondition();
+
+    private int readPosition;
+    private int writePosition;
+    private int usedBytes;
+    private int highWaterMark;
+    private int records;
+    private RandomAccessFile spill;
+    private DataOutputStream spillOutput;
+    private boolean spillFlushed = true;
+    private long spillPosition;
+    private int spillRecords;
+    private long spilledChanges;
+    private long droppedChanges;
+    private long lastWarning;
+    private boolean closed;
+    // Only accessed by the logger
+    private Runnable decodeFailureHandler;
+
+    private RingChangeIntake(final int capacity, @NotNull final OverflowPolicy overflowPolicy, final long maxWait,
+        @Nullable final File spillFile) throws IOException {
+        this.ring = ByteBuffer.allocateDirect(capacity);
+        this.overflowPolicy = overflowPolicy;
+        this.maxWait = TimeUnit.MILLISECONDS.toNanos(maxWait);
+        this.spillFile = spillFile;
+        if (spillFile != null) {
+            this.spill = new RandomAccessFile(spillFile, "rw");
+            this.spillRecords = this.recoverSpill();
+            // Appends always go to the end of the file, also after it has been truncated
+            this.spillOutput = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(spillFile, true), SPILL_BUFFER_SIZE));
+            if (this.spillRecords > 0) {
+                LOGGER.info("Recovered {} spilled changes from {}", this.spillRecords, spillFile.getName());
+            }
+        }
+    }
+
+    public static RingChangeIntakeBuilder newBuilder() {
+        return new RingChangeIntakeBuilder();
+    }
+
+    @Override public boolean add(@NotNull final Change change) {
+        final RecordBuffer record;
+        try {
+            record = RecordBuffer.encode(change);
+        } catch (final Exception e) {
+            LOGGER.error("Failed to encode change {}. Dropping it.", change, e);
+            this.lock.lock();
+            try {
+                this.droppedChanges++;
+            } finally {
+                this.lock.unlock();
+            }
+            return false;
+        }
+        return this.addRecord(record.getBuffer(), record.size());
+    }
+
+    /**
+     * Queue a change that has already been encoded by {@link ChangeRecordCodec}
+     *
+     * @param record Array holding the encoded change
+     * @param length Length of the encoded change
+     * @return True if the change was queued
+     */
+    boolean addRecord(@NotNull final byte[] record, final int length) {
+        this.lock.lock();
+        try {
+            // Changes may only enter the ring while nothing is spilled,
+            // as the ring is drained before the spill file is read
+            if (this.spillRecords == 0 && this.fits(length)) {
+                this.write(record, length);
+                return true;
+            } else if (this.closed || HEADER_SIZE + length > this.ring.capacity()) {
+                this.drop();
+                return false;
+            } else if (this.overflowPolicy == OverflowPolicy.BLOCK && this.awaitSpace(length)) {
+                this.write(record, length);
+                return true;
+            } else if (!this.closed && this.spill != null) {
+                // Blocked changes are spilled too, if the wait timed out
+                return this.spill(record, length);
+            }
+            this.drop();
+            return false;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Nullable @Override public Change poll() {
+        while (true) {
+            final byte[] record;
+            this.lock.lock();
+            try {
+                if (this.records > 0) {
+                    record = this.read();
+                    this.notFull.signalAll();
+                } else if (this.spillRecords > 0) {
+                    record = this.readSpill();
+                    if (record == null) {
+                        continue;
+                    }
+                } else {
+                    return null;
+                }
+            } finally {
+                this.lock.unlock();
+            }
+            try {
+                final Change change = ChangeRecordCodec.decode(new DataInputStream(new ByteArrayInputStream(record)));
+                if (change != null) {
+                    return change;
+                }
+            } catch (final Exception e) {
+                LOGGER.error("Failed to decode a queued change. Dropping it.", e);
+            }
+            this.lock.lock();
+            try {
+                this.droppedChanges++;
+            } finally {
+                this.lock.unlock();
+            }
+            if (this.decodeFailureHandler != null) {
+                this.decodeFailureHandler.run();
+            }
+        }
+    }
+
+    /**
+     * Set the handler that is called whenever a polled record cannot be decoded, and is dropped.
+     * The handler is called by the polling thread, before any later change is returned
+     *
+     * @param handler Handler
+     */
+    void setDecodeFailureHandler(@NotNull final Runnable handler) {
+        this.decodeFailureHandler = handler;
+    }
+
+    @Override public int size() {
+        this.lock.lock();
+        try {
+            return this.records + this.spillRecords;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override public void close() {
+        this.lock.lock();
+        try {
+            this.closed = true;
+            this.notFull.signalAll();
+            if (this.spill != null) {
+                try {
+                    this.spillOutput.close();
+                    this.spill.close();
+                } catch (final IOException e) {
+                    LOGGER.error("Failed to close {}", this.spillFile.getName(), e);
+                }
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Get the size of the ring
+     *
+     * @return Capacity (in bytes)
+     */
+    public int getCapacity() {
+        return this.ring.capacity();
+    }
+
+    /**
+     * Get the number of bytes that are taken up by queued changes
+     *
+     * @return Used bytes
+     */
+    public int getUsedBytes() {
+        this.lock.lock();
+        try {
+            return this.usedBytes;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Get the largest number of bytes that have
+     * been taken up by queued changes at once
+     *
+     * @return High water mark (in bytes)
+     */
+    public int getHighWaterMark() {
+        this.lock.lock();
+        try {
+            return this.highWaterMark;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of changes that are currently spilled to disk
+     *
+     * @return Spilled changes
+     */
+    public int getSpillSize() {
+        this.lock.lock();
+        try {
+            return this.spillRecords;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Get the total number of changes that have been spilled to disk
+     *
+     * @return Spilled changes
+     */
+    public long getSpilledChanges() {
+        this.lock.lock();
+        try {
+            return this.spilledChanges;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Get the total number of changes that have been dropped
+     *
+     * @return Dropped changes
+     */
+    public long getDroppedChanges() {
+        this.lock.lock();
+        try {
+            return this.droppedChanges;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Get the policy that decides what happens to
+     * changes that do not fit in the ring
+     *
+     * @return Overflow policy
+     */
+    @NotNull public OverflowPolicy getOverflowPolicy() {
+        return this.overflowPolicy;
+    }
+
+    private boolean fits(final int length) {
+        return this.usedBytes + HEADER_SIZE + length <= this.ring.capacity();
+    }
+
+    /**
+     * Wait until a record may enter the ring, for no longer than the maximum wait time
+     *
+     * @param length Record length
+     * @return True if the record may enter the ring, false if the wait timed out,
+     *         the waiting thread was interrupted, or the intake was closed
+     */
+    private boolean awaitSpace(final int length) {
+        long remaining = this.maxWait;
+        while (!this.closed && (this.spillRecords > 0 || !this.fits(length))) {
+            if (remaining <= 0L) {
+                return false;
+            }
+            try {
+                remaining = this.notFull.awaitNanos(remaining);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return !this.closed;
+    }
+
+    private void write(@NotNull final byte[] record, final int length) {
+        this.header[0] = (byte) (length >>> 24);
+        this.header[1] = (byte) (length >>> 16);
+        this.header[2] = (byte) (length >>> 8);
+        this.header[3] = (byte) length;
+        this.put(this.header, HEADER_SIZE);
+        this.put(record, length);
+        this.records++;
+        this.usedBytes += HEADER_SIZE + length;
+        this.highWaterMark = Math.max(this.highWaterMark, this.usedBytes);
+    }
+
+    @NotNull private byte[] read() {
+        this.get(this.header, HEADER_SIZE);
+        final int length = (this.header[0] & 0xFF) << 24 | (this.header[1] & 0xFF) << 16
+            | (this.header[2] & 0xFF) << 8 | this.header[3] & 0xFF;
+        final byte[] record = new byte[length];
+        this.get(record, length);
+        this.records--;
+        this.usedBytes -= HEADER_SIZE + length;
+        return record;
+    }
+
+    private void put(@NotNull final byte[] bytes, final int length) {
+        final int first = Math.min(length, this.ring.capacity() - this.writePosition);
+        this.ring.position(this.writePosition);
+        this.ring.put(bytes, 0, first);
+        if (first < length) {
+            this.ring.position(0);
+            this.ring.put(bytes, first, length - first);
+        }
+        this.writePosition = (this.writePosition + length) % this.ring.capacity();
+    }
+
+    private void get(@NotNull final byte[] bytes, final int length) {
+        final int first = Math.min(length, this.ring.capacity() - this.readPosition);
+        this.ring.position(this.readPosition);
+        this.ring.get(bytes, 0, first);
+        if (first < length) {
+            this.ring.position(0);
+            this.ring.get(bytes, first, length - first);
+        }
+        this.readPosition = (this.readPosition + length) % this.ring.capacity();
+    }
+
+    private boolean spill(@NotNull final byte[] record, final int length) {
+        try {
+            this.spillOutput.writeInt(length);
+            this.spillOutput.write(record, 0, length);
+            this.spillFlushed = false;
+            this.spillRecords++;
+            this.spilledChanges++;
+            if (this.spillRecords == 1) {
+                LOGGER.warn("The change queue is full. Spilling changes to {}", this.spillFile.getName());
+            }
+            return true;
+        } catch (final IOException e) {
+            LOGGER.error("Failed to spill change to {}", this.spillFile.getName(), e);
+            this.drop();
+            return false;
+        }
+    }
+
+    @Nullable private byte[] readSpill() {
+        try {
+            if (!this.spillFlushed) {
+                this.spillOutput.flush();
+                this.spillFlushed = true;
+            }
+            this.spill.seek(this.spillPosition);
+            this.spill.readFully(this.header);
+            final byte[] record = new byte[(this.header[0] & 0xFF) << 24 | (this.header[1] & 0xFF) << 16
+                | (this.header[2] & 0xFF) << 8 | this.header[3] & 0xFF];
+            this.spill.readFully(record);
+            this.spillPosition += HEADER_SIZE + record.length;
+            if (--this.spillRecords == 0) {
+                this.spill.setLength(0L);
+                this.spillPosition = 0L;
+            }
+            return record;
+        } catch (final IOException e) {
+            LOGGER.error("Failed to read spilled changes from {}. Dropping {} changes.", this.spillFile.getName(),
+                this.spillRecords, e);
+            this.droppedChanges += this.spillRecords;
+            this.spillRecords = 0;
+            this.spillPosition = 0L;
+            try {
+                this.spill.setLength(0L);
+            } catch (final IOException ignored) {
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Count the changes that were left in the spill file by an earlier
+     * run. A record that was only partially written is discarded
+     *
+     * @return Number of spilled changes
+     * @throws IOException If the spill file cannot be read
+     */
+    private int recoverSpill() throws IOException {
+        int count = 0;
+        long position = 0L;
+        final long length = this.spill.length();
+        while (position + HEADER_SIZE <= length) {
+            this.spill.seek(position);
+            final int size;
+            try {
+                size = this.spill.readInt();
+            } catch (final EOFException e) {
+                break;
+            }
+            if (size < 0 || position + HEADER_SIZE + size > length) {
+                break;
+            }
+            position += HEADER_SIZE + size;
+            count++;
+        }
+        if (position < length) {
+            this.spill.setLength(position);
+        }
+        return count;
+    }
+
+    private void drop() {
+        this.droppedChanges++;
+        final long now = System.currentTimeMillis();
+        if (now - this.lastWarning >= WARNING_INTERVAL) {
+            this.lastWarning = now;
+            LOGGER.warn("The change queue is full. {} changes have been dropped so far", this.droppedChanges);
+        }
+    }
+
+    public static final class RingChangeIntakeBuilder {
+
+        private int capacity = 64 * 1024 * 1024;
+        private OverflowPolicy overflowPolicy = OverflowPolicy.DROP;
+        private long maxWait = 50L;
+        private File spillFile;
+
+        @NotNull public RingChangeIntakeBuilder withCapacity(final int capacity) {
+            Preconditions.checkState(capacity >= 1024 * 1024, "Capacity has to be at least 1 MB");
+            this.capacity = capacity;
+            return this;
+        }
+
+        @NotNull public RingChangeIntakeBuilder withOverflowPolicy(@NotNull final OverflowPolicy overflowPolicy) {
+            this.overflowPolicy = Preconditions.checkNotNull(overflowPolicy, "Overflow policy may not be null");
+            return this;
+        }
+
+        @NotNull public RingChangeIntakeBuilder withMaxWait(final long maxWait) {
+            Preconditions.checkState(maxWait >= 0, "Maximum wait time may not be negative");
+            this.maxWait = maxWait;
+            return this;
+        }
+
+        @NotNull public RingChangeIntakeBuilder spillingTo(@NotNull final File spillFile) {
+            this.spillFile = Preconditions.checkNotNull(spillFile, "Spill file may not be null");
+            return this;
+        }
+
+        @NotNull public RingChangeIntake build() throws IOException {
+            Preconditions.checkState(this.overflowPolicy != OverflowPolicy.SPILL || this.spillFile != null,
+                "Spilling requires a spill file");
+            return new RingChangeIntake(this.capacity, this.overflowPolicy, this.maxWait,
+                this.overflowPolicy == OverflowPolicy.DROP ? null : this.spillFile);
+        }
+
+    }
+
+}
@@ -21,32 +21,68 @@ import com.intellectualsites.irongolem.changes.Change;
 import org.bukkit.plugin.Plugin;
 import org.bukkit.scheduler.BukkitRunnable;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
 /**
- * A {@link QueuingChangeLogger} that runs on a fixed schedule
+ * A {@link QueuingChangeLogger} that flushes on a schedule. The
+ * flush interval and batch size are decided by a {@link FlushPolicy}.
+ * <p>
+ * If a transaction fails, it is rolled back and all of its changes are
+ * persisted again by a later flush. Changes of a transaction that failed as a
+ * whole are retried in transactions of half the size, until the change that
+ * makes it fail is on its own. A change that fails to persist on its own,
+ * {@value #MAX_ATTEMPTS} times, is dropped
  */
 public abstract class ScheduledQueuingChangeLogger extends QueuingChangeLogger {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ScheduledQueuingChangeLogger.class);
-    private final BukkitRunnable bukkitRunnable;
+    private static final int LARGE_FLUSH = 10000;
+    private static final int MAX_ATTEMPTS = 3;
 
-    private final int maxBatchSize;
+    private final Plugin plugin;
+    private final FlushPolicy flushPolicy;
     private final Object taskLock = new Object();
+    private final ChangeCoalescer coalescer;
+
+    // Guarded by the task lock
+    private final List<PolledChange> transaction = new ArrayList<>();
+    private final Deque<PolledChange> retry = new ArrayDeque<>();
+    private PolledChange failedChange;
+    private int persistedChanges;
+    private long polledChanges;
+    private long committedChanges;
+
+    private volatile BukkitRunnable bukkitRunnable;
+    private volatile double throughput;
+    private volatile boolean stopped;
 
     /**
      * Create a new logger
      *
      * @param plugin Plugin that will schedule the task
-     * @param interval Interval (in ticks)
-     * @param maxBatchSize The maximum amount of change
+     * @param flushPolicy Policy that decides the flush interval and batch size
+     * @param changeIntake Intake that changes are queued in
      */
-    public ScheduledQueuingChangeLogger(final Plugin plugin, final long interval, final int maxBatchSize) {
-        this.maxBatchSize = maxBatchSize;
+    public ScheduledQueuingChangeLogger(@NotNull final Plugin plugin, @NotNull final FlushPolicy flushPolicy,
+        @NotNull final ChangeIntake changeIntake) {
+        super(changeIntake);
+        this.plugin = plugin;
+        this.flushPolicy = flushPolicy;
+        if (flushPolicy.getCoalescingWindow() > 0) {
+            this.coalescer = new ChangeCoalescer(this::pollChange, flushPolicy.getCoalescingWindow());
+        } else {
+            this.coalescer = null;
+        }
         this.bukkitRunnable = new ChangeLoggerTask();
         // Schedule the task
-        this.bukkitRunnable.runTaskTimerAsynchronously(plugin, 0, interval);
+        this.bukkitRunnable.runTaskLaterAsynchronously(plugin, 0);
     }
 
     /**
@@ -71,6 +107,54 @@ public abstract class ScheduledQueuingChangeLogger extends QueuingChangeLogger {
      */
     protected abstract void finishBatch() throws Throwable;
 
+    /**
+     * Start a transaction. Every batch that is finished before the
+     * transaction is committed becomes durable at the same time. This
+     * may or may not do anything, depending on if the implementation
+     * supports transactions
+     *
+     * @throws Exception If the transaction cannot be started
+     */
+    protected void startTransaction() throws Exception {
+    }
+
+    /**
+     * Commit a started transaction. This is called once for every
+     * successful call to {@link #startTransaction()}, unless the
+     * transaction is {@link #rollbackTransaction() rolled back}. If
+     * the commit fails, a {@link #isTransactional() transactional}
+     * logger has to roll the transaction back
+     *
+     * @throws Throwable If anything goes wrong
+     */
+    protected void commitTransaction() throws Throwable {
+    }
+
+    /**
+     * Roll back a started transaction, after one of its batches has failed. Loggers
+     * that write every change as soon as it is {@link #persist(Change) persisted}
+     * cannot take them back, and commit the changes that were persisted instead
+     *
+     * @return True if the transaction was rolled back, false if the changes that
+     *         were persisted before the failure were committed
+     * @throws Throwable If anything goes wrong
+     */
+    protected boolean rollbackTransaction() throws Throwable {
+        this.commitTransaction();
+        return false;
+    }
+
+    /**
+     * Whether or not the changes of a transaction can be taken back until the transaction
+     * is committed. Loggers that write every change as soon as it is {@link #persist(Change)
+     * persisted} cannot, so their changes are never persisted again after a failed commit
+     *
+     * @return True if failed transactions are rolled back
+     */
+    protected boolean isTransactional() {
+        return false;
+    }
+
     /**
      * Get the maximum amount of changes that are
      * allowed to be batched together
@@ -78,11 +162,68 @@ public abstract class ScheduledQueuingChangeLogger extends QueuingChangeLogger {
      * @return Maximum batch count
      */
     public int getMaxBatchSize() {
-        return this.maxBatchSize;
+        return this.flushPolicy.getBatchSize();
     }
 
     /**
-     * Get the runnable
+     * Get the policy that decides the flush interval and batch size
+     *
+     * @return Flush policy
+     */
+    @NotNull public FlushPolicy getFlushPolicy() {
+        return this.flushPolicy;
+    }
+
+    /**
+     * Get the number of changes per second that were
+     * persisted during the latest flush
+     *
+     * @return Changes per second
+     */
+    public double getThroughput() {
+        return this.throughput;
+    }
+
+    /**
+     * Get the number of changes that have been merged into
+     * another change, before they were persisted
+     *
+     * @return Merged changes
+     */
+    public long getCoalescedChanges() {
+        return this.coalescer == null ? 0L : this.coalescer.getCoalesced();
+    }
+
+    /**
+     * Stop scheduling flushes, and persist the changes that are still queued or held.
+     * This has to be called before the logger releases its storage, and
+     * does nothing once the logger has been drained
+     */
+    protected final void drain() {
+        synchronized (this.taskLock) {
+            if (this.stopped) {
+                return;
+            }
+            this.stopped = true;
+            try {
+                this.bukkitRunnable.cancel();
+            } catch (final IllegalStateException ignored) {
+                // The next flush is being scheduled, and will see that the logger has stopped
+            }
+            if (this.coalescer != null) {
+                // Held changes would otherwise only survive in the journal, if there is one
+                this.coalescer.release();
+            }
+            new ChangeLoggerTask().flush();
+            final int remaining = this.getQueueSize() + this.retry.size();
+            if (remaining > 0) {
+                LOGGER.warn("Failed to persist {} queued changes before the logger stopped", remaining);
+            }
+        }
+    }
+
+    /**
+     * Get the runnable of the next (or currently running) flush
      *
      * @return Bukkit runnable
      */
@@ -93,47 +234,297 @@ public abstract class ScheduledQueuingChangeLogger extends QueuingChangeLogger {
     private final class ChangeLoggerTask extends BukkitRunnable {
 
         @Override public void run() {
+            try {
+                synchronized (taskLock) {
+                    // The final flush is done by the logger that is stopping
+                    if (!stopped) {
+                        this.flush();
+                    }
+                }
+            } finally {
+                // The interval is re-evaluated after every flush, so the
+                // task reschedules itself rather than running on a timer
+                if (!stopped && plugin.isEnabled()) {
+                    final BukkitRunnable next = new ChangeLoggerTask();
+                    bukkitRunnable = next;
+                    next.runTaskLaterAsynchronously(plugin, flushPolicy.getInterval());
+                }
+            }
+        }
+
+        private void flush() {
             synchronized (taskLock) {
-                boolean batchStarted = false;
+                final int backlog = getQueueSize() + retry.size();
+                final long start = System.nanoTime();
+                long latency = 0L;
                 int loggedChanges = 0;
-                Change change;
-                while ((change = pollChange()) != null) {
-                    // Start the batch
-                    if (!batchStarted) {
-                        try {
-                            startBatch();
-                        } catch (final Exception e) {
-                            LOGGER.error("Failed to create batch. Aborting.", e);
-                            return;
-                        }
-                        batchStarted = true;
-                    }
-                    // Persist the change
+                boolean failed = false;
+                PolledChange change = nextChange();
+                while (change != null) {
+                    // All batches within the durability window share one commit
                     try {
-                        persist(change);
+                        startTransaction();
                     } catch (final Exception e) {
-                        LOGGER.error("Failed to persist change {}", change);
-                        LOGGER.error("Cause: ", e);
+                        LOGGER.error("Failed to start transaction. Retrying later.", e);
+                        retry.addFirst(change);
+                        failed = true;
+                        break;
                     }
-                    // Finish the batch
-                    if (++loggedChanges >= getMaxBatchSize()) {
+                    final long oldest = change.getChange().getTimestamp();
+                    final long deadline = System.currentTimeMillis() + flushPolicy.getDurabilityWindow();
+                    try {
                         try {
-                            finishBatch();
+                            while (change != null) {
+                                final boolean isolated = drainBatch(change);
+                                change = nextChange();
+                                // Retried changes get a transaction of their own, so that a
+                                // failure is not blamed on the changes that come after them
+                                if (isolated || System.currentTimeMillis() >= deadline) {
+                                    break;
+                                }
+                            }
                         } catch (final Throwable throwable) {
-                            LOGGER.error("Failed to save batch", throwable);
+                            LOGGER.error("Failed to persist {} changes. Retrying later.", transaction.size(), throwable);
+                            // Every change that was polled is part of the transaction
+                            abortTransaction(change);
+                            failed = true;
+                            break;
                         }
-                        batchStarted = false;
+                        try {
+                            commitTransaction();
+                        } catch (final Throwable throwable) {
+                            if (isTransactional()) {
+                                LOGGER.error("Failed to commit {} changes. Retrying later.", transaction.size(), throwable);
+                                failTransaction(0);
+                                retryTransaction(0, change);
+                            } else {
+                                // The changes have been written already, and would be written twice if they were
+                                // retried. The intake keeps them until a later commit succeeds
+                                LOGGER.error("Failed to commit {} changes", transaction.size(), throwable);
+                                if (change != null) {
+                                    retry.addFirst(change);
+                                }
+                            }
+                            failed = true;
+                            break;
+                        }
+                        loggedChanges += transaction.size();
+                        commitIntake(change);
+                    } finally {
+                        transaction.clear();
+                        persistedChanges = 0;
+                        failedChange = null;
                     }
+                    // Merged changes are held back on purpose, which
+                    // should not make the logger think it is falling behind
+                    latency = Math.max(latency, System.currentTimeMillis() - oldest - flushPolicy.getCoalescingWindow());
                 }
-                // This means there's an unfinished batch
-                if (batchStarted) {
-                    try {
-                        finishBatch();
-                    } catch (final Throwable throwable) {
-                        LOGGER.error("Failed to save batch", throwable);
+                final long elapsed = Math.max(1L, System.nanoTime() - start);
+                if (loggedChanges > 0) {
+                    throughput = loggedChanges * 1.0E9D / elapsed;
+                }
+                // Failed flushes back off to the longest interval
+                flushPolicy.update(backlog, failed ? 0 : loggedChanges, elapsed / 1000000L, latency);
+                if (loggedChanges >= LARGE_FLUSH) {
+                    LOGGER.info("Persisted {} changes in {}ms ({} changes/s, batch size {}, latency {}ms)",
+                        loggedChanges, elapsed / 1000000L, (long) throughput, getMaxBatchSize(), latency);
+                }
+            }
+        }
+
+        /**
+         * Get the next change that should be persisted. Changes
+         * of failed transactions are persisted before anything else
+         *
+         * @return Change, or null if there is nothing to persist
+         */
+        @Nullable private PolledChange nextChange() {
+            if (!retry.isEmpty()) {
+                return retry.poll();
+            }
+            if (coalescer != null) {
+                final Change change = coalescer.next();
+                return change == null ? null : new PolledChange(change, coalescer.getReturned());
+            }
+            final Change change = pollChange();
+            return change == null ? null : new PolledChange(change, ++polledChanges);
+        }
+
+        /**
+         * Roll back the current transaction after a failed batch
+         *
+         * @param next Change that would have been persisted next, or null
+         */
+        private void abortTransaction(@Nullable final PolledChange next) {
+            boolean rolledBack = true;
+            try {
+                rolledBack = rollbackTransaction();
+            } catch (final Throwable throwable) {
+                LOGGER.error("Failed to roll back transaction", throwable);
+            }
+            // The changes that were persisted before the failure have been committed, unless they were rolled back
+            final int committed = rolledBack ? 0 : persistedChanges;
+            if (failedChange == null) {
+                // Any of the changes may have made the batch fail
+                failTransaction(committed);
+            }
+            retryTransaction(committed, next);
+            if (!rolledBack) {
+                commitIntake(null);
+            }
+        }
+
+        /**
+         * Count a failure of the current transaction against every change that was not committed
+         *
+         * @param committed Number of changes at the start of the transaction that were committed
+         */
+        private void failTransaction(final int committed) {
+            final int failedChanges = transaction.size() - committed;
+            for (int i = committed; i < transaction.size(); i++) {
+                transaction.get(i).fail(failedChanges);
+            }
+        }
+
+        /**
+         * Queue the changes of the current transaction, that were not committed,
+         * to be persisted again before any other change. Changes that have failed
+         * on their own too often are dropped instead
+         *
+         * @param committed Number of changes at the start of the transaction that were committed
+         * @param next      Change that would have been persisted next, or null
+         */
+        private void retryTransaction(final int committed, @Nullable final PolledChange next) {
+            if (next != null) {
+                retry.addFirst(next);
+            }
+            for (int i = transaction.size() - 1; i >= committed; i--) {
+                final PolledChange change = transaction.get(i);
+                if (change.getFailures() >= MAX_ATTEMPTS) {
+                    LOGGER.error("Failed to persist change {} {} times. Dropping it", change.getChange(), MAX_ATTEMPTS);
+                    continue;
+                }
+                retry.addFirst(change);
+            }
+        }
+
+        /**
+         * Tell the intake how many of the polled changes have been committed. Changes that
+         * are held by the coalescer are not committed, and neither are the changes that
+         * are waiting to be persisted again, or the change that starts the next transaction
+         *
+         * @param next Change that starts the next transaction, or null
+         */
+        private void commitIntake(@Nullable final PolledChange next) {
+            long committed = coalescer == null ? polledChanges : coalescer.getPolled();
+            if (coalescer != null) {
+                final long oldestHeld = coalescer.getOldestHeld();
+                if (oldestHeld != -1L) {
+                    committed = Math.min(committed, oldestHeld - 1);
+                }
+            }
+            if (next != null) {
+                committed = Math.min(committed, next.getSequence() - 1);
+            }
+            for (final PolledChange change : retry) {
+                committed = Math.min(committed, change.getSequence() - 1);
+            }
+            if (committed > committedChanges) {
+                getChangeIntake().commit((int) (committed - committedChanges));
+                committedChanges = committed;
+            }
+        }
+
+        /**
+         * Persist a batch of changes, starting with the given change. Every
+         * change in the batch is added to the current transaction. A change
+         * that is retried after a failed transaction limits the size of the batch
+         *
+         * @param first First change in the batch
+         * @return True if the batch was limited, and the transaction should be committed
+         * @throws Throwable If the batch failed
+         */
+        private boolean drainBatch(@NotNull final PolledChange first) throws Throwable {
+            final int batchSize = Math.min(getMaxBatchSize(), first.getLimit());
+            PolledChange change = first;
+            transaction.add(change);
+            startBatch();
+            int batchedChanges = 0;
+            while (true) {
+                try {
+                    persist(change.getChange());
+                } catch (final Exception e) {
+                    // The change failed on its own, so the rest of the transaction is not to blame
+                    if (change.fail(1) < MAX_ATTEMPTS) {
+                        failedChange = change;
+                        throw e;
                     }
+                    // Keeps failing on its own, and would otherwise block every later change
+                    LOGGER.error("Failed to persist change {} {} times. Dropping it", change.getChange(), MAX_ATTEMPTS, e);
+                }
+                persistedChanges++;
+                if (++batchedChanges >= batchSize || (change = nextChange()) == null) {
+                    break;
                 }
+                transaction.add(change);
+            }
+            finishBatch();
+            return batchSize < getMaxBatchSize();
+        }
+
+    }
+
+    /**
+     * A change that has been polled from the intake, along
+     * with its number, see {@link ChangeLoggerTask#commitIntake(PolledChange)}
+     */
+    private static final class PolledChange {
+
+        private final Change change;
+        private final long sequence;
+        private int failures;
+        private int limit = Integer.MAX_VALUE;
+
+        private PolledChange(@NotNull final Change change, final long sequence) {
+            this.change = change;
+            this.sequence = sequence;
+        }
+
+        @NotNull private Change getChange() {
+            return this.change;
+        }
+
+        private long getSequence() {
+            return this.sequence;
+        }
+
+        /**
+         * Get the largest batch that the change may be persisted in
+         *
+         * @return Batch size
+         */
+        private int getLimit() {
+            return this.limit;
+        }
+
+        private int getFailures() {
+            return this.failures;
+        }
+
+        /**
+         * Count a failed attempt to persist the change. Only failures on its own
+         * count towards the attempts, and failures in a larger transaction halve
+         * the size of the transactions that the change is retried in
+         *
+         * @param changes Number of changes in the transaction that failed
+         * @return Number of failures on its own
+         */
+        private int fail(final int changes) {
+            if (changes <= 1) {
+                this.failures++;
             }
+            this.limit = Math.max(1, changes / 2);
+            return this.failures;
         }
 
     }
@@ -0,0 +1,77 @@
+//
+// IronGolem - A Minecraft block logging plugin
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.intellectualsites.irongolem.storage;
+
+import com.google.common.base.Preconditions;
+import org.jetbrains.annotations.NotNull;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * {@link EventInserter} that batches single row inserts. This relies on
+ * the driver to rewrite the batch into multi-row inserts, which the MySQL
+ * and MariaDB drivers do when {@code rewriteBatchedStatements} is enabled
+ */
+final class BatchInserter implements EventInserter {
+
+    private final PreparedStatement statement;
+
+    private BatchInserter(@NotNull final PreparedStatement statement) {
+        this.statement = statement;
+    }
+
+    /**
+     * Prepare an inserter for an events table
+     *
+     * @param connection Connection that the rows will be inserted through
+     * @param dialect    Dialect of the database
+     * @param table      Events table, optionally qualified by its schema
+     * @return Prepared inserter
+     * @throws SQLException If the statement cannot be prepared
+     */
+    @NotNull static BatchInserter prepare(@NotNull final Connection connection, @NotNull final SQLDialect dialect,
+        @NotNull final String table) throws SQLException {
+        Preconditions.checkNotNull(connection, "Connection may not be null");
+        Preconditions.checkNotNull(dialect, "Dialect may not be null");
+        Preconditions.checkNotNull(table, "Table may not be null");
+        return new BatchInserter(connection.prepareStatement(
+            dialect.translate("INSERT INTO " + table + COLUMNS + " VALUES" + ROW)));
+    }
+
+    @Override public void insert(@NotNull final List<Object[]> rows) throws SQLException {
+        if (rows.isEmpty()) {
+            return;
+        }
+        for (final Object[] row : rows) {
+            int parameter = 1;
+            for (final Object value : row) {
+                this.statement.setObject(parameter++, value);
+            }
+            this.statement.addBatch();
+        }
+        this.statement.executeBatch();
+    }
+
+    @Override public void close() throws SQLException {
+        this.statement.close();
+    }
+
+}
@@ -0,0 +1,125 @@
+//
+// IronGolem - A Minecraft block logging plugin
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.intellectualsites.irongolem.storage;
+
+import com.google.common.base.Preconditions;
+import org.jetbrains.annotations.NotNull;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Background {@link Migration} that rewrites existing events in
+ * small batches of event IDs, newest first. Every statement is
+ * executed once per batch, with all of its parameters bound to
+ * the bounds of the batch, in (exclusive lower, inclusive upper) pairs.
+ * Statements use backtick quoted identifiers, which are translated
+ * to the quoting style of the {@link SQLDialect dialect}. The migration
+ * remembers the batch that it has reached, so an instance may only
+ * be used by a single {@link MigrationRunner}
+ */
+public final class BatchedMigration implements Migration {
+
+    private final int version;
+    private final String description;
+    private final int batchSize;
+    private final SQLDialect dialect;
+    private final String[] statements;
+
+    private long cursor = -1;
+
+    private BatchedMigration(final int version, @NotNull final String description,
+        final int batchSize, @NotNull final SQLDialect dialect, @NotNull final String[] statements) {
+        Preconditions.checkState(version > 0, "Version has to be positive");
+        Preconditions.checkState(batchSize > 0, "Batch size has to be positive");
+        this.version = version;
+        this.description = Preconditions.checkNotNull(description, "Description may not be null");
+        this.batchSize = batchSize;
+        this.dialect = Preconditions.checkNotNull(dialect, "Dialect may not be null");
+        this.statements = Preconditions.checkNotNull(statements, "Statements may not be null");
+    }
+
+    /**
+     * Create a new batched SQLite migration
+     *
+     * @param version     Schema version
+     * @param description Migration description
+     * @param batchSize   Number of event IDs per batch
+     * @param statements  Statements to execute for every batch
+     * @return Created migration
+     */
+    @NotNull public static BatchedMigration of(final int version, @NotNull final String description,
+        final int batchSize, @NotNull final String ... statements) {
+        return of(SQLDialect.SQLITE, version, description, batchSize, statements);
+    }
+
+    /**
+     * Create a new batched migration
+     *
+     * @param dialect     Dialect of the database
+     * @param version     Schema version
+     * @param description Migration description
+     * @param batchSize   Number of event IDs per batch
+     * @param statements  Statements to execute for every batch
+     * @return Created migration
+     */
+    @NotNull public static BatchedMigration of(@NotNull final SQLDialect dialect, final int version,
+        @NotNull final String description, final int batchSize, @NotNull final String ... statements) {
+        return new BatchedMigration(version, description, batchSize, dialect, statements);
+    }
+
+    @Override public int getVersion() {
+        return this.version;
+    }
+
+    @Override @NotNull public String getDescription() {
+        return this.description;
+    }
+
+    @Override public boolean isBackground() {
+        return true;
+    }
+
+    @Override public boolean migrate(@NotNull final Connection connection) throws SQLException {
+        if (this.cursor == -1) {
+            try (final PreparedStatement statement = connection.prepareStatement(
+                this.dialect.translate("SELECT MAX(`event_id`) FROM `events`"));
+                 final ResultSet resultSet = statement.executeQuery()) {
+                this.cursor = resultSet.next() ? resultSet.getLong(1) : 0;
+            }
+        }
+        if (this.cursor <= 0) {
+            return true;
+        }
+        final long lower = Math.max(0, this.cursor - this.batchSize);
+        for (final String sql : this.statements) {
+            try (final PreparedStatement statement = connection.prepareStatement(this.dialect.translate(sql))) {
+                final int parameters = statement.getParameterMetaData().getParameterCount();
+                for (int index = 1; index <= parameters; index++) {
+                    statement.setLong(index, index % 2 == 1 ? lower : this.cursor);
+                }
+                statement.executeUpdate();
+            }
+        }
+        this.cursor = lower;
+        return this.cursor <= 0;
+    }
+
+}
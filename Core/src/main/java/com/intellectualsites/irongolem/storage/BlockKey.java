@@ -0,0 +1,172 @@
+//
+// IronGolem - A Minecraft block logging plugin
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package com.intellectualsites.irongolem.storage;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Morton (Z-order) keys of block columns. A key interleaves the bits of the x and
+ * z coordinates, so columns that are close to each other get keys that are close
+ * to each other. Every aligned square of 2^n by 2^n columns covers one contiguous
+ * range of keys, which includes every chunk and every region file of 512 by 512 blocks
+ */
+final class BlockKey {
+
+    private static final int BITS = 26;
+    // Multiple of the region size, so that regions stay aligned. Coordinates within
+    // the world border are always positive after the offset has been added
+    private static final int OFFSET = 1 << (BITS - 1);
+    private static final int MAX_COORDINATE = (1 << BITS) - 1;
+
+    private BlockKey() {
+    }
+
+    /**
+     * Get the key of a block column
+     *
+     * @param x Block x coordinate
+     * @param z Block z coordinate
+     * @return Block key
+     */
+    static long of(final int x, final int z) {
+        return interleave(toUnsigned(x), toUnsigned(z));
+    }
+
+    /**
+     * Get ranges of keys that together cover every column in an area. The ranges
+     * are sorted and disjoint, and may cover more columns than the area when more
+     * ranges would be needed to describe it exactly
+     *
+     * @param minX      Minimum block x coordinate
+     * @param minZ      Minimum block z coordinate
+     * @param maxX      Maximum block x coordinate
+     * @param maxZ      Maximum block z coordinate
+     * @param maxRanges Maximum number of ranges
+     * @return Inclusive (lower, upper) key pairs
+     */
+    @NotNull static List<long[]> getRanges(final int minX, final int minZ, final int maxX, final int maxZ,
+        final int maxRanges) {
+        final int lowerX = toUnsigned(minX);
+        final int lowerZ = toUnsigned(minZ);
+        final int upperX = toUnsigned(maxX);
+        final int upperZ = toUnsigned(maxZ);
+        // Start at the smallest aligned square that contains the entire area
+        int level = 0;
+        while ((lowerX >> level) != (upperX >> level) || (lowerZ >> level) != (upperZ >> level)) {
+            level++;
+        }
+        // Squares are kept in key order as (x, z, level) triples
+        List<int[]> squares = new ArrayList<>();
+        squares.add(new int[] {lowerX >> level, lowerZ >> level, level});
+        List<long[]> ranges = toRanges(squares);
+        // Partially covered squares are split into quarters, until
+        // the ranges would exceed the limit or the area is exact
+        for (; level > 0; level--) {
+            final List<int[]> split = new ArrayList<>();
+            boolean partial = false;
+            for (final int[] square : squares) {
+                if (contains(square, lowerX, lowerZ, upperX, upperZ)) {
+                    split.add(square);
+                    continue;
+                }
+                partial = true;
+                for (int quarter = 0; quarter < 4; quarter++) {
+                    final int[] child = new int[] {(square[0] << 1) | (quarter & 1), (square[1] << 1) | (quarter >> 1),
+                        level - 1};
+                    if (intersects(child, lowerX, lowerZ, upperX, upperZ)) {
+                        split.add(child);
+                    }
+                }
+            }
+            if (!partial) {
+                break;
+            }
+            final List<long[]> splitRanges = toRanges(split);
+            if (splitRanges.size() > maxRanges) {
+                break;
+            }
+            squares = split;
+            ranges = splitRanges;
+        }
+        return ranges;
+    }
+
+    /**
+     * Get the key ranges of squares, merging squares that are adjacent in key order
+     *
+     * @param squares Squares, in key order
+     * @return Inclusive (lower, upper) key pairs
+     */
+    @NotNull private static List<long[]> toRanges(@NotNull final List<int[]> squares) {
+        final List<long[]> ranges = new ArrayList<>();
+        for (final int[] square : squares) {
+            final long lower = interleave(square[0] << square[2], square[1] << square[2]);
+            final long upper = lower + (1L << (2 * square[2])) - 1L;
+            final long[] last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+            if (last != null && last[1] + 1L == lower) {
+                last[1] = upper;
+            } else {
+                ranges.add(new long[] {lower, upper});
+            }
+        }
+        return ranges;
+    }
+
+    private static boolean contains(@NotNull final int[] square, final int lowerX, final int lowerZ,
+        final int upperX, final int upperZ) {
+        final int size = 1 << square[2];
+        return square[0] * size >= lowerX && (square[0] + 1) * size - 1 <= upperX
+            && square[1] * size >= lowerZ && (square[1] + 1) * size - 1 <= upperZ;
+    }
+
+    private static boolean intersects(@NotNull final int[] square, final int lowerX, final int lowerZ,
+        final int upperX, final int upperZ) {
+        final int size = 1 << square[2];
+        return square[0] * size <= upperX && (square[0] + 1) * size - 1 >= lowerX
+            && square[1] * size <= upperZ && (square[1] + 1) * size - 1 >= lowerZ;
+    }
+
+    /**
+     * Offset a coordinate into the unsigned key space. Coordinates outside
+     * of it are clamped, which keeps keys ordered, but no longer unique
+     *
+     * @param coordinate Block coordinate
+     * @return Unsigned coordinate
+     */
+    private static int toUnsigned(final int coordinate) {
+        return (int) Math.max(0L, Math.min(MAX_COORDINATE, (long) coordinate + OFFSET));
+    }
+
+    private static long interleave(final int x, final int z) {
+        return spread(x) | (spread(z) << 1);
+    }
+
+    private static long spread(final int value) {
+        long bits = value & 0xFFFFFFFFL;
+        bits = (bits | (bits << 16)) & 0x0000FFFF0000FFFFL;
+        bits = (bits | (bits << 8)) & 0x00FF00FF00FF00FFL;
+        bits = (bits | (bits << 4)) & 0x0F0F0F0F0F0F0F0FL;
+        bits = (bits | (bits << 2)) & 0x3333333333333333L;
+        return (bits | (bits << 1)) & 0x5555555555555555L;
+    }
+
+}
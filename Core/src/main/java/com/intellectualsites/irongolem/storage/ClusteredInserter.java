@@ -0,0 +1,130 @@
+//
+// IronGolem - A Minecraft block logging plugin
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package com.intellectualsites.irongolem.storage;
+
+import com.google.common.base.Preconditions;
+import org.jetbrains.annotations.NotNull;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * {@link EventInserter} for events tables that are clustered by {@link BlockKey block key}.
+ * Clustered tables have no row ID to generate event IDs from, so IDs continue from the
+ * highest ID in the table. Unlike AUTOINCREMENT, this hands out IDs again if the newest
+ * events are ever purged. Block entity states are written to a separate table, keyed
+ * by event ID, so that they do not take up space between the clustered rows
+ */
+final class ClusteredInserter implements EventInserter {
+
+    // Positions of the block entity states in a row
+    private static final int OLD_STATE = 11;
+    private static final int NEW_STATE = 12;
+
+    private final PreparedStatement lastIdStatement;
+    private final PreparedStatement rowStatement;
+    private final PreparedStatement stateStatement;
+
+    private ClusteredInserter(@NotNull final PreparedStatement lastIdStatement,
+        @NotNull final PreparedStatement rowStatement, @NotNull final PreparedStatement stateStatement) {
+        this.lastIdStatement = lastIdStatement;
+        this.rowStatement = rowStatement;
+        this.stateStatement = stateStatement;
+    }
+
+    /**
+     * Prepare an inserter for a clustered events table
+     *
+     * @param connection Connection that the rows will be inserted through
+     * @param dialect    Dialect of the database
+     * @param table      Events table, optionally qualified by its schema
+     * @param states     Table that the block entity states are written to
+     * @return Prepared inserter
+     * @throws SQLException If the statements cannot be prepared
+     */
+    @NotNull static ClusteredInserter prepare(@NotNull final Connection connection, @NotNull final SQLDialect dialect,
+        @NotNull final String table, @NotNull final String states) throws SQLException {
+        Preconditions.checkNotNull(connection, "Connection may not be null");
+        Preconditions.checkNotNull(dialect, "Dialect may not be null");
+        Preconditions.checkNotNull(table, "Table may not be null");
+        Preconditions.checkNotNull(states, "State table may not be null");
+        final PreparedStatement lastIdStatement = connection.prepareStatement(
+            dialect.translate("SELECT MAX(`event_id`) FROM " + table));
+        PreparedStatement rowStatement = null;
+        try {
+            rowStatement = connection.prepareStatement(dialect.translate("INSERT INTO "
+                + table + "(`event_id`, `block_key`, " + COLUMNS.substring(1) + " VALUES(?, ?, " + ROW.substring(1)));
+            return new ClusteredInserter(lastIdStatement, rowStatement, connection.prepareStatement(dialect.translate(
+                "INSERT INTO " + states + "(`event_id`, `old_state`, `new_state`) VALUES(?, ?, ?)")));
+        } catch (final SQLException e) {
+            lastIdStatement.close();
+            if (rowStatement != null) {
+                rowStatement.close();
+            }
+            throw e;
+        }
+    }
+
+    @Override public void insert(@NotNull final List<Object[]> rows) throws SQLException {
+        if (rows.isEmpty()) {
+            return;
+        }
+        long eventId;
+        try (final ResultSet resultSet = this.lastIdStatement.executeQuery()) {
+            eventId = resultSet.next() ? resultSet.getLong(1) : 0L;
+        }
+        boolean states = false;
+        for (final Object[] row : rows) {
+            this.rowStatement.setLong(1, ++eventId);
+            this.rowStatement.setLong(2, BlockKey.of((Integer) row[1], (Integer) row[3]));
+            int parameter = 3;
+            for (int column = 0; column < row.length; column++) {
+                this.rowStatement.setObject(parameter++, column == OLD_STATE || column == NEW_STATE ? null : row[column]);
+            }
+            this.rowStatement.addBatch();
+            if (row[OLD_STATE] != null || row[NEW_STATE] != null) {
+                this.stateStatement.setLong(1, eventId);
+                this.stateStatement.setObject(2, row[OLD_STATE]);
+                this.stateStatement.setObject(3, row[NEW_STATE]);
+                this.stateStatement.addBatch();
+                states = true;
+            }
+        }
+        this.rowStatement.executeBatch();
+        if (states) {
+            this.stateStatement.executeBatch();
+        }
+    }
+
+    @Override public void close() throws SQLException {
+        try {
+            this.lastIdStatement.close();
+        } finally {
+            try {
+                this.rowStatement.close();
+            } finally {
+                this.stateStatement.close();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,129 @@
+//
+// IronGolem - A Minecraft block logging plugin
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package com.intellectualsites.irongolem.storage;
+
+import com.google.common.base.Preconditions;
+import org.jetbrains.annotations.NotNull;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Background {@link Migration} that rebuilds the SQLite events table as a table that
+ * is clustered by {@link BlockKey block key}. Existing events are copied in small
+ * batches of event IDs, oldest first, while the logger keeps writing to the old table.
+ * Once the copy has caught up, the old table is dropped and replaced within the
+ * same step, so no event can be written in between. The migration remembers the
+ * last copied event, so an instance may only be used by a single {@link MigrationRunner}
+ */
+public final class ClusteringMigration implements Migration {
+
+    private static final String COLUMNS = "`event_id`, `world`, `x`, `y`, `z`, `timestamp`, `source`, `type`, `from`, "
+        + "`to`, `old_state`, `new_state`, `reason`, `from_id`, `to_id`, `world_id`, `source_id`";
+    private static final int COLUMN_COUNT = 17;
+
+    private final int version;
+    private final String description;
+    private final String table;
+    private final int batchSize;
+
+    private long cursor = -1;
+
+    private ClusteringMigration(final int version, @NotNull final String description,
+        @NotNull final String table, final int batchSize) {
+        Preconditions.checkState(version > 0, "Version has to be positive");
+        Preconditions.checkState(batchSize > 0, "Batch size has to be positive");
+        this.version = version;
+        this.description = Preconditions.checkNotNull(description, "Description may not be null");
+        this.table = Preconditions.checkNotNull(table, "Table may not be null");
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Create a new clustering migration
+     *
+     * @param version     Schema version
+     * @param description Migration description
+     * @param table       Unquoted name of the clustered table that replaces the events table
+     * @param batchSize   Number of events per batch
+     * @return Created migration
+     */
+    @NotNull public static ClusteringMigration of(final int version, @NotNull final String description,
+        @NotNull final String table, final int batchSize) {
+        return new ClusteringMigration(version, description, table, batchSize);
+    }
+
+    @Override public int getVersion() {
+        return this.version;
+    }
+
+    @Override @NotNull public String getDescription() {
+        return this.description;
+    }
+
+    @Override public boolean isBackground() {
+        return true;
+    }
+
+    @Override public boolean migrate(@NotNull final Connection connection) throws SQLException {
+        if (this.cursor == -1) {
+            // Batches are committed as they are copied, so an interrupted migration resumes where it stopped
+            try (final PreparedStatement statement = connection.prepareStatement(
+                "SELECT MAX(`event_id`) FROM `" + this.table + "`");
+                 final ResultSet resultSet = statement.executeQuery()) {
+                this.cursor = resultSet.next() ? resultSet.getLong(1) : 0L;
+            }
+        }
+        int copied = 0;
+        try (final PreparedStatement select = connection.prepareStatement("SELECT " + COLUMNS
+            + " FROM `events` WHERE `event_id` > ? ORDER BY `event_id` LIMIT ?");
+             final PreparedStatement insert = connection.prepareStatement("INSERT INTO `" + this.table + "`(" + COLUMNS
+                 + ", `block_key`) VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)")) {
+            select.setLong(1, this.cursor);
+            select.setInt(2, this.batchSize);
+            try (final ResultSet resultSet = select.executeQuery()) {
+                while (resultSet.next()) {
+                    for (int column = 1; column <= COLUMN_COUNT; column++) {
+                        insert.setObject(column, resultSet.getObject(column));
+                    }
+                    insert.setLong(COLUMN_COUNT + 1, BlockKey.of(resultSet.getInt("x"), resultSet.getInt("z")));
+                    insert.addBatch();
+                    this.cursor = resultSet.getLong("event_id");
+                    copied++;
+                }
+            }
+            if (copied > 0) {
+                insert.executeBatch();
+            }
+        }
+        if (copied == this.batchSize) {
+            return false;
+        }
+        // The write lock is held for the entire step, so the copy is complete
+        try (final Statement statement = connection.createStatement()) {
+            statement.executeUpdate("DROP TABLE `events`");
+            statement.executeUpdate("ALTER TABLE `" + this.table + "` RENAME TO `events`");
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,127 @@
+//
+// IronGolem - A Minecraft block logging plugin
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.intellectualsites.irongolem.storage;
+
+import com.google.common.base.Preconditions;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A fixed size pool of {@link Connection connections}
+ */
+public class ConnectionPool implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConnectionPool.class);
+
+    private final Collection<Connection> connections;
+    private final BlockingQueue<Connection> available;
+    private final long timeout;
+
+    private volatile boolean closed = false;
+
+    /**
+     * Create a new connection pool
+     *
+     * @param factory Factory that opens the pooled connections
+     * @param size    Number of connections
+     * @param timeout Time (in milliseconds) to wait for a connection before giving up
+     * @throws SQLException If any of the connections cannot be opened
+     */
+    public ConnectionPool(@NotNull final ConnectionFactory factory, final int size, final long timeout)
+        throws SQLException {
+        Preconditions.checkNotNull(factory, "Factory may not be null");
+        Preconditions.checkState(size > 0, "Pool size has to be positive");
+        this.connections = new ArrayList<>(size);
+        this.available = new ArrayBlockingQueue<>(size);
+        this.timeout = timeout;
+        for (int i = 0; i < size; i++) {
+            final Connection connection = factory.openConnection();
+            this.connections.add(connection);
+            this.available.add(connection);
+        }
+    }
+
+    /**
+     * Borrow a connection from the pool. The connection has to be
+     * returned using {@link #release(Connection)} when it is no longer used
+     *
+     * @return Borrowed connection
+     * @throws SQLException If the pool is closed, or no connection became available in time
+     */
+    @NotNull public Connection borrow() throws SQLException {
+        if (this.closed) {
+            throw new SQLException("The connection pool is closed");
+        }
+        final Connection connection;
+        try {
+            connection = this.available.poll(this.timeout, TimeUnit.MILLISECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection", e);
+        }
+        if (connection == null) {
+            throw new SQLException(String.format("No connection became available within %dms", this.timeout));
+        }
+        return connection;
+    }
+
+    /**
+     * Return a borrowed connection to the pool
+     *
+     * @param connection Connection to return
+     */
+    public void release(@NotNull final Connection connection) {
+        this.available.offer(connection);
+    }
+
+    @Override public void close() {
+        this.closed = true;
+        for (final Connection connection : this.connections) {
+            try {
+                connection.close();
+            } catch (final SQLException e) {
+                LOGGER.error("Failed to close pooled connection", e);
+            }
+        }
+    }
+
+    /**
+     * Factory that opens new connections
+     */
+    @FunctionalInterface public interface ConnectionFactory {
+
+        /**
+         * Open a new connection
+         *
+         * @return Opened connection
+         * @throws SQLException If the connection cannot be opened
+         */
+        @NotNull Connection openConnection() throws SQLException;
+
+    }
+
+}
@@ -0,0 +1,123 @@
+//
+// IronGolem - A Minecraft block logging plugin
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.intellectualsites.irongolem.storage;
+
+import com.google.common.base.Preconditions;
+import org.jetbrains.annotations.NotNull;
+import org.postgresql.PGConnection;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * {@link EventInserter} that streams rows to PostgreSQL using
+ * {@code COPY ... FROM STDIN}, in the text format
+ */
+final class CopyInserter implements EventInserter {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Connection connection;
+    private final String statement;
+    private final StringBuilder buffer = new StringBuilder();
+
+    /**
+     * Create a new inserter
+     *
+     * @param connection Connection that the rows will be inserted through
+     * @param table      Events table, optionally qualified by its schema
+     */
+    CopyInserter(@NotNull final Connection connection, @NotNull final String table) {
+        this.connection = Preconditions.checkNotNull(connection, "Connection may not be null");
+        this.statement = SQLDialect.POSTGRESQL.translate("COPY " + Preconditions.checkNotNull(table,
+            "Table may not be null") + COLUMNS + " FROM STDIN");
+    }
+
+    @Override public void insert(@NotNull final List<Object[]> rows) throws SQLException {
+        if (rows.isEmpty()) {
+            return;
+        }
+        this.buffer.setLength(0);
+        for (final Object[] row : rows) {
+            // The world and source name columns are always empty
+            this.buffer.append('\t');
+            for (int i = 0; i < row.length; i++) {
+                if (i == 5) {
+                    this.buffer.append('\t');
+                }
+                this.append(row[i]);
+                this.buffer.append(i == row.length - 1 ? '\n' : '\t');
+            }
+        }
+        try {
+            this.connection.unwrap(PGConnection.class).getCopyAPI()
+                .copyIn(this.statement, new StringReader(this.buffer.toString()));
+        } catch (final IOException e) {
+            throw new SQLException("Failed to copy rows", e);
+        } finally {
+            this.buffer.setLength(0);
+        }
+    }
+
+    @Override public void close() {
+    }
+
+    /**
+     * Append a value in the text format
+     *
+     * @param value Value
+     */
+    private void append(final Object value) {
+        if (value == null) {
+            this.buffer.append("\\N");
+        } else if (value instanceof byte[]) {
+            // Hex encoded bytea, with the backslash escaped for the text format
+            this.buffer.append("\\\\x");
+            for (final byte b : (byte[]) value) {
+                this.buffer.append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+            }
+        } else if (value instanceof String) {
+            final String string = (String) value;
+            for (int i = 0; i < string.length(); i++) {
+                final char character = string.charAt(i);
+                switch (character) {
+                    case '\\':
+                        this.buffer.append("\\\\");
+                        break;
+                    case '\t':
+                        this.buffer.append("\\t");
+                        break;
+                    case '\n':
+                        this.buffer.append("\\n");
+                        break;
+                    case '\r':
+                        this.buffer.append("\\r");
+                        break;
+                    default:
+                        this.buffer.append(character);
+                }
+            }
+        } else {
+            this.buffer.append(value);
+        }
+    }
+
+}
@@ -0,0 +1,49 @@
+//
+// IronGolem - A Minecraft block logging plugin
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.intellectualsites.irongolem.storage;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Inserts rows into an events table. Rows are arrays of {@link #PARAMETERS}
+ * values, in the order of the parameterised columns of {@link #COLUMNS}. The
+ * world and source name columns are left empty for every row
+ */
+interface EventInserter extends AutoCloseable {
+
+    int PARAMETERS = 14;
+
+    String COLUMNS = "(`world`, `world_id`, `x`, `y`, `z`, `timestamp`, `source`, `source_id`, `type`, `from`, `to`, "
+        + "`from_id`, `to_id`, `old_state`, `new_state`, `reason`)";
+
+    String ROW = "('', ?, ?, ?, ?, ?, '', ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    /**
+     * Insert rows
+     *
+     * @param rows Rows to insert
+     * @throws SQLException If the rows cannot be inserted
+     */
+    void insert(@NotNull List<Object[]> rows) throws SQLException;
+
+    @Override void close() throws SQLException;
+
+}
@@ -0,0 +1,162 @@
+//
+// IronGolem - A Minecraft block logging plugin
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.intellectualsites.irongolem.storage;
+
+import com.google.common.base.Preconditions;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An append-only file that maps strings to integer identifiers. This
+ * is the file based equivalent of {@link StringDictionary}.
+ * <p>
+ * Entries are stored as a length prefixed UTF-8 string, and the
+ * identifier of an entry is its position in the file
+ */
+public class FileDictionary implements AutoCloseable {
+
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private final Map<Integer, String> values = new ConcurrentHashMap<>();
+
+    private final File file;
+    private FileChannel channel;
+    private long size;
+
+    /**
+     * Create a new dictionary
+     *
+     * @param file Dictionary file
+     */
+    public FileDictionary(@NotNull final File file) {
+        this.file = Preconditions.checkNotNull(file, "File may not be null");
+    }
+
+    /**
+     * Load all entries into memory, and open the file for appending.
+     * Entries that were only partially written are discarded
+     *
+     * @throws IOException If the file cannot be read
+     */
+    public synchronized void load() throws IOException {
+        long valid = 0L;
+        if (this.file.exists()) {
+            try (final DataInputStream inputStream = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(this.file)))) {
+                while (true) {
+                    final byte[] bytes;
+                    try {
+                        bytes = new byte[inputStream.readInt()];
+                        inputStream.readFully(bytes);
+                    } catch (final EOFException e) {
+                        break;
+                    }
+                    this.cache(this.values.size(), new String(bytes, StandardCharsets.UTF_8));
+                    valid += Integer.BYTES + bytes.length;
+                }
+            }
+        }
+        this.channel = new RandomAccessFile(this.file, "rw").getChannel();
+        this.channel.truncate(valid);
+        this.size = valid;
+    }
+
+    /**
+     * Get the ID of a value, and create the mapping if it does not yet exist
+     *
+     * @param value Value
+     * @return Value ID
+     * @throws IOException If the mapping cannot be written
+     */
+    public int getId(@NotNull final String value) throws IOException {
+        final Integer id = this.ids.get(value);
+        if (id != null) {
+            return id;
+        }
+        synchronized (this) {
+            final Integer existing = this.ids.get(value);
+            if (existing != null) {
+                return existing;
+            }
+            final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            final ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + bytes.length);
+            buffer.putInt(bytes.length).put(bytes).flip();
+            while (buffer.hasRemaining()) {
+                this.size += this.channel.write(buffer, this.size);
+            }
+            final int created = this.values.size();
+            this.cache(created, value);
+            return created;
+        }
+    }
+
+    /**
+     * Get the ID of a value without creating a mapping
+     *
+     * @param value Value
+     * @return Value ID, or -1 if the value has no mapping
+     */
+    public int findId(@NotNull final String value) {
+        return this.ids.getOrDefault(value, -1);
+    }
+
+    /**
+     * Get the value that is mapped to an ID
+     *
+     * @param id Value ID
+     * @return The value, or null if the ID has no mapping
+     */
+    @Nullable public String getValue(final int id) {
+        return this.values.get(id);
+    }
+
+    /**
+     * Force all written mappings to the storage device
+     *
+     * @throws IOException If the file cannot be synced
+     */
+    public synchronized void force() throws IOException {
+        this.channel.force(false);
+    }
+
+    @Override public synchronized void close() throws IOException {
+        if (this.channel != null) {
+            this.channel.close();
+        }
+    }
+
+    private void cache(final int id, @NotNull final String value) {
+        // The value is registered before the ID, so that any
+        // ID that can be found can also be resolved
+        this.values.put(id, value);
+        this.ids.put(value, id);
+    }
+
+}
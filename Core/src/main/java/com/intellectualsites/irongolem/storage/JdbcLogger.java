@@ -0,0 +1,1195 @@
+//
+// IronGolem - A Minecraft block logging plugin
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.intellectualsites.irongolem.storage;
+
+import com.google.common.base.Preconditions;
+import com.intellectualsites.irongolem.changes.Change;
+import com.intellectualsites.irongolem.changes.ChangeConsumer;
+import com.intellectualsites.irongolem.changes.ChangeQuery;
+import com.intellectualsites.irongolem.changes.ChangeReason;
+import com.intellectualsites.irongolem.changes.ChangeSource;
+import com.intellectualsites.irongolem.changes.ChangeSummary;
+import com.intellectualsites.irongolem.changes.ChangeSubject;
+import com.intellectualsites.irongolem.changes.PageToken;
+import com.intellectualsites.irongolem.changes.RestorationSubject;
+import com.intellectualsites.irongolem.changes.SummaryField;
+import com.intellectualsites.irongolem.logging.ChangeBuffer;
+import com.intellectualsites.irongolem.logging.ChangeIntake;
+import com.intellectualsites.irongolem.logging.FlushPolicy;
+import com.intellectualsites.irongolem.logging.ScheduledQueuingChangeLogger;
+import com.intellectualsites.irongolem.util.CuboidRegion;
+import com.intellectualsites.irongolem.util.SourceFactory;
+import com.intellectualsites.irongolem.util.SubjectFactory;
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.plugin.Plugin;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * {@link com.intellectualsites.irongolem.logging.ChangeLogger} that logs to a JDBC
+ * database. Implementations decide how connections are managed, and the statements
+ * are adapted to the {@link SQLDialect dialect} of the database.
+ * <p>
+ * All writes happen with the write lock held, through the connection that is
+ * returned by {@link #getWriteConnection()}
+ */
+public abstract class JdbcLogger extends ScheduledQueuingChangeLogger implements PurgeableLogger {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(JdbcLogger.class);
+
+    /**
+     * The unqualified events table
+     */
+    protected static final String EVENTS = "`events`";
+    /**
+     * The unqualified block history table, which holds the first and
+     * last event ID of every block that has changed, by location
+     */
+    protected static final String BLOCK_HISTORY = "`block_history`";
+    /**
+     * The unqualified table that holds the block entity states of the events in
+     * a clustered events table, so that the clustered rows stay small
+     */
+    protected static final String EVENT_STATES = "`event_states`";
+
+    private static final int CHUNK_SIZE = 1024;
+    private static final int FETCH_SIZE = 256;
+    private static final int KEY_RANGES = 16;
+    // Regions of up to this many columns are read through the location index, even if their events are read by time
+    private static final int NARROW_REGION = 128 * 128;
+
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final SourceFactory sourceFactory = new SourceFactory();
+    private final SubjectFactory subjectFactory = new SubjectFactory();
+    private final Map<Integer, ChangeSource> sources = new ConcurrentHashMap<>();
+    private final List<Object[]> rows = new ArrayList<>();
+
+    private final SQLDialect dialect;
+    private final MigrationRunner migrationRunner;
+    private final StringDictionary blockStates;
+    private final StringDictionary worlds;
+    private final StringDictionary actors;
+    private final Plugin plugin;
+
+    protected JdbcLogger(@NotNull final Plugin plugin, @NotNull final FlushPolicy flushPolicy,
+        @NotNull final ChangeIntake changeIntake, @NotNull final SQLDialect dialect) {
+        super(plugin, flushPolicy, changeIntake);
+        this.plugin = plugin;
+        this.dialect = Preconditions.checkNotNull(dialect, "Dialect may not be null");
+        this.migrationRunner = new MigrationRunner(dialect, dialect.getMigrations(), this.writeLock);
+        this.blockStates = new StringDictionary(dialect, "block_states", "state");
+        this.worlds = new StringDictionary(dialect, "worlds", "name");
+        this.actors = new StringDictionary(dialect, "actors", "name");
+    }
+
+    @Override protected void startTransaction() throws Exception {
+        this.writeLock.lock();
+        try {
+            this.acquireWriteConnection();
+            try {
+                this.getWriteConnection().setAutoCommit(false);
+            } catch (final SQLException e) {
+                this.releaseWriteConnection();
+                throw e;
+            }
+        } catch (final Exception e) {
+            this.writeLock.unlock();
+            throw e;
+        }
+    }
+
+    @Override protected void startBatch() {
+        this.rows.clear();
+    }
+
+    @Override protected void persist(@NotNull final Change change) throws Exception {
+        final Location location = change.getLocation();
+        final ChangeSubject<?, ?> subject = change.getSubject();
+        final Object[] row = new Object[EventInserter.PARAMETERS];
+        row[0] = this.worlds.getId(this.getWriteConnection(), Objects.requireNonNull(location.getWorld()).getName());
+        row[1] = location.getBlockX();
+        row[2] = location.getBlockY();
+        row[3] = location.getBlockZ();
+        row[4] = change.getTimestamp();
+        row[5] = this.actors.getId(this.getWriteConnection(), change.getSource().getName());
+        row[6] = subject.getType().name();
+        if (subject instanceof RestorationSubject) {
+            // Restorations refer to event IDs, which would never be reused
+            row[7] = subject.serializeFrom();
+            row[8] = subject.serializeTo();
+        } else {
+            row[9] = this.blockStates.getId(this.getWriteConnection(), subject.serializeFrom());
+            row[10] = this.blockStates.getId(this.getWriteConnection(), subject.serializeTo());
+        }
+        row[11] = subject.serializeOldState();
+        row[12] = subject.serializeNewState();
+        row[13] = change.getReason().name();
+        this.rows.add(row);
+    }
+
+    @Override
+    public CompletableFuture<List<Change>> queryChanges(@NotNull final ChangeQuery query) {
+        final List<Change> changes = new ArrayList<>();
+        return this.streamChanges(query, CHUNK_SIZE, changes::addAll).thenApply(count -> changes);
+    }
+
+    @Override public CompletableFuture<Integer> streamChanges(@NotNull final ChangeQuery query, final int chunkSize,
+        @NotNull final ChangeConsumer consumer) {
+        return this.read(query, 0, (connection, worldId, sourceId) -> {
+            final ChangeBuffer buffer = new ChangeBuffer(query.getLimit(), chunkSize, consumer);
+            this.queryChanges(connection, query, worldId, sourceId, buffer);
+            buffer.flush();
+            return buffer.getCount();
+        });
+    }
+
+    @Override public CompletableFuture<ChangeSummary> summarizeChanges(@NotNull final ChangeQuery query,
+        @NotNull final Collection<SummaryField> fields) {
+        final List<SummaryField> groupBy = new ArrayList<>(fields);
+        final ChangeSummary.Builder builder = ChangeSummary.newBuilder(groupBy);
+        return this.read(query, builder.build(), (connection, worldId, sourceId) -> {
+            this.summarizeChanges(connection, query, worldId, sourceId, groupBy, builder);
+            return builder.build();
+        });
+    }
+
+    /**
+     * Run a read task asynchronously, with the IDs of the queried world and source resolved
+     *
+     * @param query Query
+     * @param empty Result of queries that cannot match anything
+     * @param task  Task to run
+     * @param <T>   Result type
+     * @return Future that completes with the result of the task
+     */
+    @NotNull private <T> CompletableFuture<T> read(@NotNull final ChangeQuery query, @NotNull final T empty,
+        @NotNull final ReadTask<T> task) {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        Bukkit.getScheduler().runTaskAsynchronously(this.plugin, () -> {
+            final Connection connection;
+            try {
+                connection = this.openReadConnection();
+            } catch (final SQLException throwable) {
+                future.completeExceptionally(throwable);
+                return;
+            }
+            final T result;
+            try {
+                final int worldId = this.worlds.findId(connection, query.getWorld().getName());
+                final int sourceId = query.getChangeSource() == null ? -1 :
+                    this.actors.findId(connection, query.getChangeSource().getName());
+                // Events that only store names may still match while the IDs are being backfilled
+                if ((worldId == -1 || (query.getChangeSource() != null && sourceId == -1)) && !this.hasLegacyEvents(EVENTS)) {
+                    // Nothing has ever been logged in the world, or by the source
+                    future.complete(empty);
+                    return;
+                }
+                result = task.run(connection, worldId, sourceId);
+            } catch (final Throwable throwable) {
+                future.completeExceptionally(throwable);
+                return;
+            } finally {
+                this.closeReadConnection(connection);
+            }
+            future.complete(result);
+        });
+        return future;
+    }
+
+    /**
+     * Query the events for changes
+     *
+     * @param connection Read connection
+     * @param query      Query
+     * @param worldId    ID of the queried world
+     * @param sourceId   ID of the queried source, or -1 if any source matches
+     * @param buffer     Buffer that receives the matching changes
+     * @throws SQLException If the events cannot be read
+     */
+    protected void queryChanges(@NotNull final Connection connection, @NotNull final ChangeQuery query,
+        final int worldId, final int sourceId, @NotNull final ChangeBuffer buffer) throws SQLException {
+        this.queryEvents(connection, EVENTS, this.isBlockHistoryReady() ? BLOCK_HISTORY : null, query, worldId,
+            sourceId, buffer.getRemaining(), buffer::add);
+    }
+
+    /**
+     * Query an events table for changes. Distinct queries without a time range
+     * read the oldest event at every location from the block history, rather
+     * than grouping every event in the region
+     *
+     * @param connection Read connection
+     * @param table      Events table, optionally qualified by its schema
+     * @param history    Block history of the events table, or null if it is incomplete
+     * @param query      Query
+     * @param worldId    ID of the queried world
+     * @param sourceId   ID of the queried source, or -1 if any source matches
+     * @param limit      Maximum number of changes
+     * @param sink       Receives the matching changes as they are read, and
+     *                   returns false once no more changes are wanted
+     * @throws SQLException If the events cannot be read
+     */
+    protected final void queryEvents(@NotNull final Connection connection, @NotNull final String table,
+        @Nullable final String history, @NotNull final ChangeQuery query, final int worldId, final int sourceId,
+        final int limit, @NotNull final Predicate<Change> sink) throws SQLException {
+        final CuboidRegion region = query.getRegion();
+        final boolean distinct = query.shouldUseDistinct();
+        final boolean timeRange = query.hasTimeRange();
+        final boolean filterSource = query.getChangeSource() != null;
+        final int reasonCount = query.getReasons().size();
+        final PageToken pageToken = query.getPageToken();
+        final boolean legacy = this.hasLegacyEvents(table);
+        final boolean narrow = (long) region.getWidth() * region.getDepth() <= NARROW_REGION;
+        // The history only knows the oldest event of all time at every location
+        final String blocks = distinct && !timeRange ? history : null;
+        final List<long[]> keyRanges = blocks == null ? this.getKeyRanges(table, region) : Collections.emptyList();
+        final String states = this.isClustered(table) ? EVENT_STATES : null;
+        final String shape = table + ':' + (distinct ? blocks != null ? 'h' : 'd' : '-') + (timeRange ? 't' : '-')
+            + (filterSource ? 's' : '-') + (pageToken != null ? 'p' : '-') + (legacy ? 'l' : '-') + (narrow ? 'n' : '-')
+            + (states != null ? 'e' : '-') + reasonCount + ':'
+            + keyRanges.size();
+
+        final PreparedStatement statement = this.prepareQuery(connection, shape, () -> this.dialect.translate(
+            createQuery(table, blocks, states, distinct, timeRange, filterSource, pageToken != null, legacy, narrow,
+                reasonCount, keyRanges.size())));
+        try {
+            int index = 1;
+            for (int i = 0; i < (distinct && blocks == null ? 2 : 1); i++) {
+                index = setKeyRanges(statement, index, keyRanges);
+                statement.setInt(index++, worldId);
+                if (legacy) {
+                    statement.setString(index++, query.getWorld().getName());
+                }
+                statement.setInt(index++, region.getMinimumPoint().getBlockX());
+                statement.setInt(index++, region.getMaximumPoint().getBlockX());
+                statement.setInt(index++, region.getMinimumPoint().getBlockY());
+                statement.setInt(index++, region.getMaximumPoint().getBlockY());
+                statement.setInt(index++, region.getMinimumPoint().getBlockZ());
+                statement.setInt(index++, region.getMaximumPoint().getBlockZ());
+                if (timeRange) {
+                    statement.setLong(index++, query.getSince());
+                    statement.setLong(index++, query.getBefore());
+                }
+            }
+            for (final ChangeReason reason : query.getReasons()) {
+                statement.setString(index++, reason.name());
+            }
+            if (filterSource) {
+                statement.setInt(index++, sourceId);
+                if (legacy) {
+                    statement.setString(index++, query.getChangeSource().getName());
+                }
+            }
+            if (pageToken != null) {
+                statement.setLong(index++, pageToken.getTimestamp());
+                statement.setLong(index++, pageToken.getTimestamp());
+                statement.setLong(index++, pageToken.getTimestamp());
+                statement.setLong(index++, pageToken.getEventId());
+            }
+            statement.setInt(index, limit);
+            // Rows are fetched in chunks, rather than all at once
+            statement.setFetchSize(Math.min(limit, FETCH_SIZE));
+            try (final ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    final Location location = new Location(query.getWorld(),
+                        resultSet.getInt("x"), resultSet.getInt("y"), resultSet.getInt("z"));
+                    final ChangeSource source = this.getSource(connection, resultSet);
+                    if (source == null) {
+                        LOGGER.warn("Skipping change because of invalid source: {}", resultSet.getInt("source_id"));
+                        continue;
+                    }
+                    final ChangeReason reason = ChangeReason.valueOf(resultSet.getString("reason"));
+                    // States that have not been moved out of the events table yet are still read from it
+                    byte[] oldState = states == null ? null : resultSet.getBytes("stored_old_state");
+                    byte[] newState = states == null ? null : resultSet.getBytes("stored_new_state");
+                    if (oldState == null && newState == null) {
+                        oldState = resultSet.getBytes("old_state");
+                        newState = resultSet.getBytes("new_state");
+                    }
+                    final String from = this.getBlockState(connection, resultSet, "from");
+                    final String to = this.getBlockState(connection, resultSet, "to");
+                    if (from == null || to == null) {
+                        LOGGER.warn("Skipping change because of missing block state");
+                        continue;
+                    }
+                    final ChangeSubject<?, ?> subject = this.subjectFactory.getSubject(reason, resultSet.getString("type"),
+                        from, to, oldState, newState);
+                    if (subject == null) {
+                        LOGGER.warn("Skipping change because of invalid subject");
+                        continue;
+                    }
+                    final Change change = Change.newBuilder()
+                        .withId(resultSet.getLong("event_id"))
+                        .atLocation(location)
+                        .atTime(resultSet.getLong("timestamp"))
+                        .withSource(source)
+                        .withReason(reason)
+                        .withSubject(subject)
+                        .build();
+                    if (!sink.test(change)) {
+                        break;
+                    }
+                }
+            }
+        } finally {
+            this.releaseQuery(statement);
+        }
+    }
+
+    /**
+     * Create the statement of a query shape. Everything that
+     * varies between queries of the same shape is a parameter
+     *
+     * @param table        Events table, optionally qualified by its schema
+     * @param history      Block history that distinct events are read from, or null if they are grouped
+     * @param states       Table that block entity states are looked up in, or null if they are stored with the events
+     * @param distinct     Whether or not only the oldest event at every location is selected
+     * @param timeRange    Whether or not the events are limited to a time range
+     * @param filterSource Whether or not the events are limited to a source
+     * @param paged        Whether or not the events start after a {@link PageToken}
+     * @param legacy       Whether or not events that only store world and source names match as well
+     * @param narrow       Whether or not the region is read through the location index, rather than by time
+     * @param reasons      Number of change reasons
+     * @param keyRanges    Number of block key ranges that the events are read from, or 0 if the table is not clustered
+     * @return Query statement, using backtick quoted identifiers
+     */
+    @NotNull private static String createQuery(@NotNull final String table, @Nullable final String history,
+        @Nullable final String states, final boolean distinct, final boolean timeRange, final boolean filterSource, final boolean paged,
+        final boolean legacy, final boolean narrow, final int reasons, final int keyRanges) {
+        // The unary plus keeps the planner from reading narrow regions through the time index,
+        // which would read every event of the world in the time range to find the region
+        final String timestamp = narrow ? "+`timestamp`" : "`timestamp`";
+        final StringBuilder builder;
+        if (history != null) {
+            // Reads the region from the history, and then looks up every first event by its ID
+            builder = new StringBuilder("SELECT `e`.* FROM ").append(history).append(" AS `h` JOIN ").append(table)
+                .append(" AS `e` ON `e`.`event_id` = `h`.`first_id` WHERE `h`.`world_id` = ? AND `h`.`x` >= ? AND `h`.`x` <= ? AND `h`.`y` >= ? AND `h`.`y` <= ? AND `h`.`z` >= ? AND `h`.`z` <= ?");
+        } else {
+            builder = new StringBuilder("SELECT * FROM ");
+            appendLocation(builder, table, keyRanges, legacy);
+        }
+        if (timeRange) {
+            builder.append(" AND ").append(timestamp).append(" >= ? AND ").append(timestamp).append(" < ?");
+        }
+        if (distinct && history == null) {
+            builder.append(" AND `event_id` IN (SELECT MIN(`event_id`) FROM ");
+            appendLocation(builder, table, keyRanges, legacy);
+            if (timeRange) {
+                builder.append(" AND ").append(timestamp).append(" >= ? AND ").append(timestamp).append(" < ?");
+            }
+            // The world is fixed, and events that only store its name have no world ID
+            builder.append(" GROUP BY `x`, `y`, `z`)");
+        }
+        builder.append(" AND `reason` IN (");
+        for (int i = 0; i < reasons; i++) {
+            builder.append(i == 0 ? "?" : ", ?");
+        }
+        builder.append(")");
+        if (filterSource) {
+            builder.append(legacy ? " AND (`source_id` = ? OR (`source_id` IS NULL AND `source` = ?))" : " AND `source_id` = ?");
+        }
+        if (paged) {
+            // The redundant upper bound is what lets the time index seek to the page, as the
+            // disjunction alone is not sargable and would scan every newer event first
+            builder.append(" AND ").append(timestamp).append(" <= ? AND (").append(timestamp).append(" < ? OR (")
+                .append(timestamp).append(" = ? AND `event_id` < ?))");
+        }
+        if (!distinct) {
+            // Wide regions are served by the time index, which also makes pages stable. Narrow
+            // regions match few rows, which are sorted after being read from the location index
+            builder.append(" ORDER BY ").append(timestamp).append(" DESC, `event_id` DESC");
+        }
+        builder.append(" LIMIT ?");
+        if (states == null) {
+            return builder.toString();
+        }
+        // States are only looked up for the events that were selected
+        final StringBuilder joined = new StringBuilder("SELECT `q`.*, `s`.`old_state` AS `stored_old_state`, ")
+            .append("`s`.`new_state` AS `stored_new_state` FROM (").append(builder).append(") AS `q` LEFT JOIN ")
+            .append(states).append(" AS `s` ON `s`.`event_id` = `q`.`event_id`");
+        if (!distinct) {
+            joined.append(" ORDER BY `q`.`timestamp` DESC, `q`.`event_id` DESC");
+        }
+        return joined.toString();
+    }
+
+    /**
+     * Append the events in a region to a statement, as a table followed by a where clause.
+     * Clustered tables are read through one primary key range per block key range, which
+     * the planner would otherwise not use for more than a single range
+     *
+     * @param builder   Statement builder
+     * @param table     Events table, optionally qualified by its schema
+     * @param keyRanges Number of block key ranges, or 0 if the table is not clustered
+     * @param legacy    Whether or not events that only store the world name match as well
+     */
+    private static void appendLocation(@NotNull final StringBuilder builder, @NotNull final String table,
+        final int keyRanges, final boolean legacy) {
+        if (keyRanges > 0) {
+            builder.append("(VALUES ");
+            for (int i = 0; i < keyRanges; i++) {
+                builder.append(i == 0 ? "(?, ?)" : ", (?, ?)");
+            }
+            builder.append(") AS `k` CROSS JOIN ").append(table)
+                .append(" WHERE `block_key` >= `k`.`column1` AND `block_key` <= `k`.`column2` AND ");
+        } else {
+            builder.append(table).append(" WHERE ");
+        }
+        builder.append(legacy ? "(`world_id` = ? OR (`world_id` IS NULL AND `world` = ?))" : "`world_id` = ?")
+            .append(" AND `x` >= ? AND `x` <= ? AND `y` >= ? AND `y` <= ? AND `z` >= ? AND `z` <= ?");
+    }
+
+    /**
+     * Get the block key ranges that a region is read from
+     *
+     * @param table  Events table, optionally qualified by its schema
+     * @param region Queried region
+     * @return Inclusive (lower, upper) key pairs, or an empty list if the table is not clustered
+     */
+    @NotNull private List<long[]> getKeyRanges(@NotNull final String table, @NotNull final CuboidRegion region) {
+        if (!this.isClustered(table)) {
+            return Collections.emptyList();
+        }
+        return BlockKey.getRanges(region.getMinimumPoint().getBlockX(), region.getMinimumPoint().getBlockZ(),
+            region.getMaximumPoint().getBlockX(), region.getMaximumPoint().getBlockZ(), KEY_RANGES);
+    }
+
+    /**
+     * Bind block key ranges, see {@link #appendLocation(StringBuilder, String, int, boolean)}
+     *
+     * @param statement Statement
+     * @param index     Index of the first parameter
+     * @param keyRanges Block key ranges
+     * @return Index of the next parameter
+     * @throws SQLException If the parameters cannot be bound
+     */
+    private static int setKeyRanges(@NotNull final PreparedStatement statement, final int index,
+        @NotNull final List<long[]> keyRanges) throws SQLException {
+        int parameter = index;
+        for (final long[] keyRange : keyRanges) {
+            statement.setLong(parameter++, keyRange[0]);
+            statement.setLong(parameter++, keyRange[1]);
+        }
+        return parameter;
+    }
+
+    /**
+     * Count the events that match a query
+     *
+     * @param connection Read connection
+     * @param query      Query
+     * @param worldId    ID of the queried world
+     * @param sourceId   ID of the queried source, or -1 if any source matches
+     * @param fields     Fields to group by
+     * @param builder    Builder that receives the counts
+     * @throws SQLException If the events cannot be read
+     */
+    protected void summarizeChanges(@NotNull final Connection connection, @NotNull final ChangeQuery query,
+        final int worldId, final int sourceId, @NotNull final List<SummaryField> fields,
+        @NotNull final ChangeSummary.Builder builder) throws SQLException {
+        this.summarizeEvents(connection, EVENTS, query, worldId, sourceId, fields, builder);
+    }
+
+    /**
+     * Count the events in an events table that match a query. The events are
+     * grouped by the database, and only the dictionary IDs of every group are
+     * resolved, so no change is ever decoded
+     *
+     * @param connection Read connection
+     * @param table      Events table, optionally qualified by its schema
+     * @param query      Query
+     * @param worldId    ID of the queried world
+     * @param sourceId   ID of the queried source, or -1 if any source matches
+     * @param fields     Fields to group by
+     * @param builder    Builder that receives the counts
+     * @throws SQLException If the events cannot be read
+     */
+    protected final void summarizeEvents(@NotNull final Connection connection, @NotNull final String table,
+        @NotNull final ChangeQuery query, final int worldId, final int sourceId, @NotNull final List<SummaryField> fields,
+        @NotNull final ChangeSummary.Builder builder) throws SQLException {
+        final CuboidRegion region = query.getRegion();
+        final boolean timeRange = query.hasTimeRange();
+        final boolean filterSource = query.getChangeSource() != null;
+        final boolean legacy = this.hasLegacyEvents(table);
+        final List<long[]> keyRanges = this.getKeyRanges(table, region);
+        final StringBuilder shape = new StringBuilder(table).append(":c");
+        final StringBuilder columns = new StringBuilder();
+        for (final SummaryField field : fields) {
+            shape.append(field.ordinal());
+            columns.append(columns.length() == 0 ? "" : ", ").append(getColumn(field, legacy));
+        }
+        shape.append(':').append(timeRange ? 't' : '-').append(filterSource ? 's' : '-').append(legacy ? 'l' : '-')
+            .append(query.getReasons().size()).append(':').append(keyRanges.size());
+
+        final PreparedStatement statement = this.prepareQuery(connection, shape.toString(), () -> {
+            final StringBuilder sql = new StringBuilder("SELECT ");
+            if (columns.length() > 0) {
+                sql.append(columns).append(", ");
+            }
+            sql.append("COUNT(*) FROM ");
+            appendLocation(sql, table, keyRanges.size(), legacy);
+            if (timeRange) {
+                sql.append(" AND `timestamp` >= ? AND `timestamp` < ?");
+            }
+            sql.append(" AND `reason` IN (");
+            for (int i = 0; i < query.getReasons().size(); i++) {
+                sql.append(i == 0 ? "?" : ", ?");
+            }
+            sql.append(")");
+            if (filterSource) {
+                sql.append(legacy ? " AND (`source_id` = ? OR (`source_id` IS NULL AND `source` = ?))" : " AND `source_id` = ?");
+            }
+            if (columns.length() > 0) {
+                sql.append(" GROUP BY ").append(columns);
+            }
+            return this.dialect.translate(sql.toString());
+        });
+        try {
+            int index = setKeyRanges(statement, 1, keyRanges);
+            statement.setInt(index++, worldId);
+            if (legacy) {
+                statement.setString(index++, query.getWorld().getName());
+            }
+            statement.setInt(index++, region.getMinimumPoint().getBlockX());
+            statement.setInt(index++, region.getMaximumPoint().getBlockX());
+            statement.setInt(index++, region.getMinimumPoint().getBlockY());
+            statement.setInt(index++, region.getMaximumPoint().getBlockY());
+            statement.setInt(index++, region.getMinimumPoint().getBlockZ());
+            statement.setInt(index++, region.getMaximumPoint().getBlockZ());
+            if (timeRange) {
+                statement.setLong(index++, query.getSince());
+                statement.setLong(index++, query.getBefore());
+            }
+            for (final ChangeReason reason : query.getReasons()) {
+                statement.setString(index++, reason.name());
+            }
+            if (filterSource) {
+                statement.setInt(index++, sourceId);
+                if (legacy) {
+                    statement.setString(index, query.getChangeSource().getName());
+                }
+            }
+            try (final ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    final String[] keys = new String[fields.size()];
+                    for (int i = 0; i < keys.length; i++) {
+                        keys[i] = this.getKey(connection, resultSet, i + 1, fields.get(i));
+                    }
+                    builder.addCount(resultSet.getLong(keys.length + 1), keys);
+                }
+            }
+        } finally {
+            this.releaseQuery(statement);
+        }
+    }
+
+    /**
+     * Get the expression that holds the values of a summary field
+     *
+     * @param field  Summary field
+     * @param legacy Whether or not events that only store the source name are grouped as well
+     * @return Expression, using backtick quoted identifiers
+     */
+    @NotNull private static String getColumn(@NotNull final SummaryField field, final boolean legacy) {
+        switch (field) {
+            case SOURCE:
+                // Groups events that only store the source name by that name
+                return legacy ? "COALESCE(`source_id`, `source`)" : "`source_id`";
+            case REASON:
+                return "`reason`";
+            default:
+                // Restorations, and block states that have yet to be dictionary encoded, have no ID
+                return "CASE WHEN `reason` = 'BLOCK_BREAK' THEN `from_id` ELSE `to_id` END";
+        }
+    }
+
+    /**
+     * Get the key of a summary field from a grouped result set row
+     *
+     * @param connection Connection used to resolve dictionary IDs
+     * @param resultSet  Result set positioned at the row
+     * @param column     Column index
+     * @param field      Summary field
+     * @return Key, or null if the group has no value for the field
+     * @throws SQLException If the row cannot be read
+     */
+    @Nullable private String getKey(@NotNull final Connection connection, @NotNull final ResultSet resultSet,
+        final int column, @NotNull final SummaryField field) throws SQLException {
+        if (field == SummaryField.REASON) {
+            return resultSet.getString(column);
+        }
+        if (field == SummaryField.SOURCE) {
+            final Object source = resultSet.getObject(column);
+            if (source == null || source instanceof String) {
+                return (String) source;
+            }
+            return this.actors.getValue(connection, ((Number) source).intValue());
+        }
+        final int id = resultSet.getInt(column);
+        if (resultSet.wasNull()) {
+            return null;
+        }
+        final String state = this.blockStates.getValue(connection, id);
+        return state == null ? null : SummaryField.getBlockType(state);
+    }
+
+    /**
+     * Delete a batch of events that have expired according to a rule. Every
+     * batch is deleted in its own transaction, so that logging is only ever
+     * blocked for the duration of a single batch
+     *
+     * @param rule   Retention rule
+     * @param cutoff Events before this time are expired (unix timestamp, in milliseconds)
+     * @param limit  Maximum number of events to delete
+     * @return Number of deleted events
+     * @throws SQLException If the events cannot be deleted
+     */
+    @Override public int purge(@NotNull final RetentionRule rule, final long cutoff, final int limit) throws SQLException {
+        this.writeLock.lock();
+        try {
+            this.acquireWriteConnection();
+            try {
+                final int worldId = rule.getWorld() == null ? -1 : this.worlds.findId(this.getWriteConnection(), rule.getWorld());
+                if (rule.getWorld() != null && worldId == -1) {
+                    // Nothing has ever been logged in the world
+                    return 0;
+                }
+                return this.purge(this.getWriteConnection(), rule, worldId, cutoff, limit);
+            } finally {
+                this.releaseWriteConnection();
+            }
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    /**
+     * Delete a batch of expired events. This is called with the write lock held
+     *
+     * @param connection Write connection
+     * @param rule       Retention rule
+     * @param worldId    ID of the world that the rule applies to, or -1 if it applies to every world
+     * @param cutoff     Events before this time are expired (unix timestamp, in milliseconds)
+     * @param limit      Maximum number of events to delete
+     * @return Number of deleted events
+     * @throws SQLException If the events cannot be deleted
+     */
+    protected int purge(@NotNull final Connection connection, @NotNull final RetentionRule rule, final int worldId,
+        final long cutoff, final int limit) throws SQLException {
+        return this.purgeEvents(connection, EVENTS, BLOCK_HISTORY, rule, worldId, cutoff, limit);
+    }
+
+    /**
+     * Delete a batch of expired events from an events table. The oldest events
+     * are found by walking the reason index, and are then deleted by ID, so that
+     * the locations that lost events can be rebuilt in the block history
+     *
+     * @param connection Write connection
+     * @param table      Events table, optionally qualified by its schema
+     * @param history    Block history of the events table, or null if it has none
+     * @param rule       Retention rule
+     * @param worldId    ID of the world that the rule applies to, or -1 if it applies to every world
+     * @param cutoff     Events before this time are expired (unix timestamp, in milliseconds)
+     * @param limit      Maximum number of events to delete
+     * @return Number of deleted events
+     * @throws SQLException If the events cannot be deleted
+     */
+    protected final int purgeEvents(@NotNull final Connection connection, @NotNull final String table,
+        @Nullable final String history, @NotNull final RetentionRule rule, final int worldId, final long cutoff,
+        final int limit) throws SQLException {
+        final StringBuilder builder = new StringBuilder("SELECT `event_id`, `world_id`, `x`, `y`, `z` FROM ")
+            .append(table).append(" WHERE `reason` IN (");
+        for (int i = 0; i < rule.getReasons().size(); i++) {
+            builder.append(i == 0 ? "?" : ", ?");
+        }
+        builder.append(") AND `timestamp` < ?");
+        if (worldId != -1) {
+            builder.append(" AND `world_id` = ?");
+        }
+        builder.append(" ORDER BY `reason`, `timestamp` LIMIT ?");
+        final List<Long> events = new ArrayList<>();
+        final Set<List<Integer>> blocks = new HashSet<>();
+        try (final PreparedStatement statement = connection.prepareStatement(this.dialect.translate(builder.toString()))) {
+            int index = 1;
+            for (final ChangeReason reason : rule.getReasons()) {
+                statement.setString(index++, reason.name());
+            }
+            statement.setLong(index++, cutoff);
+            if (worldId != -1) {
+                statement.setInt(index++, worldId);
+            }
+            statement.setInt(index, limit);
+            try (final ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    events.add(resultSet.getLong("event_id"));
+                    final int world = resultSet.getInt("world_id");
+                    // Events that have not been dictionary encoded yet are not part of the history
+                    if (!resultSet.wasNull()) {
+                        blocks.add(Arrays.asList(world, resultSet.getInt("x"), resultSet.getInt("y"), resultSet.getInt("z")));
+                    }
+                }
+            }
+        }
+        if (events.isEmpty()) {
+            return 0;
+        }
+        try (final PreparedStatement statement = connection.prepareStatement(this.dialect.translate(
+            "DELETE FROM " + table + " WHERE `event_id` = ?"))) {
+            for (final long event : events) {
+                statement.setLong(1, event);
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+        if (this.isClustered(table)) {
+            try (final PreparedStatement statement = connection.prepareStatement(this.dialect.translate(
+                "DELETE FROM " + EVENT_STATES + " WHERE `event_id` = ?"))) {
+                for (final long event : events) {
+                    statement.setLong(1, event);
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            }
+        }
+        if (history != null && !blocks.isEmpty()) {
+            this.rebuildBlockHistory(connection, table, history, blocks);
+        }
+        return events.size();
+    }
+
+    /**
+     * Whether or not the database can reclaim free space using {@link #vacuum(int)}
+     *
+     * @return True if the database can be vacuumed incrementally
+     * @throws SQLException If the database cannot be read
+     */
+    @Override public boolean supportsIncrementalVacuum() throws SQLException {
+        return false;
+    }
+
+    /**
+     * Return free space to the file system
+     *
+     * @param pages Maximum number of pages to free per database
+     * @return Number of free pages that remain
+     * @throws SQLException If the database cannot be vacuumed
+     */
+    @Override public long vacuum(final int pages) throws SQLException {
+        return 0L;
+    }
+
+    @Override protected void finishBatch() throws Throwable {
+        try {
+            this.insertRows(this.rows);
+        } finally {
+            this.rows.clear();
+        }
+    }
+
+    @Override protected void commitTransaction() throws Throwable {
+        try {
+            this.getWriteConnection().commit();
+            this.blockStates.commit();
+            this.worlds.commit();
+            this.actors.commit();
+        } catch (final SQLException e) {
+            this.rollback();
+            throw e;
+        } finally {
+            this.finishTransaction();
+        }
+    }
+
+    @Override protected boolean rollbackTransaction() throws Throwable {
+        try {
+            this.rows.clear();
+            this.rollback();
+        } finally {
+            this.finishTransaction();
+        }
+        return true;
+    }
+
+    @Override protected boolean isTransactional() {
+        return true;
+    }
+
+    /**
+     * Roll back the write connection, and forget the dictionary
+     * mappings that were created by the rolled back transaction
+     *
+     * @throws SQLException If the transaction cannot be rolled back
+     */
+    private void rollback() throws SQLException {
+        try {
+            this.getWriteConnection().rollback();
+        } finally {
+            this.blockStates.rollback();
+            this.worlds.rollback();
+            this.actors.rollback();
+        }
+    }
+
+    /**
+     * Release the write connection and the write lock at the end of a transaction
+     *
+     * @throws SQLException If the connection cannot be released
+     */
+    private void finishTransaction() throws SQLException {
+        try {
+            this.getWriteConnection().setAutoCommit(true);
+        } finally {
+            try {
+                this.releaseWriteConnection();
+            } finally {
+                this.writeLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Get the highest event ID in an events table. This is read before rows
+     * are inserted, see {@link #updateBlockHistory(Connection, String, String, long)}
+     *
+     * @param connection Write connection
+     * @param table      Events table, optionally qualified by its schema
+     * @return Highest event ID, or 0 if the table is empty
+     * @throws SQLException If the table cannot be read
+     */
+    protected final long getLastEventId(@NotNull final Connection connection, @NotNull final String table)
+        throws SQLException {
+        try (final PreparedStatement statement = connection.prepareStatement(this.dialect.translate(
+            "SELECT MAX(`event_id`) FROM " + table));
+             final ResultSet resultSet = statement.executeQuery()) {
+            return resultSet.next() ? resultSet.getLong(1) : 0L;
+        }
+    }
+
+    /**
+     * Add the events that were inserted into an events table to its block history.
+     * This has to happen in the transaction that inserted the events
+     *
+     * @param connection Write connection
+     * @param table      Events table, optionally qualified by its schema
+     * @param history    Block history of the events table
+     * @param after      Highest event ID before the events were inserted, see {@link #getLastEventId(Connection, String)}
+     * @throws SQLException If the history cannot be updated
+     */
+    protected final void updateBlockHistory(@NotNull final Connection connection, @NotNull final String table,
+        @NotNull final String history, final long after) throws SQLException {
+        try (final PreparedStatement statement = connection.prepareStatement(
+            this.dialect.getBlockHistoryUpsert(history, table))) {
+            statement.setLong(1, after);
+            statement.executeUpdate();
+        }
+    }
+
+    /**
+     * Whether or not the block history of the unqualified events table
+     * contains every event, including those that were logged before the
+     * history existed
+     *
+     * @return True if the history is complete
+     */
+    protected final boolean isBlockHistoryReady() {
+        return this.migrationRunner.isApplied(this.dialect.getBlockHistoryVersion());
+    }
+
+    /**
+     * Whether or not an events table may contain events that only store the names of
+     * their world and source. Only the unqualified events table has such events, until
+     * the names have been dictionary encoded by a background migration
+     *
+     * @param table Events table, optionally qualified by its schema
+     * @return True if lookups have to match world and source names as well
+     */
+    protected final boolean hasLegacyEvents(@NotNull final String table) {
+        final int version = this.dialect.getDictionaryVersion();
+        return EVENTS.equals(table) && version != -1 && !this.migrationRunner.isApplied(version);
+    }
+
+    /**
+     * Whether or not an events table is clustered by {@link BlockKey block key}. Only
+     * the unqualified events table is ever clustered, once it has been migrated
+     *
+     * @param table Events table, optionally qualified by its schema
+     * @return True if the table is clustered
+     */
+    protected final boolean isClustered(@NotNull final String table) {
+        return EVENTS.equals(table) && this.migrationRunner.isApplied(this.dialect.getClusteredEventsVersion());
+    }
+
+    /**
+     * Prepare the write connection for a transaction, or for a purge. This
+     * is called with the write lock held, before auto commit is disabled
+     *
+     * @throws SQLException If the connection cannot be prepared
+     */
+    protected void acquireWriteConnection() throws SQLException {
+    }
+
+    /**
+     * Release the write connection after a transaction, or
+     * a purge. This is called with the write lock held
+     *
+     * @throws SQLException If the connection cannot be released
+     */
+    protected void releaseWriteConnection() throws SQLException {
+    }
+
+    /**
+     * Insert the rows of a finished batch. This is called with the write
+     * lock held, in the transaction that was started for the batch
+     *
+     * @param rows Rows to insert, see {@link EventInserter}
+     * @throws SQLException If the rows cannot be inserted
+     */
+    protected abstract void insertRows(@NotNull List<Object[]> rows) throws SQLException;
+
+    /**
+     * Get the write connection. This is only valid while the
+     * write lock is held and the connection has been acquired
+     *
+     * @return Write connection
+     */
+    protected abstract Connection getWriteConnection();
+
+    /**
+     * Prepare the statement of a query. The statement has to
+     * be released using {@link #releaseQuery(PreparedStatement)}
+     *
+     * @param connection Read connection
+     * @param shape      Key that identifies the shape of the query, see {@link StatementCache}
+     * @param sql        Supplier of the statement
+     * @return Prepared statement
+     * @throws SQLException If the statement cannot be prepared
+     */
+    @NotNull protected PreparedStatement prepareQuery(@NotNull final Connection connection, @NotNull final String shape,
+        @NotNull final Supplier<String> sql) throws SQLException {
+        return connection.prepareStatement(sql.get());
+    }
+
+    /**
+     * Release a statement that was prepared by {@link #prepareQuery(Connection, String, Supplier)}
+     *
+     * @param statement Statement
+     * @throws SQLException If the statement cannot be released
+     */
+    protected void releaseQuery(@NotNull final PreparedStatement statement) throws SQLException {
+        statement.close();
+    }
+
+    /**
+     * Open a connection that is used by a query
+     *
+     * @return Read connection
+     * @throws SQLException If no connection is available
+     */
+    @NotNull protected abstract Connection openReadConnection() throws SQLException;
+
+    /**
+     * Close a connection that was opened by {@link #openReadConnection()}
+     *
+     * @param connection Read connection
+     */
+    protected abstract void closeReadConnection(@NotNull Connection connection);
+
+    /**
+     * Apply the pending foreground migrations, and load the dictionaries
+     *
+     * @param connection Connection to migrate
+     * @throws SQLException If the database cannot be migrated
+     */
+    protected final void migrate(@NotNull final Connection connection) throws SQLException {
+        this.migrationRunner.runMigrations(connection);
+        this.blockStates.load(connection);
+        this.worlds.load(connection);
+        this.actors.load(connection);
+    }
+
+    /**
+     * Rebuild the block history of locations from the events that remain
+     *
+     * @param connection Write connection
+     * @param table      Events table, optionally qualified by its schema
+     * @param history    Block history of the events table
+     * @param blocks     World ID, x, y and z of every location
+     * @throws SQLException If the history cannot be rebuilt
+     */
+    private void rebuildBlockHistory(@NotNull final Connection connection, @NotNull final String table,
+        @NotNull final String history, @NotNull final Set<List<Integer>> blocks) throws SQLException {
+        final boolean clustered = this.isClustered(table);
+        try (final PreparedStatement delete = connection.prepareStatement(this.dialect.translate("DELETE FROM " + history
+            + " WHERE `world_id` = ? AND `x` = ? AND `y` = ? AND `z` = ?"));
+             final PreparedStatement insert = connection.prepareStatement(this.dialect.translate("INSERT INTO " + history
+                 + "(`world_id`, `x`, `y`, `z`, `first_id`, `last_id`) SELECT `world_id`, `x`, `y`, `z`, MIN(`event_id`), "
+                 + "MAX(`event_id`) FROM " + table + " WHERE `world_id` = ? AND `x` = ? AND `y` = ? AND `z` = ? "
+                 + (clustered ? "AND `block_key` = ? " : "") + "GROUP BY `world_id`, `x`, `y`, `z`"))) {
+            for (final List<Integer> block : blocks) {
+                for (int i = 0; i < block.size(); i++) {
+                    delete.setInt(i + 1, block.get(i));
+                    insert.setInt(i + 1, block.get(i));
+                }
+                if (clustered) {
+                    insert.setLong(block.size() + 1, BlockKey.of(block.get(1), block.get(3)));
+                }
+                delete.addBatch();
+                insert.addBatch();
+            }
+            delete.executeBatch();
+            insert.executeBatch();
+        }
+    }
+
+    /**
+     * Task that reads from a connection, see {@link #read(ChangeQuery, Object, ReadTask)}
+     *
+     * @param <T> Result type
+     */
+    @FunctionalInterface private interface ReadTask<T> {
+
+        T run(@NotNull Connection connection, int worldId, int sourceId) throws SQLException;
+
+    }
+
+    /**
+     * Get a block state from a result set row. Rows that were written
+     * before the block state dictionary existed, and that have not yet
+     * been migrated, store the full state string instead of an ID
+     *
+     * @param connection Connection used to resolve the state
+     * @param resultSet  Result set positioned at the row
+     * @param column     Either "from" or "to"
+     * @return The block state, or null if it could not be resolved
+     * @throws SQLException If the row cannot be read
+     */
+    private String getBlockState(@NotNull final Connection connection, @NotNull final ResultSet resultSet,
+        @NotNull final String column) throws SQLException {
+        final int id = resultSet.getInt(column + "_id");
+        if (resultSet.wasNull()) {
+            return resultSet.getString(column);
+        }
+        return this.blockStates.getValue(connection, id);
+    }
+
+    /**
+     * Get the change source of a result set row. Rows that have
+     * not been dictionary encoded yet only store the source name
+     *
+     * @param connection Connection used to resolve the actor
+     * @param resultSet  Result set positioned at the row
+     * @return The source, or null if it could not be resolved
+     * @throws SQLException If the row cannot be read
+     */
+    private ChangeSource getSource(@NotNull final Connection connection, @NotNull final ResultSet resultSet)
+        throws SQLException {
+        final int id = resultSet.getInt("source_id");
+        if (resultSet.wasNull()) {
+            return this.sourceFactory.getSource(resultSet.getString("source"));
+        }
+        return this.getSource(connection, id);
+    }
+
+    /**
+     * Get a change source from its actor ID. Sources are
+     * cached, so that every actor is only parsed once
+     *
+     * @param connection Connection used to resolve the actor
+     * @param id         Actor ID
+     * @return The source, or null if it could not be resolved
+     * @throws SQLException If the actor cannot be read
+     */
+    private ChangeSource getSource(@NotNull final Connection connection, final int id) throws SQLException {
+        final ChangeSource cached = this.sources.get(id);
+        if (cached != null) {
+            return cached;
+        }
+        final String name = this.actors.getValue(connection, id);
+        if (name == null) {
+            return null;
+        }
+        final ChangeSource source = this.sourceFactory.getSource(name);
+        if (source != null) {
+            this.sources.put(id, source);
+        }
+        return source;
+    }
+
+    /**
+     * Get the dialect of the database
+     *
+     * @return Dialect
+     */
+    @NotNull public final SQLDialect getDialect() {
+        return this.dialect;
+    }
+
+    /**
+     * Get the runner that applies the schema migrations
+     *
+     * @return Migration runner
+     */
+    @NotNull protected final MigrationRunner getMigrationRunner() {
+        return this.migrationRunner;
+    }
+
+    /**
+     * Get the plugin that owns the logger
+     *
+     * @return Plugin
+     */
+    @NotNull protected final Plugin getPlugin() {
+        return this.plugin;
+    }
+
+    /**
+     * Get the lock that guards the write connection
+     *
+     * @return Write lock
+     */
+    @NotNull protected final ReentrantLock getWriteLock() {
+        return this.writeLock;
+    }
+
+    @Override public void stopLogger() {
+        this.migrationRunner.stop();
+        this.drain();
+    }
+
+}
@@ -0,0 +1,92 @@
+//
+// IronGolem - A Minecraft block logging plugin
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.intellectualsites.irongolem.storage;
+
+import com.google.common.base.Preconditions;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * Schema migrations used by {@link PooledJdbcLogger}. The schema starts out with
+ * dictionary encoded events, so these migrations are not related to the
+ * {@link SQLiteMigrations SQLite migrations}
+ */
+public final class JdbcMigrations {
+
+    /**
+     * Version of the migration after which the block history is complete
+     */
+    static final int BLOCK_HISTORY = 8;
+
+    private JdbcMigrations() {
+    }
+
+    /**
+     * Get the migrations of a server dialect
+     *
+     * @param dialect Dialect
+     * @return Unmodifiable collection of migrations
+     */
+    @NotNull public static Collection<Migration> getMigrations(@NotNull final SQLDialect dialect) {
+        Preconditions.checkNotNull(dialect, "Dialect may not be null");
+        Preconditions.checkArgument(dialect != SQLDialect.SQLITE, "SQLite uses SQLiteMigrations");
+        return Collections.unmodifiableList(Arrays.asList(
+            SQLMigration.of(1, "Create events table", dialect.translate(String.format(
+                "CREATE TABLE IF NOT EXISTS `events`(`event_id` %s, `world` VARCHAR(36) NOT NULL, `world_id` INT, "
+                    + "`x` INT NOT NULL, `y` INT NOT NULL, `z` INT NOT NULL, `timestamp` BIGINT NOT NULL, "
+                    + "`source` VARCHAR(36) NOT NULL, `source_id` INT, `type` VARCHAR(16), `from` %s, `to` %s, "
+                    + "`from_id` INT, `to_id` INT, `old_state` %s, `new_state` %s, `reason` VARCHAR(64))%s",
+                dialect.getEventKey(), dialect.getTextType(), dialect.getTextType(), dialect.getBlobType(),
+                dialect.getBlobType(), dialect.getTableOptions()))),
+            SQLMigration.of(2, "Create dictionaries",
+                createDictionary(dialect, "block_states", "state", dialect.getStateType()),
+                createDictionary(dialect, "worlds", "name", dialect.getNameType()),
+                createDictionary(dialect, "actors", "name", dialect.getNameType())),
+            SQLMigration.background(3, "Index events by world ID and location",
+                dialect.getCreateIndex("events_world_location", "events", "world_id", "x", "z", "y", "timestamp")),
+            SQLMigration.background(4, "Index events by source ID",
+                dialect.getCreateIndex("events_source_id", "events", "source_id", "timestamp")),
+            SQLMigration.background(5, "Index events by reason",
+                dialect.getCreateIndex("events_reason", "events", "reason", "timestamp")),
+            SQLMigration.background(6, "Index events by world ID and time",
+                dialect.getCreateIndex("events_world_time", "events", "world_id", "timestamp", "event_id")),
+            SQLMigration.of(7, "Create block history",
+                dialect.translate(String.format("CREATE TABLE IF NOT EXISTS `block_history`(`world_id` INT NOT NULL, "
+                    + "`x` INT NOT NULL, `y` INT NOT NULL, `z` INT NOT NULL, `first_id` BIGINT NOT NULL, "
+                    + "`last_id` BIGINT NOT NULL, PRIMARY KEY(`world_id`, `x`, `z`, `y`))%s", dialect.getTableOptions()))),
+            // New events are added to the history as they are written, so this only has to cover existing events.
+            // Databases that built the history in version 7 repeat it, which leaves the history unchanged
+            BatchedMigration.of(dialect, BLOCK_HISTORY, "Build block history of existing events", 10000,
+                dialect.getBlockHistoryBackfill("`block_history`", "`events`")),
+            // Covers the event ID, so that the events of a region are ordered by time without reading their rows
+            SQLMigration.background(9, "Index events by world ID, location and time",
+                dialect.getCreateIndex("events_location_time", "events", "world_id", "x", "z", "y", "timestamp", "event_id"),
+                dialect.getDropIndex("events_world_location", "events"))
+        ));
+    }
+
+    @NotNull private static String createDictionary(@NotNull final SQLDialect dialect, @NotNull final String table,
+        @NotNull final String column, @NotNull final String type) {
+        return dialect.translate(String.format("CREATE TABLE IF NOT EXISTS `%s`(`id` %s, `%s` %s NOT NULL UNIQUE)%s",
+            table, dialect.getDictionaryKey(), column, type, dialect.getTableOptions()));
+    }
+
+}
@@ -0,0 +1,69 @@
+//
+// IronGolem - A Minecraft block logging plugin
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.intellectualsites.irongolem.storage;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * A versioned change to the database schema. Migrations are
+ * applied in ascending version order, and every applied version
+ * is recorded so that it is never applied twice
+ */
+public interface Migration {
+
+    /**
+     * Get the schema version that this migration upgrades to
+     *
+     * @return Schema version
+     */
+    int getVersion();
+
+    /**
+     * Get a short, human readable, description of the migration
+     *
+     * @return Migration description
+     */
+    @NotNull String getDescription();
+
+    /**
+     * Whether or not the migration may run in the background, after
+     * the logger has started. Foreground migrations must have been
+     * applied before anything is written to the database
+     *
+     * @return True if the migration runs in the background
+     */
+    default boolean isBackground() {
+        return false;
+    }
+
+    /**
+     * Perform a step of the migration. Every step runs in its own
+     * transaction, which allows long running migrations to be split
+     * up so that they don't block the logger for too long
+     *
+     * @param connection Connection to migrate
+     * @return True if the migration is complete, false if
+     *         it should be invoked again
+     * @throws SQLException If the migration fails
+     */
+    boolean migrate(@NotNull final Connection connection) throws SQLException;
+
+}
@@ -0,0 +1,249 @@
+//
+// IronGolem - A Minecraft block logging plugin
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.intellectualsites.irongolem.storage;
+
+import com.google.common.base.Preconditions;
+import org.bukkit.Bukkit;
+import org.bukkit.plugin.Plugin;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Applies {@link Migration migrations} to a database and keeps
+ * track of the applied versions in the {@code schema_version} table
+ */
+public class MigrationRunner {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MigrationRunner.class);
+
+    private static final String DDL =
+        "CREATE TABLE IF NOT EXISTS `schema_version`(`version` INTEGER NOT NULL PRIMARY KEY, "
+            + "`description` VARCHAR(255) NOT NULL, `applied` BIGINT NOT NULL)";
+
+    private final SQLDialect dialect;
+    private final List<Migration> migrations;
+    private final Lock lock;
+    private final Set<Integer> applied = ConcurrentHashMap.newKeySet();
+
+    private volatile boolean running = true;
+
+    /**
+     * Create a new migration runner
+     *
+     * @param dialect    Dialect of the database
+     * @param migrations Migrations to apply
+     * @param lock       Lock that is held while a migration step is running. This
+     *                   should be the lock that guards writes to the connection
+     */
+    public MigrationRunner(@NotNull final SQLDialect dialect, @NotNull final Collection<Migration> migrations,
+        @NotNull final Lock lock) {
+        this.dialect = Preconditions.checkNotNull(dialect, "Dialect may not be null");
+        this.migrations = new ArrayList<>(Preconditions.checkNotNull(migrations, "Migrations may not be null"));
+        this.migrations.sort(Comparator.comparingInt(Migration::getVersion));
+        this.lock = Preconditions.checkNotNull(lock, "Lock may not be null");
+    }
+
+    /**
+     * Apply all pending foreground migrations. This blocks until all of
+     * them have been applied, and is meant to be called before the logger
+     * starts writing. Only quick schema changes belong here, as the
+     * logger is usually started on the main thread
+     *
+     * @param connection Connection to migrate
+     * @throws SQLException If any of the migrations fail
+     */
+    public void runMigrations(@NotNull final Connection connection) throws SQLException {
+        this.lock.lock();
+        try {
+            final Set<Integer> applied = this.getAppliedVersions(connection);
+            for (final Migration migration : this.migrations) {
+                if (migration.isBackground() || applied.contains(migration.getVersion())) {
+                    continue;
+                }
+                LOGGER.info("Applying migration {}: {}", migration.getVersion(), migration.getDescription());
+                while (!this.step(connection, migration)) {
+                    if (!this.running) {
+                        return;
+                    }
+                }
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Apply all pending background migrations asynchronously. The lock
+     * is released between every migration step, so that the logger
+     * can keep writing while the migrations are running. Migrations that
+     * consist of a single step, such as index builds, hold the lock until
+     * they have finished, while the changes wait in the intake of the logger
+     *
+     * @param plugin     Plugin that schedules the task
+     * @param connection Connection to migrate
+     */
+    public void runBackgroundMigrations(@NotNull final Plugin plugin, @NotNull final Connection connection) {
+        this.runBackgroundMigrations(plugin, connection, () -> {
+        });
+    }
+
+    /**
+     * Apply all pending background migrations asynchronously, see
+     * {@link #runBackgroundMigrations(Plugin, Connection)}
+     *
+     * @param plugin     Plugin that schedules the task
+     * @param connection Connection to migrate
+     * @param whenDone   Task that is run once the migrations have finished, failed or
+     *                   been stopped, such as returning the connection to its pool
+     */
+    public void runBackgroundMigrations(@NotNull final Plugin plugin, @NotNull final Connection connection,
+        @NotNull final Runnable whenDone) {
+        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+            try {
+                final Set<Integer> applied;
+                this.lock.lock();
+                try {
+                    applied = this.getAppliedVersions(connection);
+                } finally {
+                    this.lock.unlock();
+                }
+                for (final Migration migration : this.migrations) {
+                    if (!migration.isBackground() || applied.contains(migration.getVersion())) {
+                        continue;
+                    }
+                    LOGGER.info("Applying background migration {}: {}", migration.getVersion(),
+                        migration.getDescription());
+                    final long start = System.currentTimeMillis();
+                    boolean done;
+                    do {
+                        if (!this.running) {
+                            return;
+                        }
+                        this.lock.lock();
+                        try {
+                            done = this.step(connection, migration);
+                        } finally {
+                            this.lock.unlock();
+                        }
+                    } while (!done);
+                    LOGGER.info("Background migration {} finished in {}ms", migration.getVersion(),
+                        System.currentTimeMillis() - start);
+                }
+            } catch (final SQLException e) {
+                LOGGER.error("Failed to apply background migrations", e);
+            } finally {
+                whenDone.run();
+            }
+        });
+    }
+
+    /**
+     * Get the current schema version. This is the highest
+     * applied migration version
+     *
+     * @param connection Connection to check
+     * @return Schema version, or 0 if no migrations have been applied
+     * @throws SQLException If the version table cannot be read
+     */
+    public int getSchemaVersion(@NotNull final Connection connection) throws SQLException {
+        int version = 0;
+        for (final int applied : this.getAppliedVersions(connection)) {
+            version = Math.max(version, applied);
+        }
+        return version;
+    }
+
+    /**
+     * Whether or not a migration is known to have been applied. This only
+     * reflects versions that this runner has read or applied itself, which
+     * makes it cheap enough to check before every query
+     *
+     * @param version Migration version
+     * @return True if the migration has been applied
+     */
+    public boolean isApplied(final int version) {
+        return this.applied.contains(version);
+    }
+
+    /**
+     * Stop running migrations. Migrations that are in
+     * progress will stop after their current step
+     */
+    public void stop() {
+        this.running = false;
+    }
+
+    @NotNull private Set<Integer> getAppliedVersions(@NotNull final Connection connection) throws SQLException {
+        try (final PreparedStatement statement = connection.prepareStatement(this.dialect.translate(DDL))) {
+            statement.executeUpdate();
+        }
+        final Set<Integer> versions = new HashSet<>();
+        try (final PreparedStatement statement = connection.prepareStatement(
+            this.dialect.translate("SELECT `version` FROM `schema_version`"));
+             final ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+                versions.add(resultSet.getInt("version"));
+            }
+        }
+        this.applied.addAll(versions);
+        return versions;
+    }
+
+    private boolean step(@NotNull final Connection connection, @NotNull final Migration migration)
+        throws SQLException {
+        final boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try {
+            final boolean done = migration.migrate(connection);
+            if (done) {
+                try (final PreparedStatement statement = connection.prepareStatement(this.dialect.translate(
+                    "INSERT INTO `schema_version`(`version`, `description`, `applied`) VALUES(?, ?, ?)"))) {
+                    statement.setInt(1, migration.getVersion());
+                    statement.setString(2, migration.getDescription());
+                    statement.setLong(3, System.currentTimeMillis());
+                    statement.executeUpdate();
+                }
+            }
+            connection.commit();
+            if (done) {
+                this.applied.add(migration.getVersion());
+            }
+            return done;
+        } catch (final SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
+}
@@ -0,0 +1,121 @@
+//
+// IronGolem - A Minecraft block logging plugin
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.intellectualsites.irongolem.storage;
+
+import com.google.common.base.Preconditions;
+import org.jetbrains.annotations.NotNull;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * {@link EventInserter} that writes full chunks of rows using multi-row
+ * insert statements, and batches the remaining rows one by one
+ */
+final class MultiRowInserter implements EventInserter {
+
+    // Older SQLite versions limit statements to 999 parameters
+    private static final int ROWS_PER_INSERT = 64;
+
+    private final PreparedStatement bulkStatement;
+    private final PreparedStatement rowStatement;
+
+    private MultiRowInserter(@NotNull final PreparedStatement bulkStatement,
+        @NotNull final PreparedStatement rowStatement) {
+        this.bulkStatement = bulkStatement;
+        this.rowStatement = rowStatement;
+    }
+
+    /**
+     * Prepare an inserter for an events table
+     *
+     * @param connection Connection that the rows will be inserted through
+     * @param dialect    Dialect of the database
+     * @param table      Events table, optionally qualified by its schema
+     * @return Prepared inserter
+     * @throws SQLException If the statements cannot be prepared
+     */
+    @NotNull static MultiRowInserter prepare(@NotNull final Connection connection, @NotNull final SQLDialect dialect,
+        @NotNull final String table) throws SQLException {
+        Preconditions.checkNotNull(connection, "Connection may not be null");
+        Preconditions.checkNotNull(dialect, "Dialect may not be null");
+        Preconditions.checkNotNull(table, "Table may not be null");
+        final PreparedStatement bulkStatement = connection.prepareStatement(
+            dialect.translate(createInsert(table, ROWS_PER_INSERT)));
+        try {
+            return new MultiRowInserter(bulkStatement, connection.prepareStatement(dialect.translate(createInsert(table, 1))));
+        } catch (final SQLException e) {
+            bulkStatement.close();
+            throw e;
+        }
+    }
+
+    @Override public void insert(@NotNull final List<Object[]> rows) throws SQLException {
+        int index = 0;
+        // Full chunks are written using multi-row inserts
+        for (; index + ROWS_PER_INSERT <= rows.size(); index += ROWS_PER_INSERT) {
+            int parameter = 1;
+            for (int row = index; row < index + ROWS_PER_INSERT; row++) {
+                for (final Object value : rows.get(row)) {
+                    this.bulkStatement.setObject(parameter++, value);
+                }
+            }
+            this.bulkStatement.executeUpdate();
+        }
+        // The remaining rows are batched one by one
+        if (index < rows.size()) {
+            for (; index < rows.size(); index++) {
+                int parameter = 1;
+                for (final Object value : rows.get(index)) {
+                    this.rowStatement.setObject(parameter++, value);
+                }
+                this.rowStatement.addBatch();
+            }
+            this.rowStatement.executeBatch();
+        }
+    }
+
+    @Override public void close() throws SQLException {
+        try {
+            this.bulkStatement.close();
+        } finally {
+            this.rowStatement.close();
+        }
+    }
+
+    /**
+     * Create the insert statement for a given number of rows
+     *
+     * @param table Table to insert into
+     * @param rows  Number of rows
+     * @return Insert statement
+     */
+    @NotNull private static String createInsert(@NotNull final String table, final int rows) {
+        final StringBuilder builder = new StringBuilder("INSERT INTO ").append(table).append(COLUMNS).append(" VALUES");
+        for (int i = 0; i < rows; i++) {
+            if (i > 0) {
+                builder.append(", ");
+            }
+            builder.append(ROW);
+        }
+        return builder.toString();
+    }
+
+}
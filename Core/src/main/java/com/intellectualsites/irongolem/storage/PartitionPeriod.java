@@ -0,0 +1,68 @@
+//
+// IronGolem - A Minecraft block logging plugin
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.intellectualsites.irongolem.storage;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.temporal.TemporalAdjusters;
+
+/**
+ * The period of time that is covered by a single
+ * {@link PartitionedSQLiteLogger partition}. Periods
+ * are aligned to UTC dates
+ */
+public enum PartitionPeriod {
+    DAILY {
+        @NotNull @Override LocalDate getStart(@NotNull final LocalDate date) {
+            return date;
+        }
+    },
+    WEEKLY {
+        @NotNull @Override LocalDate getStart(@NotNull final LocalDate date) {
+            return date.with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY));
+        }
+    },
+    MONTHLY {
+        @NotNull @Override LocalDate getStart(@NotNull final LocalDate date) {
+            return date.withDayOfMonth(1);
+        }
+    };
+
+    /**
+     * Get the first date of the period that contains a date
+     *
+     * @param date Date
+     * @return Start of the period
+     */
+    @NotNull abstract LocalDate getStart(@NotNull final LocalDate date);
+
+    /**
+     * Get the first date of the period that contains a timestamp
+     *
+     * @param timestamp Unix timestamp (in milliseconds)
+     * @return Start of the period
+     */
+    @NotNull public LocalDate getStart(final long timestamp) {
+        return this.getStart(Instant.ofEpochMilli(timestamp).atZone(ZoneOffset.UTC).toLocalDate());
+    }
+
+}
@@ -0,0 +1,703 @@
+//
+// IronGolem - A Minecraft block logging plugin
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.intellectualsites.irongolem.storage;
+
+import com.google.common.base.Preconditions;
+import com.intellectualsites.irongolem.changes.Change;
+import com.intellectualsites.irongolem.changes.ChangeQuery;
+import com.intellectualsites.irongolem.changes.ChangeSummary;
+import com.intellectualsites.irongolem.changes.SummaryField;
+import com.intellectualsites.irongolem.logging.ChangeBuffer;
+import com.intellectualsites.irongolem.logging.ChangeIntake;
+import com.intellectualsites.irongolem.logging.FlushPolicy;
+import org.bukkit.Location;
+import org.bukkit.plugin.Plugin;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+
+/**
+ * {@link SQLiteLogger} that writes events to one SQLite file per {@link PartitionPeriod period}.
+ * <p>
+ * Dictionaries stay in the main database, and the partitions are attached to the
+ * connections when they are needed. The writer keeps the current and the previous
+ * partition attached, and queries only attach the partitions that overlap the
+ * queried time range. Old history can be removed by {@link #dropPartitions(long) dropping}
+ * entire partitions, rather than by deleting rows.
+ * <p>
+ * Events that were logged before partitioning was enabled remain in the main database,
+ * and are treated as the oldest partition. SQLite only commits each attached database
+ * atomically in WAL mode, so a crash during a commit may leave events that refer to
+ * dictionary entries that were never committed. Such events are skipped by queries.
+ * <p>
+ * Queries attach partitions while holding the read lock of the partition lock, and
+ * the files of dropped partitions are only deleted while holding its write lock.
+ * Whenever both are needed, the partition lock is acquired before the write lock
+ * of the logger, and never while holding it
+ */
+public class PartitionedSQLiteLogger extends SQLiteLogger {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PartitionedSQLiteLogger.class);
+
+    private static final String FILE_PREFIX = "events-";
+    private static final String FILE_SUFFIX = ".db";
+    private static final String[] FILE_EXTENSIONS = new String[] {"", "-wal", "-shm", "-journal"};
+    private static final Collection<String> PARTITION_SCHEMA = Arrays.asList(
+        "CREATE TABLE IF NOT EXISTS `%s`.`events`(`event_id` INTEGER CONSTRAINT `events_pk` PRIMARY KEY AUTOINCREMENT, "
+            + "`world` VARCHAR(36) NOT NULL, `x` INTEGER NOT NULL, `y` INTEGER NOT NULL, `z` INTEGER NOT NULL, "
+            + "`timestamp` INTEGER NOT NULL, `source` VARCHAR(36) NOT NULL, `type` VARCHAR(16), `from` TEXT, "
+            + "`to` TEXT, `old_state` BLOB, `new_state` BLOB, `reason` VARCHAR(64), `from_id` INTEGER, `to_id` INTEGER, "
+            + "`world_id` INTEGER, `source_id` INTEGER)",
+        "CREATE INDEX IF NOT EXISTS `%s`.`events_world_location` ON `events`(`world_id`, `x`, `z`, `y`, `timestamp`)",
+        "CREATE INDEX IF NOT EXISTS `%s`.`events_source_id` ON `events`(`source_id`, `timestamp`)",
+        "CREATE INDEX IF NOT EXISTS `%s`.`events_reason` ON `events`(`reason`, `timestamp`)",
+        "CREATE INDEX IF NOT EXISTS `%s`.`events_world_time` ON `events`(`world_id`, `timestamp`, `event_id`)",
+        "CREATE TABLE IF NOT EXISTS `%s`.`block_history`(`world_id` INTEGER NOT NULL, `x` INTEGER NOT NULL, "
+            + "`y` INTEGER NOT NULL, `z` INTEGER NOT NULL, `first_id` INTEGER NOT NULL, `last_id` INTEGER NOT NULL, "
+            + "PRIMARY KEY(`world_id`, `x`, `z`, `y`)) WITHOUT ROWID");
+
+    private final NavigableMap<LocalDate, File> partitions = new ConcurrentSkipListMap<>();
+    // Partitions that are known to have a complete block history
+    private final Set<LocalDate> histories = ConcurrentHashMap.newKeySet();
+    // Guarded by the write lock
+    private final NavigableMap<LocalDate, EventInserter> attached = new TreeMap<>();
+    private final List<Object[]> partitionRows = new ArrayList<>();
+    // Partitions that have to be attached before the next transaction. Guarded by the write lock
+    private final Set<LocalDate> missing = new HashSet<>();
+    private final ReadWriteLock partitionLock = new ReentrantReadWriteLock();
+
+    private final PartitionPeriod period;
+    private final File directory;
+    private volatile long legacyEnd;
+
+    public PartitionedSQLiteLogger(@NotNull final Plugin plugin, @NotNull final FlushPolicy flushPolicy,
+        @NotNull final ChangeIntake changeIntake, @NotNull final PartitionPeriod period) throws Exception {
+        super(plugin, flushPolicy, changeIntake);
+        this.period = Preconditions.checkNotNull(period, "Period may not be null");
+        this.directory = new File(plugin.getDataFolder(), "partitions");
+    }
+
+    /**
+     * Get the period that is covered by every new partition
+     *
+     * @return Partition period
+     */
+    @NotNull public PartitionPeriod getPeriod() {
+        return this.period;
+    }
+
+    /**
+     * Get the number of partitions
+     *
+     * @return Number of partition files
+     */
+    public int getPartitionCount() {
+        return this.partitions.size();
+    }
+
+    /**
+     * Drop every partition that only contains changes made before
+     * a given time. The current partition is never dropped
+     *
+     * @param timestamp Unix timestamp (in milliseconds)
+     * @return Number of dropped partitions
+     * @throws SQLException If a partition cannot be detached
+     */
+    public int dropPartitions(final long timestamp) throws SQLException {
+        final List<File> dropped = new ArrayList<>();
+        // Waits for the queries that have one of the partitions attached. This
+        // happens before the write lock is taken, so that logging never waits for queries
+        this.partitionLock.writeLock().lock();
+        try {
+            this.getWriteLock().lock();
+            try {
+                for (final Map.Entry<LocalDate, File> entry : this.partitions.entrySet()) {
+                    final LocalDate next = this.partitions.higherKey(entry.getKey());
+                    if (next == null || getStart(next) > timestamp) {
+                        break;
+                    }
+                    final EventInserter inserter = this.attached.remove(entry.getKey());
+                    if (inserter != null) {
+                        this.detach(this.getWriteConnection(), entry.getKey(), inserter);
+                    }
+                    this.partitions.remove(entry.getKey());
+                    this.histories.remove(entry.getKey());
+                    dropped.add(entry.getValue());
+                }
+            } finally {
+                this.getWriteLock().unlock();
+            }
+            for (final File partition : dropped) {
+                for (final String extension : FILE_EXTENSIONS) {
+                    final File file = new File(partition.getPath() + extension);
+                    if (file.exists() && !file.delete()) {
+                        LOGGER.warn("Failed to delete {}", file);
+                    }
+                }
+                LOGGER.info("Dropped partition {}", partition.getName());
+            }
+        } finally {
+            this.partitionLock.writeLock().unlock();
+        }
+        return dropped.size();
+    }
+
+    @Override protected void acquireWriteConnection() throws SQLException {
+        final Connection connection = this.getWriteConnection();
+        final LocalDate current = this.period.getStart(System.currentTimeMillis());
+        if (!this.attached.containsKey(current)) {
+            // Changes that were queued before the period ended still go into the
+            // previous partition, so that one is kept around as well
+            final LocalDate previous = this.partitions.lowerKey(current);
+            final Iterator<Map.Entry<LocalDate, EventInserter>> iterator = this.attached.entrySet().iterator();
+            while (iterator.hasNext()) {
+                final Map.Entry<LocalDate, EventInserter> entry = iterator.next();
+                if (!entry.getKey().equals(previous)) {
+                    iterator.remove();
+                    this.detach(connection, entry.getKey(), entry.getValue());
+                }
+            }
+            if (previous != null && !this.attached.containsKey(previous)) {
+                this.attach(connection, previous);
+            }
+            this.attach(connection, current);
+        }
+        // Partitions can only be attached outside of a transaction, so changes for other
+        // partitions fail their batch, and are retried once their partitions are attached.
+        // Every partition is only tried once, so that one that cannot be attached does
+        // not keep the writer from logging anything else
+        final List<LocalDate> partitions = new ArrayList<>(this.missing);
+        this.missing.clear();
+        for (final LocalDate partition : partitions) {
+            if (!this.attached.containsKey(partition)) {
+                this.attach(connection, partition);
+            }
+        }
+    }
+
+    @Override protected void insertRows(@NotNull final List<Object[]> rows) throws SQLException {
+        for (final Object[] row : rows) {
+            if (this.getTarget((Long) row[4]) == null) {
+                this.missing.add(this.getPartition((Long) row[4]));
+            }
+        }
+        if (!this.missing.isEmpty()) {
+            throw new SQLException(String.format("Partitions %s are not attached", this.missing));
+        }
+        // Rows are grouped by partition. All of them will
+        // usually end up in the current partition
+        LocalDate partition = null;
+        for (final Object[] row : rows) {
+            final LocalDate target = this.getTarget((Long) row[4]);
+            if (!target.equals(partition) && !this.partitionRows.isEmpty()) {
+                this.insertPartitionRows(partition);
+            }
+            partition = target;
+            this.partitionRows.add(row);
+        }
+        if (partition != null) {
+            this.insertPartitionRows(partition);
+        }
+    }
+
+    @Override protected void queryChanges(@NotNull final Connection connection, @NotNull final ChangeQuery query,
+        final int worldId, final int sourceId, @NotNull final ChangeBuffer buffer) throws SQLException {
+        // Partitions that only contain changes newer than the previous page are skipped
+        final long before = query.getPageToken() == null ? query.getBefore() :
+            Math.min(query.getBefore(), query.getPageToken().getTimestamp() + 1L);
+        final List<LocalDate> candidates = this.getCandidates(query.getSince(), before);
+        final boolean legacy = this.legacyEnd > query.getSince();
+        if (query.shouldUseDistinct()) {
+            // The oldest value at every location is wanted, so
+            // partitions are searched from oldest to newest
+            final Set<Location> locations = new HashSet<>();
+            final Predicate<Change> sink = change ->
+                locations.add(change.getLocation()) ? buffer.add(change) : !buffer.isDone();
+            if (legacy) {
+                this.queryEvents(connection, EVENTS, this.isBlockHistoryReady() ? BLOCK_HISTORY : null, query, worldId,
+                    sourceId, query.getLimit(), sink);
+            }
+            for (int i = 0; i < candidates.size() && !buffer.isDone(); i++) {
+                this.queryPartition(connection, candidates.get(i), query, worldId, sourceId, query.getLimit(), sink);
+            }
+        } else {
+            for (int i = candidates.size() - 1; i >= 0 && !buffer.isDone(); i--) {
+                this.queryPartition(connection, candidates.get(i), query, worldId, sourceId, buffer.getRemaining(),
+                    buffer::add);
+            }
+            if (legacy && !buffer.isDone()) {
+                this.queryEvents(connection, EVENTS, null, query, worldId, sourceId, buffer.getRemaining(), buffer::add);
+            }
+        }
+    }
+
+    @Override protected void summarizeChanges(@NotNull final Connection connection, @NotNull final ChangeQuery query,
+        final int worldId, final int sourceId, @NotNull final List<SummaryField> fields,
+        @NotNull final ChangeSummary.Builder builder) throws SQLException {
+        if (this.legacyEnd > query.getSince()) {
+            super.summarizeChanges(connection, query, worldId, sourceId, fields, builder);
+        }
+        for (final LocalDate partition : this.getCandidates(query.getSince(), query.getBefore())) {
+            this.partitionLock.readLock().lock();
+            try {
+                final File file = this.partitions.get(partition);
+                if (file == null || !file.exists()) {
+                    continue;
+                }
+                final String schema = getSchema(partition);
+                attachFile(connection, schema, file);
+                try {
+                    this.summarizeEvents(connection, getTable(schema), query, worldId, sourceId, fields, builder);
+                } finally {
+                    detachSchema(connection, schema);
+                }
+            } finally {
+                this.partitionLock.readLock().unlock();
+            }
+        }
+    }
+
+    @Override public int purge(@NotNull final RetentionRule rule, final long cutoff, final int limit) throws SQLException {
+        if (rule.isGlobal()) {
+            // Partitions that have expired entirely are dropped, rather than emptied.
+            // This is done before the purge takes the write lock, see the lock order
+            this.dropPartitions(cutoff);
+        }
+        return super.purge(rule, cutoff, limit);
+    }
+
+    @Override protected int purge(@NotNull final Connection connection, @NotNull final RetentionRule rule,
+        final int worldId, final long cutoff, final int limit) throws SQLException {
+        final int purged = super.purge(connection, rule, worldId, cutoff, limit);
+        if (purged > 0) {
+            return purged;
+        }
+        for (final Map.Entry<LocalDate, File> entry : this.partitions.headMap(this.period.getStart(cutoff), true).entrySet()) {
+            final String schema = getSchema(entry.getKey());
+            final int deleted;
+            if (this.attached.containsKey(entry.getKey())) {
+                deleted = this.purgeEvents(connection, getTable(schema), getHistory(schema), rule, worldId, cutoff, limit);
+            } else {
+                attachFile(connection, schema, entry.getValue());
+                try {
+                    deleted = this.purgeEvents(connection, getTable(schema),
+                        this.hasHistory(connection, entry.getKey()) ? getHistory(schema) : null, rule, worldId, cutoff, limit);
+                } finally {
+                    detachSchema(connection, schema);
+                }
+            }
+            if (deleted > 0) {
+                return deleted;
+            }
+        }
+        return 0;
+    }
+
+    @Override public boolean startLogging() {
+        if (!this.directory.exists() && !this.directory.mkdirs()) {
+            LOGGER.error("Failed to create partition directory");
+            return false;
+        }
+        final File[] files = this.directory.listFiles((directory, name) ->
+            name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX));
+        if (files != null) {
+            for (final File file : files) {
+                final String name = file.getName();
+                try {
+                    this.partitions.put(LocalDate.parse(name.substring(FILE_PREFIX.length(),
+                        name.length() - FILE_SUFFIX.length()), DateTimeFormatter.ISO_LOCAL_DATE), file);
+                } catch (final DateTimeParseException e) {
+                    LOGGER.warn("Ignoring unknown partition file {}", name);
+                }
+            }
+        }
+        if (!super.startLogging()) {
+            return false;
+        }
+        // Events that were logged before partitioning was enabled are only
+        // queried when the time range reaches back far enough. This reads
+        // through the read pool, as a background index build may be holding
+        // the write lock, and the logger is started on the main thread
+        final Connection connection;
+        try {
+            connection = this.openReadConnection();
+        } catch (final SQLException e) {
+            LOGGER.error("Failed to read the legacy events table", e);
+            return false;
+        }
+        try (final PreparedStatement statement = connection
+            .prepareStatement("SELECT `timestamp` FROM `events` ORDER BY `event_id` DESC LIMIT 1");
+             final ResultSet resultSet = statement.executeQuery()) {
+            this.legacyEnd = resultSet.next() ? resultSet.getLong(1) + 1L : 0L;
+        } catch (final SQLException e) {
+            LOGGER.error("Failed to read the legacy events table", e);
+            return false;
+        } finally {
+            this.closeReadConnection(connection);
+        }
+        LOGGER.info("Found {} partition(s)", this.partitions.size());
+        return true;
+    }
+
+    @Override public void stopLogger() {
+        // Queued changes may still have to be written to the attached partitions
+        this.drain();
+        this.getWriteLock().lock();
+        try {
+            for (final Map.Entry<LocalDate, EventInserter> entry : this.attached.entrySet()) {
+                try {
+                    this.detach(this.getWriteConnection(), entry.getKey(), entry.getValue());
+                } catch (final SQLException e) {
+                    LOGGER.error("Failed to detach partition {}", entry.getKey(), e);
+                }
+            }
+            this.attached.clear();
+        } finally {
+            this.getWriteLock().unlock();
+        }
+        super.stopLogger();
+    }
+
+    /**
+     * Get the partitions that overlap a time range
+     *
+     * @param since  Inclusive lower bound (unix timestamp, in milliseconds)
+     * @param before Exclusive upper bound (unix timestamp, in milliseconds)
+     * @return Partition starts, oldest first
+     */
+    @NotNull private List<LocalDate> getCandidates(final long since, final long before) {
+        final List<LocalDate> candidates = new ArrayList<>();
+        for (final Map.Entry<LocalDate, File> entry : this.partitions.entrySet()) {
+            final LocalDate next = this.partitions.higherKey(entry.getKey());
+            if (getStart(entry.getKey()) < before && (next == null || getStart(next) > since)) {
+                candidates.add(entry.getKey());
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Query a single partition. The partition is attached to the connection
+     * for the duration of the query, during which it cannot be dropped
+     *
+     * @param connection Read connection
+     * @param partition  Partition start
+     * @param query      Query
+     * @param worldId    ID of the queried world
+     * @param sourceId   ID of the queried source, or -1 if any source matches
+     * @param limit      Maximum number of changes
+     * @param sink       Receives the matching changes
+     * @throws SQLException If the partition cannot be read
+     */
+    private void queryPartition(@NotNull final Connection connection, @NotNull final LocalDate partition,
+        @NotNull final ChangeQuery query, final int worldId, final int sourceId, final int limit,
+        @NotNull final Predicate<Change> sink) throws SQLException {
+        this.partitionLock.readLock().lock();
+        try {
+            final File file = this.partitions.get(partition);
+            if (file == null || !file.exists()) {
+                // The partition was dropped after the query started
+                return;
+            }
+            final String schema = getSchema(partition);
+            attachFile(connection, schema, file);
+            try {
+                this.queryEvents(connection, getTable(schema), this.hasHistory(connection, partition) ? getHistory(schema) : null,
+                    query, worldId, sourceId, limit, sink);
+            } finally {
+                detachSchema(connection, schema);
+            }
+        } finally {
+            this.partitionLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Insert the collected rows into a partition
+     *
+     * @param partition Partition start
+     * @throws SQLException If the rows cannot be inserted
+     */
+    private void insertPartitionRows(@NotNull final LocalDate partition) throws SQLException {
+        final String schema = getSchema(partition);
+        try {
+            final long after = this.getLastEventId(this.getWriteConnection(), getTable(schema));
+            this.attached.get(partition).insert(this.partitionRows);
+            this.updateBlockHistory(this.getWriteConnection(), getTable(schema), getHistory(schema), after);
+        } finally {
+            this.partitionRows.clear();
+        }
+    }
+
+    /**
+     * Get the attached partition that a change should be written to. Every
+     * partition covers the time until the start of the next partition
+     *
+     * @param timestamp Change timestamp
+     * @return Partition start, or null if the partition that covers the change is not attached. This
+     *         only happens to changes that were queued for longer than an entire period, or when
+     *         the clock went backwards. Such changes fail their batch, see {@link #insertRows(List)}
+     */
+    @Nullable private LocalDate getTarget(final long timestamp) {
+        final LocalDate target = this.attached.floorKey(this.period.getStart(timestamp));
+        if (target == null) {
+            return null;
+        }
+        final LocalDate next = this.partitions.higherKey(target);
+        if (next != null && getStart(next) <= timestamp) {
+            return null;
+        }
+        return target;
+    }
+
+    /**
+     * Get the partition that a change belongs in, which is the existing partition that
+     * covers it, or a new partition for its period if no partition covers it
+     *
+     * @param timestamp Change timestamp
+     * @return Partition start
+     */
+    @NotNull private LocalDate getPartition(final long timestamp) {
+        final LocalDate start = this.period.getStart(timestamp);
+        final LocalDate existing = this.partitions.floorKey(start);
+        return existing == null ? start : existing;
+    }
+
+    /**
+     * Attach a partition to the write connection, and create it if it
+     * does not yet exist. Must not be called during a transaction
+     *
+     * @param connection Write connection
+     * @param partition  Partition start
+     * @throws SQLException If the partition cannot be attached
+     */
+    private void attach(@NotNull final Connection connection, @NotNull final LocalDate partition) throws SQLException {
+        final File file = new File(this.directory, FILE_PREFIX + partition.format(DateTimeFormatter.ISO_LOCAL_DATE) + FILE_SUFFIX);
+        final String schema = getSchema(partition);
+        attachFile(connection, schema, file);
+        try (final Statement statement = connection.createStatement()) {
+            // Has to be set before the events table is created
+            statement.execute(String.format("PRAGMA `%s`.auto_vacuum = INCREMENTAL", schema));
+            statement.execute(String.format("PRAGMA `%s`.journal_mode = WAL", schema));
+            statement.execute(String.format("PRAGMA `%s`.synchronous = NORMAL", schema));
+            final boolean history = this.hasHistory(connection, partition);
+            connection.setAutoCommit(false);
+            try {
+                for (final String query : PARTITION_SCHEMA) {
+                    statement.execute(String.format(query, schema));
+                }
+                if (!history) {
+                    // Partitions that were created before the block history existed get it
+                    // built once, which is a no-op for partitions that were just created
+                    this.updateBlockHistory(connection, getTable(schema), getHistory(schema), 0L);
+                }
+                // Event IDs continue where the previous partition left off,
+                // so that they remain unique across all partitions
+                try (final PreparedStatement sequence = connection.prepareStatement(String.format(
+                    "INSERT INTO `%1$s`.`sqlite_sequence`(`name`, `seq`) SELECT 'events', ? WHERE NOT EXISTS "
+                        + "(SELECT 1 FROM `%1$s`.`sqlite_sequence` WHERE `name` = 'events')", schema))) {
+                    sequence.setLong(1, this.getSequence(connection));
+                    sequence.executeUpdate();
+                }
+                connection.commit();
+            } catch (final SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+            this.histories.add(partition);
+            this.attached.put(partition, this.getDialect().createInserter(connection, getTable(schema)));
+        } catch (final SQLException e) {
+            detachSchema(connection, schema);
+            throw e;
+        }
+        if (this.partitions.put(partition, file) == null) {
+            LOGGER.info("Created partition {}", file.getName());
+        }
+    }
+
+    /**
+     * Detach a partition from the write connection
+     *
+     * @param connection Write connection
+     * @param partition  Partition start
+     * @param inserter   Inserter of the partition
+     * @throws SQLException If the partition cannot be detached
+     */
+    private void detach(@NotNull final Connection connection, @NotNull final LocalDate partition,
+        @NotNull final EventInserter inserter) throws SQLException {
+        inserter.close();
+        detachSchema(connection, getSchema(partition));
+    }
+
+    /**
+     * Whether or not an attached partition has a complete block history. Partitions
+     * that were created before the block history existed only get one once they
+     * are attached by the writer again
+     *
+     * @param connection Connection that the partition is attached to
+     * @param partition  Partition start
+     * @return True if the block history can be queried
+     * @throws SQLException If the schema cannot be read
+     */
+    private boolean hasHistory(@NotNull final Connection connection, @NotNull final LocalDate partition)
+        throws SQLException {
+        if (this.histories.contains(partition)) {
+            return true;
+        }
+        try (final PreparedStatement statement = connection.prepareStatement(String.format(
+            "SELECT 1 FROM `%s`.`sqlite_master` WHERE `type` = 'table' AND `name` = 'block_history'", getSchema(partition)));
+             final ResultSet resultSet = statement.executeQuery()) {
+            if (!resultSet.next()) {
+                return false;
+            }
+        }
+        this.histories.add(partition);
+        return true;
+    }
+
+    /**
+     * Attach a database file to a connection
+     *
+     * @param connection Connection
+     * @param schema     Schema name
+     * @param file       Database file
+     * @throws SQLException If the file cannot be attached
+     */
+    private static void attachFile(@NotNull final Connection connection, @NotNull final String schema,
+        @NotNull final File file) throws SQLException {
+        try (final PreparedStatement statement = connection.prepareStatement(String.format("ATTACH DATABASE ? AS `%s`", schema))) {
+            statement.setString(1, file.getPath());
+            statement.execute();
+        }
+    }
+
+    /**
+     * Detach a database from a connection
+     *
+     * @param connection Connection
+     * @param schema     Schema name
+     * @throws SQLException If the database cannot be detached
+     */
+    private static void detachSchema(@NotNull final Connection connection, @NotNull final String schema)
+        throws SQLException {
+        try (final Statement statement = connection.createStatement()) {
+            statement.execute(String.format("DETACH DATABASE `%s`", schema));
+        }
+    }
+
+    /**
+     * Get the highest event ID that has been used by the main
+     * database, or any of the attached partitions
+     *
+     * @param connection Write connection
+     * @return Highest event ID
+     * @throws SQLException If the sequences cannot be read
+     */
+    private long getSequence(@NotNull final Connection connection) throws SQLException {
+        final List<String> schemas = new ArrayList<>();
+        schemas.add("main");
+        for (final LocalDate partition : this.attached.keySet()) {
+            schemas.add(getSchema(partition));
+        }
+        long sequence = 0L;
+        for (final String schema : schemas) {
+            // The sequence still counts events that have been purged, but a clustered
+            // events table has no sequence, so its highest event ID is used as well
+            for (final String query : Arrays.asList("SELECT MAX(`event_id`) FROM `%s`.`events`",
+                "SELECT `seq` FROM `%s`.`sqlite_sequence` WHERE `name` = 'events'")) {
+                try (final PreparedStatement statement = connection.prepareStatement(String.format(query, schema));
+                     final ResultSet resultSet = statement.executeQuery()) {
+                    if (resultSet.next()) {
+                        sequence = Math.max(sequence, resultSet.getLong(1));
+                    }
+                }
+            }
+        }
+        return sequence;
+    }
+
+    /**
+     * Get the name of the schema that a partition is attached as
+     *
+     * @param partition Partition start
+     * @return Schema name
+     */
+    @NotNull private static String getSchema(@NotNull final LocalDate partition) {
+        return "partition_" + partition.format(DateTimeFormatter.BASIC_ISO_DATE);
+    }
+
+    /**
+     * Get the events table of an attached partition
+     *
+     * @param schema Schema name
+     * @return Qualified events table
+     */
+    @NotNull private static String getTable(@NotNull final String schema) {
+        return String.format("`%s`.`events`", schema);
+    }
+
+    /**
+     * Get the block history of an attached partition
+     *
+     * @param schema Schema name
+     * @return Qualified block history table
+     */
+    @NotNull private static String getHistory(@NotNull final String schema) {
+        return String.format("`%s`.`block_history`", schema);
+    }
+
+    /**
+     * Get the time at which a partition starts
+     *
+     * @param partition Partition start
+     * @return Unix timestamp (in milliseconds)
+     */
+    private static long getStart(@NotNull final LocalDate partition) {
+        return partition.atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+    }
+
+}
@@ -0,0 +1,171 @@
+//
+// IronGolem - A Minecraft block logging plugin
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.intellectualsites.irongolem.storage;
+
+import com.google.common.base.Preconditions;
+import com.intellectualsites.irongolem.logging.ChangeIntake;
+import com.intellectualsites.irongolem.logging.FlushPolicy;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import org.bukkit.plugin.Plugin;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * {@link JdbcLogger} that logs to a database server (or an embedded H2 database)
+ * through a pool of connections.
+ * <p>
+ * The flush task borrows a connection for every transaction, so that a connection
+ * that was lost is replaced by the pool rather than breaking the logger. Rows are
+ * written using the bulk insert mechanism of the {@link SQLDialect dialect}
+ */
+public class PooledJdbcLogger extends JdbcLogger {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PooledJdbcLogger.class);
+
+    private final HikariConfig config;
+    private HikariDataSource dataSource;
+    // Guarded by the write lock
+    private Connection connection;
+    private EventInserter inserter;
+
+    /**
+     * Create a new logger
+     *
+     * @param plugin       Plugin that owns the logger
+     * @param flushPolicy  Flush policy
+     * @param changeIntake Intake that changes are queued in
+     * @param dialect      Dialect of the database
+     * @param config       Pool configuration, containing the URL and credentials
+     *                     of the database. The dialect specific driver settings
+     *                     are added to the configuration
+     */
+    public PooledJdbcLogger(@NotNull final Plugin plugin, @NotNull final FlushPolicy flushPolicy,
+        @NotNull final ChangeIntake changeIntake, @NotNull final SQLDialect dialect, @NotNull final HikariConfig config) {
+        super(plugin, flushPolicy, changeIntake, dialect);
+        Preconditions.checkArgument(dialect != SQLDialect.SQLITE, "SQLite is not supported by the pooled logger");
+        this.config = Preconditions.checkNotNull(config, "Config may not be null");
+        dialect.configure(this.config);
+    }
+
+    @Override protected void acquireWriteConnection() throws SQLException {
+        this.connection = this.dataSource.getConnection();
+    }
+
+    @Override protected void releaseWriteConnection() throws SQLException {
+        try {
+            if (this.inserter != null) {
+                this.inserter.close();
+            }
+        } finally {
+            this.inserter = null;
+            try {
+                if (this.connection != null) {
+                    this.connection.close();
+                }
+            } finally {
+                this.connection = null;
+            }
+        }
+    }
+
+    @Override protected void insertRows(@NotNull final List<Object[]> rows) throws SQLException {
+        if (this.inserter == null) {
+            // Statements are cached by the driver, so preparing them per transaction is cheap
+            this.inserter = this.getDialect().createInserter(this.getWriteConnection(), EVENTS);
+        }
+        // Servers that share the database may add each other's events too, which is harmless
+        final long after = this.getLastEventId(this.getWriteConnection(), EVENTS);
+        this.inserter.insert(rows);
+        this.updateBlockHistory(this.getWriteConnection(), EVENTS, BLOCK_HISTORY, after);
+    }
+
+    @Override protected Connection getWriteConnection() {
+        return this.connection;
+    }
+
+    @NotNull @Override protected Connection openReadConnection() throws SQLException {
+        final Connection connection = this.dataSource.getConnection();
+        if (this.getDialect() == SQLDialect.POSTGRESQL) {
+            // PostgreSQL only fetches results in chunks inside of a transaction. The
+            // pool rolls the transaction back when the connection is returned
+            try {
+                connection.setAutoCommit(false);
+            } catch (final SQLException e) {
+                connection.close();
+                throw e;
+            }
+        }
+        return connection;
+    }
+
+    @Override protected void closeReadConnection(@NotNull final Connection connection) {
+        try {
+            connection.close();
+        } catch (final SQLException e) {
+            LOGGER.error("Failed to return a connection to the pool", e);
+        }
+    }
+
+    @Override public boolean startLogging() {
+        try {
+            this.dataSource = new HikariDataSource(this.config);
+        } catch (final Exception e) {
+            LOGGER.error("Failed to connect to the {} database", this.getDialect().name().toLowerCase(Locale.ENGLISH), e);
+            return false;
+        }
+        try (final Connection connection = this.dataSource.getConnection()) {
+            this.migrate(connection);
+        } catch (final Exception e) {
+            LOGGER.error("Failed to migrate the database", e);
+            return false;
+        }
+        // Index builds and backfills may take a long time on large databases, so they are done
+        // after the logger has started, on a connection that is returned to the pool once they finish
+        final Connection connection;
+        try {
+            connection = this.dataSource.getConnection();
+        } catch (final SQLException e) {
+            LOGGER.error("Failed to borrow a connection for the background migrations", e);
+            return false;
+        }
+        this.getMigrationRunner().runBackgroundMigrations(this.getPlugin(), connection,
+            () -> this.closeReadConnection(connection));
+        return true;
+    }
+
+    @Override public void stopLogger() {
+        super.stopLogger();
+        // Waits for a purge, or a step of a background migration, to finish
+        this.getWriteLock().lock();
+        try {
+            if (this.dataSource != null) {
+                this.dataSource.close();
+            }
+        } finally {
+            this.getWriteLock().unlock();
+        }
+    }
+
+}
@@ -0,0 +1,56 @@
+//
+// IronGolem - A Minecraft block logging plugin
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.intellectualsites.irongolem.storage;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A logger that expired changes can be purged from by a {@link RetentionManager}
+ */
+public interface PurgeableLogger {
+
+    /**
+     * Delete a batch of changes that have expired according to a rule
+     *
+     * @param rule   Retention rule
+     * @param cutoff Changes before this time are expired (unix timestamp, in milliseconds)
+     * @param limit  Maximum number of changes to delete. Loggers that can only
+     *               remove entire files may delete more changes at once
+     * @return Number of deleted changes
+     * @throws Exception If the changes cannot be deleted
+     */
+    int purge(@NotNull RetentionRule rule, long cutoff, int limit) throws Exception;
+
+    /**
+     * Whether or not the logger can reclaim free space using {@link #vacuum(int)}
+     *
+     * @return True if the storage can be vacuumed incrementally
+     * @throws Exception If the storage cannot be read
+     */
+    boolean supportsIncrementalVacuum() throws Exception;
+
+    /**
+     * Return free space to the file system
+     *
+     * @param pages Maximum number of pages to free per database
+     * @return Number of free pages that remain
+     * @throws Exception If the storage cannot be vacuumed
+     */
+    long vacuum(int pages) throws Exception;
+
+}
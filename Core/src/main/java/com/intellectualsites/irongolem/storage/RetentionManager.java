@@ -0,0 +1,281 @@
+//
+// IronGolem - A Minecraft block logging plugin
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.intellectualsites.irongolem.storage;
+
+import com.google.common.base.Preconditions;
+import org.bukkit.Bukkit;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitTask;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Purges expired changes from one or more {@link PurgeableLogger loggers} according to {@link RetentionRule retention rules}.
+ * <p>
+ * Changes are deleted in small batches, and the purge is throttled to a maximum number
+ * of deleted changes per second, so that logging and lookups only ever wait for a single
+ * batch. Large purges are followed by an incremental vacuum, which returns the freed
+ * pages to the file system in the same throttled manner
+ */
+public class RetentionManager {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RetentionManager.class);
+    private static final int VACUUM_PAGES = 1024;
+    private static final long VACUUM_PAUSE = 50L;
+
+    private final Plugin plugin;
+    private final List<PurgeableLogger> loggers;
+    private final List<RetentionRule> rules;
+    private final int batchSize;
+    private final int rateLimit;
+    private final long vacuumThreshold;
+    private final AtomicBoolean running = new AtomicBoolean(false);
+
+    private volatile boolean stopped = false;
+    private BukkitTask task;
+
+    private RetentionManager(@NotNull final Plugin plugin, @NotNull final List<PurgeableLogger> loggers,
+        @NotNull final List<RetentionRule> rules, final int batchSize, final int rateLimit,
+        final long vacuumThreshold) {
+        this.plugin = plugin;
+        this.loggers = Collections.unmodifiableList(loggers);
+        this.rules = Collections.unmodifiableList(rules);
+        this.batchSize = batchSize;
+        this.rateLimit = rateLimit;
+        this.vacuumThreshold = vacuumThreshold;
+    }
+
+    public static RetentionManagerBuilder newBuilder() {
+        return new RetentionManagerBuilder();
+    }
+
+    /**
+     * Get the configured retention rules
+     *
+     * @return Unmodifiable list of rules
+     */
+    @NotNull public List<RetentionRule> getRules() {
+        return this.rules;
+    }
+
+    /**
+     * Whether or not a purge is currently running
+     *
+     * @return True if a purge is running
+     */
+    public boolean isRunning() {
+        return this.running.get();
+    }
+
+    /**
+     * Start purging changes according to the configured rules on a fixed interval
+     *
+     * @param interval Interval (in ticks) between purges
+     */
+    public void start(final long interval) {
+        Preconditions.checkState(this.task == null, "The retention manager has already been started");
+        if (this.rules.isEmpty()) {
+            return;
+        }
+        this.task = Bukkit.getScheduler().runTaskTimerAsynchronously(this.plugin, () -> {
+            if (this.running.compareAndSet(false, true)) {
+                try {
+                    this.run(this.rules);
+                } catch (final Exception e) {
+                    LOGGER.error("Failed to purge changes", e);
+                } finally {
+                    this.running.set(false);
+                }
+            }
+        }, interval, interval);
+    }
+
+    /**
+     * Stop the retention manager. Running purges stop after their current batch
+     */
+    public void stop() {
+        this.stopped = true;
+        if (this.task != null) {
+            this.task.cancel();
+        }
+    }
+
+    /**
+     * Purge changes according to the given rules, in the background
+     *
+     * @param rules Rules to purge by
+     * @return Future that completes with the number of purged changes. The future
+     *         completes exceptionally if another purge is already running, or if the purge fails
+     */
+    @NotNull public CompletableFuture<Long> purge(@NotNull final Collection<RetentionRule> rules) {
+        final CompletableFuture<Long> future = new CompletableFuture<>();
+        if (!this.running.compareAndSet(false, true)) {
+            future.completeExceptionally(new IllegalStateException("A purge is already running"));
+            return future;
+        }
+        final List<RetentionRule> copy = new ArrayList<>(rules);
+        Bukkit.getScheduler().runTaskAsynchronously(this.plugin, () -> {
+            try {
+                future.complete(this.run(copy));
+            } catch (final Throwable throwable) {
+                LOGGER.error("Failed to purge changes", throwable);
+                future.completeExceptionally(throwable);
+            } finally {
+                this.running.set(false);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Purge changes according to the given rules. Must only be called
+     * while {@link #running} is held
+     *
+     * @param rules Rules to purge by
+     * @return Number of purged changes
+     * @throws Exception If changes cannot be purged
+     */
+    private long run(@NotNull final Collection<RetentionRule> rules) throws Exception {
+        final long start = System.currentTimeMillis();
+        long purged = 0L;
+        for (final RetentionRule rule : rules) {
+            // The cutoff is fixed for the entire run, so
+            // that it is guaranteed to finish
+            final long cutoff = System.currentTimeMillis() - rule.getMaxAge();
+            for (final PurgeableLogger logger : this.loggers) {
+                int deleted;
+                do {
+                    if (this.stopped) {
+                        return purged;
+                    }
+                    deleted = logger.purge(rule, cutoff, this.batchSize);
+                    purged += deleted;
+                    // Loggers that drop entire files at once do not have to wait for more than a batch
+                    this.pause(TimeUnit.SECONDS.toMillis(Math.min(deleted, this.batchSize)) / this.rateLimit);
+                } while (deleted > 0);
+            }
+        }
+        if (purged > 0) {
+            LOGGER.info("Purged {} change(s) in {}ms", purged, System.currentTimeMillis() - start);
+        }
+        if (purged >= this.vacuumThreshold) {
+            this.vacuum();
+        }
+        return purged;
+    }
+
+    /**
+     * Return the pages that were freed by a purge to the file system
+     */
+    private void vacuum() {
+        for (final PurgeableLogger logger : this.loggers) {
+            try {
+                if (!logger.supportsIncrementalVacuum()) {
+                    LOGGER.info("The database does not use incremental vacuuming. Run VACUUM manually to shrink it");
+                    continue;
+                }
+                long remaining = Long.MAX_VALUE;
+                while (!this.stopped) {
+                    final long left = logger.vacuum(VACUUM_PAGES);
+                    // Stop once the free list stops shrinking, as concurrent
+                    // writes may keep it from ever becoming empty
+                    if (left == 0L || left >= remaining) {
+                        break;
+                    }
+                    remaining = left;
+                    this.pause(VACUUM_PAUSE);
+                }
+            } catch (final Exception e) {
+                LOGGER.error("Failed to vacuum the database", e);
+            }
+        }
+    }
+
+    /**
+     * Wait between batches
+     *
+     * @param duration Duration (in milliseconds)
+     */
+    private void pause(final long duration) {
+        if (duration <= 0L) {
+            return;
+        }
+        try {
+            Thread.sleep(duration);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            this.stopped = true;
+        }
+    }
+
+    public static final class RetentionManagerBuilder {
+
+        private final List<RetentionRule> rules = new ArrayList<>();
+        private final List<PurgeableLogger> loggers = new ArrayList<>();
+        private Plugin plugin;
+        private int batchSize = 500;
+        private int rateLimit = 5000;
+        private long vacuumThreshold = 100000L;
+
+        @NotNull public RetentionManagerBuilder forLogger(@NotNull final Plugin plugin, @NotNull final PurgeableLogger logger) {
+            this.plugin = Preconditions.checkNotNull(plugin, "Plugin may not be null");
+            this.loggers.add(Preconditions.checkNotNull(logger, "Logger may not be null"));
+            return this;
+        }
+
+        @NotNull public RetentionManagerBuilder withRule(@NotNull final RetentionRule rule) {
+            this.rules.add(Preconditions.checkNotNull(rule, "Rule may not be null"));
+            return this;
+        }
+
+        @NotNull public RetentionManagerBuilder withBatchSize(final int batchSize) {
+            Preconditions.checkState(batchSize > 0, "Batch size has to be positive");
+            this.batchSize = batchSize;
+            return this;
+        }
+
+        @NotNull public RetentionManagerBuilder withRateLimit(final int rateLimit) {
+            Preconditions.checkState(rateLimit > 0, "Rate limit has to be positive");
+            this.rateLimit = rateLimit;
+            return this;
+        }
+
+        @NotNull public RetentionManagerBuilder withVacuumThreshold(final long vacuumThreshold) {
+            Preconditions.checkState(vacuumThreshold >= 0, "Vacuum threshold may not be negative");
+            this.vacuumThreshold = vacuumThreshold;
+            return this;
+        }
+
+        public RetentionManager build() {
+            Preconditions.checkState(!this.loggers.isEmpty(), "Logger has to be specified");
+            return new RetentionManager(this.plugin, new ArrayList<>(this.loggers), this.rules, this.batchSize,
+                this.rateLimit, this.vacuumThreshold);
+        }
+
+    }
+
+}
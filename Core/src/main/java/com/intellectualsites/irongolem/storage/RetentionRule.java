@@ -0,0 +1,123 @@
+//
+// IronGolem - A Minecraft block logging plugin
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.intellectualsites.irongolem.storage;
+
+import com.google.common.base.Preconditions;
+import com.intellectualsites.irongolem.changes.ChangeReason;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * A rule that decides for how long {@link com.intellectualsites.irongolem.changes.Change changes}
+ * are kept. Changes that match the world and reasons of the rule, and that are older than
+ * the maximum age, are purged by the {@link RetentionManager}
+ */
+public final class RetentionRule {
+
+    private final String world;
+    private final Set<ChangeReason> reasons;
+    private final long maxAge;
+
+    private RetentionRule(@Nullable final String world, @NotNull final Set<ChangeReason> reasons,
+        final long maxAge) {
+        this.world = world;
+        this.reasons = Collections.unmodifiableSet(reasons);
+        this.maxAge = maxAge;
+    }
+
+    public static RetentionRuleBuilder newBuilder() {
+        return new RetentionRuleBuilder();
+    }
+
+    /**
+     * Get the name of the world that the rule applies to
+     *
+     * @return World name, or null if the rule applies to every world
+     */
+    @Nullable public String getWorld() {
+        return this.world;
+    }
+
+    /**
+     * Get the reasons that the rule applies to
+     *
+     * @return Change reasons
+     */
+    @NotNull public Set<ChangeReason> getReasons() {
+        return this.reasons;
+    }
+
+    /**
+     * Get the maximum age of the changes that the rule applies to
+     *
+     * @return Maximum age (in milliseconds)
+     */
+    public long getMaxAge() {
+        return this.maxAge;
+    }
+
+    /**
+     * Whether or not the rule applies to every change that is old enough
+     *
+     * @return True if the rule applies to every world and every reason
+     */
+    public boolean isGlobal() {
+        return this.world == null && this.reasons.size() == ChangeReason.values().length;
+    }
+
+    @Override public String toString() {
+        return String.format("RetentionRule{world=%s, reasons=%s, maxAge=%dms}",
+            this.world == null ? "*" : this.world, this.reasons, this.maxAge);
+    }
+
+    public static final class RetentionRuleBuilder {
+
+        private String world;
+        private EnumSet<ChangeReason> reasons = EnumSet.allOf(ChangeReason.class);
+        private long maxAge = -1L;
+
+        @NotNull public RetentionRuleBuilder inWorld(@Nullable final String world) {
+            this.world = world;
+            return this;
+        }
+
+        @NotNull public RetentionRuleBuilder withReasons(@NotNull final Collection<ChangeReason> reasons) {
+            Preconditions.checkState(!reasons.isEmpty(), "Reasons may not be empty");
+            this.reasons = EnumSet.copyOf(reasons);
+            return this;
+        }
+
+        @NotNull public RetentionRuleBuilder withMaxAge(final long maxAge) {
+            Preconditions.checkState(maxAge > 0, "Maximum age has to be positive");
+            this.maxAge = maxAge;
+            return this;
+        }
+
+        public RetentionRule build() {
+            Preconditions.checkState(this.maxAge > 0, "Maximum age has to be specified");
+            return new RetentionRule(this.world, this.reasons, this.maxAge);
+        }
+
+    }
+
+}
@@ -0,0 +1,420 @@
+//
+// IronGolem - A Minecraft block logging plugin
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.intellectualsites.irongolem.storage;
+
+import com.google.common.base.Preconditions;
+import com.zaxxer.hikari.HikariConfig;
+import org.jetbrains.annotations.NotNull;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Collection;
+
+/**
+ * SQL dialects that are supported by {@link JdbcLogger}. Queries are written
+ * using backtick quoted identifiers, and are {@link #translate(String) translated}
+ * to the quoting style of the dialect
+ */
+public enum SQLDialect {
+    /**
+     * Embedded SQLite database, see {@link SQLiteLogger}
+     */
+    SQLITE("org.sqlite.JDBC", "jdbc:sqlite:%3$s", 0, '`', "INSERT OR IGNORE INTO `%s`(`%s`) VALUES(?)",
+        "INTEGER CONSTRAINT `events_pk` PRIMARY KEY AUTOINCREMENT", "INTEGER NOT NULL PRIMARY KEY",
+        "TEXT", "TEXT", "TEXT", "BLOB", ""),
+    /**
+     * MySQL server, using the driver that is bundled with the server software
+     */
+    MYSQL("com.mysql.jdbc.Driver", "jdbc:mysql://%s:%d/%s", 3306, '`', "INSERT IGNORE INTO `%s`(`%s`) VALUES(?)",
+        "BIGINT NOT NULL AUTO_INCREMENT PRIMARY KEY", "INT NOT NULL AUTO_INCREMENT PRIMARY KEY",
+        // Block states are plain ASCII, and unique columns are limited to 767 bytes by older InnoDB row formats
+        "VARCHAR(700) CHARACTER SET ascii COLLATE ascii_bin", "VARCHAR(191) COLLATE utf8mb4_bin", "TEXT",
+        "MEDIUMBLOB", " ENGINE=InnoDB DEFAULT CHARSET=utf8mb4"),
+    /**
+     * MariaDB server
+     */
+    MARIADB("org.mariadb.jdbc.Driver", "jdbc:mariadb://%s:%d/%s", 3306, '`', "INSERT IGNORE INTO `%s`(`%s`) VALUES(?)",
+        "BIGINT NOT NULL AUTO_INCREMENT PRIMARY KEY", "INT NOT NULL AUTO_INCREMENT PRIMARY KEY",
+        "VARCHAR(700) CHARACTER SET ascii COLLATE ascii_bin", "VARCHAR(191) COLLATE utf8mb4_bin", "TEXT",
+        "MEDIUMBLOB", " ENGINE=InnoDB DEFAULT CHARSET=utf8mb4"),
+    /**
+     * PostgreSQL server
+     */
+    POSTGRESQL("org.postgresql.Driver", "jdbc:postgresql://%s:%d/%s", 5432, '"',
+        "INSERT INTO `%s`(`%s`) VALUES(?) ON CONFLICT DO NOTHING", "BIGSERIAL PRIMARY KEY", "SERIAL PRIMARY KEY",
+        "TEXT", "TEXT", "TEXT", "BYTEA", ""),
+    /**
+     * Embedded H2 database. The database name is the path of the
+     * database file, and the host and port are ignored. This is
+     * mostly useful to test the server code path locally
+     */
+    H2("org.h2.Driver", "jdbc:h2:%3$s", 0, '"', "MERGE INTO `%s`(`%2$s`) KEY(`%2$s`) VALUES(?)",
+        "BIGINT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY", "INT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY",
+        "VARCHAR", "VARCHAR", "VARCHAR", "BLOB", "");
+
+    private final String driver;
+    private final String url;
+    private final int defaultPort;
+    private final char quote;
+    private final String insertIgnore;
+    private final String eventKey;
+    private final String dictionaryKey;
+    private final String stateType;
+    private final String nameType;
+    private final String textType;
+    private final String blobType;
+    private final String tableOptions;
+
+    SQLDialect(@NotNull final String driver, @NotNull final String url, final int defaultPort, final char quote,
+        @NotNull final String insertIgnore, @NotNull final String eventKey, @NotNull final String dictionaryKey,
+        @NotNull final String stateType, @NotNull final String nameType, @NotNull final String textType,
+        @NotNull final String blobType, @NotNull final String tableOptions) {
+        this.driver = driver;
+        this.url = url;
+        this.defaultPort = defaultPort;
+        this.quote = quote;
+        this.insertIgnore = insertIgnore;
+        this.eventKey = eventKey;
+        this.dictionaryKey = dictionaryKey;
+        this.stateType = stateType;
+        this.nameType = nameType;
+        this.textType = textType;
+        this.blobType = blobType;
+        this.tableOptions = tableOptions;
+    }
+
+    /**
+     * Get the name of the JDBC driver class
+     *
+     * @return Driver class name
+     */
+    @NotNull public String getDriver() {
+        return this.driver;
+    }
+
+    /**
+     * Get the port that the server listens on by default
+     *
+     * @return Default port, or 0 for embedded databases
+     */
+    public int getDefaultPort() {
+        return this.defaultPort;
+    }
+
+    /**
+     * Get the JDBC URL of a database
+     *
+     * @param host     Server host
+     * @param port     Server port
+     * @param database Database name, or the database path for embedded databases
+     * @return JDBC URL
+     */
+    @NotNull public String getUrl(@NotNull final String host, final int port, @NotNull final String database) {
+        Preconditions.checkNotNull(host, "Host may not be null");
+        Preconditions.checkNotNull(database, "Database may not be null");
+        return String.format(this.url, host, port, database);
+    }
+
+    /**
+     * Whether or not the dialect is an embedded database
+     *
+     * @return True if the database is embedded
+     */
+    public boolean isEmbedded() {
+        return this.defaultPort == 0;
+    }
+
+    /**
+     * Configure a connection pool for the dialect. This enables
+     * driver side rewriting of batched inserts, where available
+     *
+     * @param config Pool configuration
+     */
+    public void configure(@NotNull final HikariConfig config) {
+        Preconditions.checkNotNull(config, "Config may not be null");
+        config.setDriverClassName(this.driver);
+        switch (this) {
+            case MYSQL:
+                config.addDataSourceProperty("rewriteBatchedStatements", "true");
+                config.addDataSourceProperty("cachePrepStmts", "true");
+                config.addDataSourceProperty("prepStmtCacheSize", "250");
+                config.addDataSourceProperty("prepStmtCacheSqlLimit", "2048");
+                config.addDataSourceProperty("useServerPrepStmts", "true");
+                // Lets queries fetch their results in chunks
+                config.addDataSourceProperty("useCursorFetch", "true");
+                break;
+            case MARIADB:
+                config.addDataSourceProperty("rewriteBatchedStatements", "true");
+                config.addDataSourceProperty("cachePrepStmts", "true");
+                break;
+            case POSTGRESQL:
+                config.addDataSourceProperty("reWriteBatchedInserts", "true");
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Translate a statement that uses backtick quoted identifiers
+     * to the quoting style of the dialect
+     *
+     * @param sql Statement
+     * @return Translated statement
+     */
+    @NotNull public String translate(@NotNull final String sql) {
+        if (this.quote == '`') {
+            return sql;
+        }
+        return sql.replace('`', this.quote);
+    }
+
+    /**
+     * Get a statement that inserts a value into a dictionary
+     * table, unless the value already exists
+     *
+     * @param table  Dictionary table
+     * @param column Value column
+     * @return Insert statement, with the value as its only parameter
+     */
+    @NotNull public String getInsertIgnore(@NotNull final String table, @NotNull final String column) {
+        return this.translate(String.format(this.insertIgnore, table, column));
+    }
+
+    /**
+     * Get a statement that creates an index
+     *
+     * @param name    Index name
+     * @param table   Indexed table
+     * @param columns Indexed columns
+     * @return Create index statement
+     */
+    @NotNull public String getCreateIndex(@NotNull final String name, @NotNull final String table,
+        @NotNull final String ... columns) {
+        final StringBuilder builder = new StringBuilder("CREATE INDEX ");
+        // MySQL does not support IF NOT EXISTS for indexes
+        if (this != MYSQL) {
+            builder.append("IF NOT EXISTS ");
+        }
+        builder.append('`').append(name).append("` ON `").append(table).append("`(");
+        for (int i = 0; i < columns.length; i++) {
+            builder.append(i == 0 ? "`" : ", `").append(columns[i]).append('`');
+        }
+        return this.translate(builder.append(')').toString());
+    }
+
+    /**
+     * Get a statement that drops an index, if it exists
+     *
+     * @param name  Index name
+     * @param table Indexed table
+     * @return Drop statement
+     */
+    @NotNull public String getDropIndex(@NotNull final String name, @NotNull final String table) {
+        if (this == MYSQL || this == MARIADB) {
+            // MySQL does not support IF EXISTS for indexes, and indexes belong to their table
+            return String.format("DROP INDEX `%s` ON `%s`", name, table);
+        }
+        return this.translate(String.format("DROP INDEX IF EXISTS `%s`", name));
+    }
+
+    /**
+     * Get the column definition of the auto incrementing event ID
+     *
+     * @return Column definition
+     */
+    @NotNull String getEventKey() {
+        return this.eventKey;
+    }
+
+    /**
+     * Get the column definition of auto incrementing dictionary IDs
+     *
+     * @return Column definition
+     */
+    @NotNull String getDictionaryKey() {
+        return this.dictionaryKey;
+    }
+
+    /**
+     * Get the type of unique block state columns
+     *
+     * @return Column type
+     */
+    @NotNull String getStateType() {
+        return this.stateType;
+    }
+
+    /**
+     * Get the type of unique world and actor name columns
+     *
+     * @return Column type
+     */
+    @NotNull String getNameType() {
+        return this.nameType;
+    }
+
+    /**
+     * Get the type of unbounded text columns
+     *
+     * @return Column type
+     */
+    @NotNull String getTextType() {
+        return this.textType;
+    }
+
+    /**
+     * Get the type of binary columns
+     *
+     * @return Column type
+     */
+    @NotNull String getBlobType() {
+        return this.blobType;
+    }
+
+    /**
+     * Get the options that are appended to create table statements
+     *
+     * @return Table options, or an empty string
+     */
+    @NotNull String getTableOptions() {
+        return this.tableOptions;
+    }
+
+    /**
+     * Get a statement that adds the events after an event ID to a block history
+     * table. Blocks that are already in the history keep their first event, and
+     * have their last event replaced, which makes the statement safe to repeat
+     *
+     * @param history Block history table, optionally qualified by its schema
+     * @param table   Events table, optionally qualified by its schema
+     * @return Upsert statement, with the exclusive lower event ID bound as its only parameter
+     */
+    @NotNull String getBlockHistoryUpsert(@NotNull final String history, @NotNull final String table) {
+        return this.getBlockHistoryUpsert(history, table, "`event_id` > ?");
+    }
+
+    /**
+     * Get a statement that adds a range of events to a block history table,
+     * see {@link #getBlockHistoryUpsert(String, String)}. Events
+     * that only store the name of their world are skipped
+     *
+     * @param history Block history table, optionally qualified by its schema
+     * @param table   Events table, optionally qualified by its schema
+     * @return Upsert statement, with the exclusive lower and inclusive upper event ID bound as its parameters
+     */
+    @NotNull String getBlockHistoryBackfill(@NotNull final String history, @NotNull final String table) {
+        return this.getBlockHistoryUpsert(history, table, "`event_id` > ? AND `event_id` <= ? AND `world_id` IS NOT NULL");
+    }
+
+    @NotNull private String getBlockHistoryUpsert(@NotNull final String history, @NotNull final String table,
+        @NotNull final String range) {
+        final String select = "SELECT `world_id`, `x`, `y`, `z`, MIN(`event_id`), MAX(`event_id`) "
+            + "FROM " + table + " WHERE " + range + " GROUP BY `world_id`, `x`, `y`, `z`";
+        final String insert = "INSERT INTO " + history + "(`world_id`, `x`, `y`, `z`, `first_id`, `last_id`) ";
+        switch (this) {
+            case SQLITE:
+                return insert + select + " ON CONFLICT(`world_id`, `x`, `z`, `y`) DO UPDATE SET "
+                    + "`first_id` = MIN(`first_id`, excluded.`first_id`), `last_id` = MAX(`last_id`, excluded.`last_id`)";
+            case MYSQL:
+            case MARIADB:
+                return insert + select + " ON DUPLICATE KEY UPDATE `first_id` = LEAST(`first_id`, VALUES(`first_id`)), "
+                    + "`last_id` = GREATEST(`last_id`, VALUES(`last_id`))";
+            case POSTGRESQL:
+                return this.translate("INSERT INTO " + history + " AS `h`(`world_id`, `x`, `y`, `z`, `first_id`, `last_id`) "
+                    + select + " ON CONFLICT(`world_id`, `x`, `z`, `y`) DO UPDATE SET "
+                    + "`first_id` = LEAST(`h`.`first_id`, EXCLUDED.`first_id`), `last_id` = GREATEST(`h`.`last_id`, EXCLUDED.`last_id`)");
+            default:
+                return this.translate("MERGE INTO " + history + " `h` USING (SELECT `world_id`, `x`, `y`, `z`, "
+                    + "MIN(`event_id`) AS `first_id`, MAX(`event_id`) AS `last_id` FROM " + table + " WHERE " + range + " "
+                    + "GROUP BY `world_id`, `x`, `y`, `z`) `s` ON (`h`.`world_id` = `s`.`world_id` "
+                    + "AND `h`.`x` = `s`.`x` AND `h`.`z` = `s`.`z` AND `h`.`y` = `s`.`y`) WHEN MATCHED THEN UPDATE SET "
+                    + "`first_id` = LEAST(`h`.`first_id`, `s`.`first_id`), `last_id` = GREATEST(`h`.`last_id`, `s`.`last_id`) "
+                    + "WHEN NOT MATCHED THEN INSERT(`world_id`, `x`, `y`, `z`, `first_id`, `last_id`) "
+                    + "VALUES(`s`.`world_id`, `s`.`x`, `s`.`y`, `s`.`z`, `s`.`first_id`, `s`.`last_id`)");
+        }
+    }
+
+    /**
+     * Get the version of the migration after which the block
+     * history contains every event that was logged before it
+     *
+     * @return Migration version
+     */
+    int getBlockHistoryVersion() {
+        return this == SQLITE ? SQLiteMigrations.BLOCK_HISTORY : JdbcMigrations.BLOCK_HISTORY;
+    }
+
+    /**
+     * Get the version of the migration after which every event
+     * stores the IDs of its world and source, rather than their names
+     *
+     * @return Migration version, or -1 if the events always store IDs
+     */
+    int getDictionaryVersion() {
+        return this == SQLITE ? SQLiteMigrations.DICTIONARY : -1;
+    }
+
+    /**
+     * Get the version of the migration after which the
+     * events table is clustered by {@link BlockKey block key}
+     *
+     * @return Migration version, or -1 if the events table is never clustered
+     */
+    int getClusteredEventsVersion() {
+        return this == SQLITE ? SQLiteMigrations.CLUSTERED_EVENTS : -1;
+    }
+
+    /**
+     * Get the schema migrations of the dialect. Every call creates new
+     * migrations, as every {@link MigrationRunner} needs its own
+     *
+     * @return Migrations
+     */
+    @NotNull public Collection<Migration> getMigrations() {
+        if (this == SQLITE) {
+            return SQLiteMigrations.getMigrations();
+        }
+        return JdbcMigrations.getMigrations(this);
+    }
+
+    /**
+     * Prepare an inserter for an events table. Where the driver supports it,
+     * rows are streamed using the fastest bulk load mechanism of the database
+     *
+     * @param connection Connection that the rows will be inserted through
+     * @param table      Events table, optionally qualified by its schema
+     * @return Prepared inserter
+     * @throws SQLException If the inserter cannot be prepared
+     */
+    @NotNull EventInserter createInserter(@NotNull final Connection connection, @NotNull final String table)
+        throws SQLException {
+        Preconditions.checkNotNull(connection, "Connection may not be null");
+        Preconditions.checkNotNull(table, "Table may not be null");
+        switch (this) {
+            case MYSQL:
+            case MARIADB:
+                return BatchInserter.prepare(connection, this, table);
+            case POSTGRESQL:
+                return new CopyInserter(connection, table);
+            default:
+                return MultiRowInserter.prepare(connection, this, table);
+        }
+    }
+
+}
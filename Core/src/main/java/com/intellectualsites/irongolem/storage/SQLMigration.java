@@ -0,0 +1,96 @@
+//
+// IronGolem - A Minecraft block logging plugin
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.intellectualsites.irongolem.storage;
+
+import com.google.common.base.Preconditions;
+import org.jetbrains.annotations.NotNull;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * {@link Migration} that executes a fixed list of SQL statements. Index builds
+ * run in the background, so that a large database does not hold up the server
+ * while it starts. A single statement cannot give up the write lock halfway,
+ * so changes wait in the intake of the logger until the build has finished
+ */
+public final class SQLMigration implements Migration {
+
+    private final int version;
+    private final String description;
+    private final boolean background;
+    private final String[] statements;
+
+    private SQLMigration(final int version, @NotNull final String description,
+        final boolean background, @NotNull final String[] statements) {
+        Preconditions.checkState(version > 0, "Version has to be positive");
+        this.version = version;
+        this.description = Preconditions.checkNotNull(description, "Description may not be null");
+        this.background = background;
+        this.statements = Preconditions.checkNotNull(statements, "Statements may not be null");
+    }
+
+    /**
+     * Create a new migration that runs when the logger starts
+     *
+     * @param version     Schema version
+     * @param description Migration description
+     * @param statements  Statements to execute
+     * @return Created migration
+     */
+    @NotNull public static SQLMigration of(final int version, @NotNull final String description,
+        @NotNull final String ... statements) {
+        return new SQLMigration(version, description, false, statements);
+    }
+
+    /**
+     * Create a new migration that runs in the background, after the logger has started
+     *
+     * @param version     Schema version
+     * @param description Migration description
+     * @param statements  Statements to execute
+     * @return Created migration
+     */
+    @NotNull public static SQLMigration background(final int version, @NotNull final String description,
+        @NotNull final String ... statements) {
+        return new SQLMigration(version, description, true, statements);
+    }
+
+    @Override public int getVersion() {
+        return this.version;
+    }
+
+    @Override @NotNull public String getDescription() {
+        return this.description;
+    }
+
+    @Override public boolean isBackground() {
+        return this.background;
+    }
+
+    @Override public boolean migrate(@NotNull final Connection connection) throws SQLException {
+        try (final Statement statement = connection.createStatement()) {
+            for (final String sql : this.statements) {
+                statement.executeUpdate(sql);
+            }
+        }
+        return true;
+    }
+
+}
@@ -17,17 +17,8 @@
 
 package com.intellectualsites.irongolem.storage;
 
-import com.intellectualsites.irongolem.changes.Change;
-import com.intellectualsites.irongolem.changes.ChangeQuery;
-import com.intellectualsites.irongolem.changes.ChangeReason;
-import com.intellectualsites.irongolem.changes.ChangeSource;
-import com.intellectualsites.irongolem.changes.ChangeSubject;
-import com.intellectualsites.irongolem.logging.ScheduledQueuingChangeLogger;
-import com.intellectualsites.irongolem.util.CuboidRegion;
-import com.intellectualsites.irongolem.util.SourceFactory;
-import com.intellectualsites.irongolem.util.SubjectFactory;
-import org.bukkit.Bukkit;
-import org.bukkit.Location;
+import com.intellectualsites.irongolem.logging.ChangeIntake;
+import com.intellectualsites.irongolem.logging.FlushPolicy;
 import org.bukkit.plugin.Plugin;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
@@ -39,203 +30,283 @@ import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Objects;
-import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
 
 /**
- * {@link com.intellectualsites.irongolem.logging.ChangeLogger} that logs to SQLite
+ * {@link com.intellectualsites.irongolem.logging.ChangeLogger} that logs to SQLite.
+ * <p>
+ * The database runs in WAL mode. All writes go through a single connection that
+ * is used by the flush task, and queries use a separate pool of read-only
+ * connections, so lookups and logging never wait for each other
  */
-public class SQLiteLogger extends ScheduledQueuingChangeLogger {
+public class SQLiteLogger extends JdbcLogger {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(SQLiteLogger.class);
 
-    private static final String DDL =
-         "create table if not exists `events`(`event_id` INTEGER constraint `events_pk` PRIMARY KEY autoincrement, "
-       + "`world` VARCHAR(36) NOT NULL, `x` INTEGER NOT NULL, `y` INTEGER NOT NULL, `z` INTEGER NOT NULL, "
-       + "`timestamp` INTEGER NOT NULL, `source` VARCHAR(36) NOT NULL, `type` VARCHAR(16), `from` TEXT, "
-       + "`to` TEXT, `old_state` BLOB, `new_state` BLOB, `reason` VARCHAR(64))";
-
-    private final Object statementLock = new Object();
-    private final SourceFactory sourceFactory = new SourceFactory();
-    private final SubjectFactory subjectFactory = new SubjectFactory();
+    private static final int READ_CONNECTIONS = 4;
+    private static final long BUSY_TIMEOUT = 30000L;
+    private static final long MMAP_SIZE = 256L * 1024L * 1024L;
+    private static final int WRITE_CACHE_SIZE = 16 * 1024;
+    private static final int READ_CACHE_SIZE = 64 * 1024;
+    private static final long INCREMENTAL_VACUUM = 2L;
+    private static final int CACHED_STATEMENTS = 64;
 
+    private final StatementCache statementCache = new StatementCache(CACHED_STATEMENTS);
     private final File file;
-    private final Plugin plugin;
     private Connection connection;
-    private PreparedStatement statement;
+    private ConnectionPool readPool;
+    private EventInserter inserter;
+
+    public SQLiteLogger(@NotNull final Plugin plugin, @NotNull final FlushPolicy flushPolicy,
+        @NotNull final ChangeIntake changeIntake) throws Exception {
+        this(plugin, flushPolicy, changeIntake, plugin.getDataFolder());
+    }
 
-    public SQLiteLogger(@NotNull final Plugin plugin, final int interval) throws Exception {
-        super(plugin, interval, 128);
-        Class.forName("org.sqlite.JDBC");
-        this.file = new File(plugin.getDataFolder(), "database.db");
+    /**
+     * Create a new logger
+     *
+     * @param plugin       Plugin that owns the logger
+     * @param flushPolicy  Policy that decides the flush interval and batch size
+     * @param changeIntake Intake that changes are queued in
+     * @param directory    Directory that holds the database
+     * @throws Exception If the database cannot be created
+     */
+    public SQLiteLogger(@NotNull final Plugin plugin, @NotNull final FlushPolicy flushPolicy,
+        @NotNull final ChangeIntake changeIntake, @NotNull final File directory) throws Exception {
+        super(plugin, flushPolicy, changeIntake, SQLDialect.SQLITE);
+        Class.forName(SQLDialect.SQLITE.getDriver());
+        this.file = new File(directory, "database.db");
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new RuntimeException(String.format("Could not create %s", directory.getName()));
+        }
         if (!file.exists()) {
             if (!file.createNewFile()) {
                 throw new RuntimeException("Could not create database.db");
             }
         }
-        this.plugin = plugin;
     }
 
-    @Override protected void startBatch() throws Exception {
-        synchronized (this.statementLock) {
-            this.statement = this.getConnection().prepareStatement(
-                "INSERT INTO `events`(`world`, `x`, `y`, `z`, `timestamp`, `source`, `type`, `from`, `to`, `old_state`, `new_state`, `reason`)"
-                    + " VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+    /**
+     * Whether or not the main database can reclaim free pages using
+     * {@link #vacuum(int)}. Databases that were created before incremental
+     * vacuuming was enabled have to be vacuumed manually once
+     *
+     * @return True if the database uses incremental auto vacuum
+     * @throws SQLException If the database cannot be read
+     */
+    @Override public boolean supportsIncrementalVacuum() throws SQLException {
+        this.getWriteLock().lock();
+        try {
+            return this.getPragma(this.getWriteConnection(), "main", "auto_vacuum") == INCREMENTAL_VACUUM;
+        } finally {
+            this.getWriteLock().unlock();
         }
     }
 
-    @Override protected void persist(@NotNull final Change change) throws Exception {
-        synchronized (this.statementLock) {
-            final Location location = change.getLocation();
-            final ChangeSubject<?, ?> subject = change.getSubject();
-            this.statement.setString(1, Objects.requireNonNull(location.getWorld()).getName());
-            this.statement.setInt(2, location.getBlockX());
-            this.statement.setInt(3, location.getBlockY());
-            this.statement.setInt(4, location.getBlockZ());
-            this.statement.setLong(5, change.getTimestamp());
-            this.statement.setString(6, change.getSource().getName());
-            this.statement.setString(7, subject.getType().name());
-            this.statement.setString(8, subject.serializeFrom());
-            this.statement.setString(9, subject.serializeTo());
-            this.statement.setBytes(10, subject.serializeOldState());
-            this.statement.setBytes(11, subject.serializeNewState());
-            this.statement.setString(12, change.getReason().name());
-            // Set params
-            this.statement.addBatch();
+    /**
+     * Return free pages to the file system, in every database that is
+     * attached to the write connection and uses incremental auto vacuum
+     *
+     * @param pages Maximum number of pages to free per database
+     * @return Number of free pages that remain
+     * @throws SQLException If the databases cannot be vacuumed
+     */
+    @Override public long vacuum(final int pages) throws SQLException {
+        this.getWriteLock().lock();
+        try {
+            final List<String> schemas = new ArrayList<>();
+            try (final Statement statement = this.getWriteConnection().createStatement();
+                 final ResultSet resultSet = statement.executeQuery("PRAGMA database_list")) {
+                while (resultSet.next()) {
+                    if (!"temp".equals(resultSet.getString("name"))) {
+                        schemas.add(resultSet.getString("name"));
+                    }
+                }
+            }
+            long remaining = 0L;
+            for (final String schema : schemas) {
+                if (this.getPragma(this.getWriteConnection(), schema, "auto_vacuum") != INCREMENTAL_VACUUM) {
+                    continue;
+                }
+                // The pragma frees one page per step, so the result has to be read until the end
+                try (final Statement statement = this.getWriteConnection().createStatement();
+                     final ResultSet resultSet = statement.executeQuery(
+                         String.format("PRAGMA `%s`.incremental_vacuum(%d)", schema, pages))) {
+                    boolean freeing = resultSet.next();
+                    while (freeing) {
+                        freeing = resultSet.next();
+                    }
+                }
+                remaining += this.getPragma(this.getWriteConnection(), schema, "freelist_count");
+            }
+            return remaining;
+        } finally {
+            this.getWriteLock().unlock();
         }
     }
 
-    @Override
-    public CompletableFuture<List<Change>> queryChanges(@NotNull final ChangeQuery query) {
-        final CompletableFuture<List<Change>> future = new CompletableFuture<>();
-        Bukkit.getScheduler().runTaskAsynchronously(this.plugin, () -> {
-            final List<Change> changes = new LinkedList<>();
-            synchronized (this.statementLock) {
-                try {
-                    final CuboidRegion region = query.getRegion();
+    /**
+     * Read a numeric pragma
+     *
+     * @param connection Connection
+     * @param schema     Name of the (main or attached) schema
+     * @param pragma     Pragma name
+     * @return Pragma value
+     * @throws SQLException If the pragma cannot be read
+     */
+    private long getPragma(@NotNull final Connection connection, @NotNull final String schema,
+        @NotNull final String pragma) throws SQLException {
+        try (final Statement statement = connection.createStatement();
+             final ResultSet resultSet = statement.executeQuery(String.format("PRAGMA `%s`.%s", schema, pragma))) {
+            return resultSet.next() ? resultSet.getLong(1) : 0L;
+        }
+    }
 
-                    final StringBuilder builder = new StringBuilder("SELECT * FROM `events` WHERE `world` = ? AND `x` >= ? AND `x` <= ? AND `y` >= ? AND `y` <= ? AND `z` >= ? AND `z` <= ?");
-                    if (query.shouldUseDistinct()) {
-                        builder.append(" AND `event_id` IN (SELECT MIN(`event_id`) FROM `events` WHERE `world` = ? AND `x` >= ? AND `x` <= ? AND `y` >= ? AND `y` <= ? AND `z` >= ? AND `z` <= ? GROUP BY `world`, `x`, `y`, `z`)");
-                    }
+    @Override protected int purge(@NotNull final Connection connection, @NotNull final RetentionRule rule,
+        final int worldId, final long cutoff, final int limit) throws SQLException {
+        // Events that have already been copied into the clustered table would be restored when the tables are swapped
+        if (this.getMigrationRunner().isApplied(SQLiteMigrations.CLUSTERED_TABLE) && !this.isClustered(EVENTS)) {
+            return 0;
+        }
+        return super.purge(connection, rule, worldId, cutoff, limit);
+    }
 
-                    // Append reasons
-                    builder.append(" AND `reason` IN (");
-                    final Iterator<ChangeReason> reasons = query.getReasons().iterator();
-                    while (reasons.hasNext()) {
-                        builder.append('\'').append(reasons.next().name()).append('\'');
-                        if (reasons.hasNext()) {
-                            builder.append(", ");
-                        }
-                    }
-                    builder.append(")");
+    @Override protected void insertRows(@NotNull final List<Object[]> rows) throws SQLException {
+        if (this.isClustered(EVENTS) && !(this.inserter instanceof ClusteredInserter)) {
+            // The events table has been replaced since the inserter was prepared
+            this.inserter.close();
+            this.inserter = this.createInserter();
+        }
+        final long after = this.getLastEventId(this.connection, EVENTS);
+        this.inserter.insert(rows);
+        this.updateBlockHistory(this.connection, EVENTS, BLOCK_HISTORY, after);
+    }
 
-                    if (query.getChangeSource() != null) {
-                        builder.append(" AND `source` = ?");
-                    }
+    @Override protected final Connection getWriteConnection() {
+        return this.connection;
+    }
 
-                    builder.append(" LIMIT ?");
-
-                    try (final PreparedStatement statement = this.getConnection().prepareStatement(builder.toString())) {
-                        int index = 1;
-                        statement.setString(index++, query.getWorld().getName());
-                        statement.setInt(index++, region.getMinimumPoint().getBlockX());
-                        statement.setInt(index++, region.getMaximumPoint().getBlockX());
-                        statement.setInt(index++, region.getMinimumPoint().getBlockY());
-                        statement.setInt(index++, region.getMaximumPoint().getBlockY());
-                        statement.setInt(index++, region.getMinimumPoint().getBlockZ());
-                        statement.setInt(index++, region.getMaximumPoint().getBlockZ());
-                        if (query.shouldUseDistinct()) {
-                            statement.setString(index++, query.getWorld().getName());
-                            statement.setInt(index++, region.getMinimumPoint().getBlockX());
-                            statement.setInt(index++, region.getMaximumPoint().getBlockX());
-                            statement.setInt(index++, region.getMinimumPoint().getBlockY());
-                            statement.setInt(index++, region.getMaximumPoint().getBlockY());
-                            statement.setInt(index++, region.getMinimumPoint().getBlockZ());
-                            statement.setInt(index++, region.getMaximumPoint().getBlockZ());
-                        }
-                        if (query.getChangeSource() != null) {
-                            statement.setString(index++, query.getChangeSource().getName());
-                        }
-                        statement.setInt(index, query.getLimit());
-                        try (final ResultSet resultSet = statement.executeQuery()) {
-                            while (resultSet.next()) {
-                                final Location location = new Location(Bukkit.getWorld(resultSet.getString("world")),
-                                    resultSet.getInt("x"), resultSet.getInt("y"), resultSet.getInt("z"));
-                                final ChangeSource source = this.sourceFactory.getSource(resultSet.getString("source"));
-                                if (source == null) {
-                                    LOGGER.warn("Skipping change because of invalid source: {}", source);
-                                    continue;
-                                }
-                                final ChangeReason reason = ChangeReason.valueOf(resultSet.getString("reason"));
-                                final byte[] oldState = resultSet.getBytes("old_state");
-                                final byte[] newState = resultSet.getBytes("new_state");
-                                final ChangeSubject<?, ?> subject = this.subjectFactory.getSubject(reason, resultSet.getString("type"),
-                                    resultSet.getString("from"), resultSet.getString("to"), oldState, newState);
-                                if (subject == null) {
-                                    LOGGER.warn("Skipping change because of invalid subject");
-                                    continue;
-                                }
-                                final Change change = Change.newBuilder()
-                                    .withId(resultSet.getInt("event_id"))
-                                    .atLocation(location)
-                                    .atTime(resultSet.getLong("timestamp"))
-                                    .withSource(source)
-                                    .withReason(reason)
-                                    .withSubject(subject)
-                                    .build();
-                                changes.add(change);
-                            }
-                        }
-                    }
-                } catch (final SQLException throwable) {
-                    future.completeExceptionally(throwable);
-                    return;
-                }
-            }
-            future.complete(changes);
-        }); return future;
+    @NotNull @Override protected PreparedStatement prepareQuery(@NotNull final Connection connection,
+        @NotNull final String shape, @NotNull final Supplier<String> sql) throws SQLException {
+        // Read connections live as long as the logger, so their statements are kept around
+        return this.statementCache.prepare(connection, shape, sql);
     }
 
-    @Override protected void finishBatch() throws Throwable {
-        synchronized (this.statementLock) {
-            if (this.statement != null) {
-                this.statement.executeBatch();
-            }
-            this.statement = null;
+    @Override protected void releaseQuery(@NotNull final PreparedStatement statement) {
+    }
+
+    @NotNull @Override protected Connection openReadConnection() throws SQLException {
+        return this.readPool.borrow();
+    }
+
+    @Override protected void closeReadConnection(@NotNull final Connection connection) {
+        this.readPool.release(connection);
+    }
+
+    /**
+     * Prepare an inserter for the events table, which depends
+     * on whether or not the table has been clustered yet
+     *
+     * @return Prepared inserter
+     * @throws SQLException If the inserter cannot be prepared
+     */
+    @NotNull private EventInserter createInserter() throws SQLException {
+        if (this.isClustered(EVENTS)) {
+            return ClusteredInserter.prepare(this.getWriteConnection(), this.getDialect(), EVENTS, EVENT_STATES);
         }
+        return this.getDialect().createInserter(this.getWriteConnection(), EVENTS);
     }
 
-    private Connection getConnection() {
-        return this.connection;
+    /**
+     * Open a new connection to the database
+     *
+     * @param readOnly Whether or not the connection will only be used for queries
+     * @return Opened connection
+     * @throws SQLException If the connection cannot be opened
+     */
+    @NotNull private Connection openConnection(final boolean readOnly) throws SQLException {
+        final Connection connection = DriverManager.getConnection(SQLDialect.SQLITE.getUrl("", 0, this.file.getPath()));
+        try (final Statement statement = connection.createStatement()) {
+            if (!readOnly) {
+                // Only has an effect on new databases, see supportsIncrementalVacuum
+                statement.execute("PRAGMA auto_vacuum = INCREMENTAL");
+            }
+            // WAL lets readers and the writer work concurrently. Every commit is
+            // still atomic, but only checkpoints are synced to disk
+            statement.execute("PRAGMA journal_mode = WAL");
+            statement.execute("PRAGMA synchronous = NORMAL");
+            statement.execute("PRAGMA temp_store = MEMORY");
+            statement.execute(String.format("PRAGMA mmap_size = %d", MMAP_SIZE));
+            // Negative values are in KiB
+            statement.execute(String.format("PRAGMA cache_size = -%d", readOnly ? READ_CACHE_SIZE : WRITE_CACHE_SIZE));
+            statement.execute(String.format("PRAGMA busy_timeout = %d", BUSY_TIMEOUT));
+            if (readOnly) {
+                statement.execute("PRAGMA query_only = true");
+            }
+        } catch (final SQLException e) {
+            connection.close();
+            throw e;
+        }
+        return connection;
     }
 
     @Override public boolean startLogging() {
-        final String connectionString = String.format("jdbc:sqlite:%s", this.file.getPath());
         try {
-            this.connection = DriverManager.getConnection(connectionString);
+            this.connection = this.openConnection(false);
         } catch (final Exception e) {
             LOGGER.error("Failed to initialize SQLite connection", e);
+            return false;
         }
-        try (final PreparedStatement preparedStatement = this.getConnection()
-            .prepareStatement(DDL)) {
-            preparedStatement.executeUpdate();
+        try {
+            this.migrate(this.getWriteConnection());
+            this.inserter = this.createInserter();
         } catch (final Exception e) {
-            LOGGER.error("Failed to create event table", e);
+            LOGGER.error("Failed to migrate the database", e);
+            return false;
         }
-        return this.connection != null;
+        // The read pool is opened after the migrations, so that
+        // readers never see a partially migrated schema
+        try {
+            this.readPool = new ConnectionPool(() -> this.openConnection(true), READ_CONNECTIONS, BUSY_TIMEOUT);
+        } catch (final SQLException e) {
+            LOGGER.error("Failed to open SQLite read connections", e);
+            return false;
+        }
+        // Index builds and backfills may take a long time on large databases, so they
+        // run on another thread once the logger has started. Changes wait in the
+        // intake while an index is being built, as the build holds the write lock
+        this.getMigrationRunner().runBackgroundMigrations(this.getPlugin(), this.getWriteConnection());
+        return true;
     }
 
     @Override public void stopLogger() {
-        if (this.connection != null) {
-            try {
-                this.connection.close();
-            } catch (final Throwable throwable) {
-                LOGGER.error("Failed to close SQLite connection", throwable);
+        super.stopLogger();
+        // Waits for a purge, or a step of a background migration, to finish
+        this.getWriteLock().lock();
+        try {
+            if (this.inserter != null) {
+                try {
+                    this.inserter.close();
+                } catch (final SQLException e) {
+                    LOGGER.error("Failed to close insert statements", e);
+                }
+            }
+            this.statementCache.close();
+            if (this.readPool != null) {
+                this.readPool.close();
+            }
+            if (this.connection != null) {
+                try {
+                    this.connection.close();
+                } catch (final Throwable throwable) {
+                    LOGGER.error("Failed to close SQLite connection", throwable);
+                }
             }
+        } finally {
+            this.getWriteLock().unlock();
         }
     }
 
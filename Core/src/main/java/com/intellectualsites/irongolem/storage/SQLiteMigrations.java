@@ -0,0 +1,141 @@
+//
+// IronGolem - A Minecraft block logging plugin
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.intellectualsites.irongolem.storage;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * Schema migrations used by {@link SQLiteLogger}
+ */
+public final class SQLiteMigrations {
+
+    /**
+     * Version of the migration after which every event stores world and source IDs
+     */
+    static final int DICTIONARY = 10;
+    /**
+     * Version of the migration after which the block history is complete
+     */
+    static final int BLOCK_HISTORY = 14;
+    /**
+     * Version of the migration that creates the table that the events are clustered into
+     */
+    static final int CLUSTERED_TABLE = 15;
+    /**
+     * Version of the migration after which the events table is clustered by block key
+     */
+    static final int CLUSTERED_EVENTS = 16;
+    /**
+     * Version of the migration that creates the table that block entity states are kept in
+     */
+    static final int EVENT_STATES = 17;
+
+    private SQLiteMigrations() {
+    }
+
+    /**
+     * Get all SQLite migrations. Background migrations keep track of their progress,
+     * so every {@link MigrationRunner} needs instances of its own
+     *
+     * @return Unmodifiable collection of new migrations
+     */
+    @NotNull public static Collection<Migration> getMigrations() {
+        return Collections.unmodifiableList(Arrays.asList(
+            SQLMigration.of(1, "Create events table",
+                "CREATE TABLE IF NOT EXISTS `events`(`event_id` INTEGER CONSTRAINT `events_pk` PRIMARY KEY AUTOINCREMENT, "
+                    + "`world` VARCHAR(36) NOT NULL, `x` INTEGER NOT NULL, `y` INTEGER NOT NULL, `z` INTEGER NOT NULL, "
+                    + "`timestamp` INTEGER NOT NULL, `source` VARCHAR(36) NOT NULL, `type` VARCHAR(16), `from` TEXT, "
+                    + "`to` TEXT, `old_state` BLOB, `new_state` BLOB, `reason` VARCHAR(64))"),
+            // Versions 2, 3 and 11 used to build and later drop indexes by world and source name, and are unused
+            SQLMigration.background(4, "Index events by reason",
+                "CREATE INDEX IF NOT EXISTS `events_reason` ON `events`(`reason`, `timestamp`)"),
+            SQLMigration.of(5, "Create block state dictionary",
+                "CREATE TABLE IF NOT EXISTS `block_states`(`id` INTEGER NOT NULL PRIMARY KEY, `state` TEXT NOT NULL UNIQUE)",
+                "ALTER TABLE `events` ADD COLUMN `from_id` INTEGER",
+                "ALTER TABLE `events` ADD COLUMN `to_id` INTEGER"),
+            BatchedMigration.of(6, "Dictionary encode existing block states", 10000,
+                "INSERT OR IGNORE INTO `block_states`(`state`) SELECT `from` FROM `events` WHERE `event_id` > ? AND `event_id` <= ? "
+                    + "AND `from_id` IS NULL AND `reason` <> 'RESTORATION' AND `from` IS NOT NULL",
+                "INSERT OR IGNORE INTO `block_states`(`state`) SELECT `to` FROM `events` WHERE `event_id` > ? AND `event_id` <= ? "
+                    + "AND `from_id` IS NULL AND `reason` <> 'RESTORATION' AND `to` IS NOT NULL",
+                "UPDATE `events` SET `from_id` = (SELECT `id` FROM `block_states` WHERE `state` = `events`.`from`), "
+                    + "`to_id` = (SELECT `id` FROM `block_states` WHERE `state` = `events`.`to`), `from` = NULL, `to` = NULL "
+                    + "WHERE `event_id` > ? AND `event_id` <= ? AND `from_id` IS NULL AND `reason` <> 'RESTORATION' "
+                    + "AND `from` IS NOT NULL AND `to` IS NOT NULL"),
+            SQLMigration.of(7, "Create world and actor dictionaries",
+                "CREATE TABLE IF NOT EXISTS `worlds`(`id` INTEGER NOT NULL PRIMARY KEY, `name` TEXT NOT NULL UNIQUE)",
+                "CREATE TABLE IF NOT EXISTS `actors`(`id` INTEGER NOT NULL PRIMARY KEY, `name` TEXT NOT NULL UNIQUE)",
+                "ALTER TABLE `events` ADD COLUMN `world_id` INTEGER",
+                "ALTER TABLE `events` ADD COLUMN `source_id` INTEGER"),
+            SQLMigration.background(8, "Index events by world ID and location",
+                "CREATE INDEX IF NOT EXISTS `events_world_location` ON `events`(`world_id`, `x`, `z`, `y`, `timestamp`)"),
+            SQLMigration.background(9, "Index events by source ID",
+                "CREATE INDEX IF NOT EXISTS `events_source_id` ON `events`(`source_id`, `timestamp`)"),
+            // Until this has finished, lookups also match the events that only store names
+            BatchedMigration.of(DICTIONARY, "Dictionary encode existing worlds and sources", 10000,
+                "INSERT OR IGNORE INTO `worlds`(`name`) SELECT DISTINCT `world` FROM `events` WHERE `event_id` > ? "
+                    + "AND `event_id` <= ? AND `world_id` IS NULL",
+                "INSERT OR IGNORE INTO `actors`(`name`) SELECT DISTINCT `source` FROM `events` WHERE `event_id` > ? "
+                    + "AND `event_id` <= ? AND `source_id` IS NULL",
+                "UPDATE `events` SET `world_id` = (SELECT `id` FROM `worlds` WHERE `name` = `events`.`world`), "
+                    + "`source_id` = (SELECT `id` FROM `actors` WHERE `name` = `events`.`source`), `world` = '', `source` = '' "
+                    + "WHERE `event_id` > ? AND `event_id` <= ? AND `world_id` IS NULL"),
+            SQLMigration.background(12, "Index events by world ID and time",
+                "CREATE INDEX IF NOT EXISTS `events_world_time` ON `events`(`world_id`, `timestamp`, `event_id`)"),
+            SQLMigration.of(13, "Create block history",
+                "CREATE TABLE IF NOT EXISTS `block_history`(`world_id` INTEGER NOT NULL, `x` INTEGER NOT NULL, "
+                    + "`y` INTEGER NOT NULL, `z` INTEGER NOT NULL, `first_id` INTEGER NOT NULL, `last_id` INTEGER NOT NULL, "
+                    + "PRIMARY KEY(`world_id`, `x`, `z`, `y`)) WITHOUT ROWID"),
+            // New events are added to the history as they are written, so this only has to cover existing events
+            BatchedMigration.of(BLOCK_HISTORY, "Build block history of existing events", 10000,
+                "INSERT INTO `block_history`(`world_id`, `x`, `y`, `z`, `first_id`, `last_id`) SELECT `world_id`, `x`, `y`, `z`, "
+                    + "MIN(`event_id`), MAX(`event_id`) FROM `events` WHERE `event_id` > ? AND `event_id` <= ? AND `world_id` IS NOT NULL "
+                    + "GROUP BY `world_id`, `x`, `y`, `z` ON CONFLICT(`world_id`, `x`, `z`, `y`) DO UPDATE SET "
+                    + "`first_id` = MIN(`first_id`, excluded.`first_id`), `last_id` = MAX(`last_id`, excluded.`last_id`)"),
+            // Rows are stored in primary key order, so the events of nearby blocks share pages. The primary
+            // key takes the place of the location index, and the event ID index takes the place of the row ID
+            SQLMigration.of(CLUSTERED_TABLE, "Create clustered events table",
+                "CREATE TABLE IF NOT EXISTS `events_clustered`(`event_id` INTEGER NOT NULL, `block_key` INTEGER NOT NULL, "
+                    + "`world` VARCHAR(36) NOT NULL, `x` INTEGER NOT NULL, `y` INTEGER NOT NULL, `z` INTEGER NOT NULL, "
+                    + "`timestamp` INTEGER NOT NULL, `source` VARCHAR(36) NOT NULL, `type` VARCHAR(16), `from` TEXT, "
+                    + "`to` TEXT, `old_state` BLOB, `new_state` BLOB, `reason` VARCHAR(64), `from_id` INTEGER, `to_id` INTEGER, "
+                    + "`world_id` INTEGER NOT NULL, `source_id` INTEGER, "
+                    + "PRIMARY KEY(`world_id`, `block_key`, `y`, `event_id`)) WITHOUT ROWID",
+                "CREATE UNIQUE INDEX IF NOT EXISTS `events_clustered_id` ON `events_clustered`(`event_id`)",
+                "CREATE INDEX IF NOT EXISTS `events_clustered_source_id` ON `events_clustered`(`source_id`, `timestamp`)",
+                "CREATE INDEX IF NOT EXISTS `events_clustered_reason` ON `events_clustered`(`reason`, `timestamp`)",
+                "CREATE INDEX IF NOT EXISTS `events_clustered_world_time` ON `events_clustered`(`world_id`, `timestamp`, `event_id`)"),
+            ClusteringMigration.of(CLUSTERED_EVENTS, "Cluster existing events by block key", "events_clustered", 10000),
+            // Few events carry block entity data, which would otherwise spread the clustered rows over many more pages
+            SQLMigration.of(EVENT_STATES, "Create block entity state table",
+                "CREATE TABLE IF NOT EXISTS `event_states`(`event_id` INTEGER NOT NULL PRIMARY KEY, `old_state` BLOB, "
+                    + "`new_state` BLOB)"),
+            BatchedMigration.of(18, "Move existing block entity states out of the events table", 10000,
+                "INSERT OR IGNORE INTO `event_states`(`event_id`, `old_state`, `new_state`) SELECT `event_id`, `old_state`, "
+                    + "`new_state` FROM `events` WHERE `event_id` > ? AND `event_id` <= ? "
+                    + "AND (`old_state` IS NOT NULL OR `new_state` IS NOT NULL)",
+                "UPDATE `events` SET `old_state` = NULL, `new_state` = NULL WHERE `event_id` > ? AND `event_id` <= ? "
+                    + "AND (`old_state` IS NOT NULL OR `new_state` IS NOT NULL)")
+        ));
+    }
+
+}
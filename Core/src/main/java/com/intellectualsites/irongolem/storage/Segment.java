@@ -0,0 +1,627 @@
+//
+// IronGolem - A Minecraft block logging plugin
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.intellectualsites.irongolem.storage;
+
+import com.google.common.base.Preconditions;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A memory mapped, append-only file of fixed size change records.
+ * <p>
+ * Records are {@link #RECORD_SIZE} bytes long, and are appended by a single writer.
+ * Block states are stored in a separate blob file, since they vary in size. While a
+ * segment is active, it keeps an index of the records in every chunk in memory. Once
+ * it is sealed, the index is written to a footer after the records, sorted by chunk
+ * key, together with the time range that is covered by the segment, so that queries
+ * can skip the segment entirely or binary search for the chunks that they need
+ */
+final class Segment implements AutoCloseable {
+
+    static final String FILE_SUFFIX = ".seg";
+    static final String BLOB_SUFFIX = ".blob";
+
+    private static final int MAGIC = 0x49475347;
+    private static final int TRAILER_MAGIC = 0x49474654;
+    private static final int VERSION = 1;
+
+    // Header
+    private static final int HEADER_SIZE = 32;
+    private static final int BASE_ID_OFFSET = 8;
+    private static final int CAPACITY_OFFSET = 16;
+    private static final int COUNT_OFFSET = 20;
+    private static final int SEALED_OFFSET = 24;
+
+    // Records
+    static final int RECORD_SIZE = 56;
+    private static final int TIMESTAMP = 0;
+    private static final int X = 8;
+    private static final int Y = 12;
+    private static final int Z = 16;
+    private static final int WORLD = 20;
+    private static final int SOURCE = 24;
+    private static final int FROM = 28;
+    private static final int TO = 32;
+    private static final int TYPE = 36;
+    private static final int REASON = 37;
+    private static final int BLOB_OFFSET = 40;
+    private static final int OLD_LENGTH = 48;
+    private static final int NEW_LENGTH = 52;
+
+    // Footer
+    private static final int INDEX_ENTRY_SIZE = 12;
+    private static final int TRAILER_SIZE = 24;
+    // Regions that span more chunks than this are found by scanning every record
+    private static final int MAX_CHUNK_LOOKUPS = 4096;
+    private static final int[] EMPTY = new int[0];
+    private static final byte[] EMPTY_BLOB = new byte[0];
+    // Records are addressed using integer offsets
+    static final int MAX_CAPACITY = (Integer.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE;
+
+    private final File file;
+    private final long baseId;
+    private final int capacity;
+    private final FileChannel channel;
+    private final FileChannel blobChannel;
+    private final MappedByteBuffer records;
+    // Guarded by this, and only used while the segment is active
+    private final Map<Long, IntList> chunks = new HashMap<>();
+    // One reference is held by the logger, and one by every query that reads the segment
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    private volatile int count;
+    private volatile boolean sealed;
+    private volatile long minTimestamp = Long.MAX_VALUE;
+    private volatile long maxTimestamp = Long.MIN_VALUE;
+    private volatile ByteBuffer index;
+    private long blobSize;
+
+    private Segment(@NotNull final File file, final long baseId, final int capacity, @NotNull final FileChannel channel,
+        @NotNull final FileChannel blobChannel, @NotNull final MappedByteBuffer records) throws IOException {
+        this.file = file;
+        this.baseId = baseId;
+        this.capacity = capacity;
+        this.channel = channel;
+        this.blobChannel = blobChannel;
+        this.records = records;
+        this.blobSize = blobChannel.size();
+    }
+
+    /**
+     * Create a new, empty segment
+     *
+     * @param directory Segment directory
+     * @param baseId    ID of the first record in the segment
+     * @param capacity  Maximum number of records
+     * @return Created segment
+     * @throws IOException If the segment cannot be created
+     */
+    @NotNull static Segment create(@NotNull final File directory, final long baseId, final int capacity) throws IOException {
+        Preconditions.checkState(capacity > 0 && capacity <= MAX_CAPACITY, "Capacity has to be between 1 and %s", MAX_CAPACITY);
+        final File file = new File(directory, String.format("segment-%019d%s", baseId, FILE_SUFFIX));
+        final FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        final MappedByteBuffer records = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+            HEADER_SIZE + (long) capacity * RECORD_SIZE);
+        records.putInt(0, MAGIC);
+        records.putInt(4, VERSION);
+        records.putLong(BASE_ID_OFFSET, baseId);
+        records.putInt(CAPACITY_OFFSET, capacity);
+        records.putInt(COUNT_OFFSET, 0);
+        records.putInt(SEALED_OFFSET, 0);
+        return new Segment(file, baseId, capacity, channel, openBlobs(file), records);
+    }
+
+    /**
+     * Open an existing segment. Segments that were never sealed have
+     * their chunk index and time range rebuilt from their records
+     *
+     * @param file Segment file
+     * @return Opened segment
+     * @throws IOException If the segment cannot be read
+     */
+    @NotNull static Segment open(@NotNull final File file) throws IOException {
+        final FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        try {
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining()) {
+                if (channel.read(header, header.position()) < 0) {
+                    break;
+                }
+            }
+            if (header.hasRemaining() || header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                throw new IOException(String.format("%s is not a segment file", file.getName()));
+            }
+            final int capacity = header.getInt(CAPACITY_OFFSET);
+            final int count = header.getInt(COUNT_OFFSET);
+            final boolean sealed = header.getInt(SEALED_OFFSET) == 1;
+            final MappedByteBuffer records = channel.map(sealed ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE,
+                0, HEADER_SIZE + (long) (sealed ? count : capacity) * RECORD_SIZE);
+            final Segment segment = new Segment(file, header.getLong(BASE_ID_OFFSET), capacity, channel, openBlobs(file), records);
+            segment.count = count;
+            if (sealed) {
+                segment.mapIndex();
+            } else {
+                for (int record = 0; record < count; record++) {
+                    segment.index(record);
+                }
+            }
+            return segment;
+        } catch (final IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Get the ID of the first record in the segment
+     *
+     * @return Base ID
+     */
+    long getBaseId() {
+        return this.baseId;
+    }
+
+    /**
+     * Get the number of records in the segment
+     *
+     * @return Record count
+     */
+    int getCount() {
+        return this.count;
+    }
+
+    /**
+     * Whether or not the segment has reached its capacity
+     *
+     * @return True if no more records can be appended
+     */
+    boolean isFull() {
+        return this.count >= this.capacity;
+    }
+
+    /**
+     * Whether or not the segment has been sealed
+     *
+     * @return True if the segment is sealed
+     */
+    boolean isSealed() {
+        return this.sealed;
+    }
+
+    /**
+     * Get the timestamp of the oldest record
+     *
+     * @return Unix timestamp (in milliseconds)
+     */
+    long getMinTimestamp() {
+        return this.minTimestamp;
+    }
+
+    /**
+     * Get the timestamp of the newest record
+     *
+     * @return Unix timestamp (in milliseconds)
+     */
+    long getMaxTimestamp() {
+        return this.maxTimestamp;
+    }
+
+    /**
+     * Get the segment file
+     *
+     * @return Segment file
+     */
+    @NotNull File getFile() {
+        return this.file;
+    }
+
+    /**
+     * Append a record. Must only be called by the writer, and only
+     * while the segment is active and not yet full
+     *
+     * @return Index of the record
+     * @throws IOException If the block states cannot be written
+     */
+    int append(final long timestamp, final int x, final int y, final int z, final int world, final int source,
+        final int from, final int to, final byte type, final byte reason, @NotNull final byte[] oldState,
+        @NotNull final byte[] newState) throws IOException {
+        final int record = this.count;
+        final int offset = HEADER_SIZE + record * RECORD_SIZE;
+        long blobOffset = -1L;
+        if (oldState.length > 0 || newState.length > 0) {
+            blobOffset = this.blobSize;
+            final ByteBuffer blob = ByteBuffer.allocate(oldState.length + newState.length);
+            blob.put(oldState).put(newState).flip();
+            while (blob.hasRemaining()) {
+                this.blobSize += this.blobChannel.write(blob, this.blobSize);
+            }
+        }
+        this.records.putLong(offset + TIMESTAMP, timestamp);
+        this.records.putInt(offset + X, x);
+        this.records.putInt(offset + Y, y);
+        this.records.putInt(offset + Z, z);
+        this.records.putInt(offset + WORLD, world);
+        this.records.putInt(offset + SOURCE, source);
+        this.records.putInt(offset + FROM, from);
+        this.records.putInt(offset + TO, to);
+        this.records.put(offset + TYPE, type);
+        this.records.put(offset + REASON, reason);
+        this.records.putLong(offset + BLOB_OFFSET, blobOffset);
+        this.records.putInt(offset + OLD_LENGTH, oldState.length);
+        this.records.putInt(offset + NEW_LENGTH, newState.length);
+        this.index(record);
+        // The count is published last, so that readers never see a partial record
+        this.records.putInt(COUNT_OFFSET, record + 1);
+        this.count = record + 1;
+        return record;
+    }
+
+    /**
+     * Find the records in a region of a world. The indices are sorted in
+     * ascending order, and may include records outside of the region
+     *
+     * @param world World ID
+     * @param minX  Minimum block x coordinate
+     * @param maxX  Maximum block x coordinate
+     * @param minZ  Minimum block z coordinate
+     * @param maxZ  Maximum block z coordinate
+     * @return Record indices, or null if every record has to be scanned
+     */
+    @Nullable int[] find(final int world, final int minX, final int maxX, final int minZ, final int maxZ) {
+        final int minChunkX = minX >> 4;
+        final int maxChunkX = maxX >> 4;
+        final int minChunkZ = minZ >> 4;
+        final int maxChunkZ = maxZ >> 4;
+        if ((long) (maxChunkX - minChunkX + 1) * (maxChunkZ - minChunkZ + 1) > MAX_CHUNK_LOOKUPS) {
+            return null;
+        }
+        final IntList found = new IntList();
+        final ByteBuffer index;
+        synchronized (this) {
+            // The in-memory index is cleared once the segment is sealed
+            index = this.index;
+            if (index == null) {
+                for (int chunkX = minChunkX; chunkX <= maxChunkX; chunkX++) {
+                    for (int chunkZ = minChunkZ; chunkZ <= maxChunkZ; chunkZ++) {
+                        final IntList records = this.chunks.get(getChunkKey(world, chunkX, chunkZ));
+                        if (records != null) {
+                            found.addAll(records);
+                        }
+                    }
+                }
+            }
+        }
+        if (index != null) {
+            for (int chunkX = minChunkX; chunkX <= maxChunkX; chunkX++) {
+                for (int chunkZ = minChunkZ; chunkZ <= maxChunkZ; chunkZ++) {
+                    final long key = getChunkKey(world, chunkX, chunkZ);
+                    for (int entry = lowerBound(index, this.count, key); entry < this.count
+                        && index.getLong(entry * INDEX_ENTRY_SIZE) == key; entry++) {
+                        found.add(index.getInt(entry * INDEX_ENTRY_SIZE + Long.BYTES));
+                    }
+                }
+            }
+        }
+        if (found.size == 0) {
+            return EMPTY;
+        }
+        final int[] indices = Arrays.copyOf(found.values, found.size);
+        Arrays.sort(indices);
+        return indices;
+    }
+
+    long getTimestamp(final int record) {
+        return this.records.getLong(HEADER_SIZE + record * RECORD_SIZE + TIMESTAMP);
+    }
+
+    int getX(final int record) {
+        return this.records.getInt(HEADER_SIZE + record * RECORD_SIZE + X);
+    }
+
+    int getY(final int record) {
+        return this.records.getInt(HEADER_SIZE + record * RECORD_SIZE + Y);
+    }
+
+    int getZ(final int record) {
+        return this.records.getInt(HEADER_SIZE + record * RECORD_SIZE + Z);
+    }
+
+    int getWorld(final int record) {
+        return this.records.getInt(HEADER_SIZE + record * RECORD_SIZE + WORLD);
+    }
+
+    int getSource(final int record) {
+        return this.records.getInt(HEADER_SIZE + record * RECORD_SIZE + SOURCE);
+    }
+
+    int getFrom(final int record) {
+        return this.records.getInt(HEADER_SIZE + record * RECORD_SIZE + FROM);
+    }
+
+    int getTo(final int record) {
+        return this.records.getInt(HEADER_SIZE + record * RECORD_SIZE + TO);
+    }
+
+    byte getType(final int record) {
+        return this.records.get(HEADER_SIZE + record * RECORD_SIZE + TYPE);
+    }
+
+    byte getReason(final int record) {
+        return this.records.get(HEADER_SIZE + record * RECORD_SIZE + REASON);
+    }
+
+    /**
+     * Read the state of the block before the change
+     *
+     * @param record Record index
+     * @return Serialized state
+     * @throws IOException If the blob file cannot be read
+     */
+    @NotNull byte[] getOldState(final int record) throws IOException {
+        final int offset = HEADER_SIZE + record * RECORD_SIZE;
+        return this.readBlob(this.records.getLong(offset + BLOB_OFFSET), this.records.getInt(offset + OLD_LENGTH));
+    }
+
+    /**
+     * Read the state of the block after the change
+     *
+     * @param record Record index
+     * @return Serialized state
+     * @throws IOException If the blob file cannot be read
+     */
+    @NotNull byte[] getNewState(final int record) throws IOException {
+        final int offset = HEADER_SIZE + record * RECORD_SIZE;
+        final long blobOffset = this.records.getLong(offset + BLOB_OFFSET);
+        return this.readBlob(blobOffset + this.records.getInt(offset + OLD_LENGTH), this.records.getInt(offset + NEW_LENGTH));
+    }
+
+    /**
+     * Force the appended records to the storage device
+     *
+     * @throws IOException If the segment cannot be synced
+     */
+    void force() throws IOException {
+        this.blobChannel.force(false);
+        this.records.force();
+    }
+
+    /**
+     * Seal the segment, by writing the chunk index and time range footer.
+     * No records may be appended once the segment has been sealed
+     *
+     * @throws IOException If the footer cannot be written
+     */
+    synchronized void seal() throws IOException {
+        if (this.sealed) {
+            return;
+        }
+        final int count = this.count;
+        final long footer = HEADER_SIZE + (long) count * RECORD_SIZE;
+        final ByteBuffer buffer = ByteBuffer.allocate(count * INDEX_ENTRY_SIZE + TRAILER_SIZE);
+        final long[] keys = new long[this.chunks.size()];
+        int key = 0;
+        for (final Long chunk : this.chunks.keySet()) {
+            keys[key++] = chunk;
+        }
+        Arrays.sort(keys);
+        for (final long chunk : keys) {
+            final IntList records = this.chunks.get(chunk);
+            for (int i = 0; i < records.size; i++) {
+                buffer.putLong(chunk).putInt(records.values[i]);
+            }
+        }
+        buffer.putLong(this.minTimestamp).putLong(this.maxTimestamp).putInt(count).putInt(TRAILER_MAGIC);
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            this.channel.write(buffer, footer + buffer.position());
+        }
+        this.force();
+        this.channel.force(false);
+        // The footer is only used once it has been written completely
+        this.records.putInt(SEALED_OFFSET, 1);
+        this.records.force();
+        this.mapIndex();
+        this.chunks.clear();
+        try {
+            // The unused capacity is given back, where the platform allows
+            // files to be truncated while they are mapped
+            this.channel.truncate(footer + count * INDEX_ENTRY_SIZE + TRAILER_SIZE);
+        } catch (final IOException ignored) {
+        }
+    }
+
+    /**
+     * Acquire a reference to the segment, which keeps its files
+     * from being deleted until the reference is {@link #release() released}
+     *
+     * @return True if the reference was acquired, false if the segment has been deleted
+     */
+    boolean acquire() {
+        int current;
+        do {
+            current = this.references.get();
+            if (current == 0) {
+                return false;
+            }
+        } while (!this.references.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    /**
+     * Release a reference to the segment. The segment files are deleted
+     * once the last reference has been released, which only happens
+     * after the logger has released its own reference
+     *
+     * @return False if the files had to be deleted, but could not be
+     * @throws IOException If the segment cannot be closed
+     */
+    boolean release() throws IOException {
+        return this.references.decrementAndGet() != 0 || this.delete();
+    }
+
+    /**
+     * Delete the segment files. The segment must not be used afterwards
+     *
+     * @return True if the files were deleted
+     * @throws IOException If the segment cannot be closed
+     */
+    boolean delete() throws IOException {
+        this.close();
+        final File blobs = getBlobFile(this.file);
+        final boolean deleted = !blobs.exists() || blobs.delete();
+        return this.file.delete() && deleted;
+    }
+
+    @Override public void close() throws IOException {
+        try {
+            this.channel.close();
+        } finally {
+            this.blobChannel.close();
+        }
+    }
+
+    /**
+     * Add a record to the in-memory chunk index, and extend the time range
+     *
+     * @param record Record index
+     */
+    private void index(final int record) {
+        final long timestamp = this.getTimestamp(record);
+        if (timestamp < this.minTimestamp) {
+            this.minTimestamp = timestamp;
+        }
+        if (timestamp > this.maxTimestamp) {
+            this.maxTimestamp = timestamp;
+        }
+        final long key = getChunkKey(this.getWorld(record), this.getX(record) >> 4, this.getZ(record) >> 4);
+        synchronized (this) {
+            this.chunks.computeIfAbsent(key, ignored -> new IntList()).add(record);
+        }
+    }
+
+    /**
+     * Map the footer of a sealed segment
+     *
+     * @throws IOException If the footer cannot be read
+     */
+    private void mapIndex() throws IOException {
+        final long footer = HEADER_SIZE + (long) this.count * RECORD_SIZE;
+        final ByteBuffer index = this.channel.map(FileChannel.MapMode.READ_ONLY, footer,
+            (long) this.count * INDEX_ENTRY_SIZE + TRAILER_SIZE);
+        final int trailer = this.count * INDEX_ENTRY_SIZE;
+        if (index.getInt(trailer + 20) != TRAILER_MAGIC || index.getInt(trailer + 16) != this.count) {
+            throw new IOException(String.format("%s has a corrupt footer", this.file.getName()));
+        }
+        this.minTimestamp = index.getLong(trailer);
+        this.maxTimestamp = index.getLong(trailer + 8);
+        this.index = index;
+        this.sealed = true;
+    }
+
+    @NotNull private byte[] readBlob(final long offset, final int length) throws IOException {
+        if (length == 0) {
+            return EMPTY_BLOB;
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (this.blobChannel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of blob file");
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Find the first index entry with a key that is at least the given key
+     *
+     * @param index   Index entries
+     * @param entries Number of entries
+     * @param key     Chunk key
+     * @return Entry index
+     */
+    private static int lowerBound(@NotNull final ByteBuffer index, final int entries, final long key) {
+        int low = 0;
+        int high = entries;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (index.getLong(middle * INDEX_ENTRY_SIZE) < key) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Get the key of a chunk. Chunk coordinates use 22 bits each,
+     * which covers the entire world border, and the world ID the rest
+     *
+     * @param world  World ID
+     * @param chunkX Chunk x coordinate
+     * @param chunkZ Chunk z coordinate
+     * @return Chunk key
+     */
+    private static long getChunkKey(final int world, final int chunkX, final int chunkZ) {
+        return ((long) world << 44) | ((chunkX & 0x3FFFFFL) << 22) | (chunkZ & 0x3FFFFFL);
+    }
+
+    @NotNull private static FileChannel openBlobs(@NotNull final File file) throws IOException {
+        return new RandomAccessFile(getBlobFile(file), "rw").getChannel();
+    }
+
+    @NotNull private static File getBlobFile(@NotNull final File file) {
+        final String name = file.getName();
+        return new File(file.getParentFile(), name.substring(0, name.length() - FILE_SUFFIX.length()) + BLOB_SUFFIX);
+    }
+
+    /**
+     * Growable list of primitive integers
+     */
+    private static final class IntList {
+
+        private int[] values = new int[4];
+        private int size;
+
+        private void add(final int value) {
+            if (this.size == this.values.length) {
+                this.values = Arrays.copyOf(this.values, this.size * 2);
+            }
+            this.values[this.size++] = value;
+        }
+
+        private void addAll(@NotNull final IntList list) {
+            for (int i = 0; i < list.size; i++) {
+                this.add(list.values[i]);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,522 @@
+//
+// IronGolem - A Minecraft block logging plugin
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.intellectualsites.irongolem.storage;
+
+import com.google.common.base.Preconditions;
+import com.intellectualsites.irongolem.changes.Change;
+import com.intellectualsites.irongolem.changes.ChangeConsumer;
+import com.intellectualsites.irongolem.changes.ChangeQuery;
+import com.intellectualsites.irongolem.changes.ChangeReason;
+import com.intellectualsites.irongolem.changes.ChangeSource;
+import com.intellectualsites.irongolem.changes.ChangeSubject;
+import com.intellectualsites.irongolem.changes.ChangeType;
+import com.intellectualsites.irongolem.changes.RestorationSubject;
+import com.intellectualsites.irongolem.logging.ChangeBuffer;
+import com.intellectualsites.irongolem.logging.ChangeIntake;
+import com.intellectualsites.irongolem.logging.FlushPolicy;
+import com.intellectualsites.irongolem.logging.ScheduledQueuingChangeLogger;
+import com.intellectualsites.irongolem.util.CuboidRegion;
+import com.intellectualsites.irongolem.util.SourceFactory;
+import com.intellectualsites.irongolem.util.SubjectFactory;
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.plugin.Plugin;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * {@link com.intellectualsites.irongolem.logging.ChangeLogger} that appends changes
+ * to memory mapped {@link Segment segments}.
+ * <p>
+ * Appending a change only writes a fixed size record to mapped memory, which is much
+ * cheaper than inserting into a B-tree, and the records are only forced to disk when
+ * the flush task commits. Queries skip segments outside of their time range, and look
+ * up the chunks of the queried region in the index of the remaining segments.
+ * <p>
+ * Changes can not be deleted individually, so history is removed by
+ * {@link #dropSegments(long) dropping} entire segments. Queries hold a reference
+ * to every segment they read, so dropped segments are only deleted once the
+ * queries that are reading them have finished
+ */
+public class SegmentChangeLogger extends ScheduledQueuingChangeLogger implements PurgeableLogger {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SegmentChangeLogger.class);
+    private static final String FILE_PREFIX = "segment-";
+    private static final byte[] EMPTY_STATE = new byte[0];
+    private static final int CHUNK_SIZE = 1024;
+    // Types and reasons are stored by their ordinal, so new constants may only be appended
+    private static final ChangeType[] TYPES = ChangeType.values();
+    private static final ChangeReason[] REASONS = ChangeReason.values();
+
+    private final SourceFactory sourceFactory = new SourceFactory();
+    private final SubjectFactory subjectFactory = new SubjectFactory();
+    private final Map<Integer, ChangeSource> sources = new ConcurrentHashMap<>();
+    // Ordered from oldest to newest. The last segment is the active one
+    private final List<Segment> segments = new CopyOnWriteArrayList<>();
+    private final Set<String> warnedRules = ConcurrentHashMap.newKeySet();
+
+    private final Plugin plugin;
+    private final File directory;
+    private final int capacity;
+    private final FileDictionary blockStates;
+    private final FileDictionary worlds;
+    private final FileDictionary actors;
+    private volatile Segment active;
+
+    /**
+     * Create a new logger
+     *
+     * @param plugin       Plugin that owns the logger
+     * @param flushPolicy  Policy that decides the flush interval and batch size
+     * @param changeIntake Intake that changes are queued in
+     * @param capacity     Number of records per segment
+     */
+    public SegmentChangeLogger(@NotNull final Plugin plugin, @NotNull final FlushPolicy flushPolicy,
+        @NotNull final ChangeIntake changeIntake, final int capacity) {
+        super(plugin, flushPolicy, changeIntake);
+        Preconditions.checkState(capacity > 0 && capacity <= Segment.MAX_CAPACITY,
+            "Segment capacity has to be between 1 and %s", Segment.MAX_CAPACITY);
+        this.plugin = plugin;
+        this.capacity = capacity;
+        this.directory = new File(plugin.getDataFolder(), "segments");
+        this.blockStates = new FileDictionary(new File(this.directory, "block_states.dict"));
+        this.worlds = new FileDictionary(new File(this.directory, "worlds.dict"));
+        this.actors = new FileDictionary(new File(this.directory, "actors.dict"));
+    }
+
+    /**
+     * Get the number of segments, including the active segment
+     *
+     * @return Number of segments
+     */
+    public int getSegmentCount() {
+        return this.segments.size();
+    }
+
+    /**
+     * Drop every sealed segment that only contains changes
+     * made before a given time
+     *
+     * @param timestamp Unix timestamp (in milliseconds)
+     * @return Number of dropped segments
+     */
+    public int dropSegments(final long timestamp) {
+        return this.drop(timestamp).size();
+    }
+
+    /**
+     * Drop every sealed segment that only contains changes made before a given time. Segments
+     * can only be dropped as a whole, so only rules that apply to every world and every reason
+     * are applied, see {@link RetentionRule#isGlobal()}
+     *
+     * @param rule   Retention rule
+     * @param cutoff Changes before this time are expired (unix timestamp, in milliseconds)
+     * @param limit  Ignored, as entire segments are dropped at once
+     * @return Number of changes in the dropped segments
+     */
+    @Override public int purge(@NotNull final RetentionRule rule, final long cutoff, final int limit) {
+        if (!rule.isGlobal()) {
+            if (this.warnedRules.add(rule.toString())) {
+                LOGGER.warn("Ignoring retention rule {}, segments can only be dropped for every world and reason", rule);
+            }
+            return 0;
+        }
+        long dropped = 0L;
+        for (final Segment segment : this.drop(cutoff)) {
+            dropped += segment.getCount();
+        }
+        return (int) Math.min(Integer.MAX_VALUE, dropped);
+    }
+
+    @Override public boolean supportsIncrementalVacuum() {
+        // Dropped segments are deleted, so there is never any free space left behind
+        return true;
+    }
+
+    @Override public long vacuum(final int pages) {
+        return 0L;
+    }
+
+    /**
+     * Remove every sealed segment that only contains changes made before a given
+     * time. The files are deleted once no query is reading the segment anymore
+     *
+     * @param timestamp Unix timestamp (in milliseconds)
+     * @return Removed segments
+     */
+    @NotNull private List<Segment> drop(final long timestamp) {
+        final List<Segment> dropped = new ArrayList<>();
+        for (final Segment segment : this.segments) {
+            if (!segment.isSealed() || segment.getMaxTimestamp() >= timestamp) {
+                continue;
+            }
+            this.segments.remove(segment);
+            this.release(segment);
+            dropped.add(segment);
+        }
+        return dropped;
+    }
+
+    /**
+     * Release a reference to a segment, see {@link Segment#release()}
+     *
+     * @param segment Segment
+     */
+    private void release(@NotNull final Segment segment) {
+        try {
+            if (!segment.release()) {
+                LOGGER.warn("Failed to delete {}", segment.getFile().getName());
+            }
+        } catch (final IOException e) {
+            LOGGER.error("Failed to close {}", segment.getFile().getName(), e);
+        }
+    }
+
+    @Override protected void startBatch() {
+    }
+
+    @Override protected void persist(@NotNull final Change change) throws Exception {
+        if (this.active.isFull()) {
+            this.roll();
+        }
+        final Location location = change.getLocation();
+        final ChangeSubject<?, ?> subject = change.getSubject();
+        final int from;
+        final int to;
+        if (subject instanceof RestorationSubject) {
+            // Restorations refer to event IDs, which would never be reused. The
+            // restored ID is split over both fields, see getRestoredId(Segment, int)
+            final long restored = Long.parseLong(subject.serializeTo());
+            from = (int) (restored >>> 32);
+            to = (int) restored;
+        } else {
+            from = this.blockStates.getId(subject.serializeFrom());
+            to = this.blockStates.getId(subject.serializeTo());
+        }
+        final byte[] oldState = subject.serializeOldState();
+        final byte[] newState = subject.serializeNewState();
+        this.active.append(change.getTimestamp(), location.getBlockX(), location.getBlockY(), location.getBlockZ(),
+            this.worlds.getId(Objects.requireNonNull(location.getWorld()).getName()),
+            this.actors.getId(change.getSource().getName()), from, to, (byte) subject.getType().ordinal(),
+            (byte) change.getReason().ordinal(), oldState == null ? EMPTY_STATE : oldState,
+            newState == null ? EMPTY_STATE : newState);
+    }
+
+    @Override protected void finishBatch() {
+    }
+
+    @Override protected void commitTransaction() throws Throwable {
+        // Dictionary entries have to be durable before the records that refer to them
+        this.blockStates.force();
+        this.worlds.force();
+        this.actors.force();
+        this.active.force();
+    }
+
+    @Override public CompletableFuture<List<Change>> queryChanges(@NotNull final ChangeQuery query) {
+        final List<Change> changes = new ArrayList<>();
+        return this.streamChanges(query, CHUNK_SIZE, changes::addAll).thenApply(count -> changes);
+    }
+
+    @Override public CompletableFuture<Integer> streamChanges(@NotNull final ChangeQuery query, final int chunkSize,
+        @NotNull final ChangeConsumer consumer) {
+        final CompletableFuture<Integer> future = new CompletableFuture<>();
+        Bukkit.getScheduler().runTaskAsynchronously(this.plugin, () -> {
+            try {
+                final ChangeBuffer buffer = new ChangeBuffer(query.getLimit(), chunkSize, consumer);
+                this.query(query, buffer);
+                buffer.flush();
+                future.complete(buffer.getCount());
+            } catch (final Throwable throwable) {
+                future.completeExceptionally(throwable);
+            }
+        });
+        return future;
+    }
+
+    @Override public boolean startLogging() {
+        if (!this.directory.exists() && !this.directory.mkdirs()) {
+            LOGGER.error("Failed to create segment directory");
+            return false;
+        }
+        try {
+            this.blockStates.load();
+            this.worlds.load();
+            this.actors.load();
+        } catch (final IOException e) {
+            LOGGER.error("Failed to load segment dictionaries", e);
+            return false;
+        }
+        final File[] files = this.directory.listFiles((directory, name) ->
+            name.startsWith(FILE_PREFIX) && name.endsWith(Segment.FILE_SUFFIX));
+        if (files != null) {
+            // Base IDs are zero padded, so the names sort in order
+            Arrays.sort(files);
+            for (final File file : files) {
+                try {
+                    final Segment segment = Segment.open(file);
+                    if (segment.getCount() == 0) {
+                        segment.delete();
+                        continue;
+                    }
+                    if (!segment.isSealed()) {
+                        LOGGER.info("Recovering {} change(s) from {}", segment.getCount(), file.getName());
+                        segment.seal();
+                    }
+                    this.segments.add(segment);
+                } catch (final IOException e) {
+                    LOGGER.error("Skipping unreadable segment {}", file.getName(), e);
+                }
+            }
+        }
+        final Segment last = this.segments.isEmpty() ? null : this.segments.get(this.segments.size() - 1);
+        try {
+            this.active = Segment.create(this.directory, last == null ? 1L : last.getBaseId() + last.getCount(),
+                this.capacity);
+        } catch (final IOException e) {
+            LOGGER.error("Failed to create segment", e);
+            return false;
+        }
+        this.segments.add(this.active);
+        LOGGER.info("Found {} segment(s)", this.segments.size() - 1);
+        return true;
+    }
+
+    @Override public void stopLogger() {
+        this.drain();
+        for (final Segment segment : this.segments) {
+            try {
+                if (segment == this.active && segment.getCount() == 0) {
+                    segment.delete();
+                } else {
+                    segment.seal();
+                    segment.close();
+                }
+            } catch (final IOException e) {
+                LOGGER.error("Failed to close {}", segment.getFile().getName(), e);
+            }
+        }
+        for (final FileDictionary dictionary : Arrays.asList(this.blockStates, this.worlds, this.actors)) {
+            try {
+                dictionary.close();
+            } catch (final IOException e) {
+                LOGGER.error("Failed to close segment dictionary", e);
+            }
+        }
+    }
+
+    /**
+     * Seal the active segment, and start a new one
+     *
+     * @throws IOException If the segment cannot be sealed, or the new segment cannot be created
+     */
+    private void roll() throws IOException {
+        final Segment full = this.active;
+        full.seal();
+        final Segment next = Segment.create(this.directory, full.getBaseId() + full.getCount(), this.capacity);
+        this.segments.add(next);
+        this.active = next;
+    }
+
+    /**
+     * Query the segments for changes
+     *
+     * @param query  Query
+     * @param buffer Buffer that receives the matching changes
+     * @throws IOException If a segment cannot be read
+     */
+    private void query(@NotNull final ChangeQuery query, @NotNull final ChangeBuffer buffer) throws IOException {
+        final int worldId = this.worlds.findId(query.getWorld().getName());
+        final int sourceId = query.getChangeSource() == null ? -1 : this.actors.findId(query.getChangeSource().getName());
+        if (worldId == -1 || (query.getChangeSource() != null && sourceId == -1)) {
+            // Nothing has ever been logged in the world, or by the source
+            return;
+        }
+        // The oldest value at every location is found by reading from
+        // oldest to newest. Otherwise, the newest changes are read first
+        final boolean ascending = query.shouldUseDistinct();
+        // Segments are ordered by event ID, so pages continue below the
+        // ID of the previous page, rather than below its timestamp
+        final long maxId = query.getPageToken() == null ? Long.MAX_VALUE : query.getPageToken().getEventId();
+        final Set<Location> locations = new HashSet<>();
+        final List<Segment> segments = new ArrayList<>(this.segments);
+        for (int s = 0; s < segments.size() && !buffer.isDone(); s++) {
+            final Segment segment = segments.get(ascending ? s : segments.size() - 1 - s);
+            if (segment.getMaxTimestamp() < query.getSince() || segment.getMinTimestamp() >= query.getBefore()
+                || segment.getBaseId() >= maxId || !segment.acquire()) {
+                continue;
+            }
+            try {
+                this.query(query, segment, worldId, sourceId, maxId, ascending, locations, buffer);
+            } finally {
+                this.release(segment);
+            }
+        }
+    }
+
+    /**
+     * Query a single segment for changes. The caller holds a reference to the segment
+     *
+     * @param query     Query
+     * @param segment   Segment
+     * @param worldId   ID of the queried world
+     * @param sourceId  ID of the queried source, or -1 if any source matches
+     * @param maxId     Exclusive upper bound of the event IDs
+     * @param ascending Whether or not the records are read from oldest to newest
+     * @param locations Locations that have been read, if the records are read from oldest to newest
+     * @param buffer    Buffer that receives the matching changes
+     * @throws IOException If the segment cannot be read
+     */
+    private void query(@NotNull final ChangeQuery query, @NotNull final Segment segment, final int worldId,
+        final int sourceId, final long maxId, final boolean ascending, @NotNull final Set<Location> locations,
+        @NotNull final ChangeBuffer buffer) throws IOException {
+        final CuboidRegion region = query.getRegion();
+        final int minX = region.getMinimumPoint().getBlockX();
+        final int maxX = region.getMaximumPoint().getBlockX();
+        final int minZ = region.getMinimumPoint().getBlockZ();
+        final int maxZ = region.getMaximumPoint().getBlockZ();
+        final int count = segment.getCount();
+        final int[] indices = segment.find(worldId, minX, maxX, minZ, maxZ);
+        final int total = indices == null ? count : indices.length;
+        for (int i = 0; i < total && !buffer.isDone(); i++) {
+            final int position = ascending ? i : total - 1 - i;
+            final int record = indices == null ? position : indices[position];
+            if (record >= count || segment.getWorld(record) != worldId || segment.getBaseId() + record >= maxId) {
+                continue;
+            }
+            final int x = segment.getX(record);
+            final int y = segment.getY(record);
+            final int z = segment.getZ(record);
+            final long timestamp = segment.getTimestamp(record);
+            final ChangeReason reason = REASONS[segment.getReason(record)];
+            if (x < minX || x > maxX || z < minZ || z > maxZ || y < region.getMinimumPoint().getBlockY()
+                || y > region.getMaximumPoint().getBlockY() || timestamp < query.getSince()
+                || timestamp >= query.getBefore() || !query.getReasons().contains(reason)
+                || (sourceId != -1 && segment.getSource(record) != sourceId)) {
+                continue;
+            }
+            final Location location = new Location(query.getWorld(), x, y, z);
+            if (ascending && !locations.add(location)) {
+                continue;
+            }
+            final Change change = this.readChange(segment, record, location, reason);
+            if (change != null) {
+                buffer.add(change);
+            }
+        }
+    }
+
+    /**
+     * Read a change from a segment
+     *
+     * @param segment  Segment
+     * @param record   Record index
+     * @param location Location of the change
+     * @param reason   Reason of the change
+     * @return The change, or null if it could not be read
+     * @throws IOException If the block states cannot be read
+     */
+    @Nullable private Change readChange(@NotNull final Segment segment, final int record,
+        @NotNull final Location location, @NotNull final ChangeReason reason) throws IOException {
+        final ChangeSource source = this.getSource(segment.getSource(record));
+        if (source == null) {
+            LOGGER.warn("Skipping change because of invalid source: {}", segment.getSource(record));
+            return null;
+        }
+        final String from;
+        final String to;
+        if (reason == ChangeReason.RESTORATION) {
+            from = "-1";
+            to = Long.toString(getRestoredId(segment, record));
+        } else {
+            from = this.blockStates.getValue(segment.getFrom(record));
+            to = this.blockStates.getValue(segment.getTo(record));
+        }
+        if (from == null || to == null) {
+            LOGGER.warn("Skipping change because of missing block state");
+            return null;
+        }
+        final ChangeSubject<?, ?> subject = this.subjectFactory.getSubject(reason, TYPES[segment.getType(record)].name(),
+            from, to, segment.getOldState(record), segment.getNewState(record));
+        if (subject == null) {
+            LOGGER.warn("Skipping change because of invalid subject");
+            return null;
+        }
+        return Change.newBuilder()
+            .withId(segment.getBaseId() + record)
+            .atLocation(location)
+            .atTime(segment.getTimestamp(record))
+            .withSource(source)
+            .withReason(reason)
+            .withSubject(subject)
+            .build();
+    }
+
+    /**
+     * Get the ID of the event that a restoration record restored. The high half
+     * of the ID is stored as the from state, and the low half as the to state
+     *
+     * @param segment Segment
+     * @param record  Record index
+     * @return Restored event ID
+     */
+    private static long getRestoredId(@NotNull final Segment segment, final int record) {
+        final int high = segment.getFrom(record);
+        // Records that only stored the low half have -1 as their from state
+        return high == -1 ? segment.getTo(record) : ((long) high << 32) | (segment.getTo(record) & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Get a change source from its actor ID. Sources are
+     * cached, so that every actor is only parsed once
+     *
+     * @param id Actor ID
+     * @return The source, or null if it could not be resolved
+     */
+    @Nullable private ChangeSource getSource(final int id) {
+        final ChangeSource cached = this.sources.get(id);
+        if (cached != null) {
+            return cached;
+        }
+        final String name = this.actors.getValue(id);
+        if (name == null) {
+            return null;
+        }
+        final ChangeSource source = this.sourceFactory.getSource(name);
+        if (source != null) {
+            this.sources.put(id, source);
+        }
+        return source;
+    }
+
+}
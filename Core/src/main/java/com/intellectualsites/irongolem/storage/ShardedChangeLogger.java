@@ -0,0 +1,418 @@
+//
+// IronGolem - A Minecraft block logging plugin
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.intellectualsites.irongolem.storage;
+
+import com.google.common.base.Preconditions;
+import com.intellectualsites.irongolem.changes.Change;
+import com.intellectualsites.irongolem.changes.ChangeConsumer;
+import com.intellectualsites.irongolem.changes.ChangeQuery;
+import com.intellectualsites.irongolem.changes.ChangeSummary;
+import com.intellectualsites.irongolem.changes.PageToken;
+import com.intellectualsites.irongolem.changes.SummaryField;
+import com.intellectualsites.irongolem.logging.ChangeBuffer;
+import com.intellectualsites.irongolem.logging.ChangeLogger;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.util.BlockVector;
+import org.bukkit.util.Vector;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * {@link ChangeLogger} that spreads changes over a number of independent loggers, so
+ * that changes are written by several threads at once. Changes are routed by world
+ * and region (32x32 chunks), so that all changes to a block end up in the same shard.
+ * <p>
+ * Queries are sent to every shard that overlaps the queried region, and the results
+ * are merged. History that was recorded before the changes were spread over shards
+ * can be kept in a legacy logger, which is queried along with every shard, but
+ * never written to.
+ * <p>
+ * Event IDs are made unique across shards by interleaving them: the n-th event of
+ * a shard has the ID {@code n * (shards + 1) + shard}, and the n-th event of the legacy
+ * logger has the ID {@code n * (shards + 1) + shards}. The slot of the legacy logger is
+ * kept whether or not there is one, so that IDs and page tokens stay valid once the
+ * legacy history is removed. IDs are only ordered within a shard, so a higher ID from
+ * another shard does not mean that the change is newer. Changes are ordered by timestamp,
+ * and only changes with the same timestamp are ordered by ID
+ */
+public class ShardedChangeLogger implements ChangeLogger {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ShardedChangeLogger.class);
+    private static final int REGION_SHIFT = 9;
+    private static final Comparator<Change> NEWEST_FIRST = Comparator.comparingLong(Change::getTimestamp)
+        .thenComparingLong(Change::getId).reversed();
+    private static final Comparator<Change> OLDEST_FIRST = Comparator.comparingLong(Change::getTimestamp)
+        .thenComparingLong(Change::getId);
+
+    private final List<ChangeLogger> shards;
+    private final List<ChangeLogger> loggers;
+    @Nullable private final ChangeLogger legacyLogger;
+    // Distance between the global IDs of consecutive events of a logger
+    private final int stride;
+
+    /**
+     * Create a new logger
+     *
+     * @param shards Loggers that changes are spread over. The order of the
+     *               shards decides which changes they hold, and may not change
+     */
+    public ShardedChangeLogger(@NotNull final List<? extends ChangeLogger> shards) {
+        this(shards, null);
+    }
+
+    /**
+     * Create a new logger
+     *
+     * @param shards       Loggers that changes are spread over. The order of the
+     *                     shards decides which changes they hold, and may not change
+     * @param legacyLogger Logger that holds the history from before the changes were
+     *                     spread over shards, or null
+     */
+    public ShardedChangeLogger(@NotNull final List<? extends ChangeLogger> shards,
+        @Nullable final ChangeLogger legacyLogger) {
+        Preconditions.checkArgument(!shards.isEmpty(), "There has to be at least one shard");
+        this.shards = Collections.unmodifiableList(new ArrayList<>(shards));
+        this.legacyLogger = legacyLogger;
+        final List<ChangeLogger> loggers = new ArrayList<>(this.shards);
+        if (legacyLogger != null) {
+            loggers.add(legacyLogger);
+        }
+        this.loggers = Collections.unmodifiableList(loggers);
+        this.stride = this.shards.size() + 1;
+    }
+
+    /**
+     * Get the loggers that changes are spread over
+     *
+     * @return Shards
+     */
+    @NotNull public List<ChangeLogger> getShards() {
+        return this.shards;
+    }
+
+    /**
+     * Get the logger that holds the history from before
+     * the changes were spread over shards
+     *
+     * @return Legacy logger, or null
+     */
+    @Nullable public ChangeLogger getLegacyLogger() {
+        return this.legacyLogger;
+    }
+
+    /**
+     * Get every logger that is queried, which are the
+     * shards, followed by the legacy logger if there is one
+     *
+     * @return Loggers
+     */
+    @NotNull public List<ChangeLogger> getLoggers() {
+        return this.loggers;
+    }
+
+    @Override public boolean startLogging() {
+        for (int shard = 0; shard < this.loggers.size(); shard++) {
+            if (!this.loggers.get(shard).startLogging()) {
+                LOGGER.error("Failed to start shard {}", shard);
+                for (int started = 0; started < shard; started++) {
+                    this.loggers.get(started).stopLogger();
+                }
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override public void logChange(@NotNull final Change change) {
+        this.shards.get(this.getShard(change.getLocation())).logChange(change);
+    }
+
+    @Override public void logChanges(@NotNull final Collection<Change> changes) {
+        final List<List<Change>> routed = new ArrayList<>(this.shards.size());
+        for (int shard = 0; shard < this.shards.size(); shard++) {
+            routed.add(new ArrayList<>());
+        }
+        for (final Change change : changes) {
+            routed.get(this.getShard(change.getLocation())).add(change);
+        }
+        for (int shard = 0; shard < this.shards.size(); shard++) {
+            if (!routed.get(shard).isEmpty()) {
+                this.shards.get(shard).logChanges(routed.get(shard));
+            }
+        }
+    }
+
+    @Override public void stopLogger() {
+        for (final ChangeLogger shard : this.loggers) {
+            shard.stopLogger();
+        }
+    }
+
+    @Override public CompletableFuture<List<Change>> queryChanges(@NotNull final ChangeQuery query) {
+        final BitSet candidates = this.getShards(query);
+        final List<CompletableFuture<List<Change>>> futures = new ArrayList<>(candidates.cardinality());
+        final List<Integer> queried = new ArrayList<>(candidates.cardinality());
+        for (int shard = candidates.nextSetBit(0); shard != -1; shard = candidates.nextSetBit(shard + 1)) {
+            futures.add(this.loggers.get(shard).queryChanges(this.getShardQuery(query, shard)));
+            queried.add(shard);
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).thenApply(ignored -> {
+            final List<Change> changes = new ArrayList<>();
+            for (int i = 0; i < futures.size(); i++) {
+                for (final Change change : futures.get(i).join()) {
+                    changes.add(this.toGlobal(change, queried.get(i)));
+                }
+            }
+            // Distinct changes are not ordered, and no block is in more than one shard
+            if (!query.shouldUseDistinct()) {
+                changes.sort(NEWEST_FIRST);
+            } else if (this.legacyLogger != null && queried.size() > 1) {
+                // A block may be in the legacy logger as well, which holds the oldest value
+                changes.sort(OLDEST_FIRST);
+                final Set<BlockVector> blocks = new HashSet<>();
+                changes.removeIf(change -> !blocks.add(change.getLocation().toVector().toBlockVector()));
+            }
+            return changes.size() > query.getLimit() ? new ArrayList<>(changes.subList(0, query.getLimit())) : changes;
+        });
+    }
+
+    @Override public CompletableFuture<Integer> streamChanges(@NotNull final ChangeQuery query, final int chunkSize,
+        @NotNull final ChangeConsumer consumer) {
+        final BitSet candidates = this.getShards(query);
+        if (candidates.cardinality() == 1) {
+            final int shard = candidates.nextSetBit(0);
+            return this.loggers.get(shard).streamChanges(this.getShardQuery(query, shard), chunkSize, changes -> {
+                final List<Change> chunk = new ArrayList<>(changes.size());
+                for (final Change change : changes) {
+                    chunk.add(this.toGlobal(change, shard));
+                }
+                return consumer.accept(chunk);
+            });
+        } else if (query.shouldUseDistinct()) {
+            // Distinct values have to be merged across the legacy logger
+            // and the shards, but they are only ever one change per block
+            return ChangeLogger.super.streamChanges(query, chunkSize, consumer);
+        }
+        // Every shard is read a page at a time, and the pages are merged,
+        // so that at most a page of changes per shard is held in memory
+        final int pageSize = Math.min(chunkSize, query.getLimit());
+        final List<ShardCursor> cursors = new ArrayList<>(candidates.cardinality());
+        for (int shard = candidates.nextSetBit(0); shard != -1; shard = candidates.nextSetBit(shard + 1)) {
+            cursors.add(new ShardCursor(shard, this.getShardQuery(query, shard).copy().withLimit(pageSize)));
+        }
+        return this.merge(cursors, new ChangeBuffer(query.getLimit(), chunkSize, consumer));
+    }
+
+    @Override public CompletableFuture<ChangeSummary> summarizeChanges(@NotNull final ChangeQuery query,
+        @NotNull final Collection<SummaryField> fields) {
+        final BitSet candidates = this.getShards(query);
+        final List<CompletableFuture<ChangeSummary>> futures = new ArrayList<>(candidates.cardinality());
+        for (int shard = candidates.nextSetBit(0); shard != -1; shard = candidates.nextSetBit(shard + 1)) {
+            futures.add(this.loggers.get(shard).summarizeChanges(query, fields));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).thenApply(ignored -> {
+            final ChangeSummary.Builder builder = ChangeSummary.newBuilder(fields);
+            for (final CompletableFuture<ChangeSummary> future : futures) {
+                final ChangeSummary summary = future.join();
+                for (final ChangeSummary.Entry entry : summary.getEntries()) {
+                    final String[] keys = new String[summary.getFields().size()];
+                    for (int i = 0; i < keys.length; i++) {
+                        keys[i] = entry.getKey(summary.getFields().get(i));
+                    }
+                    builder.addCount(entry.getCount(), keys);
+                }
+            }
+            return builder.build();
+        });
+    }
+
+    /**
+     * Get the shard that holds the changes at a location
+     *
+     * @param location Location
+     * @return Shard index
+     */
+    private int getShard(@NotNull final Location location) {
+        return this.getShard(Objects.requireNonNull(location.getWorld()), location.getBlockX() >> REGION_SHIFT,
+            location.getBlockZ() >> REGION_SHIFT);
+    }
+
+    private int getShard(@NotNull final World world, final int regionX, final int regionZ) {
+        final long region = (long) regionX << 32 | regionZ & 0xFFFFFFFFL;
+        // Spread neighbouring regions over different shards
+        final long hash = (region * 0x9E3779B97F4A7C15L) ^ world.getName().hashCode();
+        return (int) Math.floorMod(hash ^ (hash >>> 32), (long) this.shards.size());
+    }
+
+    /**
+     * Get the shards that overlap the region of a query
+     *
+     * @param query Query
+     * @return Shard indices
+     */
+    @NotNull private BitSet getShards(@NotNull final ChangeQuery query) {
+        final BitSet candidates = new BitSet(this.loggers.size());
+        if (this.legacyLogger != null) {
+            // The legacy logger holds changes anywhere
+            candidates.set(this.shards.size());
+        }
+        final Vector minimum = query.getRegion().getMinimumPoint();
+        final Vector maximum = query.getRegion().getMaximumPoint();
+        for (int x = minimum.getBlockX() >> REGION_SHIFT; x <= maximum.getBlockX() >> REGION_SHIFT; x++) {
+            for (int z = minimum.getBlockZ() >> REGION_SHIFT; z <= maximum.getBlockZ() >> REGION_SHIFT; z++) {
+                candidates.set(this.getShard(query.getWorld(), x, z));
+                if (candidates.cardinality() == this.loggers.size()) {
+                    return candidates;
+                }
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Get the query that is sent to a shard. Page tokens refer to global
+     * event IDs, which are translated to the IDs that the shard uses
+     *
+     * @param query Query
+     * @param shard Shard index
+     * @return Shard query
+     */
+    @NotNull private ChangeQuery getShardQuery(@NotNull final ChangeQuery query, final int shard) {
+        final PageToken pageToken = query.getPageToken();
+        if (pageToken == null) {
+            return query;
+        }
+        // The shard has to continue with the changes that have a lower global
+        // ID, which are the changes with a local ID below this bound
+        final long eventId = Math.floorDiv(pageToken.getEventId() - shard + this.stride - 1, this.stride);
+        return query.copy().after(PageToken.of(pageToken.getTimestamp(), eventId));
+    }
+
+    /**
+     * Hand the newest buffered change to the buffer, until the buffer is done or a shard
+     * runs out of buffered changes. That shard then reads its next page, and the merge
+     * continues once the page has been read
+     *
+     * @param cursors Shards that are merged
+     * @param buffer  Buffer that receives the merged changes
+     * @return Future that completes with the number of merged changes
+     */
+    @NotNull private CompletableFuture<Integer> merge(@NotNull final List<ShardCursor> cursors,
+        @NotNull final ChangeBuffer buffer) {
+        final List<CompletableFuture<Void>> reads = new ArrayList<>();
+        for (final ShardCursor cursor : cursors) {
+            if (cursor.shouldRead()) {
+                reads.add(cursor.read());
+            }
+        }
+        return CompletableFuture.allOf(reads.toArray(new CompletableFuture[0])).thenCompose(ignored -> {
+            while (!buffer.isDone()) {
+                ShardCursor newest = null;
+                for (final ShardCursor cursor : cursors) {
+                    if (cursor.shouldRead()) {
+                        // The shard may hold changes that are newer than any buffered change
+                        return this.merge(cursors, buffer);
+                    } else if (!cursor.isEmpty() && (newest == null || NEWEST_FIRST.compare(cursor.peek(), newest.peek()) < 0)) {
+                        newest = cursor;
+                    }
+                }
+                if (newest == null) {
+                    break;
+                }
+                buffer.add(newest.poll());
+            }
+            buffer.flush();
+            return CompletableFuture.completedFuture(buffer.getCount());
+        });
+    }
+
+    @NotNull private Change toGlobal(@NotNull final Change change, final int shard) {
+        return Change.newBuilder().withId(change.getId() * this.stride + shard)
+            .withSource(change.getSource()).atLocation(change.getLocation()).withSubject(change.getSubject())
+            .withReason(change.getReason()).atTime(change.getTimestamp()).build();
+    }
+
+    /**
+     * The changes of a shard that have been read, but not yet merged
+     */
+    private final class ShardCursor {
+
+        private final int shard;
+        private final Deque<Change> page = new ArrayDeque<>();
+        private ChangeQuery query;
+        private boolean exhausted;
+
+        private ShardCursor(final int shard, @NotNull final ChangeQuery query) {
+            this.shard = shard;
+            this.query = query;
+        }
+
+        private boolean shouldRead() {
+            return this.page.isEmpty() && !this.exhausted;
+        }
+
+        private boolean isEmpty() {
+            return this.page.isEmpty();
+        }
+
+        @NotNull private Change peek() {
+            return this.page.getFirst();
+        }
+
+        @NotNull private Change poll() {
+            return this.page.removeFirst();
+        }
+
+        /**
+         * Read the next page of the shard
+         *
+         * @return Future that completes once the page has been read
+         */
+        @NotNull private CompletableFuture<Void> read() {
+            return loggers.get(this.shard).queryChanges(this.query).thenAccept(changes -> {
+                // A short page is the last page
+                this.exhausted = changes.size() < this.query.getLimit();
+                if (!changes.isEmpty()) {
+                    // Pages continue from the local ID of the last change
+                    this.query = this.query.copy().after(PageToken.after(changes.get(changes.size() - 1)));
+                }
+                for (final Change change : changes) {
+                    this.page.add(toGlobal(change, this.shard));
+                }
+            });
+        }
+
+    }
+
+}
@@ -0,0 +1,112 @@
+//
+// IronGolem - A Minecraft block logging plugin
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.intellectualsites.irongolem.storage;
+
+import com.google.common.base.Preconditions;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Per-connection cache of {@link PreparedStatement prepared statements}, keyed
+ * by the shape of the query. Cached statements stay open, so that the database
+ * only has to compile every query shape once per connection.
+ * <p>
+ * A connection must only be used by one thread at a time, which is the case
+ * for connections that are borrowed from a {@link ConnectionPool}. Statements
+ * returned by the cache must not be closed by the caller
+ */
+public class StatementCache implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StatementCache.class);
+
+    private final Map<Connection, Map<String, PreparedStatement>> statements = new ConcurrentHashMap<>();
+    private final int capacity;
+
+    /**
+     * Create a new statement cache
+     *
+     * @param capacity Maximum number of statements per connection. The least
+     *                 recently used statement is closed when this is exceeded
+     */
+    public StatementCache(final int capacity) {
+        Preconditions.checkState(capacity > 0, "Capacity has to be positive");
+        this.capacity = capacity;
+    }
+
+    /**
+     * Get a prepared statement, and prepare it if it isn't cached. The
+     * parameters of a cached statement are cleared before it is returned
+     *
+     * @param connection Connection that the statement belongs to
+     * @param shape      Key that identifies the query
+     * @param sql        Supplier of the statement, only used when it isn't cached
+     * @return Prepared statement
+     * @throws SQLException If the statement cannot be prepared
+     */
+    @NotNull public PreparedStatement prepare(@NotNull final Connection connection, @NotNull final String shape,
+        @NotNull final Supplier<String> sql) throws SQLException {
+        final Map<String, PreparedStatement> cached = this.statements.computeIfAbsent(connection,
+            key -> new LinkedHashMap<String, PreparedStatement>(16, 0.75F, true) {
+                @Override protected boolean removeEldestEntry(final Map.Entry<String, PreparedStatement> eldest) {
+                    if (this.size() <= StatementCache.this.capacity) {
+                        return false;
+                    }
+                    closeQuietly(eldest.getValue());
+                    return true;
+                }
+            });
+        PreparedStatement statement = cached.get(shape);
+        if (statement != null && !statement.isClosed()) {
+            statement.clearParameters();
+            return statement;
+        }
+        statement = connection.prepareStatement(sql.get());
+        cached.put(shape, statement);
+        return statement;
+    }
+
+    /**
+     * Close all cached statements
+     */
+    @Override public void close() {
+        for (final Map<String, PreparedStatement> cached : this.statements.values()) {
+            for (final PreparedStatement statement : cached.values()) {
+                closeQuietly(statement);
+            }
+        }
+        this.statements.clear();
+    }
+
+    private static void closeQuietly(@NotNull final PreparedStatement statement) {
+        try {
+            statement.close();
+        } catch (final SQLException e) {
+            LOGGER.error("Failed to close cached statement", e);
+        }
+    }
+
+}
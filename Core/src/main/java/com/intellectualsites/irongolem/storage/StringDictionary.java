@@ -0,0 +1,211 @@
+//
+// IronGolem - A Minecraft block logging plugin
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.intellectualsites.irongolem.storage;
+
+import com.google.common.base.Preconditions;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A table that maps strings to integer identifiers. Mappings never
+ * change once they have been created, which means that they can be
+ * cached in memory for as long as the dictionary lives.
+ * <p>
+ * The table is expected to have an auto incrementing {@code id} column
+ * and a unique value column. Mappings that are created inside of a
+ * transaction are forgotten again if the transaction is {@link #rollback() rolled back}
+ */
+public class StringDictionary {
+
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private final Map<Integer, String> values = new ConcurrentHashMap<>();
+    // Guarded by the dictionary
+    private final List<String> created = new ArrayList<>();
+
+    private final String insertQuery;
+    private final String idQuery;
+    private final String valueQuery;
+    private final String loadQuery;
+
+    /**
+     * Create a new dictionary
+     *
+     * @param dialect Dialect of the database
+     * @param table   Dictionary table
+     * @param column  Value column
+     */
+    public StringDictionary(@NotNull final SQLDialect dialect, @NotNull final String table,
+        @NotNull final String column) {
+        Preconditions.checkNotNull(dialect, "Dialect may not be null");
+        Preconditions.checkNotNull(table, "Table may not be null");
+        Preconditions.checkNotNull(column, "Column may not be null");
+        this.insertQuery = dialect.getInsertIgnore(table, column);
+        this.idQuery = dialect.translate(String.format("SELECT `id` FROM `%s` WHERE `%s` = ?", table, column));
+        this.valueQuery = dialect.translate(String.format("SELECT `%s` FROM `%s` WHERE `id` = ?", column, table));
+        this.loadQuery = dialect.translate(String.format("SELECT `id`, `%s` FROM `%s`", column, table));
+    }
+
+    /**
+     * Load all mappings into memory
+     *
+     * @param connection Connection to read from
+     * @throws SQLException If the mappings cannot be read
+     */
+    public void load(@NotNull final Connection connection) throws SQLException {
+        try (final PreparedStatement statement = connection.prepareStatement(this.loadQuery);
+             final ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+                this.cache(resultSet.getInt(1), resultSet.getString(2));
+            }
+        }
+    }
+
+    /**
+     * Get the identifier of a value, and create it if it
+     * doesn't already exist
+     *
+     * @param connection Connection used to create the mapping
+     * @param value      Value
+     * @return Value identifier
+     * @throws SQLException If the mapping could not be created
+     */
+    public int getId(@NotNull final Connection connection, @NotNull final String value) throws SQLException {
+        final Integer cached = this.ids.get(value);
+        if (cached != null) {
+            return cached;
+        }
+        synchronized (this) {
+            try (final PreparedStatement statement = connection.prepareStatement(this.insertQuery)) {
+                statement.setString(1, value);
+                statement.executeUpdate();
+            }
+            try (final PreparedStatement statement = connection.prepareStatement(this.idQuery)) {
+                statement.setString(1, value);
+                try (final ResultSet resultSet = statement.executeQuery()) {
+                    if (!resultSet.next()) {
+                        throw new SQLException(String.format("Failed to create mapping for '%s'", value));
+                    }
+                    final int id = resultSet.getInt(1);
+                    this.cache(id, value);
+                    this.created.add(value);
+                    return id;
+                }
+            }
+        }
+    }
+
+    /**
+     * Keep the mappings that were created by {@link #getId(Connection, String)}
+     * since the last commit, once the transaction that created them has committed
+     */
+    public synchronized void commit() {
+        this.created.clear();
+    }
+
+    /**
+     * Forget the mappings that were created by {@link #getId(Connection, String)} since
+     * the last commit, once the transaction that created them has been rolled back. The
+     * database may hand out their identifiers again, to different values
+     */
+    public synchronized void rollback() {
+        for (final String value : this.created) {
+            final Integer id = this.ids.remove(value);
+            if (id != null) {
+                this.values.remove(id, value);
+            }
+        }
+        this.created.clear();
+    }
+
+    /**
+     * Get the identifier of a value, without creating it
+     *
+     * @param connection Connection to read from
+     * @param value      Value
+     * @return Value identifier, or -1 if there is no such value
+     * @throws SQLException If the mapping could not be read
+     */
+    public int findId(@NotNull final Connection connection, @NotNull final String value) throws SQLException {
+        final Integer cached = this.ids.get(value);
+        if (cached != null) {
+            return cached;
+        }
+        try (final PreparedStatement statement = connection.prepareStatement(this.idQuery)) {
+            statement.setString(1, value);
+            try (final ResultSet resultSet = statement.executeQuery()) {
+                if (!resultSet.next()) {
+                    return -1;
+                }
+                final int id = resultSet.getInt(1);
+                this.cache(id, value);
+                return id;
+            }
+        }
+    }
+
+    /**
+     * Get the value that is mapped to an identifier
+     *
+     * @param connection Connection to read from
+     * @param id         Value identifier
+     * @return The value, or null if there is no such mapping
+     * @throws SQLException If the mapping could not be read
+     */
+    @Nullable public String getValue(@NotNull final Connection connection, final int id) throws SQLException {
+        final String cached = this.values.get(id);
+        if (cached != null) {
+            return cached;
+        }
+        try (final PreparedStatement statement = connection.prepareStatement(this.valueQuery)) {
+            statement.setInt(1, id);
+            try (final ResultSet resultSet = statement.executeQuery()) {
+                if (!resultSet.next()) {
+                    return null;
+                }
+                final String value = resultSet.getString(1);
+                this.cache(id, value);
+                return value;
+            }
+        }
+    }
+
+    /**
+     * Get the number of cached mappings
+     *
+     * @return Cache size
+     */
+    public int getSize() {
+        return this.values.size();
+    }
+
+    private void cache(final int id, @NotNull final String value) {
+        // Reuse the cached instance so that every reader shares the same string
+        final String interned = this.values.computeIfAbsent(id, key -> value);
+        this.ids.putIfAbsent(interned, id);
+    }
+
+}
@@ -0,0 +1,73 @@
+//
+// IronGolem - A Minecraft block logging plugin
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.intellectualsites.irongolem.util;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.sk89q.worldedit.bukkit.BukkitAdapter;
+import com.sk89q.worldedit.world.block.BlockState;
+import org.bukkit.Bukkit;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Cache of parsed block states, shared by every thread that decodes
+ * changes. Regions usually contain few distinct block states, so
+ * most of them are only ever parsed once
+ */
+public final class BlockStateCache {
+
+    private static final int MAXIMUM_SIZE = 4096;
+
+    private static final Cache<String, BlockState> CACHE =
+        CacheBuilder.newBuilder().maximumSize(MAXIMUM_SIZE).recordStats().build();
+
+    private BlockStateCache() {
+    }
+
+    /**
+     * Get the block state of a serialized block state string
+     *
+     * @param state Serialized block state, such as {@code minecraft:oak_stairs[facing=east]}
+     * @return Parsed block state
+     * @throws IllegalArgumentException If the string is not a valid block state
+     */
+    @NotNull public static BlockState parse(@NotNull final String state) {
+        Preconditions.checkNotNull(state, "State may not be null");
+        final BlockState cached = CACHE.getIfPresent(state);
+        if (cached != null) {
+            return cached;
+        }
+        // Block states are immutable, so threads that race to parse
+        // the same state simply end up storing equal values
+        final BlockState parsed = BukkitAdapter.adapt(Bukkit.createBlockData(state));
+        CACHE.put(state, parsed);
+        return parsed;
+    }
+
+    /**
+     * Get the hit and miss counts of the cache
+     *
+     * @return Cache statistics
+     */
+    @NotNull public static CacheStats getStats() {
+        return CACHE.stats();
+    }
+
+}
@@ -24,11 +24,15 @@ import com.sk89q.worldedit.bukkit.BukkitAdapter;
 import com.sk89q.worldedit.world.block.BaseBlock;
 import com.sk89q.worldedit.world.block.BlockState;
 import com.sk89q.worldedit.world.block.BlockTypes;
+import org.bukkit.Material;
 import org.bukkit.block.Block;
 import org.bukkit.block.data.BlockData;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 /**
  * Wrapper for blocks that contain both their data
  * and serialized state (if there is any)
@@ -38,6 +42,9 @@ public class BlockWrapper {
     public static final BlockWrapper AIR = of(BlockTypes.AIR.getDefaultState());
     public static final CompoundTag EMPTY = CompoundTagBuilder.create().build();
 
+    // Whether or not blocks of a type have a tile entity
+    private static final Map<Material, Boolean> TILE_ENTITIES = new ConcurrentHashMap<>();
+
     private final BlockState blockData;
     private final CompoundTag blockState;
 
@@ -78,4 +85,25 @@ public class BlockWrapper {
         return of(BukkitAdapter.adapt(block.getWorld()).getFullBlock(BukkitAdapter.asBlockVector(block.getLocation())));
     }
 
+    /**
+     * Get the tile entity of a block. Blocks of a type either always or never have a tile
+     * entity, so the world is only read for types that have been seen with a tile entity,
+     * and once for every other type
+     *
+     * @param block Block
+     * @return Tile entity, or null if the block is not a tile entity
+     */
+    @Nullable public static CompoundTag getTileEntity(@NotNull final Block block) {
+        final Boolean tileEntity = TILE_ENTITIES.get(block.getType());
+        if (tileEntity != null && !tileEntity) {
+            return null;
+        }
+        final CompoundTag tag = of(block).getBlockState();
+        final boolean empty = tag.getValue().isEmpty();
+        if (tileEntity == null) {
+            TILE_ENTITIES.put(block.getType(), !empty);
+        }
+        return empty ? null : tag;
+    }
+
 }
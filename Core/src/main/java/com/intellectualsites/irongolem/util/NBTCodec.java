@@ -0,0 +1,186 @@
+//
+// IronGolem - A Minecraft block logging plugin
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.intellectualsites.irongolem.util;
+
+import com.google.common.base.Preconditions;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of serialized tile entity NBT.
+ * <p>
+ * Stored tags are small, so they are deflated without any headers, using a preset
+ * dictionary of the names and values that tile entities typically contain. Every
+ * compressed tag starts with a version byte, which identifies the dictionary. The
+ * dictionary of a version must never change, as it is needed to read the tags that
+ * were written with it. Deflaters and inflaters are pooled per thread, as they hold
+ * native memory that is expensive to allocate
+ */
+public final class NBTCodec {
+
+    /**
+     * Version byte of tags that are compressed using the first dictionary
+     */
+    public static final byte VERSION_1 = 1;
+
+    private static final byte[] DICTIONARY_V1 = createDictionary();
+    private static final int BUFFER_SIZE = 4096;
+
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(() -> new Inflater(true));
+    private static final ThreadLocal<byte[]> BUFFER = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+
+    private NBTCodec() {
+    }
+
+    /**
+     * Compress serialized NBT
+     *
+     * @param nbt Uncompressed NBT
+     * @return Version byte, followed by the compressed NBT
+     */
+    @NotNull public static byte[] compress(@NotNull final byte[] nbt) {
+        Preconditions.checkNotNull(nbt, "NBT may not be null");
+        final Deflater deflater = DEFLATER.get();
+        final byte[] buffer = BUFFER.get();
+        final ByteArrayOutputStream output = new ByteArrayOutputStream(nbt.length / 2 + 16);
+        output.write(VERSION_1);
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY_V1);
+        deflater.setInput(nbt);
+        deflater.finish();
+        while (!deflater.finished()) {
+            output.write(buffer, 0, deflater.deflate(buffer));
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * Decompress NBT that was compressed using {@link #compress(byte[])}
+     *
+     * @param bytes Version byte, followed by the compressed NBT
+     * @return Uncompressed NBT
+     * @throws DataFormatException If the version is unknown, or the data is corrupt
+     */
+    @NotNull public static byte[] decompress(@NotNull final byte[] bytes) throws DataFormatException {
+        Preconditions.checkNotNull(bytes, "Bytes may not be null");
+        if (bytes.length == 0 || bytes[0] != VERSION_1) {
+            throw new DataFormatException("Unknown NBT compression version");
+        }
+        final Inflater inflater = INFLATER.get();
+        final byte[] buffer = BUFFER.get();
+        final ByteArrayOutputStream output = new ByteArrayOutputStream(bytes.length * 4);
+        inflater.reset();
+        inflater.setDictionary(DICTIONARY_V1);
+        inflater.setInput(bytes, 1, bytes.length - 1);
+        while (!inflater.finished()) {
+            final int length = inflater.inflate(buffer);
+            if (length == 0 && inflater.needsInput()) {
+                throw new DataFormatException("Truncated NBT");
+            }
+            output.write(buffer, 0, length);
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * Whether or not bytes are compressed using {@link #compress(byte[])}, rather
+     * than being a GZIP stream, which is what tags used to be stored as
+     *
+     * @param bytes Stored bytes
+     * @return True if the bytes start with a known version byte
+     */
+    public static boolean isCompressed(@NotNull final byte[] bytes) {
+        return bytes.length > 0 && bytes[0] == VERSION_1;
+    }
+
+    /**
+     * Create the first version of the dictionary. Deflate favours matches that are
+     * close to the data, so the most common fragments are added last. Changing this
+     * in any way makes every tag that was written with it unreadable
+     *
+     * @return Dictionary
+     */
+    @NotNull private static byte[] createDictionary() {
+        final ByteArrayOutputStream dictionary = new ByteArrayOutputStream(2048);
+        // Rare tile entities
+        for (final String name : new String[] {"Command", "SuccessCount", "TrackOutput", "LastOutput", "auto",
+            "conditionMet", "powered", "note", "Levels", "Primary", "Secondary", "Bees", "FlowerPos", "EntityData",
+            "TicksInHive", "MinOccupationTicks", "Book", "Page", "RecordItem", "SpawnData", "SpawnPotentials",
+            "Delay", "MinSpawnDelay", "MaxSpawnDelay", "SpawnCount", "SpawnRange", "MaxNearbyEntities",
+            "RequiredPlayerRange", "Owner", "SkullOwner", "Properties", "textures", "Value", "Signature",
+            "Patterns", "Pattern", "Base", "BrewTime", "Fuel", "BurnTime", "CookTime", "CookTimeTotal",
+            "RecipesUsed", "TransferCooldown", "LootTable", "LootTableSeed", "Lock", "CustomName"}) {
+            writeString(dictionary, name);
+        }
+        // Item tags
+        for (final String name : new String[] {"Unbreakable", "RepairCost", "StoredEnchantments", "Enchantments",
+            "ench", "lvl", "Lore", "Name", "display", "Damage"}) {
+            writeString(dictionary, name);
+        }
+        for (final String id : new String[] {"minecraft:mob_spawner", "minecraft:spawner", "minecraft:beacon",
+            "minecraft:jukebox", "minecraft:command_block", "minecraft:brewing_stand", "minecraft:skull",
+            "minecraft:banner", "minecraft:dropper", "minecraft:dispenser", "minecraft:hopper", "minecraft:furnace",
+            "minecraft:shulker_box", "minecraft:barrel", "minecraft:trapped_chest", "minecraft:coal",
+            "minecraft:torch", "minecraft:diamond", "minecraft:iron_ingot", "minecraft:oak_planks",
+            "minecraft:dirt", "minecraft:cobblestone", "minecraft:stone", "minecraft:sign", "minecraft:chest"}) {
+            writeString(dictionary, id);
+        }
+        // Signs
+        writeString(dictionary, "black");
+        writeString(dictionary, "Color");
+        for (int line = 4; line >= 1; line--) {
+            dictionary.write(8);
+            writeString(dictionary, "Text" + line);
+            writeString(dictionary, "{\"text\":\"\"}");
+        }
+        // Containers, and the fields that every tile entity has
+        dictionary.write(10);
+        writeString(dictionary, "tag");
+        dictionary.write(1);
+        writeString(dictionary, "Count");
+        dictionary.write(1);
+        writeString(dictionary, "Slot");
+        dictionary.write(9);
+        writeString(dictionary, "Items");
+        dictionary.write(10);
+        for (final String coordinate : new String[] {"z", "y", "x"}) {
+            dictionary.write(3);
+            writeString(dictionary, coordinate);
+        }
+        dictionary.write(8);
+        writeString(dictionary, "id");
+        dictionary.write(10);
+        writeString(dictionary, "IG");
+        return dictionary.toByteArray();
+    }
+
+    private static void writeString(@NotNull final ByteArrayOutputStream output, @NotNull final String value) {
+        // NBT strings are prefixed by their length, as an unsigned short
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        output.write(bytes.length >> 8);
+        output.write(bytes.length);
+        output.write(bytes, 0, bytes.length);
+    }
+
+}
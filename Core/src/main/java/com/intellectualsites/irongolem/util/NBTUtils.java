@@ -28,36 +28,76 @@ import org.slf4j.LoggerFactory;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 public final class NBTUtils {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(NBTUtils.class);
     private static final CompoundTag EMPTY = CompoundTagBuilder.create().build();
+    private static final byte COMPOUND_TYPE = 10;
 
     private NBTUtils() {
     }
 
+    /**
+     * Serialize a compound, and compress it using {@link NBTCodec}
+     *
+     * @param tag Compound
+     * @return Compressed compound, or an empty array if the compound is empty
+     */
     @NotNull public static byte[] compoundToBytes(@NotNull final CompoundTag tag) {
+        return compress(compoundToRawBytes(tag));
+    }
+
+    /**
+     * Serialize a compound without compressing it. This is much cheaper than
+     * {@link #compoundToBytes(CompoundTag)}, and the serialized compound can
+     * be compressed later, using {@link #compress(byte[])}
+     *
+     * @param tag Compound
+     * @return Serialized compound, or an empty array if the compound is empty
+     */
+    @NotNull public static byte[] compoundToRawBytes(@NotNull final CompoundTag tag) {
         if (tag.getValue().isEmpty()) {
             return new byte[0];
         }
-        try (final ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(4096);
-             final NBTOutputStream nbtOutputStream = new NBTOutputStream(new GZIPOutputStream(byteArrayOutputStream))) {
+        final ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(256);
+        try (final NBTOutputStream nbtOutputStream = new NBTOutputStream(byteArrayOutputStream)) {
             nbtOutputStream.writeNamedTag("IG", tag);
-            return byteArrayOutputStream.toByteArray();
         } catch (final Exception e) {
             LOGGER.error("Failed to write compound", e);
+            return new byte[0];
+        }
+        return byteArrayOutputStream.toByteArray();
+    }
+
+    /**
+     * Compress a compound that was serialized using {@link #compoundToRawBytes(CompoundTag)}.
+     * Compounds that are already compressed are returned as they are
+     *
+     * @param bytes Serialized compound
+     * @return Compressed compound, or an empty array if the compound is empty
+     */
+    @NotNull public static byte[] compress(@NotNull final byte[] bytes) {
+        // Uncompressed compounds start with the type of the root tag
+        if (bytes.length == 0 || bytes[0] != COMPOUND_TYPE) {
+            return bytes;
         }
-        return new byte[0];
+        return NBTCodec.compress(bytes);
     }
 
+    /**
+     * Read a compound that was serialized using {@link #compoundToBytes(CompoundTag)}.
+     * Compounds that were stored before {@link NBTCodec} existed are GZIP streams
+     *
+     * @param bytes Serialized compound
+     * @return Compound, or an empty compound if it could not be read
+     */
     @NotNull public static CompoundTag bytesToCompound(@NotNull final byte[] bytes) {
         if (bytes.length == 0) {
             return EMPTY;
         }
-        try (final ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(bytes);
-             final NBTInputStream nbtInputStream = new NBTInputStream(new GZIPInputStream(byteArrayInputStream))) {
+        try (final NBTInputStream nbtInputStream = new NBTInputStream(NBTCodec.isCompressed(bytes) ?
+            new ByteArrayInputStream(NBTCodec.decompress(bytes)) : new GZIPInputStream(new ByteArrayInputStream(bytes)))) {
             return (CompoundTag) nbtInputStream.readNamedTag().getTag();
         } catch (final Exception e) {
             LOGGER.error("Failed to read compound", e);
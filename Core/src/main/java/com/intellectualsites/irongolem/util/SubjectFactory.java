@@ -22,7 +22,6 @@ import com.intellectualsites.irongolem.changes.ChangeReason;
 import com.intellectualsites.irongolem.changes.ChangeSubject;
 import com.intellectualsites.irongolem.changes.ChangeType;
 import com.intellectualsites.irongolem.changes.RestorationSubject;
-import org.bukkit.Bukkit;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -44,11 +43,11 @@ public class SubjectFactory {
         @NotNull final String from, @NotNull final String to, @NotNull final byte[] oldState, @NotNull final byte[] newState) {
         final ChangeType changeType = ChangeType.valueOf(type);
         if (reason == ChangeReason.RESTORATION) {
-            return RestorationSubject.of(changeType, Integer.parseInt(to));
+            return RestorationSubject.of(changeType, Long.parseLong(to));
         } else {
             if (changeType == ChangeType.BLOCK) {
-                return BlockSubject.of(BlockWrapper.of(Bukkit.createBlockData(from), NBTUtils.bytesToCompound(oldState)),
-                    BlockWrapper.of(Bukkit.createBlockData(to), NBTUtils.bytesToCompound(newState)));
+                // Block data and states are only decoded once they are accessed
+                return BlockSubject.deserialize(from, to, oldState, newState);
             }
         }
         return null;
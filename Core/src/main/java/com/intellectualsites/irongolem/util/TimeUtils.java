@@ -0,0 +1,77 @@
+//
+// IronGolem - A Minecraft block logging plugin
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.intellectualsites.irongolem.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public final class TimeUtils {
+
+    private static final Pattern DURATION_PATTERN = Pattern.compile("(\\d+)([smhdw])");
+
+    private TimeUtils() {
+    }
+
+    /**
+     * Parse a duration, such as "30d" or "1w12h". Supported units are
+     * s (seconds), m (minutes), h (hours), d (days) and w (weeks)
+     *
+     * @param duration Duration string
+     * @return Duration (in milliseconds)
+     * @throws IllegalArgumentException If the duration cannot be parsed
+     */
+    public static long parseDuration(@NotNull final String duration) throws IllegalArgumentException {
+        final String input = duration.trim().toLowerCase(Locale.ENGLISH);
+        final Matcher matcher = DURATION_PATTERN.matcher(input);
+        long total = 0L;
+        int end = 0;
+        while (matcher.find()) {
+            if (matcher.start() != end) {
+                break;
+            }
+            end = matcher.end();
+            final long amount = Long.parseLong(matcher.group(1));
+            switch (matcher.group(2)) {
+                case "s":
+                    total += TimeUnit.SECONDS.toMillis(amount);
+                    break;
+                case "m":
+                    total += TimeUnit.MINUTES.toMillis(amount);
+                    break;
+                case "h":
+                    total += TimeUnit.HOURS.toMillis(amount);
+                    break;
+                case "d":
+                    total += TimeUnit.DAYS.toMillis(amount);
+                    break;
+                default:
+                    total += TimeUnit.DAYS.toMillis(amount * 7L);
+                    break;
+            }
+        }
+        if (end == 0 || end != input.length()) {
+            throw new IllegalArgumentException(String.format("%s is not a duration", duration));
+        }
+        return total;
+    }
+
+}
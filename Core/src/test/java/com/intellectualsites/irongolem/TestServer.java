@@ -0,0 +1,94 @@
+//
+// IronGolem - A Minecraft block logging plugin
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package com.intellectualsites.irongolem;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Server;
+import org.bukkit.World;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitScheduler;
+import org.bukkit.scheduler.BukkitTask;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Minimal Bukkit server for tests. Asynchronous tasks run immediately
+ * on the calling thread, and delayed tasks are never run, which keeps
+ * the flush tasks of loggers from running in the background
+ */
+public final class TestServer {
+
+    private TestServer() {
+    }
+
+    /**
+     * Install the test server, unless it has already been installed
+     */
+    public static synchronized void install() {
+        if (Bukkit.getServer() != null) {
+            return;
+        }
+        final BukkitScheduler scheduler = mock(BukkitScheduler.class);
+        final BukkitTask task = mock(BukkitTask.class);
+        when(scheduler.runTaskAsynchronously(any(Plugin.class), any(Runnable.class))).thenAnswer(invocation -> {
+            invocation.<Runnable>getArgument(1).run();
+            return task;
+        });
+        when(scheduler.runTaskLaterAsynchronously(any(Plugin.class), any(Runnable.class), anyLong())).thenReturn(task);
+        when(scheduler.runTaskLater(any(Plugin.class), any(Runnable.class), anyLong())).thenReturn(task);
+        final Server server = mock(Server.class);
+        when(server.getLogger()).thenReturn(Logger.getLogger("TestServer"));
+        when(server.getScheduler()).thenReturn(scheduler);
+        Bukkit.setServer(server);
+    }
+
+    /**
+     * Create a plugin that owns the scheduled tasks
+     *
+     * @return Plugin
+     */
+    @NotNull public static Plugin createPlugin() {
+        return mock(Plugin.class);
+    }
+
+    /**
+     * Create a world, which can be looked up by its UUID
+     *
+     * @param name World name
+     * @return World
+     */
+    @NotNull public static World createWorld(@NotNull final String name) {
+        install();
+        final UUID uuid = UUID.randomUUID();
+        final World world = mock(World.class);
+        when(world.getName()).thenReturn(name);
+        when(world.getUID()).thenReturn(uuid);
+        final Server server = Bukkit.getServer();
+        when(server.getWorld(uuid)).thenReturn(world);
+        return world;
+    }
+
+}
@@ -0,0 +1,46 @@
+//
+// IronGolem - A Minecraft block logging plugin
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.intellectualsites.irongolem.changes;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Formats and parses {@link PageToken page tokens}
+ */
+class PageTokenTest {
+
+    @Test void testRoundTrip() {
+        for (final PageToken token : new PageToken[] {PageToken.of(0L, 0L), PageToken.of(1600000000000L, 123456789L),
+            PageToken.of(Long.MAX_VALUE, Long.MAX_VALUE), PageToken.of(1L, -1L)}) {
+            final PageToken parsed = PageToken.parse(token.toString());
+            assertEquals(token, parsed);
+            assertEquals(token.getTimestamp(), parsed.getTimestamp());
+            assertEquals(token.getEventId(), parsed.getEventId());
+        }
+    }
+
+    @Test void testInvalidTokens() {
+        for (final String token : new String[] {"", "abc", ".", "1.", ".1", "1.2.3", "1.!"}) {
+            assertThrows(IllegalArgumentException.class, () -> PageToken.parse(token), token);
+        }
+    }
+
+}
@@ -0,0 +1,143 @@
+//
+// IronGolem - A Minecraft block logging plugin
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.intellectualsites.irongolem.logging;
+
+import com.intellectualsites.irongolem.TestServer;
+import com.intellectualsites.irongolem.changes.BlockSubject;
+import com.intellectualsites.irongolem.changes.Change;
+import com.intellectualsites.irongolem.changes.ChangeReason;
+import com.intellectualsites.irongolem.changes.ChangeSource;
+import com.intellectualsites.irongolem.changes.PlayerSource;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Merges changes to the same block using {@link ChangeCoalescer}
+ */
+class ChangeCoalescerTest {
+
+    private static final long WINDOW = 60000L;
+
+    private final World world = TestServer.createWorld("world");
+    private final ChangeSource source = PlayerSource.of(UUID.randomUUID());
+    private final Queue<Change> changes = new ArrayDeque<>();
+    private final ChangeCoalescer coalescer = new ChangeCoalescer(this.changes::poll, WINDOW);
+    // Recent enough that the changes are held until they are released
+    private final long time = System.currentTimeMillis();
+
+    @Test void testMerge() {
+        this.changes.add(this.change(this.source, ChangeReason.BLOCK_PLACE, "minecraft:air", "minecraft:stone", 0L));
+        this.changes.add(this.change(this.source, ChangeReason.BLOCK_BREAK, "minecraft:stone", "minecraft:air", 1000L));
+        this.changes.add(this.change(this.source, ChangeReason.BLOCK_PLACE, "minecraft:air", "minecraft:dirt", 2000L));
+        assertNull(this.coalescer.next());
+        assertEquals(3L, this.coalescer.getPolled());
+        assertEquals(2L, this.coalescer.getCoalesced());
+        assertEquals(1L, this.coalescer.getOldestHeld());
+        this.coalescer.release();
+        final Change merged = this.coalescer.next();
+        assertEquals("minecraft:air", merged.getSubject().serializeFrom());
+        assertEquals("minecraft:dirt", merged.getSubject().serializeTo());
+        assertEquals(ChangeReason.BLOCK_PLACE, merged.getReason());
+        assertEquals(this.time + 2000L, merged.getTimestamp());
+        assertEquals(1L, this.coalescer.getReturned());
+        assertEquals(-1L, this.coalescer.getOldestHeld());
+        assertNull(this.coalescer.next());
+    }
+
+    @Test void testMergeBreak() {
+        this.changes.add(this.change(this.source, ChangeReason.BLOCK_BREAK, "minecraft:stone", "minecraft:air", 0L));
+        this.changes.add(this.change(this.source, ChangeReason.BLOCK_PLACE, "minecraft:air", "minecraft:dirt", 1000L));
+        this.changes.add(this.change(this.source, ChangeReason.BLOCK_BREAK, "minecraft:dirt", "minecraft:air", 2000L));
+        this.coalescer.release();
+        // The reason follows from the state that the block ends up in
+        final Change merged = this.coalescer.next();
+        assertEquals("minecraft:stone", merged.getSubject().serializeFrom());
+        assertEquals("minecraft:air", merged.getSubject().serializeTo());
+        assertEquals(ChangeReason.BLOCK_BREAK, merged.getReason());
+        assertEquals(2L, this.coalescer.getCoalesced());
+        assertNull(this.coalescer.next());
+    }
+
+    @Test void testCycle() {
+        this.changes.add(this.change(this.source, ChangeReason.BLOCK_PLACE, "minecraft:air", "minecraft:stone", 0L));
+        this.changes.add(this.change(this.source, ChangeReason.BLOCK_BREAK, "minecraft:stone", "minecraft:air", 1000L));
+        this.changes.add(this.change(this.source, ChangeReason.BLOCK_PLACE, "minecraft:air", "minecraft:stone", 2000L));
+        this.changes.add(this.change(this.source, ChangeReason.BLOCK_BREAK, "minecraft:stone", "minecraft:air", 3000L));
+        this.coalescer.release();
+        // The block ended up as it was, so nothing is logged
+        assertNull(this.coalescer.next());
+        assertEquals(4L, this.coalescer.getPolled());
+        assertEquals(4L, this.coalescer.getCoalesced());
+        assertEquals(-1L, this.coalescer.getOldestHeld());
+    }
+
+    @Test void testDifferentReason() {
+        this.changes.add(this.change(this.source, ChangeReason.BLOCK_PLACE, "minecraft:air", "minecraft:stone", 0L));
+        this.changes.add(this.change(this.source, ChangeReason.RESTORATION, "minecraft:stone", "minecraft:air", 1000L));
+        // The placement is released as soon as the block is restored
+        final Change placed = this.coalescer.next();
+        assertEquals(ChangeReason.BLOCK_PLACE, placed.getReason());
+        assertEquals("minecraft:stone", placed.getSubject().serializeTo());
+        assertEquals(1L, this.coalescer.getReturned());
+        assertNull(this.coalescer.next());
+        assertEquals(2L, this.coalescer.getOldestHeld());
+        this.coalescer.release();
+        assertEquals(ChangeReason.RESTORATION, this.coalescer.next().getReason());
+        assertEquals(2L, this.coalescer.getReturned());
+        assertEquals(0L, this.coalescer.getCoalesced());
+    }
+
+    @Test void testDifferentSource() {
+        final ChangeSource other = PlayerSource.of(UUID.randomUUID());
+        this.changes.add(this.change(this.source, ChangeReason.BLOCK_PLACE, "minecraft:air", "minecraft:stone", 0L));
+        this.changes.add(this.change(other, ChangeReason.BLOCK_BREAK, "minecraft:stone", "minecraft:air", 1000L));
+        assertEquals(this.source.getName(), this.coalescer.next().getSource().getName());
+        this.coalescer.release();
+        assertEquals(other.getName(), this.coalescer.next().getSource().getName());
+        assertEquals(0L, this.coalescer.getCoalesced());
+    }
+
+    @Test void testWindow() {
+        this.changes.add(this.change(this.source, ChangeReason.BLOCK_PLACE, "minecraft:air", "minecraft:stone", 0L));
+        this.changes.add(this.change(this.source, ChangeReason.BLOCK_BREAK, "minecraft:stone", "minecraft:air",
+            WINDOW + 1L));
+        // The window is measured against the polled changes, rather than the clock
+        assertEquals("minecraft:stone", this.coalescer.next().getSubject().serializeTo());
+        assertNull(this.coalescer.next());
+        this.coalescer.release();
+        assertEquals("minecraft:air", this.coalescer.next().getSubject().serializeTo());
+        assertEquals(0L, this.coalescer.getCoalesced());
+    }
+
+    @NotNull private Change change(@NotNull final ChangeSource source, @NotNull final ChangeReason reason,
+        @NotNull final String from, @NotNull final String to, final long offset) {
+        return Change.newBuilder().withSource(source).atLocation(new Location(this.world, 1, 64, 1))
+            .withReason(reason).atTime(this.time + offset)
+            .withSubject(BlockSubject.deserialize(from, to, new byte[0], new byte[0])).build();
+    }
+
+}
@@ -0,0 +1,115 @@
+//
+// IronGolem - A Minecraft block logging plugin
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.intellectualsites.irongolem.logging;
+
+import com.intellectualsites.irongolem.TestServer;
+import com.intellectualsites.irongolem.changes.BlockSubject;
+import com.intellectualsites.irongolem.changes.Change;
+import com.intellectualsites.irongolem.changes.ChangeReason;
+import com.intellectualsites.irongolem.changes.ChangeType;
+import com.intellectualsites.irongolem.changes.PlayerSource;
+import com.intellectualsites.irongolem.changes.RestorationSubject;
+import com.intellectualsites.irongolem.util.NBTCodec;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.UUID;
+import java.util.zip.DataFormatException;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Encodes and decodes changes using {@link ChangeRecordCodec}
+ */
+class ChangeRecordCodecTest {
+
+    private final World world = TestServer.createWorld("world");
+    private final PlayerSource source = PlayerSource.of(UUID.randomUUID());
+
+    @Test void testBlockChange() throws IOException, DataFormatException {
+        // Raw compounds start with the type of the root tag
+        final byte[] newState = {10, 0, 0, 3, 0, 1, 'x', 0, 0, 0, 1, 0};
+        final Change change = Change.newBuilder().withId(42L).withSource(this.source)
+            .atLocation(new Location(this.world, -5, 64, 1 << 20)).withReason(ChangeReason.BLOCK_PLACE)
+            .atTime(1600000000000L).withSubject(BlockSubject.deserialize("minecraft:air", "minecraft:chest",
+                new byte[0], newState)).build();
+        final Change decoded = this.decode(this.encode(change));
+        assertNotNull(decoded);
+        assertSame(this.world, decoded.getLocation().getWorld());
+        assertEquals(-5, decoded.getLocation().getBlockX());
+        assertEquals(64, decoded.getLocation().getBlockY());
+        assertEquals(1 << 20, decoded.getLocation().getBlockZ());
+        assertEquals(42L, decoded.getId());
+        assertEquals(1600000000000L, decoded.getTimestamp());
+        assertEquals(ChangeReason.BLOCK_PLACE, decoded.getReason());
+        assertEquals(this.source.getName(), decoded.getSource().getName());
+        assertEquals("minecraft:air", decoded.getSubject().serializeFrom());
+        assertEquals("minecraft:chest", decoded.getSubject().serializeTo());
+        assertArrayEquals(new byte[0], decoded.getSubject().serializeOldState());
+        // Raw states are compressed when they are decoded
+        final byte[] compressed = decoded.getSubject().serializeNewState();
+        assertTrue(NBTCodec.isCompressed(compressed));
+        assertArrayEquals(newState, NBTCodec.decompress(compressed));
+    }
+
+    @Test void testRestoration() throws IOException {
+        final Change change = Change.newBuilder().withSource(this.source).atLocation(new Location(this.world, 1, 2, 3))
+            .withReason(ChangeReason.RESTORATION).withSubject(RestorationSubject.of(ChangeType.BLOCK, 1234L)).build();
+        final Change decoded = this.decode(this.encode(change));
+        assertNotNull(decoded);
+        assertEquals(ChangeReason.RESTORATION, decoded.getReason());
+        assertEquals(ChangeType.BLOCK, decoded.getSubject().getType());
+        assertEquals(1234L, decoded.getSubject().getTo());
+    }
+
+    @Test void testUnknownWorld() throws IOException {
+        // The world is never registered with the server
+        final World unloaded = mock(World.class);
+        when(unloaded.getUID()).thenReturn(UUID.randomUUID());
+        final Change change = Change.newBuilder().withSource(this.source).atLocation(new Location(unloaded, 0, 0, 0))
+            .withReason(ChangeReason.BLOCK_BREAK).withSubject(BlockSubject.deserialize("minecraft:stone",
+                "minecraft:air", new byte[0], new byte[0])).build();
+        assertNull(this.decode(this.encode(change)));
+    }
+
+    @NotNull private byte[] encode(@NotNull final Change change) throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ChangeRecordCodec.encode(change, new DataOutputStream(output));
+        return output.toByteArray();
+    }
+
+    @Nullable private Change decode(@NotNull final byte[] record) throws IOException {
+        return ChangeRecordCodec.decode(new DataInputStream(new ByteArrayInputStream(record)));
+    }
+
+}
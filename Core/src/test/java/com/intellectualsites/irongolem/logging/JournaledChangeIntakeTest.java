@@ -0,0 +1,187 @@
+//
+// IronGolem - A Minecraft block logging plugin
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.intellectualsites.irongolem.logging;
+
+import com.intellectualsites.irongolem.TestServer;
+import com.intellectualsites.irongolem.changes.BlockSubject;
+import com.intellectualsites.irongolem.changes.Change;
+import com.intellectualsites.irongolem.changes.ChangeReason;
+import com.intellectualsites.irongolem.changes.PlayerSource;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Journals changes using {@link JournaledChangeIntake}, and replays them after the journal has been reopened
+ */
+class JournaledChangeIntakeTest {
+
+    private final World world = TestServer.createWorld("world");
+    private final PlayerSource source = PlayerSource.of(UUID.randomUUID());
+
+    @TempDir File directory;
+
+    @Test void testReplay() throws IOException {
+        JournaledChangeIntake intake = this.open();
+        assertEquals(0, intake.replay());
+        for (int i = 0; i < 5; i++) {
+            assertTrue(intake.add(this.createChange(i)));
+        }
+        assertEquals(0L, intake.poll().getTimestamp());
+        assertEquals(1L, intake.poll().getTimestamp());
+        intake.commit(2);
+        // The third change was polled, but never committed
+        assertEquals(2L, intake.poll().getTimestamp());
+        intake.close();
+
+        intake = this.open();
+        // Nothing is polled until the journal has been replayed
+        assertTrue(intake.add(this.createChange(5)));
+        assertNull(intake.poll());
+        assertEquals(3, intake.replay());
+        assertEquals(4, intake.size());
+        // Replayed changes come first, followed by the changes that were queued since
+        for (long timestamp = 2L; timestamp <= 5L; timestamp++) {
+            assertEquals(timestamp, intake.poll().getTimestamp());
+        }
+        assertNull(intake.poll());
+        assertEquals(0, intake.size());
+        intake.commit(3);
+        intake.close();
+
+        intake = this.open();
+        assertEquals(1, intake.replay());
+        assertEquals(5L, intake.poll().getTimestamp());
+        intake.commit(1);
+        intake.close();
+
+        intake = this.open();
+        assertEquals(0, intake.replay());
+        assertNull(intake.poll());
+        intake.close();
+    }
+
+    @Test void testDroppedChanges() throws IOException {
+        JournaledChangeIntake intake = new JournaledChangeIntake(new OddRejectingIntake(), this.directory);
+        intake.replay();
+        for (int i = 0; i < 4; i++) {
+            assertEquals(i % 2 == 0, intake.add(this.createChange(i)));
+        }
+        assertEquals(2, intake.size());
+        intake.close();
+
+        // Changes that the other intake rejected are not replayed
+        intake = new JournaledChangeIntake(new OddRejectingIntake(), this.directory);
+        assertEquals(2, intake.replay());
+        assertEquals(0L, intake.poll().getTimestamp());
+        assertEquals(2L, intake.poll().getTimestamp());
+        // Nor are they counted when the replayed changes are committed
+        assertFalse(intake.add(this.createChange(5)));
+        assertTrue(intake.add(this.createChange(6)));
+        intake.commit(2);
+        intake.close();
+
+        intake = new JournaledChangeIntake(new OddRejectingIntake(), this.directory);
+        assertEquals(1, intake.replay());
+        assertEquals(6L, intake.poll().getTimestamp());
+        assertNull(intake.poll());
+        intake.close();
+    }
+
+    @Test void testUndecodableChanges() throws IOException {
+        // Changes in a world that is no longer loaded cannot be decoded
+        final World unloaded = mock(World.class);
+        when(unloaded.getUID()).thenReturn(UUID.randomUUID());
+        JournaledChangeIntake intake = this.open();
+        intake.replay();
+        assertTrue(intake.add(this.createChange(0)));
+        assertTrue(intake.add(this.createChange(unloaded, 1)));
+        assertTrue(intake.add(this.createChange(2)));
+        assertTrue(intake.add(this.createChange(unloaded, 3)));
+        assertEquals(0L, intake.poll().getTimestamp());
+        assertEquals(2L, intake.poll().getTimestamp());
+        assertNull(intake.poll());
+        // The dropped change is consumed along with the change before it
+        intake.commit(1);
+        intake.close();
+
+        intake = this.open();
+        assertEquals(2, intake.replay());
+        assertEquals(2L, intake.poll().getTimestamp());
+        assertNull(intake.poll());
+        intake.commit(1);
+        intake.close();
+
+        // The trailing dropped change is not replayed again either
+        intake = this.open();
+        assertEquals(0, intake.replay());
+        intake.close();
+    }
+
+    @NotNull private JournaledChangeIntake open() throws IOException {
+        return new JournaledChangeIntake(RingChangeIntake.newBuilder().withCapacity(1024 * 1024).build(),
+            this.directory);
+    }
+
+    @NotNull private Change createChange(final long timestamp) {
+        return this.createChange(this.world, timestamp);
+    }
+
+    @NotNull private Change createChange(@NotNull final World world, final long timestamp) {
+        return Change.newBuilder().withSource(this.source).atLocation(new Location(world, 0, 64, 0))
+            .withReason(ChangeReason.BLOCK_PLACE).atTime(timestamp)
+            .withSubject(BlockSubject.deserialize("minecraft:air", "minecraft:stone", new byte[0], new byte[0]))
+            .build();
+    }
+
+    /**
+     * Intake that rejects changes with odd timestamps
+     */
+    private static final class OddRejectingIntake implements ChangeIntake {
+
+        private final QueueChangeIntake changeIntake = new QueueChangeIntake();
+
+        @Override public boolean add(@NotNull final Change change) {
+            return change.getTimestamp() % 2 == 0 && this.changeIntake.add(change);
+        }
+
+        @Nullable @Override public Change poll() {
+            return this.changeIntake.poll();
+        }
+
+        @Override public int size() {
+            return this.changeIntake.size();
+        }
+
+    }
+
+}
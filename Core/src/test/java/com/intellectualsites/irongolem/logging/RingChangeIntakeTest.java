@@ -0,0 +1,149 @@
+//
+// IronGolem - A Minecraft block logging plugin
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.intellectualsites.irongolem.logging;
+
+import com.intellectualsites.irongolem.TestServer;
+import com.intellectualsites.irongolem.changes.BlockSubject;
+import com.intellectualsites.irongolem.changes.Change;
+import com.intellectualsites.irongolem.changes.ChangeReason;
+import com.intellectualsites.irongolem.changes.PlayerSource;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Queues changes in a {@link RingChangeIntake}, and checks what happens once the ring is full
+ */
+class RingChangeIntakeTest {
+
+    private static final int CAPACITY = 1024 * 1024;
+    // Three of these fit in the ring, and the fourth does not
+    private static final int STATE_SIZE = 256 * 1024;
+
+    private final World world = TestServer.createWorld("world");
+    private final PlayerSource source = PlayerSource.of(UUID.randomUUID());
+
+    @TempDir File directory;
+
+    @Test void testWrapAround() throws IOException {
+        final RingChangeIntake intake = RingChangeIntake.newBuilder().withCapacity(CAPACITY).build();
+        long next = 0L;
+        for (int i = 0; i < 3; i++) {
+            assertTrue(intake.add(this.createChange(i)));
+        }
+        // Every record that is added from now on wraps around the end of the ring
+        for (int i = 3; i < 20; i++) {
+            assertEquals(next++, intake.poll().getTimestamp());
+            assertTrue(intake.add(this.createChange(i)));
+            assertEquals(3, intake.size());
+        }
+        while (intake.size() > 0) {
+            assertEquals(next++, intake.poll().getTimestamp());
+        }
+        assertEquals(20L, next);
+        assertNull(intake.poll());
+        assertEquals(0, intake.getUsedBytes());
+        assertTrue(intake.getHighWaterMark() <= CAPACITY);
+        assertEquals(0L, intake.getDroppedChanges());
+        intake.close();
+    }
+
+    @Test void testDrop() throws IOException {
+        final RingChangeIntake intake = RingChangeIntake.newBuilder().withCapacity(CAPACITY)
+            .withOverflowPolicy(OverflowPolicy.DROP).build();
+        for (int i = 0; i < 3; i++) {
+            assertTrue(intake.add(this.createChange(i)));
+        }
+        assertFalse(intake.add(this.createChange(3)));
+        assertEquals(1L, intake.getDroppedChanges());
+        assertEquals(3, intake.size());
+        intake.close();
+        assertFalse(intake.add(this.createChange(4)));
+        assertEquals(2L, intake.getDroppedChanges());
+    }
+
+    @Test void testSpill() throws IOException {
+        final File spillFile = new File(this.directory, "spill.bin");
+        RingChangeIntake intake = RingChangeIntake.newBuilder().withCapacity(CAPACITY)
+            .withOverflowPolicy(OverflowPolicy.SPILL).spillingTo(spillFile).build();
+        for (int i = 0; i < 5; i++) {
+            assertTrue(intake.add(this.createChange(i)));
+        }
+        assertEquals(2, intake.getSpillSize());
+        assertEquals(2L, intake.getSpilledChanges());
+        // Changes may not enter the ring while others are spilled, as that would reorder them
+        assertEquals(0L, intake.poll().getTimestamp());
+        assertTrue(intake.add(this.createChange(5)));
+        assertEquals(3, intake.getSpillSize());
+        intake.close();
+        // Spilled changes survive a restart, but the ring does not
+        intake = RingChangeIntake.newBuilder().withCapacity(CAPACITY).withOverflowPolicy(OverflowPolicy.SPILL)
+            .spillingTo(spillFile).build();
+        assertEquals(3, intake.size());
+        for (long timestamp = 3L; timestamp <= 5L; timestamp++) {
+            assertEquals(timestamp, intake.poll().getTimestamp());
+        }
+        assertNull(intake.poll());
+        assertEquals(0L, spillFile.length());
+        intake.close();
+    }
+
+    @Test void testBlock() throws IOException {
+        final RingChangeIntake intake = RingChangeIntake.newBuilder().withCapacity(CAPACITY)
+            .withOverflowPolicy(OverflowPolicy.BLOCK).withMaxWait(10L)
+            .spillingTo(new File(this.directory, "spill.bin")).build();
+        for (int i = 0; i < 3; i++) {
+            assertTrue(intake.add(this.createChange(i)));
+        }
+        // Nothing makes room, so the change is spilled once the wait times out
+        assertTrue(intake.add(this.createChange(3)));
+        assertEquals(1, intake.getSpillSize());
+        assertEquals(0L, intake.getDroppedChanges());
+        for (long timestamp = 0L; timestamp <= 3L; timestamp++) {
+            assertEquals(timestamp, intake.poll().getTimestamp());
+        }
+        intake.close();
+    }
+
+    /**
+     * Create a change with a large state, which is not compressed as it is not a compound
+     *
+     * @param timestamp Timestamp, which identifies the change
+     * @return Created change
+     */
+    @NotNull private Change createChange(final long timestamp) {
+        final byte[] state = new byte[STATE_SIZE];
+        Arrays.fill(state, (byte) 1);
+        return Change.newBuilder().withSource(this.source).atLocation(new Location(this.world, 0, 64, 0))
+            .withReason(ChangeReason.BLOCK_PLACE).atTime(timestamp)
+            .withSubject(BlockSubject.deserialize("minecraft:air", "minecraft:chest", new byte[0], state)).build();
+    }
+
+}
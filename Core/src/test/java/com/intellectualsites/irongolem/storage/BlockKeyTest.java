@@ -0,0 +1,116 @@
+//
+// IronGolem - A Minecraft block logging plugin
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.intellectualsites.irongolem.storage;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Interleaves block coordinates and covers areas with key ranges using {@link BlockKey}
+ */
+class BlockKeyTest {
+
+    @Test void testInterleave() {
+        final long origin = BlockKey.of(0, 0);
+        assertEquals(origin + 1L, BlockKey.of(1, 0));
+        assertEquals(origin + 2L, BlockKey.of(0, 1));
+        assertEquals(origin + 3L, BlockKey.of(1, 1));
+        assertEquals(origin + 4L, BlockKey.of(2, 0));
+        assertTrue(BlockKey.of(-1, -1) < origin);
+        // Every chunk covers a single range of keys, on either side of the origin
+        for (final int chunk : new int[] {-16, 0, 16}) {
+            final Set<Long> keys = new HashSet<>();
+            for (int x = chunk; x < chunk + 16; x++) {
+                for (int z = chunk; z < chunk + 16; z++) {
+                    final long key = BlockKey.of(x, z);
+                    assertTrue(key >= BlockKey.of(chunk, chunk) && key <= BlockKey.of(chunk + 15, chunk + 15));
+                    keys.add(key);
+                }
+            }
+            assertEquals(256, keys.size());
+        }
+        // Coordinates beyond the key space are clamped
+        assertEquals(BlockKey.of(-(1 << 25), 0), BlockKey.of(Integer.MIN_VALUE, 0));
+    }
+
+    @Test void testExactRanges() {
+        this.assertCovered(-5, 3, 10, 20, Integer.MAX_VALUE, true);
+        this.assertCovered(-33, -40, 17, 2, Integer.MAX_VALUE, true);
+        this.assertCovered(7, 7, 7, 7, Integer.MAX_VALUE, true);
+        // Aligned regions are a single range
+        final List<long[]> ranges = this.assertCovered(512, -512, 1023, -1, 1, true);
+        assertEquals(1, ranges.size());
+        assertEquals(512L * 512L, ranges.get(0)[1] - ranges.get(0)[0] + 1L);
+    }
+
+    @Test void testLimitedRanges() {
+        for (final int maxRanges : new int[] {1, 2, 4, 8}) {
+            assertTrue(this.assertCovered(-33, -40, 17, 2, maxRanges, false).size() <= maxRanges);
+        }
+    }
+
+    /**
+     * Check that key ranges are sorted and disjoint, and cover every column in an area
+     *
+     * @param minX      Minimum block x coordinate
+     * @param minZ      Minimum block z coordinate
+     * @param maxX      Maximum block x coordinate
+     * @param maxZ      Maximum block z coordinate
+     * @param maxRanges Maximum number of ranges
+     * @param exact     Whether or not the ranges may only cover the area
+     * @return Ranges
+     */
+    private List<long[]> assertCovered(final int minX, final int minZ, final int maxX, final int maxZ,
+        final int maxRanges, final boolean exact) {
+        final List<long[]> ranges = BlockKey.getRanges(minX, minZ, maxX, maxZ, maxRanges);
+        long covered = 0L;
+        for (int i = 0; i < ranges.size(); i++) {
+            assertTrue(ranges.get(i)[0] <= ranges.get(i)[1]);
+            if (i > 0) {
+                // Adjacent ranges are merged
+                assertTrue(ranges.get(i - 1)[1] + 1L < ranges.get(i)[0]);
+            }
+            covered += ranges.get(i)[1] - ranges.get(i)[0] + 1L;
+        }
+        for (int x = minX; x <= maxX; x++) {
+            for (int z = minZ; z <= maxZ; z++) {
+                assertTrue(this.contains(ranges, BlockKey.of(x, z)), String.format("%d,%d is not covered", x, z));
+            }
+        }
+        if (exact) {
+            assertEquals((long) (maxX - minX + 1) * (maxZ - minZ + 1), covered);
+        }
+        return ranges;
+    }
+
+    private boolean contains(final List<long[]> ranges, final long key) {
+        for (final long[] range : ranges) {
+            if (key >= range[0] && key <= range[1]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,160 @@
+//
+// IronGolem - A Minecraft block logging plugin
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.intellectualsites.irongolem.storage;
+
+import com.intellectualsites.irongolem.TestServer;
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Applies foreground and background migrations through {@link MigrationRunner} on an embedded H2 database
+ */
+class MigrationRunnerTest {
+
+    private static final SQLDialect DIALECT = SQLDialect.H2;
+
+    private Connection connection;
+
+    @BeforeEach void openConnection() throws SQLException {
+        TestServer.install();
+        this.connection = DriverManager.getConnection(DIALECT.getUrl("", 0, "mem:" + UUID.randomUUID()));
+    }
+
+    @AfterEach void closeConnection() throws SQLException {
+        this.connection.close();
+    }
+
+    @Test void testForegroundMigrations() throws SQLException {
+        final Collection<Migration> migrations = this.getMigrations();
+        final MigrationRunner runner = new MigrationRunner(DIALECT, migrations, new ReentrantLock());
+        runner.runMigrations(this.connection);
+        assertTrue(runner.isApplied(1));
+        assertTrue(runner.isApplied(2));
+        // Background migrations are left for later
+        assertFalse(runner.isApplied(3));
+        assertEquals(2, runner.getSchemaVersion(this.connection));
+        assertEquals(25, this.count("SELECT COUNT(*) FROM `events`"));
+        // Applied migrations are not applied again, which would insert every event twice
+        new MigrationRunner(DIALECT, migrations, new ReentrantLock()).runMigrations(this.connection);
+        assertEquals(25, this.count("SELECT COUNT(*) FROM `events`"));
+    }
+
+    @Test void testBackgroundMigrations() throws SQLException {
+        final MigrationRunner runner = new MigrationRunner(DIALECT, this.getMigrations(), new ReentrantLock());
+        runner.runMigrations(this.connection);
+        final AtomicBoolean done = new AtomicBoolean();
+        // The test server runs the migrations on the calling thread
+        runner.runBackgroundMigrations(TestServer.createPlugin(), this.connection, () -> done.set(true));
+        assertTrue(done.get());
+        assertTrue(runner.isApplied(3));
+        assertEquals(3, runner.getSchemaVersion(this.connection));
+        // Every batch of event IDs has been migrated
+        assertEquals(0, this.count("SELECT COUNT(*) FROM `events` WHERE `migrated` = 0"));
+    }
+
+    @Test void testIndexBuilds() throws SQLException {
+        final MigrationRunner runner = new MigrationRunner(DIALECT, DIALECT.getMigrations(), new ReentrantLock());
+        runner.runMigrations(this.connection);
+        assertTrue(runner.isApplied(1));
+        assertTrue(runner.isApplied(7));
+        // Indexes are built after the logger has started, rather than on the thread that starts it
+        for (final int index : new int[] {3, 4, 5, 6, 9}) {
+            assertFalse(runner.isApplied(index));
+        }
+        runner.runBackgroundMigrations(TestServer.createPlugin(), this.connection);
+        for (final int version : new int[] {3, 4, 5, 6, 8, 9}) {
+            assertTrue(runner.isApplied(version));
+        }
+    }
+
+    @Test void testIndependentRunners() throws SQLException {
+        // Every logger of a sharded setup migrates its own database at the same time
+        try (final Connection other = DriverManager.getConnection(DIALECT.getUrl("", 0, "mem:" + UUID.randomUUID()))) {
+            final MigrationRunner empty = new MigrationRunner(DIALECT, DIALECT.getMigrations(), new ReentrantLock());
+            final MigrationRunner filled = new MigrationRunner(DIALECT, DIALECT.getMigrations(), new ReentrantLock());
+            empty.runMigrations(other);
+            filled.runMigrations(this.connection);
+            try (final PreparedStatement statement = this.connection.prepareStatement(DIALECT.translate(
+                "INSERT INTO `events`(`world`, `world_id`, `x`, `y`, `z`, `timestamp`, `source`) "
+                    + "VALUES('', 1, ?, 64, 0, 0, '')"))) {
+                for (int x = 0; x < 25; x++) {
+                    statement.setInt(1, x);
+                    statement.executeUpdate();
+                }
+            }
+            // The empty database finishes its backfill first, which may not affect the other one
+            empty.runBackgroundMigrations(TestServer.createPlugin(), other);
+            filled.runBackgroundMigrations(TestServer.createPlugin(), this.connection);
+            assertTrue(empty.isApplied(JdbcMigrations.BLOCK_HISTORY));
+            assertTrue(filled.isApplied(JdbcMigrations.BLOCK_HISTORY));
+            assertEquals(25, this.count("SELECT COUNT(*) FROM `block_history`"));
+        }
+        for (final SQLDialect dialect : new SQLDialect[] {SQLDialect.SQLITE, SQLDialect.H2}) {
+            final List<Migration> first = new ArrayList<>(dialect.getMigrations());
+            final List<Migration> second = new ArrayList<>(dialect.getMigrations());
+            for (int i = 0; i < first.size(); i++) {
+                if (first.get(i).isBackground()) {
+                    assertNotSame(first.get(i), second.get(i));
+                }
+            }
+        }
+    }
+
+    @NotNull private Collection<Migration> getMigrations() {
+        final StringBuilder events = new StringBuilder("INSERT INTO `events`(`event_id`, `migrated`) VALUES ");
+        for (int event = 1; event <= 25; event++) {
+            events.append(event == 1 ? "" : ", ").append('(').append(event).append(", 0)");
+        }
+        return Arrays.asList(
+            // Batches of 10 events need three steps
+            BatchedMigration.of(DIALECT, 3, "Migrate events", 10,
+                "UPDATE `events` SET `migrated` = 1 WHERE `event_id` > ? AND `event_id` <= ?"),
+            SQLMigration.of(2, "Insert events", DIALECT.translate(events.toString())),
+            SQLMigration.of(1, "Create events table", DIALECT.translate(
+                "CREATE TABLE `events`(`event_id` BIGINT NOT NULL PRIMARY KEY, `migrated` INTEGER NOT NULL)")));
+    }
+
+    private long count(@NotNull final String sql) throws SQLException {
+        try (final PreparedStatement statement = this.connection.prepareStatement(DIALECT.translate(sql));
+             final ResultSet resultSet = statement.executeQuery()) {
+            assertTrue(resultSet.next());
+            return resultSet.getLong(1);
+        }
+    }
+
+}
@@ -0,0 +1,135 @@
+//
+// IronGolem - A Minecraft block logging plugin
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package com.intellectualsites.irongolem.storage;
+
+import com.intellectualsites.irongolem.TestServer;
+import com.intellectualsites.irongolem.changes.BlockSubject;
+import com.intellectualsites.irongolem.changes.Change;
+import com.intellectualsites.irongolem.changes.ChangeQuery;
+import com.intellectualsites.irongolem.changes.ChangeReason;
+import com.intellectualsites.irongolem.changes.ChangeSource;
+import com.intellectualsites.irongolem.changes.Changes;
+import com.intellectualsites.irongolem.changes.PlayerSource;
+import com.intellectualsites.irongolem.logging.FlushPolicy;
+import com.intellectualsites.irongolem.logging.QueueChangeIntake;
+import com.intellectualsites.irongolem.util.CuboidRegion;
+import com.zaxxer.hikari.HikariConfig;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.util.Vector;
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Logs, looks up and restores changes through {@link PooledJdbcLogger} on an embedded H2 database
+ */
+class PooledJdbcLoggerTest {
+
+    private static final CuboidRegion REGION = CuboidRegion.of(new Vector(0, 0, 0), new Vector(15, 255, 15));
+
+    private final World world = TestServer.createWorld("world");
+    private final ChangeSource source = PlayerSource.of(UUID.randomUUID());
+    private PooledJdbcLogger logger;
+
+    @BeforeEach void startLogger() {
+        TestServer.install();
+        final HikariConfig config = new HikariConfig();
+        config.setJdbcUrl(SQLDialect.H2.getUrl("", 0, "mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1"));
+        this.logger = new PooledJdbcLogger(TestServer.createPlugin(), FlushPolicy.newBuilder().build(),
+            new QueueChangeIntake(), SQLDialect.H2, config);
+        assertTrue(this.logger.startLogging());
+    }
+
+    @AfterEach void stopLogger() {
+        this.logger.stopLogger();
+    }
+
+    @Test void testLookup() throws Throwable {
+        this.write(Arrays.asList(this.place(1, 64, 1, "minecraft:stone", 1000L),
+            this.place(1, 64, 1, "minecraft:dirt", 2000L), this.place(2, 64, 2, "minecraft:oak_planks", 3000L)));
+        final List<Change> changes = this.query(ChangeQuery.newQuery().inWorld(this.world).inRegion(REGION));
+        assertEquals(3, changes.size());
+        // The newest changes are returned first
+        assertEquals("minecraft:oak_planks", changes.get(0).getSubject().serializeTo());
+        assertEquals("minecraft:dirt", changes.get(1).getSubject().serializeTo());
+        assertEquals("minecraft:stone", changes.get(2).getSubject().serializeTo());
+        assertEquals(this.source.getName(), changes.get(0).getSource().getName());
+        final List<Change> distinct = this.query(ChangeQuery.newQuery().inWorld(this.world).inRegion(REGION)
+            .distinctValues());
+        assertEquals(2, distinct.size());
+        for (final Change change : distinct) {
+            // Distinct lookups return the oldest change at every location
+            assertEquals("minecraft:air", change.getSubject().serializeFrom());
+        }
+    }
+
+    @Test void testRestore() throws Throwable {
+        this.write(Arrays.asList(this.place(1, 64, 1, "minecraft:stone", 1000L),
+            this.place(2, 64, 2, "minecraft:dirt", 2000L)));
+        final List<Change> changes = this.query(ChangeQuery.newQuery().inWorld(this.world).inRegion(REGION)
+            .withoutReasons(ChangeReason.RESTORATION).distinctValues());
+        assertEquals(2, changes.size());
+        final Collection<Change> restorations = new Changes(REGION, this.world, changes).getRestorationChangeSet(this.source);
+        this.write(new ArrayList<>(restorations));
+        final Set<Long> restored = new HashSet<>();
+        for (final Change change : this.query(ChangeQuery.newQuery().inWorld(this.world).inRegion(REGION)
+            .withReasons(ChangeReason.RESTORATION))) {
+            restored.add((Long) change.getSubject().getTo());
+        }
+        final Set<Long> expected = new HashSet<>();
+        for (final Change change : changes) {
+            expected.add(change.getId());
+        }
+        assertEquals(expected, restored);
+    }
+
+    @NotNull private Change place(final int x, final int y, final int z, @NotNull final String to, final long time) {
+        return Change.newBuilder().withSource(this.source).atLocation(new Location(this.world, x, y, z))
+            .withReason(ChangeReason.BLOCK_PLACE).atTime(time)
+            .withSubject(BlockSubject.deserialize("minecraft:air", to, new byte[0], new byte[0])).build();
+    }
+
+    private void write(@NotNull final List<Change> changes) throws Throwable {
+        this.logger.startTransaction();
+        this.logger.startBatch();
+        for (final Change change : changes) {
+            this.logger.persist(change);
+        }
+        this.logger.finishBatch();
+        this.logger.commitTransaction();
+    }
+
+    @NotNull private List<Change> query(@NotNull final ChangeQuery query) throws Exception {
+        return this.logger.queryChanges(query).get();
+    }
+
+}
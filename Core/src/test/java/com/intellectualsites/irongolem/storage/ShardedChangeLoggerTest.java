@@ -0,0 +1,236 @@
+//
+// IronGolem - A Minecraft block logging plugin
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.intellectualsites.irongolem.storage;
+
+import com.intellectualsites.irongolem.TestServer;
+import com.intellectualsites.irongolem.changes.BlockSubject;
+import com.intellectualsites.irongolem.changes.Change;
+import com.intellectualsites.irongolem.changes.ChangeQuery;
+import com.intellectualsites.irongolem.changes.ChangeReason;
+import com.intellectualsites.irongolem.changes.ChangeSource;
+import com.intellectualsites.irongolem.changes.PageToken;
+import com.intellectualsites.irongolem.changes.PlayerSource;
+import com.intellectualsites.irongolem.logging.ChangeLogger;
+import com.intellectualsites.irongolem.util.CuboidRegion;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.util.Vector;
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Spreads changes over in-memory shards using {@link ShardedChangeLogger}, and
+ * checks that queries see the shards as a single logger
+ */
+class ShardedChangeLoggerTest {
+
+    private static final CuboidRegion REGION = CuboidRegion.of(new Vector(0, 0, 0), new Vector(4095, 255, 4095));
+    private static final Comparator<Change> NEWEST_FIRST = Comparator.comparingLong(Change::getTimestamp)
+        .thenComparingLong(Change::getId).reversed();
+
+    private final World world = TestServer.createWorld("world");
+    private final ChangeSource source = PlayerSource.of(UUID.randomUUID());
+    private final List<MemoryLogger> shards = Arrays.asList(new MemoryLogger(), new MemoryLogger());
+    private final MemoryLogger legacyLogger = new MemoryLogger();
+    private ShardedChangeLogger logger;
+
+    @BeforeEach void logChanges() {
+        // History from before the changes were sharded
+        for (int i = 0; i < 20; i++) {
+            this.legacyLogger.logChange(this.createChange(i * 97, i * 31, i / 4));
+        }
+        this.logger = new ShardedChangeLogger(this.shards, this.legacyLogger);
+        assertTrue(this.logger.startLogging());
+        final List<Change> changes = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            // Many changes share a timestamp, so they are ordered by their ID
+            changes.add(this.createChange(i * 211 % 4096, i * 587 % 4096, i / 8));
+        }
+        this.logger.logChanges(changes);
+        for (final MemoryLogger shard : this.shards) {
+            assertFalse(shard.changes.isEmpty());
+        }
+    }
+
+    @Test void testGlobalIds() {
+        final List<Change> changes = this.logger.queryChanges(this.query()).join();
+        assertEquals(this.getExpected(), this.getIds(changes));
+        final List<ChangeLogger> loggers = this.logger.getLoggers();
+        assertEquals(3, loggers.size());
+        for (final Change change : changes) {
+            // The shard and its local ID can be recovered from the global ID
+            final MemoryLogger shard = (MemoryLogger) loggers.get((int) (change.getId() % this.getStride()));
+            final Change local = shard.changes.get((int) (change.getId() / this.getStride()) - 1);
+            assertEquals(local.getLocation(), change.getLocation());
+            assertEquals(local.getTimestamp(), change.getTimestamp());
+        }
+    }
+
+    @Test void testWithoutLegacyLogger() {
+        // The IDs of the shards do not change once the legacy history is gone
+        final ShardedChangeLogger logger = new ShardedChangeLogger(this.shards);
+        final List<Long> expected = new ArrayList<>();
+        for (final long id : this.getExpected()) {
+            if (id % this.getStride() != this.shards.size()) {
+                expected.add(id);
+            }
+        }
+        assertEquals(expected, this.getIds(logger.queryChanges(this.query()).join()));
+        // Neither do the page tokens that were handed out before
+        final List<Change> page = this.logger.queryChanges(this.query().withLimit(7)).join();
+        final List<Long> ids = this.getIds(logger.queryChanges(this.query()
+            .after(PageToken.after(page.get(page.size() - 1)))).join());
+        assertEquals(expected.subList(expected.indexOf(page.get(page.size() - 1).getId()) + 1, expected.size()), ids);
+    }
+
+    @Test void testPageTokens() {
+        final List<Long> ids = new ArrayList<>();
+        ChangeQuery query = this.query().withLimit(7);
+        while (true) {
+            final List<Change> page = this.logger.queryChanges(query).join();
+            if (page.isEmpty()) {
+                break;
+            }
+            ids.addAll(this.getIds(page));
+            // Tokens hold global IDs, which are translated for every shard
+            query = this.query().withLimit(7).after(PageToken.parse(PageToken.after(page.get(page.size() - 1))
+                .toString()));
+        }
+        assertEquals(this.getExpected(), ids);
+    }
+
+    @Test void testStream() {
+        final List<Long> ids = new ArrayList<>();
+        final int count = this.logger.streamChanges(this.query(), 4, changes -> {
+            ids.addAll(this.getIds(changes));
+            return true;
+        }).join();
+        assertEquals(this.getExpected(), ids);
+        assertEquals(ids.size(), count);
+        // The merge stops once the limit has been reached
+        final List<Long> limited = new ArrayList<>();
+        assertEquals(10, this.logger.streamChanges(this.query().withLimit(10), 4, changes -> {
+            limited.addAll(this.getIds(changes));
+            return true;
+        }).join().intValue());
+        assertEquals(this.getExpected().subList(0, 10), limited);
+    }
+
+    /**
+     * Get the global IDs of every change, in the order in which they should be returned
+     *
+     * @return Global IDs
+     */
+    @NotNull private List<Long> getExpected() {
+        final List<ChangeLogger> loggers = this.logger.getLoggers();
+        final List<Change> changes = new ArrayList<>();
+        for (int shard = 0; shard < loggers.size(); shard++) {
+            for (final Change change : ((MemoryLogger) loggers.get(shard)).changes) {
+                changes.add(MemoryLogger.withId(change, change.getId() * this.getStride() + shard));
+            }
+        }
+        changes.sort(NEWEST_FIRST);
+        return this.getIds(changes);
+    }
+
+    /**
+     * Get the distance between the global IDs of consecutive changes of a shard, which
+     * leaves room for the legacy logger whether or not there is one
+     *
+     * @return Stride
+     */
+    private int getStride() {
+        return this.shards.size() + 1;
+    }
+
+    @NotNull private List<Long> getIds(@NotNull final List<Change> changes) {
+        final List<Long> ids = new ArrayList<>(changes.size());
+        for (final Change change : changes) {
+            ids.add(change.getId());
+        }
+        return ids;
+    }
+
+    @NotNull private ChangeQuery query() {
+        return ChangeQuery.newQuery().inWorld(this.world).inRegion(REGION);
+    }
+
+    @NotNull private Change createChange(final int x, final int z, final long timestamp) {
+        return Change.newBuilder().withSource(this.source).atLocation(new Location(this.world, x, 64, z))
+            .withReason(ChangeReason.BLOCK_PLACE).atTime(timestamp)
+            .withSubject(BlockSubject.deserialize("minecraft:air", "minecraft:stone", new byte[0], new byte[0]))
+            .build();
+    }
+
+    /**
+     * Logger that numbers its changes from 1, and pages through them the way {@link JdbcLogger} does
+     */
+    private static final class MemoryLogger implements ChangeLogger {
+
+        private final List<Change> changes = new ArrayList<>();
+
+        @NotNull private static Change withId(@NotNull final Change change, final long id) {
+            return Change.newBuilder().withId(id).withSource(change.getSource()).atLocation(change.getLocation())
+                .withSubject(change.getSubject()).withReason(change.getReason()).atTime(change.getTimestamp()).build();
+        }
+
+        @Override public boolean startLogging() {
+            return true;
+        }
+
+        @Override public void logChange(@NotNull final Change change) {
+            this.changes.add(withId(change, this.changes.size() + 1));
+        }
+
+        @Override public void logChanges(@NotNull final Collection<Change> changes) {
+            changes.forEach(this::logChange);
+        }
+
+        @Override public void stopLogger() {
+        }
+
+        @Override public CompletableFuture<List<Change>> queryChanges(@NotNull final ChangeQuery query) {
+            final PageToken pageToken = query.getPageToken();
+            final List<Change> changes = new ArrayList<>();
+            for (final Change change : this.changes) {
+                if (pageToken == null || change.getTimestamp() < pageToken.getTimestamp()
+                    || change.getTimestamp() == pageToken.getTimestamp() && change.getId() < pageToken.getEventId()) {
+                    changes.add(change);
+                }
+            }
+            changes.sort(NEWEST_FIRST);
+            return CompletableFuture.completedFuture(
+                changes.size() > query.getLimit() ? new ArrayList<>(changes.subList(0, query.getLimit())) : changes);
+        }
+
+    }
+
+}
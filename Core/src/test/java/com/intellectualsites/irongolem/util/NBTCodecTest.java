@@ -0,0 +1,82 @@
+//
+// IronGolem - A Minecraft block logging plugin
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.intellectualsites.irongolem.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Compresses and decompresses tile entity NBT using {@link NBTCodec}
+ */
+class NBTCodecTest {
+
+    @Test void testRoundTrip() throws DataFormatException {
+        final byte[] sign = this.createSign();
+        final byte[] compressed = NBTCodec.compress(sign);
+        assertEquals(NBTCodec.VERSION_1, compressed[0]);
+        assertTrue(NBTCodec.isCompressed(compressed));
+        // The dictionary holds most of a sign
+        assertTrue(compressed.length < sign.length / 2);
+        assertArrayEquals(sign, NBTCodec.decompress(compressed));
+        // Incompressible data, larger than the buffer of the codec
+        final byte[] random = new byte[64 * 1024];
+        new Random(0L).nextBytes(random);
+        assertArrayEquals(random, NBTCodec.decompress(NBTCodec.compress(random)));
+        assertArrayEquals(new byte[0], NBTCodec.decompress(NBTCodec.compress(new byte[0])));
+    }
+
+    @Test void testInvalidInput() {
+        // GZIP streams are what tags used to be stored as
+        assertFalse(NBTCodec.isCompressed(new byte[] {(byte) 0x1F, (byte) 0x8B}));
+        assertFalse(NBTCodec.isCompressed(new byte[0]));
+        assertThrows(DataFormatException.class, () -> NBTCodec.decompress(new byte[0]));
+        assertThrows(DataFormatException.class, () -> NBTCodec.decompress(new byte[] {(byte) 0x1F, (byte) 0x8B}));
+        final byte[] compressed = NBTCodec.compress(this.createSign());
+        assertThrows(DataFormatException.class, () -> NBTCodec.decompress(Arrays.copyOf(compressed, compressed.length / 2)));
+    }
+
+    /**
+     * Serialize the NBT of a sign, the way that it is stored
+     *
+     * @return Uncompressed NBT
+     */
+    private byte[] createSign() {
+        final StringBuilder builder = new StringBuilder();
+        builder.append("\n\u0000\u0002IG");
+        for (int line = 1; line <= 4; line++) {
+            builder.append("\b\u0000\u0005Text").append(line).append("\u0000\u000B{\"text\":\"\"}");
+        }
+        builder.append("\b\u0000\u0005Color\u0000\u0005black");
+        builder.append("\b\u0000\u0002id\u0000\u000Eminecraft:sign");
+        for (final String coordinate : new String[] {"x", "y", "z"}) {
+            builder.append("\u0003\u0000\u0001").append(coordinate).append("\u0000\u0000\u0000@");
+        }
+        return builder.append('\u0000').toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+}